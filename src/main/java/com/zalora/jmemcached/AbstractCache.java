@@ -1,6 +1,7 @@
 package com.zalora.jmemcached;
 
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -21,6 +22,8 @@ public abstract class AbstractCache<CACHE_ELEMENT extends CacheElement> implemen
     protected final AtomicInteger getMisses = new AtomicInteger();
     protected final AtomicLong casCounter = new AtomicLong(1);
 
+    private final List<StatsSource> statsSources = new CopyOnWriteArrayList<StatsSource>();
+
     public AbstractCache() {
         initStats();
     }
@@ -128,9 +131,19 @@ public abstract class AbstractCache<CACHE_ELEMENT extends CacheElement> implemen
         multiSet(result, "pid", valueOf(Thread.currentThread().getId()));
         multiSet(result, "threads", valueOf(Runtime.getRuntime().availableProcessors()));
 
+        for (StatsSource source : statsSources) {
+            for (Map.Entry<String, String> stat : source.getStats().entrySet()) {
+                multiSet(result, stat.getKey(), stat.getValue());
+            }
+        }
+
         return result;
     }
 
+    public void addStatsSource(StatsSource source) {
+        statsSources.add(source);
+    }
+
     private void multiSet(Map<String, Set<String>> map, String key, String val) {
         Set<String> cur = map.get(key);
         if (cur == null) {
@@ -0,0 +1,79 @@
+package com.zalora.jmemcached;
+
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Non-blocking variant of the data operations of {@link Cache}. Each method starts the operation and returns a
+ * stage that completes with what the corresponding {@link Cache} method would have returned, so a backend that
+ * does I/O does not have to hold a thread while it waits.
+ * <p/>
+ * Caches that only have the blocking API can be used through {@link AsyncCacheAdapter}.
+ */
+public interface AsyncCache<CACHE_ELEMENT extends CacheElement> {
+
+    /**
+     * @see Cache#delete(String, int)
+     */
+    CompletionStage<Cache.DeleteResponse> deleteAsync(String key, int time);
+
+    /**
+     * @see Cache#add(CacheElement)
+     */
+    CompletionStage<Cache.StoreResponse> addAsync(CACHE_ELEMENT e);
+
+    /**
+     * @see Cache#replace(CacheElement)
+     */
+    CompletionStage<Cache.StoreResponse> replaceAsync(CACHE_ELEMENT e);
+
+    /**
+     * @see Cache#append(CacheElement)
+     */
+    CompletionStage<Cache.StoreResponse> appendAsync(CACHE_ELEMENT element);
+
+    /**
+     * @see Cache#prepend(CacheElement)
+     */
+    CompletionStage<Cache.StoreResponse> prependAsync(CACHE_ELEMENT element);
+
+    /**
+     * @see Cache#set(CacheElement)
+     */
+    CompletionStage<Cache.StoreResponse> setAsync(CACHE_ELEMENT e);
+
+    /**
+     * @see Cache#cas(Long, CacheElement)
+     */
+    CompletionStage<Cache.StoreResponse> casAsync(Long cas_key, CACHE_ELEMENT e);
+
+    /**
+     * @see Cache#get_add(String, long, boolean)
+     */
+    CompletionStage<Long> getAddAsync(String key, long delta, boolean incr);
+
+    /**
+     * @see Cache#get(String...)
+     */
+    CompletionStage<CACHE_ELEMENT[]> getAsync(String... keys);
+
+    /**
+     * @see Cache#invalidate(String, long)
+     */
+    CompletionStage<Cache.DeleteResponse> invalidateAsync(String key, long expire);
+
+    /**
+     * @see Cache#lease(CacheElement)
+     */
+    CompletionStage<CACHE_ELEMENT> leaseAsync(CACHE_ELEMENT element);
+
+    /**
+     * @see Cache#vivify(String, long)
+     */
+    CompletionStage<CACHE_ELEMENT> vivifyAsync(String key, long expire);
+
+    /**
+     * @see Cache#touch(String, long)
+     */
+    CompletionStage<CACHE_ELEMENT> touchAsync(String key, long expire);
+
+}
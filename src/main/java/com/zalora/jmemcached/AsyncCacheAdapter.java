@@ -0,0 +1,139 @@
+package com.zalora.jmemcached;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Exposes a blocking {@link Cache} through the {@link AsyncCache} API. Every call runs on the calling thread and
+ * returns an already completed stage; an exception thrown by the cache completes the stage exceptionally.
+ */
+public final class AsyncCacheAdapter<CACHE_ELEMENT extends CacheElement> implements AsyncCache<CACHE_ELEMENT> {
+
+    private final Cache<CACHE_ELEMENT> cache;
+
+    public AsyncCacheAdapter(Cache<CACHE_ELEMENT> cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * @return the cache itself if it implements the async API, otherwise an adapter around it
+     */
+    @SuppressWarnings("unchecked")
+    public static <CACHE_ELEMENT extends CacheElement> AsyncCache<CACHE_ELEMENT> of(Cache<CACHE_ELEMENT> cache) {
+        return cache instanceof AsyncCache ? (AsyncCache<CACHE_ELEMENT>) cache : new AsyncCacheAdapter<CACHE_ELEMENT>(cache);
+    }
+
+    public CompletionStage<Cache.DeleteResponse> deleteAsync(String key, int time) {
+        try {
+            return CompletableFuture.completedFuture(cache.delete(key, time));
+        } catch (Throwable t) {
+            return failed(t);
+        }
+    }
+
+    public CompletionStage<Cache.StoreResponse> addAsync(CACHE_ELEMENT e) {
+        try {
+            return CompletableFuture.completedFuture(cache.add(e));
+        } catch (Throwable t) {
+            return failed(t);
+        }
+    }
+
+    public CompletionStage<Cache.StoreResponse> replaceAsync(CACHE_ELEMENT e) {
+        try {
+            return CompletableFuture.completedFuture(cache.replace(e));
+        } catch (Throwable t) {
+            return failed(t);
+        }
+    }
+
+    public CompletionStage<Cache.StoreResponse> appendAsync(CACHE_ELEMENT element) {
+        try {
+            return CompletableFuture.completedFuture(cache.append(element));
+        } catch (Throwable t) {
+            return failed(t);
+        }
+    }
+
+    public CompletionStage<Cache.StoreResponse> prependAsync(CACHE_ELEMENT element) {
+        try {
+            return CompletableFuture.completedFuture(cache.prepend(element));
+        } catch (Throwable t) {
+            return failed(t);
+        }
+    }
+
+    public CompletionStage<Cache.StoreResponse> setAsync(CACHE_ELEMENT e) {
+        try {
+            return CompletableFuture.completedFuture(cache.set(e));
+        } catch (Throwable t) {
+            return failed(t);
+        }
+    }
+
+    public CompletionStage<Cache.StoreResponse> casAsync(Long cas_key, CACHE_ELEMENT e) {
+        try {
+            return CompletableFuture.completedFuture(cache.cas(cas_key, e));
+        } catch (Throwable t) {
+            return failed(t);
+        }
+    }
+
+    public CompletionStage<Long> getAddAsync(String key, long delta, boolean incr) {
+        try {
+            return CompletableFuture.completedFuture(cache.get_add(key, delta, incr));
+        } catch (Throwable t) {
+            return failed(t);
+        }
+    }
+
+    public CompletionStage<CACHE_ELEMENT[]> getAsync(String... keys) {
+        try {
+            return CompletableFuture.completedFuture(cache.get(keys));
+        } catch (Throwable t) {
+            return failed(t);
+        }
+    }
+
+    public CompletionStage<Cache.DeleteResponse> invalidateAsync(String key, long expire) {
+        try {
+            return CompletableFuture.completedFuture(cache.invalidate(key, expire));
+        } catch (Throwable t) {
+            return failed(t);
+        }
+    }
+
+    public CompletionStage<CACHE_ELEMENT> leaseAsync(CACHE_ELEMENT element) {
+        try {
+            return CompletableFuture.completedFuture(cache.lease(element));
+        } catch (Throwable t) {
+            return failed(t);
+        }
+    }
+
+    public CompletionStage<CACHE_ELEMENT> vivifyAsync(String key, long expire) {
+        try {
+            return CompletableFuture.completedFuture(cache.vivify(key, expire));
+        } catch (Throwable t) {
+            return failed(t);
+        }
+    }
+
+    public CompletionStage<CACHE_ELEMENT> touchAsync(String key, long expire) {
+        try {
+            return CompletableFuture.completedFuture(cache.touch(key, expire));
+        } catch (Throwable t) {
+            return failed(t);
+        }
+    }
+
+    /**
+     * @return a stage that has already completed with the given exception
+     */
+    public static <T> CompletableFuture<T> failed(Throwable cause) {
+        CompletableFuture<T> future = new CompletableFuture<T>();
+        future.completeExceptionally(cause);
+        return future;
+    }
+
+}
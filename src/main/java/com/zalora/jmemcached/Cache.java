@@ -70,11 +70,12 @@ public interface Cache<CACHE_ELEMENT extends CacheElement> {
     /**
      * Increment/decremen t an (integer) element in the cache
      *
-     * @param key the key to increment
-     * @param mod the amount to add to the value
-     * @return the message response
+     * @param key   the key to increment
+     * @param delta the amount to add or take away, an unsigned 64 bit integer
+     * @param incr  true to add the delta, false to take it away
+     * @return the new value, an unsigned 64 bit integer, or null if the key is not there
      */
-    Integer get_add(String key, int mod);
+    Long get_add(String key, long delta, boolean incr);
 
     /**
      * Get element(s) from the cache
@@ -84,6 +85,43 @@ public interface Cache<CACHE_ELEMENT extends CacheElement> {
      */
     CACHE_ELEMENT[] get(String... keys);
 
+    /**
+     * Mark an element as stale instead of removing it. Stale elements are still served, flagged as such, until the
+     * client that gets the lease on it stores a fresh value.
+     *
+     * @param key    the key for the item
+     * @param expire the expiry of the stale element, or a negative number to keep the current one
+     * @return the message response
+     */
+    DeleteResponse invalidate(String key, long expire);
+
+    /**
+     * Take the lease on an element, which makes the caller the one client expected to recache it.
+     *
+     * @param element the element as last read from the cache
+     * @return the leased element, or 'null' if the element was already leased or has changed since it was read
+     */
+    CACHE_ELEMENT lease(CACHE_ELEMENT element);
+
+    /**
+     * Create an empty, leased placeholder for a missing element, so that exactly one of the clients missing on it
+     * goes to fill it.
+     *
+     * @param key    the key for the item
+     * @param expire the expiry of the placeholder
+     * @return the placeholder, or 'null' if the element exists by now
+     */
+    CACHE_ELEMENT vivify(String key, long expire);
+
+    /**
+     * Give an element a new expiry without changing its value
+     *
+     * @param key    the key of the element
+     * @param expire the new expiry, in the same form as an element's expire
+     * @return the updated element, or 'null' if there was nothing to touch
+     */
+    CACHE_ELEMENT touch(String key, long expire);
+
     /**
      * Flush all cache entries
      *
@@ -149,6 +187,13 @@ public interface Cache<CACHE_ELEMENT extends CacheElement> {
      */
     Map<String, Set<String>> stat(String arg);
 
+    /**
+     * Include the stats of another component in {@link #stat(String)}.
+     *
+     * @param source the component to ask for its stats
+     */
+    void addStatsSource(StatsSource source);
+
     /**
      * Called periodically by the network event loop to process any pending events.
      * (such as delete queues, etc.)
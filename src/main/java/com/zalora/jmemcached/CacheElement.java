@@ -25,6 +25,21 @@ public interface CacheElement extends Serializable, SizedItem {
 
     String getKey();
 
+    /**
+     * @return the key as UTF-8 bytes, encoded once per element; callers must not modify the array
+     */
+    byte[] getKeyBytes();
+
+    /**
+     * @return the text protocol line {@code VALUE <key> <flags> <bytes>\r\n} for this element, encoded once
+     */
+    ChannelBuffer getTextHeader();
+
+    /**
+     * @return the four byte flags extras of a binary get response, encoded once; callers must not modify the array
+     */
+    byte[] getFlagsExtras();
+
     long getCasUnique();
 
     void setCasUnique(long casUnique);
@@ -35,10 +50,38 @@ public interface CacheElement extends Serializable, SizedItem {
 
     long getBlockedUntil();
 
+    /**
+     * @return true if this element was invalidated but is kept around to be served until someone recaches it
+     */
+    boolean isStale();
+
+    /**
+     * @return true if a client has been told to recache this element and nobody else should
+     */
+    boolean isLeased();
+
+    /**
+     * @return the seconds left until this element expires, or -1 if it does not expire
+     */
+    long getRemainingTtl();
+
+    /**
+     * @return when this element was last read, in seconds since the epoch; 0 if it never was
+     */
+    int getLastAccessed();
+
+    /**
+     * Record a read of this element.
+     *
+     * @param now the current time in seconds since the epoch
+     * @return the previous {@link #getLastAccessed()}
+     */
+    int markAccessed(int now);
+
     CacheElement append(LocalCacheElement element);
 
     CacheElement prepend(LocalCacheElement element);
 
-    LocalCacheElement.IncrDecrResult add(int mod);
+    LocalCacheElement.IncrDecrResult add(long delta, boolean incr);
 
 }
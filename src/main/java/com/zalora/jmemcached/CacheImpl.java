@@ -1,11 +1,17 @@
 package com.zalora.jmemcached;
 
+import com.zalora.jmemcached.replication.ReplicationPrimary;
+import com.zalora.jmemcached.storage.AsyncCacheStorage;
+import com.zalora.jmemcached.storage.AsyncStorageAdapter;
 import com.zalora.jmemcached.storage.CacheStorage;
 import java.io.IOException;
-import java.util.Arrays;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.jboss.netty.buffer.ChannelBuffers;
 
 /**
@@ -14,18 +20,53 @@ import org.jboss.netty.buffer.ChannelBuffers;
  * @author Ryan Daum
  * @author Wolfram Huesken <wolfram.huesken@zalora.com>
  */
-public final class CacheImpl extends AbstractCache<LocalCacheElement> implements Cache<LocalCacheElement> {
+public final class CacheImpl extends AbstractCache<LocalCacheElement> implements Cache<LocalCacheElement>, AsyncCache<LocalCacheElement> {
+
+    public static final long DEFAULT_WRITE_BEHIND_MAX_WAIT_MILLIS = 1000;
+
+    // how long closing or replacing the write-behind stage waits for it to drain
+    private static final long WRITE_BEHIND_DRAIN_MILLIS = 30000;
+
+    static final int DEFAULT_LOADER_THREADS = 8;
+    static final int DEFAULT_LOADER_QUEUE_SIZE = 1024;
+
+    private static final Function<Boolean, StoreResponse> STORED_IF_REPLACED = new Function<Boolean, StoreResponse>() {
+        public StoreResponse apply(Boolean replaced) {
+            return replaced ? StoreResponse.STORED : StoreResponse.NOT_STORED;
+        }
+    };
 
     final CacheStorage<String, LocalCacheElement> storage;
+    final AsyncCacheStorage<String, LocalCacheElement> asyncStorage;
     final DelayQueue<DelayedMCElement> deleteQueue;
     private final ScheduledExecutorService scavenger;
 
+    private volatile int parallelGetThreshold;
+    private volatile ForkJoinPool parallelGetPool;
+
+    final Logger logger = LoggerFactory.getLogger(CacheImpl.class);
+
+    private volatile CacheLoader<LocalCacheElement> loader;
+    private volatile ThreadPoolExecutor loaderPool;
+    private volatile WriteBehind<LocalCacheElement> writeBehind;
+    private volatile KeyFilter keyFilter;
+    private ScheduledFuture<?> keyFilterRebuild;
+    private Runnable keyFilterRebuildTask;
+    private volatile ReplicationPrimary replication;
+    private final ConcurrentMap<String, CompletableFuture<LocalCacheElement>> loadsInFlight = new ConcurrentHashMap<String, CompletableFuture<LocalCacheElement>>();
+    private final AtomicLong loaderCalls = new AtomicLong();
+    private final AtomicLong loaderKeysRequested = new AtomicLong();
+    private final AtomicLong loaderKeysLoaded = new AtomicLong();
+    private final AtomicLong loaderCoalesced = new AtomicLong();
+    private final AtomicLong loaderErrors = new AtomicLong();
+
     /**
      * @inheritDoc
      */
     public CacheImpl(CacheStorage<String, LocalCacheElement> storage) {
         super();
         this.storage = storage;
+        this.asyncStorage = AsyncStorageAdapter.of(storage);
         deleteQueue = new DelayQueue<DelayedMCElement>();
 
         scavenger = Executors.newScheduledThreadPool(1);
@@ -34,6 +75,219 @@ public final class CacheImpl extends AbstractCache<LocalCacheElement> implements
                 asyncEventPing();
             }
         }, 10, 2, TimeUnit.SECONDS);
+
+        addStatsSource(new StatsSource() {
+            public Map<String, String> getStats() {
+                if (loader == null) return Collections.emptyMap();
+
+                Map<String, String> stats = new HashMap<String, String>();
+                stats.put("loader_calls", String.valueOf(loaderCalls.get()));
+                stats.put("loader_keys_requested", String.valueOf(loaderKeysRequested.get()));
+                stats.put("loader_keys_loaded", String.valueOf(loaderKeysLoaded.get()));
+                stats.put("loader_coalesced", String.valueOf(loaderCoalesced.get()));
+                stats.put("loader_errors", String.valueOf(loaderErrors.get()));
+                return stats;
+            }
+        });
+        addStatsSource(new StatsSource() {
+            public Map<String, String> getStats() {
+                WriteBehind<LocalCacheElement> writeBehind = CacheImpl.this.writeBehind;
+                return writeBehind != null ? writeBehind.getStats() : Collections.<String, String>emptyMap();
+            }
+        });
+        addStatsSource(new StatsSource() {
+            public Map<String, String> getStats() {
+                KeyFilter keyFilter = CacheImpl.this.keyFilter;
+                return keyFilter != null ? keyFilter.getStats() : Collections.<String, String>emptyMap();
+            }
+        });
+        addStatsSource(new StatsSource() {
+            public Map<String, String> getStats() {
+                ReplicationPrimary replication = CacheImpl.this.replication;
+                return replication != null ? replication.getStats() : Collections.<String, String>emptyMap();
+            }
+        });
+        // storage units with counters of their own, a near cache for instance
+        if (storage instanceof StatsSource) {
+            addStatsSource((StatsSource) storage);
+        }
+    }
+
+    /**
+     * Make gets read through to a backing source: keys that miss are handed to the loader, and what it returns is
+     * stored (unless a client stored the key in the meantime) and served. A multi-get passes all of its misses to
+     * {@link CacheLoader#loadAll} at once. While a key is being loaded, other gets missing on it wait for that load
+     * rather than starting another one. Only gets read through; the other commands see the cache as it is.
+     * <p/>
+     * Loads run on {@value #DEFAULT_LOADER_THREADS} loader threads, with room for
+     * {@value #DEFAULT_LOADER_QUEUE_SIZE} batches waiting for one.
+     *
+     * @param loader the loader, or null to turn read-through off
+     */
+    public void setLoader(CacheLoader<LocalCacheElement> loader) {
+        setLoader(loader, DEFAULT_LOADER_THREADS, DEFAULT_LOADER_QUEUE_SIZE);
+    }
+
+    /**
+     * Like {@link #setLoader(CacheLoader)}, with a loader pool of the given size. Loads never run on the network
+     * thread of the get that missed; when every loader thread is busy and the queue is full, the keys of a further
+     * batch are reported as misses instead of piling up.
+     *
+     * @param loader    the loader, or null to turn read-through off
+     * @param threads   the number of loader threads
+     * @param queueSize the most batches waiting for a loader thread
+     */
+    public void setLoader(CacheLoader<LocalCacheElement> loader, int threads, int queueSize) {
+        ThreadPoolExecutor previous = loaderPool;
+        if (loader != null) {
+            final AtomicLong created = new AtomicLong();
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "jmemcached-loader-" + created.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            pool.allowCoreThreadTimeOut(true);
+            loaderPool = pool;
+        } else {
+            loaderPool = null;
+        }
+        this.loader = loader;
+
+        // loads already queued on the old pool still run and release their waiters
+        if (previous != null) {
+            previous.shutdown();
+        }
+    }
+
+    /**
+     * Acknowledge mutations from memory and persist them to a slow backing store in the background. Stores,
+     * increments, touches and deletes are queued by key after they have been applied, so a key changed several
+     * times before a flush is written once, with its last state; batches go to the sink every flush interval or as
+     * soon as {@code flushSize} keys are waiting. Values loaded through read-through and lease bookkeeping are not
+     * written back. {@code flush_all} drops the mutations still waiting; the backing store keeps what it has.
+     *
+     * @param sink                the backing store, or null to turn write-behind off
+     * @param flushSize           the most keys per batch
+     * @param flushIntervalMillis the longest a mutation waits for its flush
+     * @param maxQueued           the most keys queued or in flight; writers of further keys wait for room
+     */
+    public void setWriteBehind(WriteBehindSink<LocalCacheElement> sink, int flushSize, long flushIntervalMillis, int maxQueued) {
+        setWriteBehind(sink, flushSize, flushIntervalMillis, maxQueued, DEFAULT_WRITE_BEHIND_MAX_WAIT_MILLIS);
+    }
+
+    /**
+     * As {@link #setWriteBehind(WriteBehindSink, int, long, int)}, with the longest a writer waits for room in the
+     * queue; a mutation that finds none in time is not written back, and counts as dropped.
+     */
+    public void setWriteBehind(WriteBehindSink<LocalCacheElement> sink, int flushSize, long flushIntervalMillis, int maxQueued, long maxWaitMillis) {
+        WriteBehind<LocalCacheElement> previous = writeBehind;
+        writeBehind = sink != null ? new WriteBehind<LocalCacheElement>(sink, flushSize, flushIntervalMillis, maxQueued, maxWaitMillis) : null;
+
+        if (previous != null) {
+            previous.close(WRITE_BEHIND_DRAIN_MILLIS);
+        }
+    }
+
+    /**
+     * Stream every change to the cache to replicas: stores, increments, touches, invalidations, deletes and flushes
+     * are logged as the state they leave the key in, after they have been applied. Values loaded through
+     * read-through are replicated as well; lease bookkeeping is not.
+     *
+     * @param replication a started primary over this cache's storage, or null to stop logging changes
+     */
+    public void setReplication(ReplicationPrimary replication) {
+        this.replication = replication;
+    }
+
+    /**
+     * Store an element exactly as given, cas unique included, as received from a replication primary.
+     */
+    public void restore(LocalCacheElement element) {
+        storage.put(element.getKey(), element);
+        updated(element);
+    }
+
+    /**
+     * Store an element taken from another daemon or a snapshot, unless a client has stored the key here already, in
+     * which case theirs wins. The element gets a cas unique of this cache; like loaded values, it is not written
+     * back.
+     *
+     * @return whether the element was stored
+     */
+    public boolean restoreIfAbsent(LocalCacheElement element) {
+        element.setCasUnique(casCounter.getAndIncrement());
+        if (storage.putIfAbsent(element.getKey(), element) != null) {
+            return false;
+        }
+        remember(element.getKey());
+        replicate(element.getKey(), element);
+        return true;
+    }
+
+    /**
+     * Keep a Bloom filter over the stored keys in front of the storage, so gets of keys that were never stored are
+     * answered without a lookup. Worth it when a lookup is a network round trip. The filter is rebuilt from the
+     * storage's key set every interval, which is when deleted and expired keys stop passing it, and it grows with
+     * the key set. Until the first build has finished every key passes.
+     * <p/>
+     * A rebuild walks the whole key set, so pick the interval with the size of the storage in mind. The filter only
+     * works on a storage that sees every write and can list its keys, see {@link CacheStorage#ownsKeys()}; over a
+     * shared or remote one, such as a near cache or a proxy, it would turn keys stored by others into misses.
+     *
+     * @param expectedKeys          the number of keys to size the filter for at least, 0 turns the filter off
+     * @param falsePositiveRate     the share of absent keys let through at that size
+     * @param rebuildIntervalMillis the time between rebuilds
+     * @throws IllegalStateException if the storage does not own its keys
+     */
+    public synchronized void setKeyFilter(long expectedKeys, double falsePositiveRate, long rebuildIntervalMillis) {
+        if (expectedKeys > 0 && !storage.ownsKeys()) {
+            throw new IllegalStateException("a key filter needs a storage that owns its keys, " + storage.getClass().getSimpleName() + " does not");
+        }
+
+        if (keyFilterRebuild != null) {
+            keyFilterRebuild.cancel(false);
+            keyFilterRebuild = null;
+        }
+
+        if (expectedKeys <= 0) {
+            keyFilter = null;
+            keyFilterRebuildTask = null;
+            return;
+        }
+
+        final KeyFilter filter = new KeyFilter(expectedKeys, falsePositiveRate);
+        keyFilter = filter;
+        keyFilterRebuildTask = new Runnable() {
+            public void run() {
+                try {
+                    filter.rebuild(storage.size(), storage.keySet());
+                } catch (Throwable t) {
+                    logger.error("key filter rebuild failed", t);
+                }
+            }
+        };
+        keyFilterRebuild = scavenger.scheduleWithFixedDelay(keyFilterRebuildTask, 0, rebuildIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Resolve multi-gets with at least {@code threshold} keys on a bounded fork-join pool, one key range per pool
+     * thread, instead of serially on the calling network thread. Results still line up with the requested keys.
+     * {@link #getAsync} hands the keys to the pool and returns, {@link #get} waits for it.
+     *
+     * @param threshold   the smallest multi-get that goes parallel, 0 turns the parallel path off
+     * @param parallelism the number of pool threads
+     */
+    public void setParallelGets(int threshold, int parallelism) {
+        ForkJoinPool previous = parallelGetPool;
+        parallelGetPool = threshold > 0 ? new ForkJoinPool(parallelism) : null;
+        parallelGetThreshold = threshold;
+
+        if (previous != null) {
+            previous.shutdown();
+        }
     }
 
     /**
@@ -49,12 +303,17 @@ public final class CacheImpl extends AbstractCache<LocalCacheElement> implements
             placeHolder.setData(ChannelBuffers.buffer(0));
             placeHolder.block(Now() + (long) time);
 
-            storage.replace(key, placeHolder);
+            // a key that is not there has nothing to delete, and a client may store it before the delay is up
+            if (storage.replace(key, placeHolder) != null) {
+                // this must go on a queue for processing later...
+                deleteQueue.add(new DelayedMCElement(placeHolder));
 
-            // this must go on a queue for processing later...
-            deleteQueue.add(new DelayedMCElement(placeHolder));
+                // a delayed delete is final as far as the backing store is concerned
+                deleted(key);
+            }
         } else {
             removed = storage.remove(key) != null;
+            if (removed) deleted(key);
         }
 
         if (removed) {
@@ -74,6 +333,8 @@ public final class CacheImpl extends AbstractCache<LocalCacheElement> implements
         // we should restore the former cas so that the object isn't left dirty
         if (!stored) {
             e.setCasUnique(origCasUnique);
+        } else {
+            updated(e);
         }
         return stored ? StoreResponse.STORED : StoreResponse.NOT_STORED;
     }
@@ -82,7 +343,11 @@ public final class CacheImpl extends AbstractCache<LocalCacheElement> implements
      * @inheritDoc
      */
     public StoreResponse replace(LocalCacheElement e) {
-        return storage.replace(e.getKey(), e) != null ? StoreResponse.STORED : StoreResponse.NOT_STORED;
+        if (storage.replace(e.getKey(), e) == null) {
+            return StoreResponse.NOT_STORED;
+        }
+        updated(e);
+        return StoreResponse.STORED;
     }
 
     /**
@@ -94,7 +359,7 @@ public final class CacheImpl extends AbstractCache<LocalCacheElement> implements
             getMisses.incrementAndGet();
             return StoreResponse.NOT_FOUND;
         } else {
-            return storage.replace(old.getKey(), old, old.append(element)) ? StoreResponse.STORED : StoreResponse.NOT_STORED;
+            return replaced(old, old.append(element)) ? StoreResponse.STORED : StoreResponse.NOT_STORED;
         }
     }
 
@@ -107,7 +372,7 @@ public final class CacheImpl extends AbstractCache<LocalCacheElement> implements
             getMisses.incrementAndGet();
             return StoreResponse.NOT_FOUND;
         } else {
-            return storage.replace(old.getKey(), old, old.prepend(element)) ? StoreResponse.STORED : StoreResponse.NOT_STORED;
+            return replaced(old, old.prepend(element)) ? StoreResponse.STORED : StoreResponse.NOT_STORED;
         }
     }
 
@@ -118,6 +383,7 @@ public final class CacheImpl extends AbstractCache<LocalCacheElement> implements
         setCmds.incrementAndGet();//update stats
         e.setCasUnique(casCounter.getAndIncrement());
         storage.put(e.getKey(), e);
+        updated(e);
 
         return StoreResponse.STORED;
     }
@@ -136,7 +402,7 @@ public final class CacheImpl extends AbstractCache<LocalCacheElement> implements
         if (element.getCasUnique() == cas_key) {
             // casUnique matches, now set the element
             e.setCasUnique(casCounter.getAndIncrement());
-            if (storage.replace(e.getKey(), element, e)) return StoreResponse.STORED;
+            if (replaced(element, e)) return StoreResponse.STORED;
             else {
                 getMisses.incrementAndGet();
                 return StoreResponse.NOT_FOUND;
@@ -150,15 +416,371 @@ public final class CacheImpl extends AbstractCache<LocalCacheElement> implements
     /**
      * @inheritDoc
      */
-    public Integer get_add(String key, int mod) {
+    public Long get_add(String key, long delta, boolean incr) {
         LocalCacheElement old = storage.get(key);
         if (old == null || isBlocked(old)) {
             getMisses.incrementAndGet();
             return null;
         } else {
-            LocalCacheElement.IncrDecrResult result = old.add(mod);
-            return storage.replace(old.getKey(), old, result.replace) ? result.oldValue : null;
+            LocalCacheElement.IncrDecrResult result = old.add(delta, incr);
+            return replaced(old, result.replace) ? result.oldValue : null;
+        }
+    }
+
+    /**
+     * @inheritDoc
+     */
+    public DeleteResponse invalidate(String key, long expire) {
+        while (true) {
+            LocalCacheElement old = storage.get(key);
+            if (old == null || isBlocked(old)) {
+                return DeleteResponse.NOT_FOUND;
+            }
+            LocalCacheElement stale = old.asStale(expire);
+            if (storage.replace(key, old, stale)) {
+                updated(stale);
+                return DeleteResponse.DELETED;
+            }
+        }
+    }
+
+    /**
+     * @inheritDoc
+     */
+    public LocalCacheElement lease(LocalCacheElement element) {
+        if (element.isLeased()) {
+            return null;
+        }
+
+        // the stored element and the leased copy differ only in the lease flag, so of all the clients racing for
+        // it exactly one replace succeeds
+        LocalCacheElement leased = element.asLeased();
+        return storage.replace(element.getKey(), element, leased) ? leased : null;
+    }
+
+    /**
+     * @inheritDoc
+     */
+    public LocalCacheElement vivify(String key, long expire) {
+        LocalCacheElement placeholder = LocalCacheElement.leasedPlaceholder(key, expire);
+        placeholder.setCasUnique(casCounter.getAndIncrement());
+        if (storage.putIfAbsent(key, placeholder) != null) {
+            return null;
+        }
+        remember(key);
+        return placeholder;
+    }
+
+    /**
+     * @inheritDoc
+     */
+    public LocalCacheElement touch(String key, long expire) {
+        LocalCacheElement old = storage.get(key);
+        if (old == null || isBlocked(old)) {
+            return null;
+        }
+
+        LocalCacheElement touched = old.withExpire(expire);
+        return replaced(old, touched) ? touched : null;
+    }
+
+    /**
+     * @inheritDoc
+     */
+    public CompletionStage<DeleteResponse> deleteAsync(String key, int time) {
+        // a delayed delete only swaps in a blocked placeholder and queues it
+        if (time != 0) {
+            return CompletableFuture.completedFuture(delete(key, time));
+        }
+
+        return asyncStorage.removeAsync(key).thenApply(new Function<LocalCacheElement, DeleteResponse>() {
+            public DeleteResponse apply(LocalCacheElement removed) {
+                if (removed == null) return DeleteResponse.NOT_FOUND;
+                deleted(removed.getKey());
+                return DeleteResponse.DELETED;
+            }
+        });
+    }
+
+    /**
+     * @inheritDoc
+     */
+    public CompletionStage<StoreResponse> addAsync(final LocalCacheElement e) {
+        final long origCasUnique = e.getCasUnique();
+        e.setCasUnique(casCounter.getAndIncrement());
+        return asyncStorage.putIfAbsentAsync(e.getKey(), e).thenApply(new Function<LocalCacheElement, StoreResponse>() {
+            public StoreResponse apply(LocalCacheElement previous) {
+                if (previous == null) {
+                    updated(e);
+                    return StoreResponse.STORED;
+                }
+                e.setCasUnique(origCasUnique);
+                return StoreResponse.NOT_STORED;
+            }
+        });
+    }
+
+    /**
+     * @inheritDoc
+     */
+    public CompletionStage<StoreResponse> replaceAsync(final LocalCacheElement e) {
+        return asyncStorage.replaceAsync(e.getKey(), e).thenApply(new Function<LocalCacheElement, StoreResponse>() {
+            public StoreResponse apply(LocalCacheElement previous) {
+                if (previous == null) return StoreResponse.NOT_STORED;
+                updated(e);
+                return StoreResponse.STORED;
+            }
+        });
+    }
+
+    /**
+     * @inheritDoc
+     */
+    public CompletionStage<StoreResponse> appendAsync(final LocalCacheElement element) {
+        return asyncStorage.getAsync(element.getKey()).thenCompose(new Function<LocalCacheElement, CompletionStage<StoreResponse>>() {
+            public CompletionStage<StoreResponse> apply(LocalCacheElement old) {
+                if (old == null || isBlocked(old)) {
+                    getMisses.incrementAndGet();
+                    return CompletableFuture.completedFuture(StoreResponse.NOT_FOUND);
+                }
+                return replacedAsync(old, old.append(element)).thenApply(STORED_IF_REPLACED);
+            }
+        });
+    }
+
+    /**
+     * @inheritDoc
+     */
+    public CompletionStage<StoreResponse> prependAsync(final LocalCacheElement element) {
+        return asyncStorage.getAsync(element.getKey()).thenCompose(new Function<LocalCacheElement, CompletionStage<StoreResponse>>() {
+            public CompletionStage<StoreResponse> apply(LocalCacheElement old) {
+                if (old == null || isBlocked(old)) {
+                    getMisses.incrementAndGet();
+                    return CompletableFuture.completedFuture(StoreResponse.NOT_FOUND);
+                }
+                return replacedAsync(old, old.prepend(element)).thenApply(STORED_IF_REPLACED);
+            }
+        });
+    }
+
+    /**
+     * @inheritDoc
+     */
+    public CompletionStage<StoreResponse> setAsync(final LocalCacheElement e) {
+        setCmds.incrementAndGet();//update stats
+        e.setCasUnique(casCounter.getAndIncrement());
+        return asyncStorage.putAsync(e.getKey(), e).thenApply(new Function<LocalCacheElement, StoreResponse>() {
+            public StoreResponse apply(LocalCacheElement previous) {
+                updated(e);
+                return StoreResponse.STORED;
+            }
+        });
+    }
+
+    /**
+     * @inheritDoc
+     */
+    public CompletionStage<StoreResponse> casAsync(final Long cas_key, final LocalCacheElement e) {
+        return asyncStorage.getAsync(e.getKey()).thenCompose(new Function<LocalCacheElement, CompletionStage<StoreResponse>>() {
+            public CompletionStage<StoreResponse> apply(LocalCacheElement element) {
+                if (element == null || isBlocked(element)) {
+                    getMisses.incrementAndGet();
+                    return CompletableFuture.completedFuture(StoreResponse.NOT_FOUND);
+                }
+
+                if (element.getCasUnique() != cas_key) {
+                    // cas didn't match; someone else beat us to it
+                    return CompletableFuture.completedFuture(StoreResponse.EXISTS);
+                }
+
+                e.setCasUnique(casCounter.getAndIncrement());
+                return replacedAsync(element, e).thenApply(new Function<Boolean, StoreResponse>() {
+                    public StoreResponse apply(Boolean replaced) {
+                        if (replaced) return StoreResponse.STORED;
+                        getMisses.incrementAndGet();
+                        return StoreResponse.NOT_FOUND;
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * @inheritDoc
+     */
+    public CompletionStage<Long> getAddAsync(final String key, final long delta, final boolean incr) {
+        return asyncStorage.getAsync(key).thenCompose(new Function<LocalCacheElement, CompletionStage<Long>>() {
+            public CompletionStage<Long> apply(LocalCacheElement old) {
+                if (old == null || isBlocked(old)) {
+                    getMisses.incrementAndGet();
+                    return CompletableFuture.completedFuture(null);
+                }
+
+                final LocalCacheElement.IncrDecrResult result = old.add(delta, incr);
+                return replacedAsync(old, result.replace).thenApply(new Function<Boolean, Long>() {
+                    public Long apply(Boolean replaced) {
+                        return replaced ? result.oldValue : null;
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * @inheritDoc
+     */
+    public CompletionStage<LocalCacheElement[]> getAsync(final String... keys) {
+        getCmds.incrementAndGet(); //updates stats
+
+        // definite misses per the key filter are not looked up
+        final KeyFilter filter = keyFilter;
+        final int[] positions = filter != null ? filter.mightContain(keys) : null;
+
+        CompletionStage<LocalCacheElement[]> found;
+        if (positions == null || positions.length == keys.length) {
+            found = lookupAsync(keys);
+        } else if (positions.length == 0) {
+            found = CompletableFuture.completedFuture(new LocalCacheElement[keys.length]);
+        } else {
+            found = lookupAsync(select(keys, positions)).thenApply(new Function<LocalCacheElement[], LocalCacheElement[]>() {
+                public LocalCacheElement[] apply(LocalCacheElement[] selected) {
+                    return scatter(selected, positions, keys.length);
+                }
+            });
+        }
+
+        return found.thenCompose(new Function<LocalCacheElement[], CompletionStage<LocalCacheElement[]>>() {
+            public CompletionStage<LocalCacheElement[]> apply(LocalCacheElement[] elements) {
+                if (filter != null) {
+                    filter.falsePositives(missing(elements, positions));
+                }
+                countHits(elements);
+                return loadMissing(keys, elements);
+            }
+        });
+    }
+
+    /**
+     * @inheritDoc
+     */
+    public CompletionStage<DeleteResponse> invalidateAsync(final String key, final long expire) {
+        return asyncStorage.getAsync(key).thenCompose(new Function<LocalCacheElement, CompletionStage<DeleteResponse>>() {
+            public CompletionStage<DeleteResponse> apply(LocalCacheElement old) {
+                if (old == null || isBlocked(old)) {
+                    return CompletableFuture.completedFuture(DeleteResponse.NOT_FOUND);
+                }
+
+                // lost a race with another writer, start over from what is there now
+                final LocalCacheElement stale = old.asStale(expire);
+                return asyncStorage.replaceAsync(key, old, stale).thenCompose(new Function<Boolean, CompletionStage<DeleteResponse>>() {
+                    public CompletionStage<DeleteResponse> apply(Boolean replaced) {
+                        if (!replaced) return invalidateAsync(key, expire);
+                        updated(stale);
+                        return CompletableFuture.completedFuture(DeleteResponse.DELETED);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * @inheritDoc
+     */
+    public CompletionStage<LocalCacheElement> leaseAsync(LocalCacheElement element) {
+        if (element.isLeased()) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        final LocalCacheElement leased = element.asLeased();
+        return asyncStorage.replaceAsync(element.getKey(), element, leased).thenApply(new Function<Boolean, LocalCacheElement>() {
+            public LocalCacheElement apply(Boolean replaced) {
+                return replaced ? leased : null;
+            }
+        });
+    }
+
+    /**
+     * @inheritDoc
+     */
+    public CompletionStage<LocalCacheElement> vivifyAsync(String key, long expire) {
+        final LocalCacheElement placeholder = LocalCacheElement.leasedPlaceholder(key, expire);
+        placeholder.setCasUnique(casCounter.getAndIncrement());
+        return asyncStorage.putIfAbsentAsync(key, placeholder).thenApply(new Function<LocalCacheElement, LocalCacheElement>() {
+            public LocalCacheElement apply(LocalCacheElement previous) {
+                if (previous != null) return null;
+                remember(placeholder.getKey());
+                return placeholder;
+            }
+        });
+    }
+
+    /**
+     * @inheritDoc
+     */
+    public CompletionStage<LocalCacheElement> touchAsync(final String key, final long expire) {
+        return asyncStorage.getAsync(key).thenCompose(new Function<LocalCacheElement, CompletionStage<LocalCacheElement>>() {
+            public CompletionStage<LocalCacheElement> apply(LocalCacheElement old) {
+                if (old == null || isBlocked(old)) {
+                    return CompletableFuture.completedFuture(null);
+                }
+
+                final LocalCacheElement touched = old.withExpire(expire);
+                return replacedAsync(old, touched).thenApply(new Function<Boolean, LocalCacheElement>() {
+                    public LocalCacheElement apply(Boolean replaced) {
+                        return replaced ? touched : null;
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Swap an element for its new state, queueing the new state for write-behind if the swap went through.
+     */
+    private boolean replaced(LocalCacheElement old, LocalCacheElement replacement) {
+        if (!storage.replace(old.getKey(), old, replacement)) {
+            return false;
         }
+        updated(replacement);
+        return true;
+    }
+
+    private CompletionStage<Boolean> replacedAsync(LocalCacheElement old, final LocalCacheElement replacement) {
+        return asyncStorage.replaceAsync(old.getKey(), old, replacement).thenApply(new Function<Boolean, Boolean>() {
+            public Boolean apply(Boolean replaced) {
+                if (replaced) updated(replacement);
+                return replaced;
+            }
+        });
+    }
+
+    private void updated(LocalCacheElement element) {
+        remember(element.getKey());
+
+        WriteBehind<LocalCacheElement> writeBehind = this.writeBehind;
+        if (writeBehind != null) writeBehind.updated(element);
+
+        replicate(element.getKey(), element);
+    }
+
+    /**
+     * Let the key filter know a key is now stored. Comes after the storage write, see {@link KeyFilter#add}.
+     */
+    private void remember(String key) {
+        KeyFilter keyFilter = this.keyFilter;
+        if (keyFilter != null) keyFilter.add(key);
+    }
+
+    private void deleted(String key) {
+        WriteBehind<LocalCacheElement> writeBehind = this.writeBehind;
+        if (writeBehind != null) writeBehind.deleted(key);
+
+        replicate(key, null);
+    }
+
+    private void replicate(String key, LocalCacheElement element) {
+        ReplicationPrimary replication = this.replication;
+        if (replication != null) replication.changed(key, element);
     }
 
     protected boolean isBlocked(CacheElement e) {
@@ -171,40 +793,248 @@ public final class CacheImpl extends AbstractCache<LocalCacheElement> implements
     public LocalCacheElement[] get(String... keys) {
         getCmds.incrementAndGet(); //updates stats
 
+        // definite misses per the key filter are not looked up
+        KeyFilter filter = keyFilter;
+        int[] positions = filter != null ? filter.mightContain(keys) : null;
+
+        LocalCacheElement[] elements;
+        if (positions == null || positions.length == keys.length) {
+            elements = lookup(keys);
+        } else if (positions.length == 0) {
+            elements = new LocalCacheElement[keys.length];
+        } else {
+            elements = scatter(lookup(select(keys, positions)), positions, keys.length);
+        }
+
+        if (filter != null) {
+            filter.falsePositives(missing(elements, positions));
+        }
+        countHits(elements);
+        return loader == null ? elements : loadMissing(keys, elements).toCompletableFuture().join();
+    }
+
+    private LocalCacheElement[] lookup(String[] keys) {
         LocalCacheElement[] elements = new LocalCacheElement[keys.length];
-        int x = 0;
-        int hits = 0;
-        int misses = 0;
+        ForkJoinPool pool = parallelGetPool;
+        if (keys.length == 1) {
+            elements[0] = storage.get(keys[0]);
+        } else if (pool != null && keys.length >= parallelGetThreshold) {
+            int rangeSize = (keys.length + pool.getParallelism() - 1) / pool.getParallelism();
+            pool.invoke(new MultiGetTask(keys, elements, 0, keys.length, rangeSize));
+        } else {
+            storage.getMulti(keys, elements);
+        }
+        return elements;
+    }
+
+    private CompletionStage<LocalCacheElement[]> lookupAsync(final String[] keys) {
+        final LocalCacheElement[] elements = new LocalCacheElement[keys.length];
+
+        // the fork-join path only applies to storage that has no async lookups of its own; the calling thread hands
+        // the keys to the pool and goes back to its other connections, the pool completes the stage
+        ForkJoinPool pool = parallelGetPool;
+        if (keys.length > 1 && pool != null && keys.length >= parallelGetThreshold && !(storage instanceof AsyncCacheStorage)) {
+            final int rangeSize = (keys.length + pool.getParallelism() - 1) / pool.getParallelism();
+            final CompletableFuture<LocalCacheElement[]> found = new CompletableFuture<LocalCacheElement[]>();
+            try {
+                pool.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            new MultiGetTask(keys, elements, 0, keys.length, rangeSize).invoke();
+                            found.complete(elements);
+                        } catch (Throwable t) {
+                            found.completeExceptionally(t);
+                        }
+                    }
+                });
+                return found;
+            } catch (RejectedExecutionException e) {
+                // the pool was replaced by setParallelGets while we were looking at it
+            }
+        }
 
         if (keys.length > 1) {
-            storage.getMulti(new HashSet<String>(Arrays.asList(keys))).toArray(elements);
+            return asyncStorage.getMultiAsync(keys, elements);
+        }
 
-            if (keys.length - elements.length > 0) {
-                getMisses.addAndGet(keys.length - elements.length);
+        return asyncStorage.getAsync(keys[0]).thenApply(new Function<LocalCacheElement, LocalCacheElement[]>() {
+            public LocalCacheElement[] apply(LocalCacheElement element) {
+                elements[0] = element;
+                return elements;
             }
+        });
+    }
 
-            getHits.addAndGet(elements.length);
-            return elements;
+    private static String[] select(String[] keys, int[] positions) {
+        String[] selected = new String[positions.length];
+        for (int i = 0; i < positions.length; i++) {
+            selected[i] = keys[positions[i]];
         }
+        return selected;
+    }
+
+    private static LocalCacheElement[] scatter(LocalCacheElement[] found, int[] positions, int length) {
+        LocalCacheElement[] elements = new LocalCacheElement[length];
+        for (int i = 0; i < positions.length; i++) {
+            elements[positions[i]] = found[i];
+        }
+        return elements;
+    }
 
-        for (String key : keys) {
-            LocalCacheElement e = storage.get(key);
+    /**
+     * @return how many of the looked up keys were not found
+     */
+    private static int missing(LocalCacheElement[] elements, int[] positions) {
+        int missing = 0;
+        for (int position : positions) {
+            if (elements[position] == null) missing++;
+        }
+        return missing;
+    }
+
+    /**
+     * Blank out blocked elements and update the hit and miss counters for a lookup.
+     */
+    private LocalCacheElement[] countHits(LocalCacheElement[] elements) {
+        int hits = 0;
+        for (int i = 0; i < elements.length; i++) {
+            LocalCacheElement e = elements[i];
             if (e == null || e.isBlocked()) {
-                misses++;
-                elements[x] = null;
+                elements[i] = null;
             } else {
                 hits++;
-                elements[x] = e;
             }
-
-            x++;
         }
 
-        getMisses.addAndGet(misses);
+        getMisses.addAndGet(elements.length - hits);
         getHits.addAndGet(hits);
 
         return elements;
+    }
+
+    /**
+     * Fill the misses of a lookup from the loader. Keys nobody is loading yet are claimed and handed to the loader
+     * pool in one batch; keys already being loaded by another request are waited for.
+     *
+     * @return a stage completing with elements once every miss has been resolved
+     */
+    private CompletionStage<LocalCacheElement[]> loadMissing(String[] keys, final LocalCacheElement[] elements) {
+        final CacheLoader<LocalCacheElement> loader = this.loader;
+        ThreadPoolExecutor pool = loaderPool;
+        if (loader == null || pool == null) {
+            return CompletableFuture.completedFuture(elements);
+        }
 
+        Map<String, CompletableFuture<LocalCacheElement>> claimed = null;
+        List<CompletableFuture<Void>> waiting = null;
+        for (int i = 0; i < keys.length; i++) {
+            if (elements[i] != null) continue;
+
+            String key = keys[i];
+            CompletableFuture<LocalCacheElement> load = claimed != null ? claimed.get(key) : null;
+            if (load == null) {
+                CompletableFuture<LocalCacheElement> mine = new CompletableFuture<LocalCacheElement>();
+                load = loadsInFlight.putIfAbsent(key, mine);
+                if (load == null) {
+                    if (claimed == null) claimed = new LinkedHashMap<String, CompletableFuture<LocalCacheElement>>();
+                    claimed.put(key, mine);
+                    load = mine;
+                } else {
+                    loaderCoalesced.incrementAndGet();
+                }
+            }
+
+            final int index = i;
+            if (waiting == null) waiting = new ArrayList<CompletableFuture<Void>>();
+            waiting.add(load.thenAccept(new Consumer<LocalCacheElement>() {
+                public void accept(LocalCacheElement element) {
+                    elements[index] = element;
+                }
+            }));
+        }
+
+        if (claimed != null) {
+            final Map<String, CompletableFuture<LocalCacheElement>> batch = claimed;
+            try {
+                pool.execute(new Runnable() {
+                    public void run() {
+                        load(loader, batch);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // the loader is saturated or being replaced: these keys miss rather than wait
+                loaderErrors.incrementAndGet();
+                for (Map.Entry<String, CompletableFuture<LocalCacheElement>> load : batch.entrySet()) {
+                    loadsInFlight.remove(load.getKey(), load.getValue());
+                    load.getValue().complete(null);
+                }
+            }
+        }
+
+        if (waiting == null) {
+            return CompletableFuture.completedFuture(elements);
+        }
+        return CompletableFuture.allOf(waiting.toArray(new CompletableFuture<?>[waiting.size()])).thenApply(new Function<Void, LocalCacheElement[]>() {
+            public LocalCacheElement[] apply(Void loaded) {
+                return elements;
+            }
+        });
+    }
+
+    /**
+     * Run the loader for the claimed keys, store what it found and release everyone waiting on them. A loader
+     * failure is logged and turns the whole batch into misses.
+     */
+    private void load(CacheLoader<LocalCacheElement> loader, Map<String, CompletableFuture<LocalCacheElement>> claimed) {
+        Map<String, LocalCacheElement> loaded = Collections.emptyMap();
+        try {
+            loaderCalls.incrementAndGet();
+            loaderKeysRequested.addAndGet(claimed.size());
+            if (claimed.size() == 1) {
+                String key = claimed.keySet().iterator().next();
+                LocalCacheElement element = loader.load(key);
+                if (element != null) loaded = Collections.singletonMap(key, element);
+            } else {
+                loaded = loader.loadAll(claimed.keySet());
+            }
+        } catch (Throwable t) {
+            loaderErrors.incrementAndGet();
+            logger.error("loader failed for " + claimed.size() + " key(s)", t);
+        }
+
+        for (Map.Entry<String, CompletableFuture<LocalCacheElement>> load : claimed.entrySet()) {
+            LocalCacheElement element = null;
+            try {
+                element = store(load.getKey(), loaded.get(load.getKey()));
+            } catch (Throwable t) {
+                loaderErrors.incrementAndGet();
+                logger.error("could not store loaded key " + load.getKey(), t);
+            } finally {
+                loadsInFlight.remove(load.getKey(), load.getValue());
+                load.getValue().complete(element);
+            }
+        }
+    }
+
+    /**
+     * Cache a loaded element, unless a client has stored the key since the miss, in which case theirs wins.
+     *
+     * @return the element now cached for the key, or null if there is none to serve
+     */
+    private LocalCacheElement store(String key, LocalCacheElement element) {
+        if (element == null) {
+            return null;
+        }
+
+        loaderKeysLoaded.incrementAndGet();
+        element.setCasUnique(casCounter.getAndIncrement());
+        LocalCacheElement existing = storage.putIfAbsent(key, element);
+        if (existing == null) {
+            remember(key);
+            replicate(key, element);
+            return element;
+        }
+        return isBlocked(existing) ? null : existing;
     }
 
     /**
@@ -219,14 +1049,41 @@ public final class CacheImpl extends AbstractCache<LocalCacheElement> implements
      */
     public boolean flush_all(int expire) {
         storage.clear();
+
+        WriteBehind<LocalCacheElement> writeBehind = this.writeBehind;
+        if (writeBehind != null) writeBehind.clear();
+        resetKeyFilter();
+
+        ReplicationPrimary replication = this.replication;
+        if (replication != null) replication.flushed();
         return true;
     }
 
+    /**
+     * Forget the flushed keys: the filter lets every key through until a rebuild from the emptied storage, started
+     * right away, has finished.
+     */
+    private synchronized void resetKeyFilter() {
+        KeyFilter keyFilter = this.keyFilter;
+        if (keyFilter == null) return;
+
+        keyFilter.reset();
+        try {
+            scavenger.execute(keyFilterRebuildTask);
+        } catch (RejectedExecutionException closed) {
+            // closing, the filter is not consulted any more
+        }
+    }
+
     /**
      * @inheritDoc
      */
     public void close() throws IOException {
         scavenger.shutdown();
+        setParallelGets(0, 0);
+        setLoader(null);
+        setWriteBehind(null, 0, 0, 0);
+        setKeyFilter(0, 0, 0);
         storage.close();
     }
 
@@ -273,6 +1130,43 @@ public final class CacheImpl extends AbstractCache<LocalCacheElement> implements
         }
     }
 
+    /**
+     * Splits a multi-get into key ranges and resolves each range with one positional getMulti. Every range writes
+     * only its own slots of the shared result array.
+     */
+    private final class MultiGetTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final String[] keys;
+        private final LocalCacheElement[] results;
+        private final int from;
+        private final int to;
+        private final int rangeSize;
+
+        MultiGetTask(String[] keys, LocalCacheElement[] results, int from, int to, int rangeSize) {
+            this.keys = keys;
+            this.results = results;
+            this.from = from;
+            this.to = to;
+            this.rangeSize = rangeSize;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > rangeSize) {
+                int middle = from + (to - from) / 2;
+                invokeAll(new MultiGetTask(keys, results, from, middle, rangeSize),
+                        new MultiGetTask(keys, results, middle, to, rangeSize));
+                return;
+            }
+
+            String[] rangeKeys = Arrays.copyOfRange(keys, from, to);
+            LocalCacheElement[] found = new LocalCacheElement[rangeKeys.length];
+            storage.getMulti(rangeKeys, found);
+            System.arraycopy(found, 0, results, from, found.length);
+        }
+    }
+
     /**
      * Delayed key blocks get processed occasionally.
      */
@@ -0,0 +1,42 @@
+package com.zalora.jmemcached;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Fills the cache from a backing source when a get misses, so clients no longer have to implement cache-aside
+ * themselves. See {@link CacheImpl#setLoader(CacheLoader)}.
+ * <p/>
+ * Loads run on the cache's loader pool, never on a network thread; concurrent misses on the same key wait for that
+ * one load instead of starting their own. Implementations may block and must be thread safe.
+ */
+public interface CacheLoader<CACHE_ELEMENT extends CacheElement> {
+
+    /**
+     * Load a single key.
+     *
+     * @param key the key that missed
+     * @return the element to cache, with its value, flags and expiry set, or null if the source has nothing for it
+     * @throws Exception if the source could not be read; the get then reports a miss
+     */
+    CACHE_ELEMENT load(String key) throws Exception;
+
+    /**
+     * Load the misses of a multi-get in one call. The default fans out to {@link #load(String)}; sources with a
+     * native batch read should override it.
+     *
+     * @param keys the keys that missed, without duplicates
+     * @return the elements found, by key; keys the source has nothing for are left out
+     * @throws Exception if the source could not be read; every key of the batch then reports a miss
+     */
+    default Map<String, CACHE_ELEMENT> loadAll(Collection<String> keys) throws Exception {
+        Map<String, CACHE_ELEMENT> elements = new HashMap<String, CACHE_ELEMENT>();
+        for (String key : keys) {
+            CACHE_ELEMENT element = load(key);
+            if (element != null) elements.put(key, element);
+        }
+        return elements;
+    }
+
+}
@@ -0,0 +1,137 @@
+package com.zalora.jmemcached;
+
+import com.zalora.jmemcached.util.BloomFilter;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers which keys may be in a storage unit, so that a get of a key that was never stored is answered without
+ * asking the storage, which for a remote backend saves a round trip per miss.
+ * <p/>
+ * A Bloom filter cannot forget, so deleted and expired keys keep passing it until the next {@link #rebuild}, which
+ * starts a fresh filter from the storage's key set. Keys stored while a rebuild runs go into both filters, and the
+ * new one replaces the old only once it is complete. Until the first build has finished, and again after a
+ * {@link #reset}, every key passes.
+ */
+public final class KeyFilter implements StatsSource {
+
+    private final long expectedKeys;
+    private final double falsePositiveRate;
+
+    private volatile BloomFilter current;
+    private volatile BloomFilter next;
+
+    private final AtomicLong checks = new AtomicLong();
+    private final AtomicLong negatives = new AtomicLong();
+    private final AtomicLong falsePositives = new AtomicLong();
+    private final AtomicLong rebuilds = new AtomicLong();
+    private final AtomicLong lastRebuildMillis = new AtomicLong();
+
+    /**
+     * @param expectedKeys      how many keys the filter is sized for at least; it grows with the key set on rebuild
+     * @param falsePositiveRate the share of absent keys allowed through at that size
+     */
+    public KeyFilter(long expectedKeys, double falsePositiveRate) {
+        this.expectedKeys = expectedKeys;
+        this.falsePositiveRate = falsePositiveRate;
+    }
+
+    /**
+     * Note a key that has been stored. Call it after the storage write, so a rebuild that misses the key in the key
+     * set is sure to see it here.
+     */
+    public void add(String key) {
+        // next before current: if a rebuild finishes in between, we see no next but already its result as current
+        BloomFilter next = this.next;
+        BloomFilter current = this.current;
+
+        if (next != null) next.add(key);
+        if (current != null && current != next) current.add(key);
+    }
+
+    /**
+     * Find the keys worth looking up.
+     *
+     * @param keys the keys of a get
+     * @return the positions of the keys that may be stored, in order; the others are definite misses
+     */
+    public int[] mightContain(String[] keys) {
+        BloomFilter current = this.current;
+        int[] positions = new int[keys.length];
+        int count = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (current == null || current.mightContain(keys[i])) positions[count++] = i;
+        }
+
+        checks.addAndGet(keys.length);
+        negatives.addAndGet(keys.length - count);
+        if (count == keys.length) return positions;
+
+        int[] trimmed = new int[count];
+        System.arraycopy(positions, 0, trimmed, 0, count);
+        return trimmed;
+    }
+
+    /**
+     * Count the keys that passed the filter and were not found after all.
+     */
+    public void falsePositives(int count) {
+        if (count > 0 && current != null) falsePositives.addAndGet(count);
+    }
+
+    /**
+     * Replace the filter with one built from scratch, dropping keys that have gone since the last build.
+     *
+     * @param size the number of keys in the storage, used for sizing
+     * @param keys the storage's current key set
+     */
+    public synchronized void rebuild(long size, Collection<String> keys) {
+        long start = System.currentTimeMillis();
+
+        // leave a quarter for growth until the next rebuild
+        BloomFilter rebuilt = new BloomFilter(Math.max(expectedKeys, size + size / 4), falsePositiveRate);
+        next = rebuilt;
+        for (String key : keys) {
+            rebuilt.add(key);
+        }
+        current = rebuilt;
+        next = null;
+
+        rebuilds.incrementAndGet();
+        lastRebuildMillis.set(System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Let every key pass again until the next rebuild, after the storage was cleared. Dropping the filter rather
+     * than starting an empty one keeps keys stored during the clear from being turned away.
+     */
+    public synchronized void reset() {
+        current = null;
+    }
+
+    public Map<String, String> getStats() {
+        long negatives = this.negatives.get();
+        long falsePositives = this.falsePositives.get();
+
+        Map<String, String> stats = new HashMap<String, String>();
+        stats.put("key_filter_checks", String.valueOf(checks.get()));
+        stats.put("key_filter_negatives", String.valueOf(negatives));
+        stats.put("key_filter_false_positives", String.valueOf(falsePositives));
+        // of the lookups of absent keys, the share the filter let through to the storage
+        stats.put("key_filter_false_positive_rate", String.format("%.6f", negatives + falsePositives == 0 ? 0.0 : (double) falsePositives / (negatives + falsePositives)));
+        stats.put("key_filter_rebuilds", String.valueOf(rebuilds.get()));
+        stats.put("key_filter_rebuild_ms", String.valueOf(lastRebuildMillis.get()));
+
+        BloomFilter current = this.current;
+        if (current != null) {
+            stats.put("key_filter_bits", String.valueOf(current.getNumBits()));
+            stats.put("key_filter_hashes", String.valueOf(current.getNumHashes()));
+            stats.put("key_filter_expected_false_positive_rate", String.format("%.6f", current.expectedFalsePositiveRate()));
+        }
+        return stats;
+    }
+
+}
@@ -3,7 +3,6 @@ package com.zalora.jmemcached;
 import lombok.Getter;
 import java.nio.charset.Charset;
 import org.jboss.netty.buffer.ChannelBuffer;
-import java.io.UnsupportedEncodingException;
 import org.jboss.netty.buffer.ChannelBuffers;
 import com.zalora.jmemcached.util.BufferUtils;
 
@@ -14,6 +13,12 @@ import com.zalora.jmemcached.util.BufferUtils;
  */
 public final class LocalCacheElement implements CacheElement {
 
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // bits of the state byte in the binary form
+    private static final int BLOCKED = 1;
+    private static final int STALE = 2;
+
     private ChannelBuffer data;
 
     @Getter
@@ -28,6 +33,18 @@ public final class LocalCacheElement implements CacheElement {
     private long casUnique = 0L;
     private boolean blocked = false;
     private long blockedUntil;
+    private boolean stale = false;
+    private boolean leased = false;
+
+    // the relative expire counts from here; access times are only kept in memory
+    private long createdAt = System.currentTimeMillis();
+    private transient volatile int lastAccessed;
+
+    // response prefixes are built on the first read and reused by every hit after it; key and flags never change
+    // and setData drops the one that depends on the size
+    private transient volatile byte[] keyBytes;
+    private transient volatile ChannelBuffer textHeader;
+    private transient volatile byte[] flagsExtras;
 
     public LocalCacheElement() {
     }
@@ -54,23 +71,37 @@ public final class LocalCacheElement implements CacheElement {
         return new LocalCacheElement(key);
     }
 
+    /**
+     * @return an empty element that stands in for a missing one while the client holding its lease fills it
+     */
+    public static LocalCacheElement leasedPlaceholder(String key, long expire) {
+        LocalCacheElement placeholder = new LocalCacheElement(key, 0, expire, 0L);
+        placeholder.setData(ChannelBuffers.EMPTY_BUFFER);
+        placeholder.leased = true;
+        return placeholder;
+    }
+
+    /**
+     * Read an element written by {@link #writeToBuffer}. The expire comes back as the absolute time it had when
+     * written, so the element expires when the original would have.
+     */
     public static LocalCacheElement readFromBuffer(ChannelBuffer in) {
-        int bufferSize = in.readInt();
-        long expiry = in.readLong();
+        in.readInt(); // record size
+        long expiresAt = in.readLong();
         int keyLength = in.readInt();
-        ChannelBuffer key = in.slice(in.readerIndex(), keyLength);
+        String key = in.toString(in.readerIndex(), keyLength, UTF8);
         in.skipBytes(keyLength);
-        LocalCacheElement localCacheElement = new LocalCacheElement(key.toString(Charset.forName("UTF-8")));
 
-        localCacheElement.expire = expiry;
-        localCacheElement.flags = in.readInt();
+        LocalCacheElement localCacheElement = new LocalCacheElement(key, in.readInt() & 0xFFFFFFFFL, expiresAt, 0L);
 
+        // a copy rather than a slice, which would keep the whole input buffer alive for as long as the element
         int dataLength = in.readInt();
-        localCacheElement.data = in.slice(in.readerIndex(), dataLength);
-        in.skipBytes(dataLength);
+        localCacheElement.data = in.readBytes(dataLength);
 
-        localCacheElement.casUnique = in.readInt();
-        localCacheElement.blocked = in.readByte() == 1;
+        localCacheElement.casUnique = in.readLong();
+        byte state = in.readByte();
+        localCacheElement.blocked = (state & BLOCKED) != 0;
+        localCacheElement.stale = (state & STALE) != 0;
         localCacheElement.blockedUntil = in.readLong();
 
         return localCacheElement;
@@ -83,6 +114,7 @@ public final class LocalCacheElement implements CacheElement {
     public LocalCacheElement append(LocalCacheElement appendElement) {
         int newLength = size() + appendElement.size();
         LocalCacheElement appendedElement = new LocalCacheElement(getKey(), getFlags(), getExpire(), 0L);
+        appendedElement.createdAt = createdAt;
         ChannelBuffer appended = ChannelBuffers.buffer(newLength);
         ChannelBuffer existing = getData();
         ChannelBuffer append = appendElement.getData();
@@ -105,6 +137,7 @@ public final class LocalCacheElement implements CacheElement {
         int newLength = size() + prependElement.size();
 
         LocalCacheElement prependedElement = new LocalCacheElement(getKey(), getFlags(), getExpire(), 0L);
+        prependedElement.createdAt = createdAt;
         ChannelBuffer prepended = ChannelBuffers.buffer(newLength);
         ChannelBuffer prepend = prependElement.getData();
         ChannelBuffer existing = getData();
@@ -123,23 +156,98 @@ public final class LocalCacheElement implements CacheElement {
         return prependedElement;
     }
 
-    public IncrDecrResult add(int mod) {
+    public IncrDecrResult add(long delta, boolean incr) {
         // TODO handle parse failure!
-        int modVal = BufferUtils.atoi(getData()) + mod; // change value
-        if (modVal < 0) {
+        long value = BufferUtils.atoul(getData());
+
+        // counters are unsigned 64 bit: increments wrap around, decrements stop at zero
+        long modVal;
+        if (incr) {
+            modVal = value + delta;
+        } else if (Long.compareUnsigned(value, delta) >= 0) {
+            modVal = value - delta;
+        } else {
             modVal = 0;
+        }
 
-        } // check for underflow
-
-        ChannelBuffer newData = BufferUtils.itoa(modVal);
+        ChannelBuffer newData = BufferUtils.ultoa(modVal);
 
         LocalCacheElement replace = new LocalCacheElement(getKey(), getFlags(), getExpire(), 0L);
+        replace.createdAt = createdAt;
         replace.setData(newData);
         replace.setCasUnique(replace.getCasUnique() + 1);
 
         return new IncrDecrResult(modVal, replace);
     }
 
+    /**
+     * @param expire the new expire, in the same form as the one given to the constructor
+     * @return a copy of this element with the same data and cas unique, expiring from now on
+     */
+    public LocalCacheElement withExpire(long expire) {
+        LocalCacheElement touched = copy();
+        touched.expire = expire;
+        touched.createdAt = System.currentTimeMillis();
+        return touched;
+    }
+
+    /**
+     * @param expire the expire of the stale copy, or a negative number to keep the current one
+     * @return a stale copy of this element, with no lease on it
+     */
+    public LocalCacheElement asStale(long expire) {
+        LocalCacheElement invalidated = expire < 0 ? copy() : withExpire(expire);
+        invalidated.stale = true;
+        invalidated.leased = false;
+        return invalidated;
+    }
+
+    /**
+     * @return a copy of this element carrying the lease for recaching it
+     */
+    public LocalCacheElement asLeased() {
+        LocalCacheElement leasedElement = copy();
+        leasedElement.leased = true;
+        return leasedElement;
+    }
+
+    private LocalCacheElement copy() {
+        LocalCacheElement copy = new LocalCacheElement(getKey(), getFlags(), getExpire(), getCasUnique());
+        copy.setData(getData());
+        copy.createdAt = createdAt;
+        copy.lastAccessed = lastAccessed;
+        copy.stale = stale;
+        copy.leased = leased;
+        return copy;
+    }
+
+    public boolean isStale() {
+        return stale;
+    }
+
+    public boolean isLeased() {
+        return leased;
+    }
+
+    public long getRemainingTtl() {
+        if (expire == 0) return -1;
+
+        // like memcached, anything beyond thirty days is an absolute time rather than an offset
+        long expiresAt = expire > THIRTY_DAYS ? expire : createdAt + expire;
+        return Math.max(0, (expiresAt - System.currentTimeMillis()) / 1000);
+    }
+
+    public int getLastAccessed() {
+        return lastAccessed;
+    }
+
+    public int markAccessed(int now) {
+        int previous = lastAccessed;
+        // hot keys are read far more often than once a second, so skip the volatile write when nothing changes
+        if (previous != now) lastAccessed = now;
+        return previous;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -149,6 +257,8 @@ public final class LocalCacheElement implements CacheElement {
 
         if (blocked != that.blocked) return false;
         if (blockedUntil != that.blockedUntil) return false;
+        if (stale != that.stale) return false;
+        if (leased != that.leased) return false;
         if (casUnique != that.casUnique) return false;
         if (expire != that.expire) return false;
         if (flags != that.flags) return false;
@@ -167,6 +277,8 @@ public final class LocalCacheElement implements CacheElement {
         result = 31 * result + (int) (casUnique ^ (casUnique >>> 32));
         result = 31 * result + (blocked ? 1 : 0);
         result = 31 * result + (int) (blockedUntil ^ (blockedUntil >>> 32));
+        result = 31 * result + (stale ? 1 : 0);
+        result = 31 * result + (leased ? 1 : 0);
         return result;
     }
 
@@ -178,6 +290,34 @@ public final class LocalCacheElement implements CacheElement {
     public void setData(ChannelBuffer data) {
         data.readerIndex(0);
         this.data = data;
+        this.textHeader = null;
+    }
+
+    public byte[] getKeyBytes() {
+        byte[] bytes = keyBytes;
+        if (bytes == null) {
+            bytes = key.getBytes(UTF8);
+            keyBytes = bytes;
+        }
+        return bytes;
+    }
+
+    public ChannelBuffer getTextHeader() {
+        ChannelBuffer header = textHeader;
+        if (header == null) {
+            header = ChannelBuffers.wrappedBuffer(("VALUE " + key + " " + flags + " " + size() + "\r\n").getBytes(UTF8));
+            textHeader = header;
+        }
+        return header.duplicate();
+    }
+
+    public byte[] getFlagsExtras() {
+        byte[] extras = flagsExtras;
+        if (extras == null) {
+            extras = new byte[] {(byte) (flags >>> 24), (byte) (flags >>> 16), (byte) (flags >>> 8), (byte) flags};
+            flagsExtras = extras;
+        }
+        return extras;
     }
 
     public long getCasUnique() {
@@ -201,28 +341,40 @@ public final class LocalCacheElement implements CacheElement {
         this.blockedUntil = blockedUntil;
     }
 
+    /**
+     * @return the number of bytes {@link #writeToBuffer} writes
+     */
     public int bufferSize() {
-        return 4 + 8 + 4 + key.length() + 4 + 4 + 4 + key.length() + 8 + 1 + 8;
+        return 4 + 8 + 4 + getKeyBytes().length + 4 + 4 + getData().readableBytes() + 8 + 1 + 8;
     }
 
-    public void writeToBuffer(ChannelBuffer out) throws UnsupportedEncodingException {
+    /**
+     * Write the element in a compact binary form, for replication and snapshots: record size, absolute expire time
+     * in milliseconds (0 for none), key, flags, data, cas unique, the blocked and stale markers and the block time.
+     * Leases and access times are local to a daemon and not written.
+     */
+    public void writeToBuffer(ChannelBuffer out) {
+        ChannelBuffer data = getData();
+        byte[] keyBytes = getKeyBytes();
+
         out.writeInt(bufferSize());
-        out.writeLong(expire);
-        out.writeInt(key.length());
-        out.writeBytes(key.getBytes("UTF-8"));
-        out.writeLong(flags);
-        out.writeInt(data.capacity());
-        out.writeBytes(data);
+        out.writeLong(expire == 0 ? 0 : expire > THIRTY_DAYS ? expire : createdAt + expire);
+        out.writeInt(keyBytes.length);
+        out.writeBytes(keyBytes);
+        out.writeInt((int) flags);
+        out.writeInt(data.readableBytes());
+        // by index, the buffer is shared with whoever else is reading the element
+        out.writeBytes(data, data.readerIndex(), data.readableBytes());
         out.writeLong(casUnique);
-        out.writeByte(blocked ? 1 : 0);
+        out.writeByte((blocked ? BLOCKED : 0) | (stale ? STALE : 0));
         out.writeLong(blockedUntil);
     }
 
     public static class IncrDecrResult {
-        int oldValue;
+        long oldValue;
         LocalCacheElement replace;
 
-        public IncrDecrResult(int oldValue, LocalCacheElement replace) {
+        public IncrDecrResult(long oldValue, LocalCacheElement replace) {
             this.oldValue = oldValue;
             this.replace = replace;
         }
@@ -1,18 +1,37 @@
 package com.zalora.jmemcached;
 
+import com.zalora.jmemcached.protocol.ProtocolDetectingPipelineFactory;
 import com.zalora.jmemcached.protocol.binary.MemcachedBinaryPipelineFactory;
 import com.zalora.jmemcached.protocol.text.MemcachedPipelineFactory;
 import lombok.extern.slf4j.Slf4j;
+import com.zalora.jmemcached.protocol.udp.MemcachedUdpHandler;
+import com.zalora.jmemcached.util.OrderedVirtualThreadExecutor;
+import com.zalora.jmemcached.util.ReusePort;
+import org.jboss.netty.bootstrap.ConnectionlessBootstrap;
+import org.jboss.netty.buffer.DirectChannelBufferFactory;
 import org.jboss.netty.bootstrap.ServerBootstrap;
 import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.FixedReceiveBufferSizePredictorFactory;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
 import org.jboss.netty.channel.group.ChannelGroupFuture;
 import org.jboss.netty.channel.group.DefaultChannelGroup;
+import org.jboss.netty.channel.socket.DatagramChannelFactory;
 import org.jboss.netty.channel.socket.ServerSocketChannelFactory;
+import org.jboss.netty.channel.socket.nio.NioDatagramChannelFactory;
 import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+import org.jboss.netty.handler.execution.ExecutionHandler;
+import org.jboss.netty.handler.execution.OrderedMemoryAwareThreadPoolExecutor;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 
 /**
@@ -27,19 +46,44 @@ public class MemCacheDaemon<CACHE_ELEMENT extends CacheElement> {
 
     private int frameSize = 32768 * 1024;
 
+    private static final int MAX_UDP_REQUEST_SIZE = 8192;
+
     private boolean binary = false;
+    private boolean autoDetect = false;
     private boolean verbose;
     private int idleTime;
     private InetSocketAddress addr;
+    private final List<InetSocketAddress> extraAddrs = new ArrayList<InetSocketAddress>();
+    private InetSocketAddress udpAddr;
     private Cache<CACHE_ELEMENT> cache;
 
+    private Executor bossExecutor;
+    private Executor workerExecutor;
+    private int workerCount;
+    private int acceptors = 1;
+    private final Map<String, Object> options = new LinkedHashMap<String, Object>();
+
+    private int executionThreads;
+    private boolean virtualThreads;
+    private long maxChannelQueueBytes = 1024 * 1024;
+    private long maxTotalQueueBytes = 64 * 1024 * 1024;
+    private ExecutionHandler executionHandler;
+
     private boolean running = false;
     private ServerSocketChannelFactory channelFactory;
+    private DatagramChannelFactory datagramChannelFactory;
     private DefaultChannelGroup allChannels;
 
-    public MemCacheDaemon() {}
+    public MemCacheDaemon() {
+        // "child." options apply to accepted connections, the others to the listening socket
+        options.put("reuseAddress", true);
+        options.put("child.tcpNoDelay", true);
+        options.put("child.sendBufferSize", 65536);
+        options.put("child.receiveBufferSize", 65536);
+    }
 
     public MemCacheDaemon(Cache<CACHE_ELEMENT> cache) {
+        this();
         this.cache = cache;
     }
 
@@ -47,42 +91,111 @@ public class MemCacheDaemon<CACHE_ELEMENT extends CacheElement> {
      * Bind the network connection and start the network processing threads.
      */
     public void start() {
-        // TODO provide tweakable options here for passing in custom executors.
-        channelFactory =
-                new NioServerSocketChannelFactory(
-                        Executors.newCachedThreadPool(),
-                        Executors.newCachedThreadPool());
+        // check and set up first, so that a JDK lacking what was asked for fails the start before anything is bound
+        if (acceptors > 1 && !ReusePort.isSupported()) {
+            throw new UnsupportedOperationException("several acceptors need SO_REUSEPORT, which needs Java 9 or later and Linux 3.9 or a BSD");
+        }
+        if (virtualThreads) {
+            executionHandler = new ExecutionHandler(new OrderedVirtualThreadExecutor(
+                    "jmemcached-command-", maxChannelQueueBytes, maxTotalQueueBytes));
+        } else if (executionThreads > 0) {
+            executionHandler = new ExecutionHandler(
+                    new OrderedMemoryAwareThreadPoolExecutor(executionThreads, maxChannelQueueBytes, maxTotalQueueBytes));
+        }
+
+        Executor boss = bossExecutor != null ? bossExecutor : Executors.newCachedThreadPool();
+        Executor worker = workerExecutor != null ? workerExecutor : Executors.newCachedThreadPool();
+        channelFactory = workerCount > 0
+                ? new NioServerSocketChannelFactory(boss, worker, workerCount)
+                : new NioServerSocketChannelFactory(boss, worker);
 
         allChannels = new DefaultChannelGroup("jmemcachedChannelGroup");
 
         ServerBootstrap bootstrap = new ServerBootstrap(channelFactory);
 
         ChannelPipelineFactory pipelineFactory;
-        if (binary)
-            pipelineFactory = createMemcachedBinaryPipelineFactory(cache, memcachedVersion, verbose, idleTime, allChannels);
+        if (autoDetect)
+            pipelineFactory = createProtocolDetectingPipelineFactory(
+                    createMemcachedPipelineFactory(cache, memcachedVersion, verbose, idleTime, frameSize, allChannels, executionHandler),
+                    createMemcachedBinaryPipelineFactory(cache, memcachedVersion, verbose, idleTime, allChannels, executionHandler),
+                    allChannels);
+        else if (binary)
+            pipelineFactory = createMemcachedBinaryPipelineFactory(cache, memcachedVersion, verbose, idleTime, allChannels, executionHandler);
         else
-            pipelineFactory = createMemcachedPipelineFactory(cache, memcachedVersion, verbose, idleTime, frameSize, allChannels);
+            pipelineFactory = createMemcachedPipelineFactory(cache, memcachedVersion, verbose, idleTime, frameSize, allChannels, executionHandler);
 
         bootstrap.setPipelineFactory(pipelineFactory);
-        bootstrap.setOption("sendBufferSize", 65536);
-        bootstrap.setOption("receiveBufferSize", 65536);
+        bootstrap.setOptions(options);
+        if (acceptors > 1) {
+            // the bootstrap passes the new server channel up here before it binds it
+            bootstrap.setParentHandler(new SimpleChannelUpstreamHandler() {
+                @Override
+                public void channelOpen(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+                    ReusePort.enable(e.getChannel());
+                    super.channelOpen(ctx, e);
+                }
+            });
+        }
 
-        Channel serverChannel = bootstrap.bind(addr);
-        allChannels.add(serverChannel);
+        // every listener shares the one pipeline factory, and with it the cache and the command handlers
+        List<InetSocketAddress> addrs = new ArrayList<InetSocketAddress>();
+        addrs.add(addr);
+        addrs.addAll(extraAddrs);
+        for (InetSocketAddress listenAddr : addrs) {
+            InetSocketAddress bindAddr = listenAddr;
+            for (int i = 0; i < acceptors; i++) {
+                Channel serverChannel = bootstrap.bind(bindAddr);
+                allChannels.add(serverChannel);
+                // with port 0 the first bind picks the port, and the other acceptors join it there
+                bindAddr = (InetSocketAddress) serverChannel.getLocalAddress();
+            }
 
-        log.info("Listening on " + String.valueOf(addr.getHostName()) + ":" + addr.getPort());
+            log.info("Listening on " + String.valueOf(listenAddr.getHostName()) + ":" + bindAddr.getPort()
+                    + (acceptors > 1 ? " with " + acceptors + " acceptors" : ""));
+        }
+
+        if (udpAddr != null) {
+            startUdp();
+        }
 
         running = true;
     }
 
+    /**
+     * Bind the UDP listener. It serves get and gets only, straight from the same cache as the TCP listeners.
+     */
+    @SuppressWarnings("unchecked")
+    private void startUdp() {
+        datagramChannelFactory = new NioDatagramChannelFactory(Executors.newCachedThreadPool());
+
+        MemcachedUdpHandler<CACHE_ELEMENT> udpHandler = new MemcachedUdpHandler<CACHE_ELEMENT>(cache);
+        cache.addStatsSource(udpHandler);
+
+        ConnectionlessBootstrap udpBootstrap = new ConnectionlessBootstrap(datagramChannelFactory);
+        udpBootstrap.getPipeline().addLast("handler", udpHandler);
+        udpBootstrap.setOption("receiveBufferSize", 1024 * 1024);
+        udpBootstrap.setOption("sendBufferSize", 1024 * 1024);
+        // Netty sizes datagram reads at 768 bytes by default, which would cut off longer multi-get requests
+        udpBootstrap.setOption("receiveBufferSizePredictorFactory", new FixedReceiveBufferSizePredictorFactory(MAX_UDP_REQUEST_SIZE));
+
+        allChannels.add(udpBootstrap.bind(udpAddr));
+
+        log.info("Listening for UDP on " + String.valueOf(udpAddr.getHostName()) + ":" + udpAddr.getPort());
+    }
+
     protected ChannelPipelineFactory createMemcachedBinaryPipelineFactory(
-            Cache cache, String memcachedVersion, boolean verbose, int idleTime, DefaultChannelGroup allChannels) {
-        return new MemcachedBinaryPipelineFactory(cache, memcachedVersion, verbose, idleTime, allChannels);
+            Cache cache, String memcachedVersion, boolean verbose, int idleTime, DefaultChannelGroup allChannels, ExecutionHandler executionHandler) {
+        return new MemcachedBinaryPipelineFactory(cache, memcachedVersion, verbose, idleTime, allChannels, executionHandler);
     }
 
     protected ChannelPipelineFactory createMemcachedPipelineFactory(
-            Cache cache, String memcachedVersion, boolean verbose, int idleTime, int receiveBufferSize, DefaultChannelGroup allChannels) {
-        return new MemcachedPipelineFactory(cache, memcachedVersion, verbose, idleTime, receiveBufferSize, allChannels);
+            Cache cache, String memcachedVersion, boolean verbose, int idleTime, int receiveBufferSize, DefaultChannelGroup allChannels, ExecutionHandler executionHandler) {
+        return new MemcachedPipelineFactory(cache, memcachedVersion, verbose, idleTime, receiveBufferSize, allChannels, executionHandler);
+    }
+
+    protected ChannelPipelineFactory createProtocolDetectingPipelineFactory(
+            ChannelPipelineFactory textPipelineFactory, ChannelPipelineFactory binaryPipelineFactory, DefaultChannelGroup allChannels) {
+        return new ProtocolDetectingPipelineFactory(textPipelineFactory, binaryPipelineFactory, allChannels);
     }
 
     public void stop() {
@@ -100,11 +213,105 @@ public class MemCacheDaemon<CACHE_ELEMENT extends CacheElement> {
             throw new RuntimeException("exception while closing storage", e);
         }
         channelFactory.releaseExternalResources();
+        if (executionHandler != null) {
+            executionHandler.releaseExternalResources();
+        }
+        if (datagramChannelFactory != null) {
+            datagramChannelFactory.releaseExternalResources();
+        }
 
         running = false;
         log.info("successfully shut down");
     }
 
+    /**
+     * Run the acceptors on this executor instead of a private cached thread pool. Each listen address takes one
+     * thread per acceptor, see {@link #setAcceptors(int)}. The executor is shut down when the daemon stops.
+     */
+    public void setBossExecutor(Executor bossExecutor) {
+        this.bossExecutor = bossExecutor;
+    }
+
+    /**
+     * Run the I/O workers on this executor instead of a private cached thread pool. The executor needs room for
+     * {@link #setWorkerCount(int)} threads and is shut down when the daemon stops.
+     */
+    public void setWorkerExecutor(Executor workerExecutor) {
+        this.workerExecutor = workerExecutor;
+    }
+
+    /**
+     * @param workerCount the number of I/O worker threads connections are spread over; 0 keeps Netty's default of
+     *                    twice the number of cores
+     */
+    public void setWorkerCount(int workerCount) {
+        this.workerCount = workerCount;
+    }
+
+    /**
+     * Accept connections on this many listening sockets per address instead of one. They are bound to the same port
+     * with SO_REUSEPORT, the kernel spreads new connections over them, and each has an acceptor thread of its own,
+     * so a burst of connects is not serialized on a single accept loop. Needs Java 9 or later on Linux 3.9 or a BSD;
+     * {@link #start()} fails elsewhere.
+     * <p/>
+     * The transport stays Netty 3 NIO, whose selector is epoll on Linux. A native epoll transport would mean moving
+     * every codec to Netty 4, which this does not attempt.
+     *
+     * @param acceptors the number of listening sockets per address, 1 by default
+     */
+    public void setAcceptors(int acceptors) {
+        this.acceptors = acceptors;
+    }
+
+    /**
+     * Set a Netty bootstrap option, such as {@code "backlog"} for the listening socket or {@code "child.tcpNoDelay"}
+     * for accepted connections. A null value removes the option. Takes effect on {@link #start()}.
+     */
+    public void setOption(String key, Object value) {
+        if (value == null) options.remove(key);
+        else options.put(key, value);
+    }
+
+    /**
+     * Read from connections into direct memory rather than heap arrays: socket reads and the decoders' cumulation
+     * buffers are sliced from the preallocated chunks of Netty's direct buffer factory. Values are copied onto the
+     * heap as they are decoded, so direct memory only ever holds data in transit, never the cache's contents. This
+     * is a shortcut for the {@code child.bufferFactory} option.
+     */
+    public void setDirectBuffers(boolean directBuffers) {
+        setOption("child.bufferFactory", directBuffers ? DirectChannelBufferFactory.getInstance() : null);
+    }
+
+    /**
+     * Run commands on a pool of this many threads instead of the I/O workers, so a slow storage call only holds up
+     * its own connection. Commands of one connection still run one after the other, in the order they arrived.
+     *
+     * @param executionThreads the size of the pool; 0 runs commands on the I/O workers
+     */
+    public void setExecutionThreads(int executionThreads) {
+        this.executionThreads = executionThreads;
+    }
+
+    /**
+     * Run commands on virtual threads, for storage backends whose calls block. Threads are not pooled: a connection
+     * with commands waiting gets a new virtual thread, which runs them in order and ends, see
+     * {@link OrderedVirtualThreadExecutor}. {@link #setExecutionThreads(int)} does not apply; the queue limits bound
+     * the work instead. Needs Java 21 or later at runtime; {@link #start()} fails on older JDKs.
+     */
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+    /**
+     * Bound the commands waiting for the execution pool. A connection with more than {@code maxChannelQueueBytes}
+     * of commands queued stops being read from until it drains; past {@code maxTotalQueueBytes} across all
+     * connections, the I/O workers wait before queueing more.
+     */
+    public void setExecutionQueueLimits(long maxChannelQueueBytes, long maxTotalQueueBytes) {
+        this.maxChannelQueueBytes = maxChannelQueueBytes;
+        this.maxTotalQueueBytes = maxTotalQueueBytes;
+    }
+
     public void setVerbose(boolean verbose) {
         this.verbose = verbose;
     }
@@ -117,6 +324,20 @@ public class MemCacheDaemon<CACHE_ELEMENT extends CacheElement> {
         this.addr = addr;
     }
 
+    /**
+     * Listen on another address as well. All addresses serve the same cache with the same protocol settings.
+     */
+    public void addAddr(InetSocketAddress addr) {
+        this.extraAddrs.add(addr);
+    }
+
+    /**
+     * Also serve get and gets over UDP on this address.
+     */
+    public void setUdpAddr(InetSocketAddress udpAddr) {
+        this.udpAddr = udpAddr;
+    }
+
     public Cache<CACHE_ELEMENT> getCache() {
         return cache;
     }
@@ -137,4 +358,16 @@ public class MemCacheDaemon<CACHE_ELEMENT extends CacheElement> {
         this.binary = binary;
     }
 
+    public boolean isAutoDetect() {
+        return autoDetect;
+    }
+
+    /**
+     * Serve text and binary clients on the same port, choosing the protocol per connection from its first byte.
+     * Takes precedence over {@link #setBinary(boolean)}.
+     */
+    public void setAutoDetect(boolean autoDetect) {
+        this.autoDetect = autoDetect;
+    }
+
 }
@@ -0,0 +1,16 @@
+package com.zalora.jmemcached;
+
+import java.util.Map;
+
+/**
+ * Something outside the cache itself, such as a transport, that has statistics to report through the cache's
+ * {@code stats} output.
+ */
+public interface StatsSource {
+
+    /**
+     * @return the current values by stat name
+     */
+    Map<String, String> getStats();
+
+}
@@ -0,0 +1,20 @@
+package com.zalora.jmemcached;
+
+/**
+ * A storage could not serve a request: its backend could not be reached, did not answer in time, or failed. Only
+ * that request is lost, the client's connection is fine, so the protocols answer it with a server error and carry
+ * on.
+ */
+public class StorageException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public StorageException(String message) {
+        super(message);
+    }
+
+    public StorageException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+}
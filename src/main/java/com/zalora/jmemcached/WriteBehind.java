@@ -0,0 +1,265 @@
+package com.zalora.jmemcached;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects the mutations made to the cache and hands them to a {@link WriteBehindSink} in batches, off the request
+ * path.
+ * <p/>
+ * Pending mutations are kept by key, so a key written many times between two flushes is sent once, with its last
+ * value. A flush runs every interval, or as soon as a batch worth of keys is waiting. At most {@code maxQueued}
+ * keys can be pending or in flight; a mutation of a new key beyond that waits until a flush makes room, which
+ * slows writers down to what the sink can take instead of letting the queue grow without bound. A writer waits
+ * {@code maxWaitMillis} at most: a sink that has stopped taking batches must not hang the cache, so the mutation
+ * is dropped then, and counted. Mutations made after {@link #close} are dropped the same way.
+ */
+public final class WriteBehind<CACHE_ELEMENT extends CacheElement> implements StatsSource {
+
+    final Logger logger = LoggerFactory.getLogger(WriteBehind.class);
+
+    private static final Object DELETED = new Object();
+
+    private final WriteBehindSink<CACHE_ELEMENT> sink;
+    private final int flushSize;
+    private final int maxQueued;
+    private final long maxWaitMillis;
+
+    private final ConcurrentMap<String, Object> pending = new ConcurrentHashMap<String, Object>();
+    private final Semaphore slots;
+    private final ScheduledExecutorService flusher;
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+    private volatile boolean closed;
+
+    private final AtomicLong mutations = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong waits = new AtomicLong();
+    private final AtomicLong flushes = new AtomicLong();
+    private final AtomicLong flushedKeys = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong discarded = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong lastFlushMicros = new AtomicLong();
+    private final AtomicLong maxFlushMicros = new AtomicLong();
+    private final AtomicLong totalFlushMicros = new AtomicLong();
+
+    private final Runnable flushTask = new Runnable() {
+        public void run() {
+            flushRequested.set(false);
+            flush();
+        }
+    };
+
+    /**
+     * @param sink                where batches go
+     * @param flushSize           the most keys per batch; a flush starts early once this many are waiting
+     * @param flushIntervalMillis how often pending mutations are flushed at the latest
+     * @param maxQueued           the most keys pending or in flight before writers have to wait
+     * @param maxWaitMillis       how long a writer waits for room before its mutation is dropped
+     */
+    public WriteBehind(WriteBehindSink<CACHE_ELEMENT> sink, int flushSize, long flushIntervalMillis, int maxQueued, long maxWaitMillis) {
+        if (flushSize <= 0 || maxQueued < flushSize) {
+            throw new IllegalArgumentException("need 0 < flushSize <= maxQueued");
+        }
+
+        this.sink = sink;
+        this.flushSize = flushSize;
+        this.maxQueued = maxQueued;
+        this.maxWaitMillis = maxWaitMillis;
+        this.slots = new Semaphore(maxQueued);
+
+        flusher = Executors.newSingleThreadScheduledExecutor();
+        flusher.scheduleWithFixedDelay(flushTask, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Queue the new state of a key that was stored, incremented or touched.
+     */
+    public void updated(CACHE_ELEMENT element) {
+        enqueue(element.getKey(), element);
+    }
+
+    /**
+     * Queue the deletion of a key.
+     */
+    public void deleted(String key) {
+        enqueue(key, DELETED);
+    }
+
+    private void enqueue(String key, Object mutation) {
+        mutations.incrementAndGet();
+        if (closed) {
+            // the last flush has run or is running, nothing queued now would be written
+            dropped.incrementAndGet();
+            return;
+        }
+
+        // an already pending key just gets its newer state
+        if (pending.replace(key, mutation) != null) {
+            coalesced.incrementAndGet();
+            return;
+        }
+
+        if (!slots.tryAcquire()) {
+            waits.incrementAndGet();
+            requestFlush();
+            if (!awaitSlot()) {
+                dropped.incrementAndGet();
+                return;
+            }
+            if (closed) {
+                slots.release();
+                dropped.incrementAndGet();
+                return;
+            }
+        }
+
+        if (pending.put(key, mutation) != null) {
+            // a concurrent writer of the same key got in first and holds the slot
+            coalesced.incrementAndGet();
+            slots.release();
+        }
+
+        if (pending.size() >= flushSize) {
+            requestFlush();
+        }
+    }
+
+    private boolean awaitSlot() {
+        try {
+            return slots.tryAcquire(maxWaitMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void requestFlush() {
+        if (flushRequested.compareAndSet(false, true)) {
+            try {
+                flusher.execute(flushTask);
+            } catch (RejectedExecutionException closed) {
+                // closing, the final flush takes care of it
+            }
+        }
+    }
+
+    /**
+     * Write out everything pending, batch by batch. Runs on the flusher thread only, so batches reach the sink in
+     * order and a key's later state is never overtaken by an earlier one.
+     */
+    @SuppressWarnings("unchecked")
+    private void flush() {
+        while (!pending.isEmpty()) {
+            Map<String, Object> batch = new HashMap<String, Object>();
+            for (Iterator<Map.Entry<String, Object>> it = pending.entrySet().iterator(); it.hasNext() && batch.size() < flushSize; ) {
+                Map.Entry<String, Object> entry = it.next();
+                // skipped if it was written again since we looked; the loop picks up the newer state
+                if (pending.remove(entry.getKey(), entry.getValue())) {
+                    batch.put(entry.getKey(), entry.getValue());
+                }
+            }
+            if (batch.isEmpty()) continue;
+
+            Map<String, CACHE_ELEMENT> updated = new HashMap<String, CACHE_ELEMENT>();
+            Set<String> deleted = new HashSet<String>();
+            for (Map.Entry<String, Object> entry : batch.entrySet()) {
+                if (entry.getValue() == DELETED) deleted.add(entry.getKey());
+                else updated.put(entry.getKey(), (CACHE_ELEMENT) entry.getValue());
+            }
+
+            long start = System.nanoTime();
+            try {
+                sink.write(updated, deleted);
+            } catch (Throwable t) {
+                errors.incrementAndGet();
+                logger.error("write-behind flush of " + batch.size() + " key(s) failed, retrying later", t);
+                requeue(batch);
+                return;
+            }
+
+            long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+            lastFlushMicros.set(micros);
+            totalFlushMicros.addAndGet(micros);
+            long max;
+            while (micros > (max = maxFlushMicros.get()) && !maxFlushMicros.compareAndSet(max, micros)) ;
+
+            flushes.incrementAndGet();
+            flushedKeys.addAndGet(batch.size());
+            slots.release(batch.size());
+        }
+    }
+
+    /**
+     * Put a failed batch back, keeping its slots, unless a key has been written again since, in which case the newer
+     * state wins and the slot of the old one is given up.
+     */
+    private void requeue(Map<String, Object> batch) {
+        for (Map.Entry<String, Object> entry : batch.entrySet()) {
+            if (pending.putIfAbsent(entry.getKey(), entry.getValue()) != null) {
+                slots.release();
+            }
+        }
+    }
+
+    /**
+     * Drop every pending mutation, after the cache was flushed: the keys they would write no longer exist in the
+     * cache. A batch already handed to the sink still completes.
+     */
+    public void clear() {
+        for (Map.Entry<String, Object> entry : pending.entrySet()) {
+            if (pending.remove(entry.getKey(), entry.getValue())) {
+                discarded.incrementAndGet();
+                slots.release();
+            }
+        }
+    }
+
+    /**
+     * Flush what is still pending and stop the flusher. Mutations from then on are dropped.
+     *
+     * @param timeoutMillis how long to wait for the last flush
+     */
+    public void close(long timeoutMillis) {
+        closed = true;
+        flusher.execute(flushTask);
+        flusher.shutdown();
+        try {
+            if (!flusher.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                logger.warn("write-behind did not drain in time, " + pending.size() + " key(s) not written");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return the number of keys pending or being flushed
+     */
+    public int getQueueDepth() {
+        return maxQueued - slots.availablePermits();
+    }
+
+    public Map<String, String> getStats() {
+        Map<String, String> stats = new HashMap<String, String>();
+        stats.put("write_behind_queue_depth", String.valueOf(getQueueDepth()));
+        stats.put("write_behind_mutations", String.valueOf(mutations.get()));
+        stats.put("write_behind_coalesced", String.valueOf(coalesced.get()));
+        stats.put("write_behind_waits", String.valueOf(waits.get()));
+        stats.put("write_behind_flushes", String.valueOf(flushes.get()));
+        stats.put("write_behind_flushed_keys", String.valueOf(flushedKeys.get()));
+        stats.put("write_behind_errors", String.valueOf(errors.get()));
+        stats.put("write_behind_discarded", String.valueOf(discarded.get()));
+        stats.put("write_behind_dropped", String.valueOf(dropped.get()));
+        stats.put("write_behind_flush_last_us", String.valueOf(lastFlushMicros.get()));
+        stats.put("write_behind_flush_max_us", String.valueOf(maxFlushMicros.get()));
+        stats.put("write_behind_flush_total_us", String.valueOf(totalFlushMicros.get()));
+        return stats;
+    }
+
+}
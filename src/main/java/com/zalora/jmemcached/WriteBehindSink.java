@@ -0,0 +1,25 @@
+package com.zalora.jmemcached;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The slow backing store behind a write-behind cache, see {@link CacheImpl#setWriteBehind}. It receives the
+ * mutations clients made, already acknowledged from memory, in batches.
+ * <p/>
+ * Calls come from a single flusher thread, one batch at a time, and may block.
+ */
+public interface WriteBehindSink<CACHE_ELEMENT extends CacheElement> {
+
+    /**
+     * Persist one batch. Writes to the same key are coalesced before they get here, so a key is either in updated
+     * with its latest element or in deleted, never both.
+     *
+     * @param updated the latest element of every key that was stored, incremented or touched
+     * @param deleted the keys that were deleted
+     * @throws Exception if the batch could not be written; it is then retried with the next flush, except for keys
+     *                   that have been written again in the meantime
+     */
+    void write(Map<String, CACHE_ELEMENT> updated, Set<String> deleted) throws Exception;
+
+}
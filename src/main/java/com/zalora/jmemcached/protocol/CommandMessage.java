@@ -22,7 +22,12 @@ public final class CommandMessage<CACHE_ELEMENT extends CacheElement> implements
     public boolean addKeyToResponse = false;
 
     public int incrExpiry;
-    public int incrAmount;
+    public long incrAmount;
+    // whether an ma takes its delta away rather than adding it
+    public boolean decrement;
+
+    // flags of a meta protocol command, null for everything else
+    public MetaFlags meta;
 
     private CommandMessage(Op op) {
         this.op = op;
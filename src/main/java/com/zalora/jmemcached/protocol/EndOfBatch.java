@@ -0,0 +1,21 @@
+package com.zalora.jmemcached.protocol;
+
+import java.io.Serializable;
+
+/**
+ * Marker sent up the pipeline once a decoder has passed on every command it found in a single read. Handlers that
+ * hold back work or output for a connection use it to know when to flush.
+ */
+public final class EndOfBatch implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final EndOfBatch INSTANCE = new EndOfBatch();
+
+    private EndOfBatch() {}
+
+    private Object readResolve() {
+        return INSTANCE;
+    }
+
+}
@@ -2,10 +2,23 @@ package com.zalora.jmemcached.protocol;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
+import com.zalora.jmemcached.AsyncCache;
+import com.zalora.jmemcached.AsyncCacheAdapter;
 import com.zalora.jmemcached.Cache;
 import com.zalora.jmemcached.CacheElement;
+import com.zalora.jmemcached.util.BufferUtils;
 import com.zalora.jmemcached.protocol.exceptions.UnknownCommandException;
 
 import org.jboss.netty.channel.*;
@@ -15,10 +28,27 @@ import org.jboss.netty.channel.group.DefaultChannelGroup;
  * The actual command handler, which is responsible for processing the CommandMessage instances
  * that are inbound from the protocol decoders.
  * <p/>
- * One instance is shared among the entire pipeline, since this handler is stateless, apart from some globals
- * for the entire daemon.
+ * One instance is shared by every connection of the daemon. The instance itself only holds daemon-wide settings and
+ * connection counters; the state of a connection is a {@link Connection} kept as the attachment of this handler's
+ * context in the connection's pipeline:
+ * <ul>
+ * <li>the quiet single-key gets (binary GetQ and GetKQ) held back, so that a run of them is resolved with one
+ * multi-key lookup once a command of another kind arrives or the decoder marks the end of a read;</li>
+ * <li>the tail of the connection's chain of steps: every command, decoder error and passed-on message is one;</li>
+ * <li>how many steps are on the chain and not finished yet;</li>
+ * <li>whether reading from the channel has been suspended because of them.</li>
+ * </ul>
  * <p/>
  * The command handler produces ResponseMessages which are destined for the response encoder.
+ * <p/>
+ * Commands go to the cache through its {@link AsyncCache} API, and a response is sent once its operation completes.
+ * Each step of a connection starts only after the one before it has finished, so a client sees the effects and the
+ * responses of its commands in the order it sent them, while a backend that completes later does not hold up any
+ * thread; different connections proceed independently. Caches that complete inline behave as before.
+ * <p/>
+ * Once {@link #MAX_IN_FLIGHT} steps of a connection are unfinished, reading from its channel stops until half of
+ * them are done. A client that pipelines without reading its responses is held to that many, and other
+ * connections do not notice.
  *
  * TODO implement flush_all delay
  * @author Ryan Daum
@@ -28,6 +58,15 @@ public final class MemcachedCommandHandler<CACHE_ELEMENT extends CacheElement> e
 
     final Logger logger = LoggerFactory.getLogger(MemcachedCommandHandler.class);
 
+    private static final CompletionStage<Void> DONE = CompletableFuture.completedFuture(null);
+
+    /**
+     * The most steps a connection may have queued before we stop reading from it. Reading resumes once half of them
+     * are done. A client that pipelines without reading its responses is held to this much memory, instead of
+     * growing its chain without bound.
+     */
+    static final int MAX_IN_FLIGHT = 1024;
+
     public final AtomicInteger curr_conns = new AtomicInteger();
     public final AtomicInteger total_conns = new AtomicInteger();
 
@@ -45,6 +84,7 @@ public final class MemcachedCommandHandler<CACHE_ELEMENT extends CacheElement> e
      * The actual physical data storage.
      */
     private final Cache<CACHE_ELEMENT> cache;
+    private final AsyncCache<CACHE_ELEMENT> asyncCache;
 
     /**
      * The channel group for the entire daemon, used for handling global cleanup on shutdown.
@@ -62,6 +102,7 @@ public final class MemcachedCommandHandler<CACHE_ELEMENT extends CacheElement> e
      */
     public MemcachedCommandHandler(Cache cache, String memcachedVersion, boolean verbosity, int idle, DefaultChannelGroup channelGroup) {
         this.cache = cache;
+        this.asyncCache = AsyncCacheAdapter.of(cache);
 
         version = memcachedVersion;
         verbose = verbosity;
@@ -98,6 +139,23 @@ public final class MemcachedCommandHandler<CACHE_ELEMENT extends CacheElement> e
     }
 
 
+    /**
+     * Errors from the decoder answer a command too, so they wait their turn behind the responses still in flight.
+     *
+     * @param channelHandlerContext
+     * @param exceptionEvent
+     * @throws Exception
+     */
+    @Override
+    public void exceptionCaught(final ChannelHandlerContext channelHandlerContext, final ExceptionEvent exceptionEvent) throws Exception {
+        then(channelHandlerContext, connection(channelHandlerContext), new Function<Void, CompletionStage<Void>>() {
+            public CompletionStage<Void> apply(Void previous) {
+                channelHandlerContext.sendUpstream(exceptionEvent);
+                return DONE;
+            }
+        });
+    }
+
     /**
      * The actual meat of the matter.  Turn CommandMessages into executions against the physical cache, and then
      * pass on the downstream messages.
@@ -109,14 +167,26 @@ public final class MemcachedCommandHandler<CACHE_ELEMENT extends CacheElement> e
 
     @Override
     @SuppressWarnings("unchecked")
-    public void messageReceived(ChannelHandlerContext channelHandlerContext, MessageEvent messageEvent) throws Exception {
+    public void messageReceived(final ChannelHandlerContext channelHandlerContext, final MessageEvent messageEvent) throws Exception {
+        Connection<CACHE_ELEMENT> connection = connection(channelHandlerContext);
+
         if (!(messageEvent.getMessage() instanceof CommandMessage)) {
-            // Ignore what this encoder can't encode.
-            channelHandlerContext.sendUpstream(messageEvent);
+            // the end of a read releases any quiet gets we have been holding back
+            if (messageEvent.getMessage() instanceof EndOfBatch) {
+                handleQueuedGets(channelHandlerContext, connection);
+            }
+
+            // Ignore what this encoder can't encode, but only once everything before it has been answered.
+            then(channelHandlerContext, connection, new Function<Void, CompletionStage<Void>>() {
+                public CompletionStage<Void> apply(Void previous) {
+                    channelHandlerContext.sendUpstream(messageEvent);
+                    return DONE;
+                }
+            });
             return;
         }
 
-        CommandMessage<CACHE_ELEMENT> command = (CommandMessage<CACHE_ELEMENT>) messageEvent.getMessage();
+        final CommandMessage<CACHE_ELEMENT> command = (CommandMessage<CACHE_ELEMENT>) messageEvent.getMessage();
         Op cmd = command.op;
         int cmdKeysSize = command.keys == null ? 0 : command.keys.size();
 
@@ -136,150 +206,435 @@ public final class MemcachedCommandHandler<CACHE_ELEMENT extends CacheElement> e
             logger.info(log.toString());
         }
 
-        Channel channel = messageEvent.getChannel();
-        if (cmd == null) handleNoOp(channelHandlerContext, command);
-        else
+        final Channel channel = messageEvent.getChannel();
+
+        // quiet single key gets (binary GetQ/GetKQ) are collected and resolved together
+        if (command.noreply && (cmd == Op.GET || cmd == Op.GETS) && cmdKeysSize == 1) {
+            connection.queuedGets.add(command);
+            return;
+        }
+        handleQueuedGets(channelHandlerContext, connection);
+
+        then(channelHandlerContext, connection, new Function<Void, CompletionStage<Void>>() {
+            public CompletionStage<Void> apply(Void previous) {
+                return dispatch(channelHandlerContext, command, channel);
+            }
+        });
+    }
+
+    /**
+     * Run one command against the cache.
+     *
+     * @return a stage that completes once the response has been sent on
+     */
+    protected CompletionStage<Void> dispatch(ChannelHandlerContext channelHandlerContext, CommandMessage<CACHE_ELEMENT> command, Channel channel) {
+        Op cmd = command.op;
+        if (cmd == null) return handleNoOp(channelHandlerContext, command);
+
         switch (cmd) {
             case GET:
             case GETS:
-                handleGets(channelHandlerContext, command, channel);
-                break;
+                return handleGets(channelHandlerContext, command, channel);
             case APPEND:
-                handleAppend(channelHandlerContext, command, channel);
-                break;
+                return handleAppend(channelHandlerContext, command, channel);
             case PREPEND:
-                handlePrepend(channelHandlerContext, command, channel);
-                break;
+                return handlePrepend(channelHandlerContext, command, channel);
             case DELETE:
-                handleDelete(channelHandlerContext, command, channel);
-                break;
+                return handleDelete(channelHandlerContext, command, channel);
             case DECR:
-                handleDecr(channelHandlerContext, command, channel);
-                break;
+                return handleDecr(channelHandlerContext, command, channel);
             case INCR:
-                handleIncr(channelHandlerContext, command, channel);
-                break;
+                return handleIncr(channelHandlerContext, command, channel);
             case REPLACE:
-                handleReplace(channelHandlerContext, command, channel);
-                break;
+                return handleReplace(channelHandlerContext, command, channel);
             case ADD:
-                handleAdd(channelHandlerContext, command, channel);
-                break;
+                return handleAdd(channelHandlerContext, command, channel);
             case SET:
-                handleSet(channelHandlerContext, command, channel);
-                break;
+                return handleSet(channelHandlerContext, command, channel);
             case CAS:
-                handleCas(channelHandlerContext, command, channel);
-                break;
+                return handleCas(channelHandlerContext, command, channel);
             case STATS:
-                handleStats(channelHandlerContext, command, cmdKeysSize, channel);
-                break;
+                return handleStats(channelHandlerContext, command, command.keys == null ? 0 : command.keys.size(), channel);
             case VERSION:
-                handleVersion(channelHandlerContext, command, channel);
-                break;
+                return handleVersion(channelHandlerContext, command, channel);
             case QUIT:
-                handleQuit(channel);
-                break;
+                return handleQuit(channel);
             case FLUSH_ALL:
-                handleFlush(channelHandlerContext, command, channel);
-                break;
+                return handleFlush(channelHandlerContext, command, channel);
             case VERBOSITY:
-                handleVerbosity(channelHandlerContext, command, channel);
-                break;
+                return handleVerbosity(channelHandlerContext, command, channel);
+            case MG:
+                return handleMetaGet(channelHandlerContext, command, channel);
+            case MS:
+                return handleMetaSet(channelHandlerContext, command, channel);
+            case MD:
+                if (command.meta.has('I')) return handleInvalidate(channelHandlerContext, command, channel);
+                return handleDelete(channelHandlerContext, command, channel);
+            case MA:
+                return handleMetaArithmetic(channelHandlerContext, command, channel);
+            case MN:
+                return handleNoOp(channelHandlerContext, command);
+            case ME:
+                return handleMetaDebug(channelHandlerContext, command, channel);
             default:
-                 throw new UnknownCommandException("unknown command");
+                return AsyncCacheAdapter.failed(new UnknownCommandException("unknown command"));
         }
     }
 
-    protected void handleNoOp(ChannelHandlerContext channelHandlerContext, CommandMessage<CACHE_ELEMENT> command) {
+    protected CompletionStage<Void> handleNoOp(ChannelHandlerContext channelHandlerContext, CommandMessage<CACHE_ELEMENT> command) {
         Channels.fireMessageReceived(channelHandlerContext, new ResponseMessage(command));
+        return DONE;
     }
 
-    protected void handleFlush(ChannelHandlerContext channelHandlerContext, CommandMessage<CACHE_ELEMENT> command, Channel channel) {
+    protected CompletionStage<Void> handleFlush(ChannelHandlerContext channelHandlerContext, CommandMessage<CACHE_ELEMENT> command, Channel channel) {
         Channels.fireMessageReceived(channelHandlerContext, new ResponseMessage(command).withFlushResponse(cache.flush_all(command.time)), channel.getRemoteAddress());
+        return DONE;
     }
     
-    protected void handleVerbosity(ChannelHandlerContext channelHandlerContext, CommandMessage command, Channel channel) {
+    protected CompletionStage<Void> handleVerbosity(ChannelHandlerContext channelHandlerContext, CommandMessage command, Channel channel) {
     	//TODO set verbosity mode
     	Channels.fireMessageReceived(channelHandlerContext, new ResponseMessage(command), channel.getRemoteAddress());
+    	return DONE;
  	}
 
-    protected void handleQuit(Channel channel) {
+    protected CompletionStage<Void> handleQuit(Channel channel) {
         channel.disconnect();
+        return DONE;
     }
 
-    protected void handleVersion(ChannelHandlerContext channelHandlerContext, CommandMessage<CACHE_ELEMENT> command, Channel channel) {
+    protected CompletionStage<Void> handleVersion(ChannelHandlerContext channelHandlerContext, CommandMessage<CACHE_ELEMENT> command, Channel channel) {
         ResponseMessage responseMessage = new ResponseMessage(command);
         responseMessage.version = version;
         Channels.fireMessageReceived(channelHandlerContext, responseMessage, channel.getRemoteAddress());
+        return DONE;
     }
 
-    protected void handleStats(ChannelHandlerContext channelHandlerContext, CommandMessage<CACHE_ELEMENT> command, int cmdKeysSize, Channel channel) {
+    protected CompletionStage<Void> handleStats(ChannelHandlerContext channelHandlerContext, CommandMessage<CACHE_ELEMENT> command, int cmdKeysSize, Channel channel) {
         String option = "";
         if (cmdKeysSize > 0) {
             option = command.keys.get(0);
         }
 
         Channels.fireMessageReceived(channelHandlerContext, new ResponseMessage(command).withStatResponse(cache.stat(option)), channel.getRemoteAddress());
+        return DONE;
     }
 
-    protected void handleDelete(ChannelHandlerContext channelHandlerContext, CommandMessage<CACHE_ELEMENT> command, Channel channel) {
-        Cache.DeleteResponse dr = cache.delete(command.keys.get(0), command.time);
-        Channels.fireMessageReceived(channelHandlerContext, new ResponseMessage(command).withDeleteResponse(dr), channel.getRemoteAddress());
+    protected CompletionStage<Void> handleDelete(ChannelHandlerContext channelHandlerContext, CommandMessage<CACHE_ELEMENT> command, Channel channel) {
+        return deleteReply(channelHandlerContext, command, channel, asyncCache.deleteAsync(command.keys.get(0), command.time));
     }
 
-    protected void handleDecr(ChannelHandlerContext channelHandlerContext, CommandMessage<CACHE_ELEMENT> command, Channel channel) {
-        Integer incrDecrResp = cache.get_add(command.keys.get(0), -1 * command.incrAmount);
-        Channels.fireMessageReceived(channelHandlerContext, new ResponseMessage(command).withIncrDecrResponse(incrDecrResp), channel.getRemoteAddress());
+    protected CompletionStage<Void> handleDecr(ChannelHandlerContext channelHandlerContext, CommandMessage<CACHE_ELEMENT> command, Channel channel) {
+        return arithmetic(channelHandlerContext, command, channel, false);
     }
 
-    protected void handleIncr(ChannelHandlerContext channelHandlerContext, CommandMessage<CACHE_ELEMENT> command, Channel channel) {
-        Integer incrDecrResp = cache.get_add(command.keys.get(0), command.incrAmount); // TODO support default value and expiry!!
-        Channels.fireMessageReceived(channelHandlerContext, new ResponseMessage(command).withIncrDecrResponse(incrDecrResp), channel.getRemoteAddress());
+    protected CompletionStage<Void> handleIncr(ChannelHandlerContext channelHandlerContext, CommandMessage<CACHE_ELEMENT> command, Channel channel) {
+        return arithmetic(channelHandlerContext, command, channel, true);
     }
 
-    protected void handlePrepend(ChannelHandlerContext channelHandlerContext, CommandMessage<CACHE_ELEMENT> command, Channel channel) {
-        Cache.StoreResponse ret;
-        ret = cache.prepend(command.element);
-        Channels.fireMessageReceived(channelHandlerContext, new ResponseMessage(command).withResponse(ret), channel.getRemoteAddress());
+    protected CompletionStage<Void> handlePrepend(ChannelHandlerContext channelHandlerContext, CommandMessage<CACHE_ELEMENT> command, Channel channel) {
+        return storeReply(channelHandlerContext, command, channel, asyncCache.prependAsync(command.element));
     }
 
-    protected void handleAppend(ChannelHandlerContext channelHandlerContext, CommandMessage<CACHE_ELEMENT> command, Channel channel) {
-        Cache.StoreResponse ret;
-        ret = cache.append(command.element);
-        Channels.fireMessageReceived(channelHandlerContext, new ResponseMessage(command).withResponse(ret), channel.getRemoteAddress());
+    protected CompletionStage<Void> handleAppend(ChannelHandlerContext channelHandlerContext, CommandMessage<CACHE_ELEMENT> command, Channel channel) {
+        return storeReply(channelHandlerContext, command, channel, asyncCache.appendAsync(command.element));
     }
 
-    protected void handleReplace(ChannelHandlerContext channelHandlerContext, CommandMessage<CACHE_ELEMENT> command, Channel channel) {
-        Cache.StoreResponse ret;
-        ret = cache.replace(command.element);
-        Channels.fireMessageReceived(channelHandlerContext, new ResponseMessage(command).withResponse(ret), channel.getRemoteAddress());
+    protected CompletionStage<Void> handleReplace(ChannelHandlerContext channelHandlerContext, CommandMessage<CACHE_ELEMENT> command, Channel channel) {
+        return storeReply(channelHandlerContext, command, channel, asyncCache.replaceAsync(command.element));
     }
 
-    protected void handleAdd(ChannelHandlerContext channelHandlerContext, CommandMessage<CACHE_ELEMENT> command, Channel channel) {
-        Cache.StoreResponse ret;
-        ret = cache.add(command.element);
-        Channels.fireMessageReceived(channelHandlerContext, new ResponseMessage(command).withResponse(ret), channel.getRemoteAddress());
+    protected CompletionStage<Void> handleAdd(ChannelHandlerContext channelHandlerContext, CommandMessage<CACHE_ELEMENT> command, Channel channel) {
+        return storeReply(channelHandlerContext, command, channel, asyncCache.addAsync(command.element));
     }
 
-    protected void handleCas(ChannelHandlerContext channelHandlerContext, CommandMessage<CACHE_ELEMENT> command, Channel channel) {
-        Cache.StoreResponse ret;
-        ret = cache.cas(command.cas_key, command.element);
-        Channels.fireMessageReceived(channelHandlerContext, new ResponseMessage(command).withResponse(ret), channel.getRemoteAddress());
+    protected CompletionStage<Void> handleCas(ChannelHandlerContext channelHandlerContext, CommandMessage<CACHE_ELEMENT> command, Channel channel) {
+        return storeReply(channelHandlerContext, command, channel, asyncCache.casAsync(command.cas_key, command.element));
     }
 
-    protected void handleSet(ChannelHandlerContext channelHandlerContext, CommandMessage<CACHE_ELEMENT> command, Channel channel) {
-        Cache.StoreResponse ret;
-        ret = cache.set(command.element);
-        Channels.fireMessageReceived(channelHandlerContext, new ResponseMessage(command).withResponse(ret), channel.getRemoteAddress());
+    protected CompletionStage<Void> handleSet(ChannelHandlerContext channelHandlerContext, CommandMessage<CACHE_ELEMENT> command, Channel channel) {
+        return storeReply(channelHandlerContext, command, channel, asyncCache.setAsync(command.element));
     }
 
-    protected void handleGets(ChannelHandlerContext channelHandlerContext, CommandMessage<CACHE_ELEMENT> command, Channel channel) {
+    protected CompletionStage<Void> handleGets(final ChannelHandlerContext channelHandlerContext, final CommandMessage<CACHE_ELEMENT> command, final Channel channel) {
         String[] keys = new String[command.keys.size()];
         keys = command.keys.toArray(keys);
-        CACHE_ELEMENT[] results = get(keys);
-        ResponseMessage<CACHE_ELEMENT> resp = new ResponseMessage<CACHE_ELEMENT>(command).withElements(results);
-        Channels.fireMessageReceived(channelHandlerContext, resp, channel.getRemoteAddress());
+        return get(keys).thenAccept(new Consumer<CACHE_ELEMENT[]>() {
+            public void accept(CACHE_ELEMENT[] results) {
+                ResponseMessage<CACHE_ELEMENT> resp = new ResponseMessage<CACHE_ELEMENT>(command).withElements(results);
+                Channels.fireMessageReceived(channelHandlerContext, resp, channel.getRemoteAddress());
+            }
+        });
+    }
+
+    /**
+     * mg: a single key lookup. The access time from before this read goes along for the {@code h} and {@code l}
+     * flags, and {@code T} gives a hit a new expiry.
+     * <p/>
+     * Leases keep a popular key that goes missing from sending every client to the backing store. With {@code N} a
+     * miss creates an empty placeholder, and with {@code R} a hit whose remaining TTL is below the token wants a
+     * refresh; stale items always do. The first client to ask gets the lease (W), everyone after it gets told the
+     * item is being recached (Z) and keeps using what is there.
+     */
+    protected CompletionStage<Void> handleMetaGet(final ChannelHandlerContext channelHandlerContext, final CommandMessage<CACHE_ELEMENT> command, final Channel channel) {
+        final String key = command.keys.get(0);
+        final ResponseMessage<CACHE_ELEMENT> resp = new ResponseMessage<CACHE_ELEMENT>(command);
+
+        return asyncCache.getAsync(key).thenCompose(new Function<CACHE_ELEMENT[], CompletionStage<Void>>() {
+            public CompletionStage<Void> apply(final CACHE_ELEMENT[] results) {
+                resp.withElements(results);
+                if (results[0] != null || !command.meta.has('N')) return DONE;
+
+                return asyncCache.vivifyAsync(key, command.meta.longToken('N', 0) * 1000).thenCompose(new Function<CACHE_ELEMENT, CompletionStage<Void>>() {
+                    public CompletionStage<Void> apply(CACHE_ELEMENT placeholder) {
+                        if (placeholder != null) {
+                            results[0] = placeholder;
+                            resp.leaseWon = true;
+                            return DONE;
+                        }
+                        return asyncCache.getAsync(key).thenAccept(new Consumer<CACHE_ELEMENT[]>() {
+                            public void accept(CACHE_ELEMENT[] current) {
+                                results[0] = current[0];
+                            }
+                        });
+                    }
+                });
+            }
+        }).thenCompose(new Function<Void, CompletionStage<Void>>() {
+            public CompletionStage<Void> apply(Void previous) {
+                final CACHE_ELEMENT element = resp.elements[0];
+                if (element == null || resp.leaseWon) return DONE;
+
+                if (element.isLeased()) {
+                    resp.leasePending = true;
+                    return DONE;
+                }
+                if (!element.isStale() && !(element.getRemainingTtl() >= 0 && element.getRemainingTtl() < command.meta.longToken('R', -1))) {
+                    return DONE;
+                }
+
+                return asyncCache.leaseAsync(element).thenAccept(new Consumer<CACHE_ELEMENT>() {
+                    public void accept(CACHE_ELEMENT leased) {
+                        if (leased != null) {
+                            resp.elements[0] = leased;
+                            resp.leaseWon = true;
+                        } else {
+                            resp.leasePending = true;
+                        }
+                    }
+                });
+            }
+        }).thenCompose(new Function<Void, CompletionStage<Void>>() {
+            public CompletionStage<Void> apply(Void previous) {
+                CACHE_ELEMENT element = resp.elements[0];
+                if (element == null) return DONE;
+
+                resp.previousAccess = element.markAccessed(Now());
+                if (!command.meta.has('T')) return DONE;
+
+                return asyncCache.touchAsync(key, command.meta.longToken('T', 0) * 1000).thenAccept(new Consumer<CACHE_ELEMENT>() {
+                    public void accept(CACHE_ELEMENT touched) {
+                        if (touched != null) resp.elements[0] = touched;
+                    }
+                });
+            }
+        }).thenRun(new Runnable() {
+            public void run() {
+                Channels.fireMessageReceived(channelHandlerContext, resp, channel.getRemoteAddress());
+            }
+        });
+    }
+
+    /**
+     * md with {@code I}: keep serving the item, marked stale, until a client that took its lease recaches it.
+     * {@code T} sets how long the stale item may live.
+     */
+    protected CompletionStage<Void> handleInvalidate(ChannelHandlerContext channelHandlerContext, CommandMessage<CACHE_ELEMENT> command, Channel channel) {
+        long expire = command.meta.has('T') ? command.meta.longToken('T', 0) * 1000 : -1;
+        return deleteReply(channelHandlerContext, command, channel, asyncCache.invalidateAsync(command.keys.get(0), expire));
+    }
+
+    /**
+     * ms: the mode flag picks the store operation, and a {@code C} token turns a set into a cas.
+     */
+    protected CompletionStage<Void> handleMetaSet(ChannelHandlerContext channelHandlerContext, CommandMessage<CACHE_ELEMENT> command, Channel channel) {
+        char mode = command.meta.has('M') ? Character.toUpperCase(command.meta.token('M').charAt(0)) : 'S';
+
+        CompletionStage<Cache.StoreResponse> ret;
+        switch (mode) {
+            case 'E':
+                ret = asyncCache.addAsync(command.element);
+                break;
+            case 'A':
+                ret = asyncCache.appendAsync(command.element);
+                break;
+            case 'P':
+                ret = asyncCache.prependAsync(command.element);
+                break;
+            case 'R':
+                ret = asyncCache.replaceAsync(command.element);
+                break;
+            default:
+                ret = command.meta.has('C') ? asyncCache.casAsync(command.cas_key, command.element) : asyncCache.setAsync(command.element);
+        }
+
+        return storeReply(channelHandlerContext, command, channel, ret);
+    }
+
+    /**
+     * ma: increment or decrement, creating the counter from its initial value first if asked to with {@code N}.
+     */
+    protected CompletionStage<Void> handleMetaArithmetic(ChannelHandlerContext channelHandlerContext, final CommandMessage<CACHE_ELEMENT> command, Channel channel) {
+        return arithmetic(channelHandlerContext, command, channel, !command.decrement);
+    }
+
+    /**
+     * me: what the cache knows about a key, without counting as a read of it.
+     */
+    protected CompletionStage<Void> handleMetaDebug(final ChannelHandlerContext channelHandlerContext, final CommandMessage<CACHE_ELEMENT> command, final Channel channel) {
+        return asyncCache.getAsync(command.keys.get(0)).thenAccept(new Consumer<CACHE_ELEMENT[]>() {
+            public void accept(CACHE_ELEMENT[] results) {
+                ResponseMessage<CACHE_ELEMENT> resp = new ResponseMessage<CACHE_ELEMENT>(command).withElements(results);
+                Channels.fireMessageReceived(channelHandlerContext, resp, channel.getRemoteAddress());
+            }
+        });
+    }
+
+    /**
+     * Resolve all held back quiet gets with a single multi-key lookup and emit their responses in request order.
+     */
+    protected void handleQueuedGets(final ChannelHandlerContext channelHandlerContext, Connection<CACHE_ELEMENT> connection) {
+        if (connection.queuedGets.isEmpty()) return;
+
+        final List<CommandMessage<CACHE_ELEMENT>> queued = new ArrayList<CommandMessage<CACHE_ELEMENT>>(connection.queuedGets);
+        connection.queuedGets.clear();
+
+        then(channelHandlerContext, connection, new Function<Void, CompletionStage<Void>>() {
+            public CompletionStage<Void> apply(Void previous) {
+                final Channel channel = channelHandlerContext.getChannel();
+                if (queued.size() == 1) {
+                    return handleGets(channelHandlerContext, queued.get(0), channel);
+                }
+
+                String[] keys = new String[queued.size()];
+                for (int i = 0; i < keys.length; i++) {
+                    keys[i] = queued.get(i).keys.get(0);
+                }
+
+                return get(keys).thenAccept(new Consumer<CACHE_ELEMENT[]>() {
+                    public void accept(CACHE_ELEMENT[] results) {
+                        for (int i = 0; i < results.length; i++) {
+                            ResponseMessage<CACHE_ELEMENT> resp = new ResponseMessage<CACHE_ELEMENT>(queued.get(i)).withElements(Arrays.copyOfRange(results, i, i + 1));
+                            Channels.fireMessageReceived(channelHandlerContext, resp, channel.getRemoteAddress());
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private CompletionStage<Void> storeReply(final ChannelHandlerContext channelHandlerContext, final CommandMessage<CACHE_ELEMENT> command, final Channel channel, CompletionStage<Cache.StoreResponse> ret) {
+        return ret.thenAccept(new Consumer<Cache.StoreResponse>() {
+            public void accept(Cache.StoreResponse response) {
+                Channels.fireMessageReceived(channelHandlerContext, new ResponseMessage(command).withResponse(response), channel.getRemoteAddress());
+            }
+        });
+    }
+
+    private CompletionStage<Void> deleteReply(final ChannelHandlerContext channelHandlerContext, final CommandMessage<CACHE_ELEMENT> command, final Channel channel, CompletionStage<Cache.DeleteResponse> dr) {
+        return dr.thenAccept(new Consumer<Cache.DeleteResponse>() {
+            public void accept(Cache.DeleteResponse response) {
+                Channels.fireMessageReceived(channelHandlerContext, new ResponseMessage(command).withDeleteResponse(response), channel.getRemoteAddress());
+            }
+        });
+    }
+
+    /**
+     * Add to a counter. A missing one is created from the initial value the command carries as its element, if it
+     * has one, as the binary incr and decr and ma with {@code N} do.
+     */
+    private CompletionStage<Void> arithmetic(ChannelHandlerContext channelHandlerContext, final CommandMessage<CACHE_ELEMENT> command, Channel channel, final boolean incr) {
+        final String key = command.keys.get(0);
+        CompletionStage<Long> value = asyncCache.getAddAsync(key, command.incrAmount, incr).thenCompose(new Function<Long, CompletionStage<Long>>() {
+            public CompletionStage<Long> apply(Long value) {
+                if (value != null || command.element == null) return CompletableFuture.completedFuture(value);
+
+                // another client may create the counter first, in which case ours applies on top of theirs
+                return asyncCache.addAsync(command.element).thenCompose(new Function<Cache.StoreResponse, CompletionStage<Long>>() {
+                    public CompletionStage<Long> apply(Cache.StoreResponse added) {
+                        return added == Cache.StoreResponse.STORED
+                                ? CompletableFuture.completedFuture(BufferUtils.atoul(command.element.getData()))
+                                : asyncCache.getAddAsync(key, command.incrAmount, incr);
+                    }
+                });
+            }
+        });
+
+        return incrDecrReply(channelHandlerContext, command, channel, value);
+    }
+
+    private CompletionStage<Void> incrDecrReply(final ChannelHandlerContext channelHandlerContext, final CommandMessage<CACHE_ELEMENT> command, final Channel channel, CompletionStage<Long> incrDecrResp) {
+        return incrDecrResp.thenAccept(new Consumer<Long>() {
+            public void accept(Long response) {
+                Channels.fireMessageReceived(channelHandlerContext, new ResponseMessage(command).withIncrDecrResponse(response), channel.getRemoteAddress());
+            }
+        });
+    }
+
+    /**
+     * Queue a step behind everything this connection has in flight. A step that fails is reported to the pipeline
+     * like an exception thrown by the handler would be, and the connection carries on with the next one.
+     * <p/>
+     * Once {@link #MAX_IN_FLIGHT} steps are queued the channel stops reading; the steps already decoded from the
+     * current read are still queued, but no more arrive until the chain has drained to half that.
+     */
+    private void then(final ChannelHandlerContext channelHandlerContext, final Connection<CACHE_ELEMENT> connection, Function<Void, CompletionStage<Void>> step) {
+        final Channel channel = channelHandlerContext.getChannel();
+        BiFunction<Void, Throwable, Void> finished = new BiFunction<Void, Throwable, Void>() {
+            public Void apply(Void result, Throwable failure) {
+                connection.lock.lock();
+                try {
+                    if (--connection.inFlight <= MAX_IN_FLIGHT / 2 && connection.paused) {
+                        connection.paused = false;
+                        channel.setReadable(true);
+                    }
+                } finally {
+                    connection.lock.unlock();
+                }
+
+                if (failure != null) {
+                    Channels.fireExceptionCaught(channelHandlerContext, failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure);
+                }
+                return null;
+            }
+        };
+
+        // the step is chained straight onto the tail, so that a long chain completes iteratively rather than by
+        // recursion; if the tail is done already the step runs right here, while we hold the lock
+        connection.lock.lock();
+        try {
+            // someone else may have turned reading back on behind our back, an ExecutionHandler's executor does
+            if (++connection.inFlight >= MAX_IN_FLIGHT && (!connection.paused || channel.isReadable())) {
+                connection.paused = true;
+                channel.setReadable(false);
+            }
+            connection.tail = connection.tail.thenCompose(step).handle(finished);
+        } finally {
+            connection.lock.unlock();
+        }
+    }
+
+    /**
+     * The handler context belongs to a single pipeline, so its attachment is per connection even though this
+     * handler is shared.
+     */
+    @SuppressWarnings("unchecked")
+    private Connection<CACHE_ELEMENT> connection(ChannelHandlerContext channelHandlerContext) {
+        Connection<CACHE_ELEMENT> connection = (Connection<CACHE_ELEMENT>) channelHandlerContext.getAttachment();
+        if (connection == null) {
+            connection = new Connection<CACHE_ELEMENT>();
+            channelHandlerContext.setAttachment(connection);
+        }
+        return connection;
     }
 
     /**
@@ -288,8 +643,16 @@ public final class MemcachedCommandHandler<CACHE_ELEMENT extends CacheElement> e
      * @param keys the key for the element to lookup
      * @return the element, or 'null' in case of cache miss.
      */
-    private CACHE_ELEMENT[] get(String... keys) {
-        return cache.get(keys);
+    private CompletionStage<CACHE_ELEMENT[]> get(String... keys) {
+        return asyncCache.getAsync(keys).thenApply(new Function<CACHE_ELEMENT[], CACHE_ELEMENT[]>() {
+            public CACHE_ELEMENT[] apply(CACHE_ELEMENT[] results) {
+                int now = Now();
+                for (CACHE_ELEMENT result : results) {
+                    if (result != null) result.markAccessed(now);
+                }
+                return results;
+            }
+        });
     }
 
     /**
@@ -299,4 +662,25 @@ public final class MemcachedCommandHandler<CACHE_ELEMENT extends CacheElement> e
         return (int) (System.currentTimeMillis() / 1000);
     }
 
+    /**
+     * Per connection state: the quiet gets held back until the next non-quiet command or the end of the current
+     * read, the chain the connection's commands are queued on, and what it takes to pause reading.
+     * <p/>
+     * The quiet gets are only touched from {@link #messageReceived}, which Netty never runs concurrently for one
+     * channel. The chain, the count of unfinished steps and the paused flag are guarded by the lock: besides
+     * messageReceived, {@link #exceptionCaught} queues steps, and steps finish on whichever thread completed them.
+     */
+    protected static final class Connection<CACHE_ELEMENT extends CacheElement> {
+        final List<CommandMessage<CACHE_ELEMENT>> queuedGets = new ArrayList<CommandMessage<CACHE_ELEMENT>>();
+
+        // a lock rather than a monitor: a step that blocks on the storage runs while it is held, and a virtual thread
+        // blocking inside a monitor keeps its carrier thread from running any other
+        final ReentrantLock lock = new ReentrantLock();
+
+        // guarded by lock
+        CompletionStage<Void> tail = DONE;
+        int inFlight;
+        boolean paused;
+    }
+
 }
\ No newline at end of file
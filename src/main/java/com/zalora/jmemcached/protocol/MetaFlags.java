@@ -0,0 +1,94 @@
+package com.zalora.jmemcached.protocol;
+
+import com.zalora.jmemcached.protocol.exceptions.MalformedCommandException;
+import org.jboss.netty.buffer.ChannelBuffer;
+
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.util.List;
+
+/**
+ * The flags of a meta protocol command. Each flag is a single letter, optionally followed by a token
+ * ({@code v}, {@code T30}, {@code Oabc}). Flags are kept in a table indexed by letter, plus the order they were given
+ * in, which is the order return flags are written back in.
+ */
+public final class MetaFlags implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int MAX_OPAQUE_LENGTH = 32;
+
+    // flags whose token is a number in every meta command; they are checked while parsing
+    private static final String NUMERIC_FLAGS = "CDEFJNRT";
+
+    private final String[] tokens = new String['z' - 'A' + 1];
+    private final char[] order;
+
+    private MetaFlags(int count) {
+        this.order = new char[count];
+    }
+
+    /**
+     * @param parts the space separated flag words of a command line
+     * @return the parsed flags
+     * @throws MalformedCommandException if a word does not start with a letter, a flag is given twice or a numeric
+     *                                   flag has no number
+     */
+    public static MetaFlags parse(List<ChannelBuffer> parts) throws MalformedCommandException {
+        MetaFlags flags = new MetaFlags(parts.size());
+        for (int i = 0; i < parts.size(); i++) {
+            ChannelBuffer part = parts.get(i);
+            char flag = part.readable() ? (char) part.getByte(part.readerIndex()) : 0;
+            if (!Character.isLetter(flag) || flag > 'z' || flags.has(flag)) {
+                throw new MalformedCommandException("invalid meta flag");
+            }
+
+            String token = part.toString(part.readerIndex() + 1, part.readableBytes() - 1, UTF8);
+            if (flag == 'O' && token.length() > MAX_OPAQUE_LENGTH) {
+                throw new MalformedCommandException("opaque token too long");
+            }
+            if (NUMERIC_FLAGS.indexOf(flag) >= 0) {
+                try {
+                    // ma's delta is an unsigned 64 bit number, like the counter it applies to
+                    if (flag == 'D') Long.parseUnsignedLong(token);
+                    else Long.parseLong(token);
+                } catch (NumberFormatException e) {
+                    throw new MalformedCommandException("bad token in meta flag " + flag, e);
+                }
+            }
+
+            flags.tokens[flag - 'A'] = token;
+            flags.order[i] = flag;
+        }
+        return flags;
+    }
+
+    public boolean has(char flag) {
+        return flag >= 'A' && flag <= 'z' && tokens[flag - 'A'] != null;
+    }
+
+    /**
+     * @return the token following the flag, empty for a bare flag, or null if the flag is absent
+     */
+    public String token(char flag) {
+        return has(flag) ? tokens[flag - 'A'] : null;
+    }
+
+    /**
+     * @return the number following one of the numeric flags, or the default if the flag is absent
+     */
+    public long longToken(char flag, long defaultValue) {
+        String token = token(flag);
+        return token == null ? defaultValue : Long.parseLong(token);
+    }
+
+    /**
+     * @return the flags in the order the client gave them
+     */
+    public char[] order() {
+        return order;
+    }
+
+}
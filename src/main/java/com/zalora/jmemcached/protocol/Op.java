@@ -12,7 +12,10 @@ public enum Op {
 
     GET, GETS, APPEND, PREPEND, DELETE, DECR,
     INCR, REPLACE, ADD, SET, CAS, STATS, VERSION,
-    QUIT, FLUSH_ALL, VERBOSITY;
+    QUIT, FLUSH_ALL, VERBOSITY,
+
+    // meta protocol: get, set, delete, arithmetic, no-op and debug
+    MG, MS, MD, MA, MN, ME;
 
     private static Map<ChannelBuffer, Op> opsbf = new HashMap<ChannelBuffer, Op>();
 
@@ -0,0 +1,32 @@
+package com.zalora.jmemcached.protocol;
+
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.group.DefaultChannelGroup;
+
+/**
+ * Pipelines for a port that serves text and binary clients alike. Each connection starts with a
+ * {@link ProtocolDetector} only, which swaps in the text or binary handlers once the first byte arrives. Both kinds
+ * of connection end up on the same cache.
+ */
+public final class ProtocolDetectingPipelineFactory implements ChannelPipelineFactory {
+
+    private final ChannelPipelineFactory textPipelineFactory;
+    private final ChannelPipelineFactory binaryPipelineFactory;
+    private final DefaultChannelGroup channelGroup;
+
+    public ProtocolDetectingPipelineFactory(ChannelPipelineFactory textPipelineFactory, ChannelPipelineFactory binaryPipelineFactory, DefaultChannelGroup channelGroup) {
+        this.textPipelineFactory = textPipelineFactory;
+        this.binaryPipelineFactory = binaryPipelineFactory;
+        this.channelGroup = channelGroup;
+    }
+
+    public ChannelPipeline getPipeline() throws Exception {
+        // named explicitly, as the handlers installed later are numbered from 0
+        ChannelPipeline pipeline = Channels.pipeline();
+        pipeline.addLast("protocolDetector", new ProtocolDetector(textPipelineFactory, binaryPipelineFactory, channelGroup));
+        return pipeline;
+    }
+
+}
@@ -0,0 +1,67 @@
+package com.zalora.jmemcached.protocol;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandler;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.ChannelState;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.UpstreamChannelStateEvent;
+import org.jboss.netty.channel.group.DefaultChannelGroup;
+import org.jboss.netty.handler.codec.frame.FrameDecoder;
+
+import java.util.Map;
+
+/**
+ * First stage of a connection that may speak either protocol. Every binary request starts with the magic byte 0x80,
+ * which no text command can start with, so the first byte decides. The handlers of the matching pipeline are then
+ * installed behind this one, which removes itself and hands them everything read so far.
+ * <p/>
+ * Holds per-connection state, so create one per pipeline.
+ */
+public final class ProtocolDetector extends FrameDecoder {
+
+    public static final byte BINARY_REQUEST_MAGIC = (byte) 0x80;
+
+    private final ChannelPipelineFactory textPipelineFactory;
+    private final ChannelPipelineFactory binaryPipelineFactory;
+    private final DefaultChannelGroup channelGroup;
+
+    public ProtocolDetector(ChannelPipelineFactory textPipelineFactory, ChannelPipelineFactory binaryPipelineFactory, DefaultChannelGroup channelGroup) {
+        this.textPipelineFactory = textPipelineFactory;
+        this.binaryPipelineFactory = binaryPipelineFactory;
+        this.channelGroup = channelGroup;
+    }
+
+    /**
+     * Join the channel group right away, so that connections which never send a byte are still closed on shutdown.
+     */
+    @Override
+    public void channelOpen(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+        channelGroup.add(ctx.getChannel());
+        super.channelOpen(ctx, e);
+    }
+
+    @Override
+    protected Object decode(ChannelHandlerContext ctx, Channel channel, ChannelBuffer buffer) throws Exception {
+        if (!buffer.readable()) return null;
+
+        ChannelPipelineFactory factory = buffer.getByte(buffer.readerIndex()) == BINARY_REQUEST_MAGIC
+                ? binaryPipelineFactory
+                : textPipelineFactory;
+
+        ChannelPipeline pipeline = ctx.getPipeline();
+        for (Map.Entry<String, ChannelHandler> handler : factory.getPipeline().toMap().entrySet()) {
+            pipeline.addLast(handler.getKey(), handler.getValue());
+        }
+
+        // the new handlers missed the open event, which is where the command handler counts the connection
+        ctx.sendUpstream(new UpstreamChannelStateEvent(channel, ChannelState.OPEN, Boolean.TRUE));
+
+        pipeline.remove(this);
+        return buffer.readBytes(buffer.readableBytes());
+    }
+
+}
@@ -22,9 +22,16 @@ public final class ResponseMessage<CACHE_ELEMENT extends CacheElement> implement
     public Map<String, Set<String>> stats;
     public String version;
     public Cache.DeleteResponse deleteResponse;
-    public Integer incrDecrResponse;
+    public Long incrDecrResponse;
     public boolean flushSuccess;
 
+    // when a meta get hit was last read before this request, in seconds; 0 if it never was
+    public int previousAccess;
+
+    // meta get leases: this client should recache the item (W), or another client already is (Z)
+    public boolean leaseWon;
+    public boolean leasePending;
+
     public ResponseMessage<CACHE_ELEMENT> withElements(CACHE_ELEMENT[] elements) {
         this.elements = elements;
         return this;
@@ -40,7 +47,7 @@ public final class ResponseMessage<CACHE_ELEMENT extends CacheElement> implement
         return this;
     }
 
-    public ResponseMessage<CACHE_ELEMENT> withIncrDecrResponse(Integer incrDecrResp) {
+    public ResponseMessage<CACHE_ELEMENT> withIncrDecrResponse(Long incrDecrResp) {
         this.incrDecrResponse = incrDecrResp;
 
         return this;
@@ -1,66 +1,80 @@
 package com.zalora.jmemcached.protocol.binary;
 
-import com.zalora.jmemcached.CacheElement;
 import com.zalora.jmemcached.LocalCacheElement;
 import com.zalora.jmemcached.protocol.CommandMessage;
+import com.zalora.jmemcached.protocol.EndOfBatch;
 import com.zalora.jmemcached.protocol.Op;
 import com.zalora.jmemcached.protocol.exceptions.MalformedCommandException;
+import com.zalora.jmemcached.protocol.exceptions.UnknownCommandException;
+import com.zalora.jmemcached.util.BufferUtils;
 import org.jboss.netty.buffer.ChannelBuffer;
-import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
-import org.jboss.netty.channel.ChannelHandler;
 import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
 import org.jboss.netty.handler.codec.frame.FrameDecoder;
 
-import java.nio.ByteOrder;
 import java.nio.charset.Charset;
-import java.util.ArrayList;
+import java.util.Collections;
 
 /**
+ * Decodes binary protocol request packets into CommandMessage instances.
+ * <p/>
+ * The 24 byte header is parsed in place from the cumulation buffer, opcodes are resolved through a static table and
+ * only the key string and the value payload are materialized. The decoder keeps per-connection framing state, so
+ * every pipeline needs its own instance.
+ *
  * @author Ryan Daum
  */
-@ChannelHandler.Sharable
 public class MemcachedBinaryCommandDecoder extends FrameDecoder {
 
     public static final Charset USASCII = Charset.forName("US-ASCII");
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    static final int HEADER_LENGTH = 24;
+
+    /**
+     * Decode everything this read delivered, then tell the rest of the pipeline that the batch is complete.
+     */
+    @Override
+    public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+        super.messageReceived(ctx, e);
+        Channels.fireMessageReceived(ctx, EndOfBatch.INSTANCE, e.getRemoteAddress());
+    }
 
     protected Object decode(ChannelHandlerContext channelHandlerContext, Channel channel, ChannelBuffer channelBuffer)
             throws Exception {
 
         // need at least 24 bytes, to get header
-        if (channelBuffer.readableBytes() < 24) return null;
+        if (channelBuffer.readableBytes() < HEADER_LENGTH) return null;
 
-        // get the header
-        channelBuffer.markReaderIndex();
-        ChannelBuffer headerBuffer = ChannelBuffers.buffer(ByteOrder.BIG_ENDIAN, 24);
-        channelBuffer.readBytes(headerBuffer);
-
-        short magic = headerBuffer.readUnsignedByte();
+        int header = channelBuffer.readerIndex();
+        short magic = channelBuffer.getUnsignedByte(header);
 
         // magic should be 0x80
         if (magic != 0x80) {
-            headerBuffer.resetReaderIndex();
-
             throw new MalformedCommandException("binary request payload is invalid, magic byte incorrect");
         }
 
-        short opcode = headerBuffer.readUnsignedByte();
-        short keyLength = headerBuffer.readShort();
-        short extraLength = headerBuffer.readUnsignedByte();
-        short dataType = headerBuffer.readUnsignedByte();   // unused
-        short reserved = headerBuffer.readShort(); // unused
-        int totalBodyLength = headerBuffer.readInt();
-        int opaque = headerBuffer.readInt();
-        long cas = headerBuffer.readLong();
+        int totalBodyLength = channelBuffer.getInt(header + 8);
 
         // we want the whole of totalBodyLength; otherwise, keep waiting.
-        if (channelBuffer.readableBytes() < totalBodyLength) {
-            channelBuffer.resetReaderIndex();
-            return null;
-        }
+        if (channelBuffer.readableBytes() < HEADER_LENGTH + totalBodyLength) return null;
 
-        // This assumes correct order in the enum. If that ever changes, we will have to scan for 'code' field.
-        BinaryOp bcmd = BinaryOp.values()[opcode];
+        short opcode = channelBuffer.getUnsignedByte(header + 1);
+        int keyLength = channelBuffer.getUnsignedShort(header + 2);
+        short extraLength = channelBuffer.getUnsignedByte(header + 4);
+        int opaque = channelBuffer.getInt(header + 12);
+        long cas = channelBuffer.getLong(header + 16);
+
+        int extras = header + HEADER_LENGTH;
+        int key = extras + extraLength;
+        channelBuffer.skipBytes(HEADER_LENGTH + totalBodyLength);
+
+        BinaryOp bcmd = BinaryOp.forCode(opcode);
+        if (bcmd == null) {
+            throw new UnknownCommandException("unknown binary opcode: " + opcode);
+        }
 
         Op cmdType = bcmd.correspondingOp;
         CommandMessage cmdMessage = CommandMessage.command(cmdType);
@@ -69,49 +83,40 @@ public class MemcachedBinaryCommandDecoder extends FrameDecoder {
         cmdMessage.opaque = opaque;
         cmdMessage.addKeyToResponse = bcmd.addKeyToResponse;
 
-        // get extras. could be empty.
-        ChannelBuffer extrasBuffer = ChannelBuffers.buffer(ByteOrder.BIG_ENDIAN, extraLength);
-        channelBuffer.readBytes(extrasBuffer);
-
         // get the key if any
         if (keyLength != 0) {
-            ChannelBuffer keyBuffer = ChannelBuffers.buffer(ByteOrder.BIG_ENDIAN, keyLength);
-            channelBuffer.readBytes(keyBuffer);
-
-            ArrayList<String> keys = new ArrayList<String>();
-            keys.add(keyBuffer.toString(Charset.forName("UTF-8")));
-
-            cmdMessage.keys = keys;
-
+            String keyString = channelBuffer.toString(key, keyLength, UTF8);
+            cmdMessage.keys = Collections.singletonList(keyString);
 
             if (cmdType == Op.ADD ||
                     cmdType == Op.SET ||
                     cmdType == Op.REPLACE ||
                     cmdType == Op.APPEND ||
                     cmdType == Op.PREPEND) {
-                // TODO these are backwards from the spec, but seem to be what spymemcached demands -- which has the mistake?!
-                long expire = ((short) (extrasBuffer.capacity() != 0 ? extrasBuffer.readUnsignedShort() : 0)) * 1000;
-                short flags = (short) (extrasBuffer.capacity() != 0 ? extrasBuffer.readUnsignedShort() : 0);
+                // extras are flags followed by the expiry in seconds; append and prepend carry none
+                long flags = extraLength >= 4 ? channelBuffer.getUnsignedInt(extras) : 0;
+                long expire = extraLength >= 8 ? channelBuffer.getUnsignedInt(extras + 4) * 1000 : 0;
 
                 // the remainder of the message -- that is, totalLength - (keyLength + extraLength) should be the payload
                 int size = totalBodyLength - keyLength - extraLength;
 
-                cmdMessage.element = new LocalCacheElement(
-                        keyBuffer.slice().toString(Charset.forName("UTF-8")),
-                        flags,
-                        expire != 0 && expire < CacheElement.THIRTY_DAYS ? LocalCacheElement.Now() + expire : expire,
-                        0L
-                );
-
-                ChannelBuffer data = ChannelBuffers.buffer(size);
-                channelBuffer.readBytes(data);
-                cmdMessage.element.setData(data);
-            } else if (cmdType == Op.INCR || cmdType == Op.DECR) {
-                long amount = extrasBuffer.readUnsignedInt();
-                long expiration = extrasBuffer.readUnsignedInt();
-
-                cmdMessage.incrAmount = (int) amount;
-                cmdMessage.incrExpiry = (int) expiration;
+                // We're taking over the expiration values from the client, the same way the text protocol does
+                cmdMessage.element = new LocalCacheElement(keyString, flags, expire, 0L);
+
+                // the value outlives the cumulation buffer, so it has to be copied out
+                cmdMessage.element.setData(BufferUtils.copyValue(channelBuffer, key + keyLength, size));
+            } else if ((cmdType == Op.INCR || cmdType == Op.DECR) && extraLength >= 20) {
+                // extras are the 64 bit delta, the 64 bit initial value and the expiry
+                cmdMessage.incrAmount = channelBuffer.getLong(extras);
+                cmdMessage.incrExpiry = channelBuffer.getInt(extras + 16);
+
+                // a missing counter is created from the initial value, unless the expiry is all ones; the element
+                // is built here, like the one of a set
+                if (cmdMessage.incrExpiry != -1) {
+                    LocalCacheElement initial = new LocalCacheElement(keyString, 0, (cmdMessage.incrExpiry & 0xFFFFFFFFL) * 1000, 0L);
+                    initial.setData(BufferUtils.ultoa(channelBuffer.getLong(extras + 8)));
+                    cmdMessage.element = initial;
+                }
             }
         }
 
@@ -128,7 +133,7 @@ public class MemcachedBinaryCommandDecoder extends FrameDecoder {
         Decrement(0x06, Op.DECR, false),
         Quit(0x07, Op.QUIT, false),
         Flush(0x08, Op.FLUSH_ALL, false),
-        GetQ(0x09, Op.GET, false),
+        GetQ(0x09, Op.GET, true),
         Noop(0x0A, null, false),
         Version(0x0B, Op.VERSION, false),
         GetK(0x0C, Op.GET, false, true),
@@ -165,15 +170,32 @@ public class MemcachedBinaryCommandDecoder extends FrameDecoder {
             this.addKeyToResponse = addKeyToResponse;
         }
 
-        public static BinaryOp forCommandMessage(CommandMessage msg) {
+        private static final BinaryOp[] BY_CODE = new BinaryOp[256];
+        private static final BinaryOp[] BY_COMMAND = new BinaryOp[(Op.values().length + 1) << 2];
+
+        static {
             for (BinaryOp binaryOp : values()) {
-                if (binaryOp.correspondingOp == msg.op && binaryOp.noreply == msg.noreply &&
-                        binaryOp.addKeyToResponse == msg.addKeyToResponse) {
-                    return binaryOp;
-                }
+                BY_CODE[binaryOp.code & 0xFF] = binaryOp;
+
+                // should two opcodes ever share a command shape, the first one declared answers for both
+                int slot = commandSlot(binaryOp.correspondingOp, binaryOp.noreply, binaryOp.addKeyToResponse);
+                if (BY_COMMAND[slot] == null) BY_COMMAND[slot] = binaryOp;
             }
+        }
+
+        private static int commandSlot(Op op, boolean noreply, boolean addKeyToResponse) {
+            return ((op == null ? 0 : op.ordinal() + 1) << 2) | (noreply ? 2 : 0) | (addKeyToResponse ? 1 : 0);
+        }
 
-            return null;
+        /**
+         * @return the operation for a request opcode, or null if the opcode is not supported
+         */
+        public static BinaryOp forCode(int code) {
+            return code >= 0 && code < BY_CODE.length ? BY_CODE[code] : null;
+        }
+
+        public static BinaryOp forCommandMessage(CommandMessage msg) {
+            return BY_COMMAND[commandSlot(msg.op, msg.noreply, msg.addKeyToResponse)];
         }
 
     }
@@ -1,6 +1,8 @@
 package com.zalora.jmemcached.protocol.binary;
 
 import com.zalora.jmemcached.CacheElement;
+import com.zalora.jmemcached.StorageException;
+import com.zalora.jmemcached.protocol.EndOfBatch;
 import com.zalora.jmemcached.protocol.Op;
 import com.zalora.jmemcached.protocol.ResponseMessage;
 import com.zalora.jmemcached.protocol.exceptions.UnknownCommandException;
@@ -11,18 +13,26 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
 
 /**
+ * Encodes ResponseMessages into binary protocol packets.
+ * <p/>
+ * Responses are collected per connection and written as one composite buffer, either when a non-quiet command is
+ * answered or when the decoder signals the end of a read batch. Quiet commands only produce output where the
+ * protocol asks for it: a hit for quiet gets, a failure for quiet mutations.
+ *
  * TODO refactor so this can be unit tested separate from netty? scalacheck?
  * @author Ryan Daum
  */
 @ChannelHandler.Sharable
 public class MemcachedBinaryResponseEncoder<CACHE_ELEMENT extends CacheElement> extends SimpleChannelUpstreamHandler {
 
-    private ConcurrentHashMap<Integer, ChannelBuffer> corkedBuffers = new ConcurrentHashMap<Integer, ChannelBuffer>();
+    private static final Charset UTF8 = Charset.forName("UTF-8");
 
     final Logger logger = LoggerFactory.getLogger(MemcachedBinaryResponseEncoder.class);
 
@@ -34,7 +44,8 @@ public class MemcachedBinaryResponseEncoder<CACHE_ELEMENT extends CacheElement>
         INVARG(0x0004),
         NOT_STORED(0x0005),
         UNKNOWN(0x0081),
-        OOM(0x00082);
+        OOM(0x00082),
+        INTERNAL_ERROR(0x0084);
 
         public short code;
 
@@ -46,7 +57,7 @@ public class MemcachedBinaryResponseEncoder<CACHE_ELEMENT extends CacheElement>
     public ResponseCode getStatusCode(ResponseMessage command) {
         Op cmd = command.cmd.op;
         if (cmd == Op.GET || cmd == Op.GETS) {
-            return ResponseCode.OK;
+            return command.elements != null && command.elements[0] != null ? ResponseCode.OK : ResponseCode.KEYNF;
         } else if (cmd == Op.SET || cmd == Op.CAS || cmd == Op.ADD || cmd == Op.REPLACE || cmd == Op.APPEND  || cmd == Op.PREPEND) {
             switch (command.response) {
                 case EXISTS:
@@ -73,32 +84,36 @@ public class MemcachedBinaryResponseEncoder<CACHE_ELEMENT extends CacheElement>
             return ResponseCode.OK;
         } else if (cmd == Op.FLUSH_ALL) {
             return ResponseCode.OK;
+        } else if (cmd == null) {
+            return ResponseCode.OK;
         }
         return ResponseCode.UNKNOWN;
     }
 
+    /**
+     * Encode a complete response packet. Header, extras and key go into one small buffer; the value is appended as a
+     * second component so cached data is never copied.
+     */
+    public ChannelBuffer encode(MemcachedBinaryCommandDecoder.BinaryOp bcmd, byte[] extras, byte[] key, ChannelBuffer valueBuffer, short responseCode, int opaqueValue, long casUnique) {
+        int extrasLength = extras != null ? extras.length : 0;
+        int keyLength = key != null ? key.length : 0;
+        int dataLength = valueBuffer != null ? valueBuffer.readableBytes() : 0;
 
-
-    public ChannelBuffer constructHeader(MemcachedBinaryCommandDecoder.BinaryOp bcmd, ChannelBuffer extrasBuffer, ChannelBuffer keyBuffer, ChannelBuffer valueBuffer, short responseCode, int opaqueValue, long casUnique) {
-        // take the ResponseMessage and turn it into a binary payload.
-        ChannelBuffer header = ChannelBuffers.buffer(ByteOrder.BIG_ENDIAN, 24);
+        ChannelBuffer header = ChannelBuffers.buffer(ByteOrder.BIG_ENDIAN, MemcachedBinaryCommandDecoder.HEADER_LENGTH + extrasLength + keyLength);
         header.writeByte((byte)0x81);  // magic
         header.writeByte(bcmd.code); // opcode
-        short keyLength = (short) (keyBuffer != null ? keyBuffer.capacity() :0);
-
         header.writeShort(keyLength);
-        int extrasLength = extrasBuffer != null ? extrasBuffer.capacity() : 0;
-        header.writeByte((byte) extrasLength); // extra length = flags + expiry
+        header.writeByte((byte) extrasLength); // extra length = flags
         header.writeByte((byte)0); // data type unused
         header.writeShort(responseCode); // status code
-
-        int dataLength = valueBuffer != null ? valueBuffer.capacity() : 0;
         header.writeInt(dataLength + keyLength + extrasLength); // data length
         header.writeInt(opaqueValue); // opaque
-
         header.writeLong(casUnique);
 
-        return header;
+        if (extras != null) header.writeBytes(extras);
+        if (key != null) header.writeBytes(key);
+
+        return dataLength == 0 ? header : ChannelBuffers.wrappedBuffer(header, valueBuffer);
     }
 
     /**
@@ -113,8 +128,13 @@ public class MemcachedBinaryResponseEncoder<CACHE_ELEMENT extends CacheElement>
         try {
             throw e.getCause();
         } catch (UnknownCommandException unknownCommand) {
-            if (ctx.getChannel().isOpen())
-                ctx.getChannel().write(constructHeader(MemcachedBinaryCommandDecoder.BinaryOp.Noop, null, null, null, (short)0x0081, 0, 0));
+            accumulate(ctx, encode(MemcachedBinaryCommandDecoder.BinaryOp.Noop, null, null, null, ResponseCode.UNKNOWN.code, 0, 0));
+            flush(ctx);
+        } catch (StorageException storageFailure) {
+            // the storage could not serve the command, the connection to the client is fine
+            ChannelBuffer message = ChannelBuffers.copiedBuffer(String.valueOf(storageFailure.getMessage()), UTF8);
+            accumulate(ctx, encode(MemcachedBinaryCommandDecoder.BinaryOp.Noop, null, null, message, ResponseCode.INTERNAL_ERROR.code, 0, 0));
+            flush(ctx);
         } catch (Throwable err) {
             logger.error("error", err);
             if (ctx.getChannel().isOpen())
@@ -125,135 +145,105 @@ public class MemcachedBinaryResponseEncoder<CACHE_ELEMENT extends CacheElement>
     @Override
     @SuppressWarnings("unchecked")
     public void messageReceived(ChannelHandlerContext channelHandlerContext, MessageEvent messageEvent) throws Exception {
+        if (messageEvent.getMessage() instanceof EndOfBatch) {
+            flush(channelHandlerContext);
+            return;
+        }
+
         ResponseMessage<CACHE_ELEMENT> command = (ResponseMessage<CACHE_ELEMENT>) messageEvent.getMessage();
-        Object additional = messageEvent.getMessage();
 
         MemcachedBinaryCommandDecoder.BinaryOp bcmd = MemcachedBinaryCommandDecoder.BinaryOp.forCommandMessage(command.cmd);
+        short status = getStatusCode(command).code;
+        int opaque = command.cmd.opaque;
+
+        // stats is special -- with it, we write N packets, one for each stat, then an empty payload
+        if (command.cmd.op == Op.STATS) {
+            for (Map.Entry<String, Set<String>> statsEntries : command.stats.entrySet()) {
+                byte[] key = statsEntries.getKey().getBytes(MemcachedBinaryCommandDecoder.USASCII);
+                for (String stat : statsEntries.getValue()) {
+                    ChannelBuffer value = ChannelBuffers.wrappedBuffer(stat.getBytes(MemcachedBinaryCommandDecoder.USASCII));
+                    accumulate(channelHandlerContext, encode(bcmd, null, key, value, status, opaque, 0));
+                }
+            }
+            accumulate(channelHandlerContext, encode(bcmd, null, null, null, status, opaque, 0));
 
-        // write extras == flags & expiry
-        ChannelBuffer extrasBuffer = null;
+            flush(channelHandlerContext);
+            return;
+        }
 
-        // write key if there is one
-        ChannelBuffer keyBuffer = null;
-        if (bcmd.addKeyToResponse && command.cmd.keys != null && command.cmd.keys.size() != 0) {
-            keyBuffer = ChannelBuffers.wrappedBuffer(command.cmd.keys.get(0).getBytes("UTF-8"));
+        // quiet commands stay silent about the expected outcome: a miss for gets, success for everything else
+        if (bcmd.noreply && isQuietOutcome(command.cmd.op, status)) {
+            return;
         }
 
-        // write value if there is one
+        // write extras (flags) and value if there are any
+        byte[] extras = null;
+        byte[] key = null;
         ChannelBuffer valueBuffer = null;
-        if (command.elements != null) {
-            extrasBuffer = ChannelBuffers.buffer(ByteOrder.BIG_ENDIAN, 4);
-            CacheElement element = command.elements[0];
-            extrasBuffer.writeShort((short) (element != null ? element.getExpire() : 0));
-            extrasBuffer.writeShort((short) (element != null ? element.getFlags() : 0));
-
-            if ((command.cmd.op == Op.GET || command.cmd.op == Op.GETS)) {
-                if (element != null) {
-                    valueBuffer = ChannelBuffers.wrappedBuffer(element.getData());
-                } else {
-                    valueBuffer = ChannelBuffers.buffer(0);
-                }
-            } else if (command.cmd.op == Op.INCR || command.cmd.op == Op.DECR) {
-                valueBuffer = ChannelBuffers.buffer(ByteOrder.BIG_ENDIAN, 8);
-                valueBuffer.writeLong(command.incrDecrResponse);
+        long casUnique = 0;
+        if (command.cmd.op == Op.GET || command.cmd.op == Op.GETS) {
+            CacheElement element = command.elements != null ? command.elements[0] : null;
+            if (element != null) {
+                extras = element.getFlagsExtras();
+                if (bcmd.addKeyToResponse) key = element.getKeyBytes();
+                valueBuffer = element.getData();
+                casUnique = element.getCasUnique();
             }
-        } else if (command.cmd.op == Op.INCR || command.cmd.op == Op.DECR) {
+        } else if ((command.cmd.op == Op.INCR || command.cmd.op == Op.DECR) && command.incrDecrResponse != null) {
             valueBuffer = ChannelBuffers.buffer(ByteOrder.BIG_ENDIAN, 8);
             valueBuffer.writeLong(command.incrDecrResponse);
         }
 
-        long casUnique = 0;
-        if (command.elements != null && command.elements.length != 0 && command.elements[0] != null) {
-            casUnique = command.elements[0].getCasUnique();
+        // write key if there is one
+        if (key == null && bcmd.addKeyToResponse && command.cmd.keys != null && command.cmd.keys.size() != 0) {
+            key = command.cmd.keys.get(0).getBytes(UTF8);
         }
 
-        // stats is special -- with it, we write N times, one for each stat, then an empty payload
-        if (command.cmd.op == Op.STATS) {
-            // first uncork any corked buffers
-            if (corkedBuffers.containsKey(command.cmd.opaque)) uncork(command.cmd.opaque, messageEvent.getChannel());
+        accumulate(channelHandlerContext, encode(bcmd, extras, key, valueBuffer, status, opaque, casUnique));
 
-            for (Map.Entry<String, Set<String>> statsEntries : command.stats.entrySet()) {
-                for (String stat : statsEntries.getValue()) {
-
-                    keyBuffer = ChannelBuffers.wrappedBuffer(ByteOrder.BIG_ENDIAN, statsEntries.getKey().getBytes(MemcachedBinaryCommandDecoder.USASCII));
-                    valueBuffer = ChannelBuffers.wrappedBuffer(ByteOrder.BIG_ENDIAN, stat.getBytes(MemcachedBinaryCommandDecoder.USASCII));
-
-                    ChannelBuffer headerBuffer = constructHeader(bcmd, extrasBuffer, keyBuffer, valueBuffer, getStatusCode(command).code, command.cmd.opaque, casUnique);
-
-                    writePayload(messageEvent, extrasBuffer, keyBuffer, valueBuffer, headerBuffer);
-                }
-            }
-
-            keyBuffer = null;
-            valueBuffer = null;
-
-            ChannelBuffer headerBuffer = constructHeader(bcmd, extrasBuffer, keyBuffer, valueBuffer, getStatusCode(command).code, command.cmd.opaque, casUnique);
-
-            writePayload(messageEvent, extrasBuffer, keyBuffer, valueBuffer, headerBuffer);
-
-        } else {
-            ChannelBuffer headerBuffer = constructHeader(bcmd, extrasBuffer, keyBuffer, valueBuffer, getStatusCode(command).code, command.cmd.opaque, casUnique);
-
-            // write everything
-            // is the command 'quiet?' if so, then we append to our 'corked' buffer until a non-corked command comes along
-            if (bcmd.noreply) {
-                int totalCapacity = headerBuffer.capacity() + (extrasBuffer != null ? extrasBuffer.capacity() : 0)
-                        + (keyBuffer != null ? keyBuffer.capacity() : 0) + (valueBuffer != null ? valueBuffer.capacity() : 0);
-
-                ChannelBuffer corkedResponse  = cork(command.cmd.opaque, totalCapacity);
-
-
-                corkedResponse.writeBytes(headerBuffer);
-                if (extrasBuffer != null)
-                    corkedResponse.writeBytes(extrasBuffer);
-                if (keyBuffer != null)
-                    corkedResponse.writeBytes(keyBuffer);
-                if (valueBuffer != null)
-                    corkedResponse.writeBytes(valueBuffer);
-            } else {
-                // first write out any corked responses
-                 if (corkedBuffers.containsKey(command.cmd.opaque)) uncork(command.cmd.opaque, messageEvent.getChannel());
-                
-
-                writePayload(messageEvent, extrasBuffer, keyBuffer, valueBuffer, headerBuffer);
-            }
+        // a non-quiet command needs its answer now, and everything held back before it goes out first
+        if (!bcmd.noreply) {
+            flush(channelHandlerContext);
         }
     }
 
-    private ChannelBuffer cork(int opaque, int totalCapacity) {
-        if (corkedBuffers.containsKey(opaque)) {
-            ChannelBuffer corkedResponse = corkedBuffers.get(opaque);
-            ChannelBuffer oldBuffer = corkedResponse;
-            corkedResponse = ChannelBuffers.buffer(ByteOrder.BIG_ENDIAN, totalCapacity + corkedResponse.capacity());
-            corkedResponse.writeBytes(oldBuffer);
-            oldBuffer.clear();
-
-            corkedBuffers.remove(opaque);
-            corkedBuffers.put(opaque, corkedResponse);
-            return corkedResponse;
-        } else {
-            ChannelBuffer buffer = ChannelBuffers.buffer(ByteOrder.BIG_ENDIAN, totalCapacity);
-            corkedBuffers.put(opaque, buffer);
-            return buffer;
+    private static boolean isQuietOutcome(Op op, short status) {
+        if (op == Op.GET || op == Op.GETS) {
+            return status == ResponseCode.KEYNF.code;
         }
+        return status == ResponseCode.OK.code;
     }
 
-    private void uncork(int opaque, Channel channel) {
-        ChannelBuffer corkedBuffer = corkedBuffers.get(opaque);
-        assert corkedBuffer !=  null;
-        channel.write(corkedBuffer);
-        corkedBuffers.remove(opaque);
+    /**
+     * Queue a packet in the per-connection batch. The handler context is per pipeline, so its attachment holds the
+     * batch for exactly one channel even though this encoder is shared.
+     */
+    @SuppressWarnings("unchecked")
+    private void accumulate(ChannelHandlerContext ctx, ChannelBuffer packet) {
+        List<ChannelBuffer> pending = (List<ChannelBuffer>) ctx.getAttachment();
+        if (pending == null) {
+            pending = new ArrayList<ChannelBuffer>();
+            ctx.setAttachment(pending);
+        }
+        pending.add(packet);
     }
 
-    private void writePayload(MessageEvent messageEvent, ChannelBuffer extrasBuffer, ChannelBuffer keyBuffer, ChannelBuffer valueBuffer, ChannelBuffer headerBuffer) {
-        if (messageEvent.getChannel().isOpen()) {
-            messageEvent.getChannel().write(headerBuffer);
-            if (extrasBuffer != null)
-                messageEvent.getChannel().write(extrasBuffer);
-            if (keyBuffer != null)
-                messageEvent.getChannel().write(keyBuffer);
-            if (valueBuffer != null)
-                messageEvent.getChannel().write(valueBuffer);
+    /**
+     * Write every queued packet of this connection in a single composite buffer.
+     */
+    @SuppressWarnings("unchecked")
+    private void flush(ChannelHandlerContext ctx) {
+        List<ChannelBuffer> pending = (List<ChannelBuffer>) ctx.getAttachment();
+        if (pending == null || pending.isEmpty()) return;
+
+        ChannelBuffer payload = pending.size() == 1
+                ? pending.get(0)
+                : ChannelBuffers.wrappedBuffer(pending.toArray(new ChannelBuffer[pending.size()]));
+        pending.clear();
+
+        Channel channel = ctx.getChannel();
+        if (channel.isOpen()) {
+            channel.write(payload);
         }
     }
 }
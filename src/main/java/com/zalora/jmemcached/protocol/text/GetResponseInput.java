@@ -0,0 +1,66 @@
+package com.zalora.jmemcached.protocol.text;
+
+import com.zalora.jmemcached.CacheElement;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.stream.ChunkedInput;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Produces a large get response a few values at a time. The ChunkedWriteHandler only asks for the next chunk while
+ * the channel is below its write buffer high water mark, so a connection never queues more than about one chunk
+ * beyond that mark, and the first values go out before the rest of the response has been encoded.
+ */
+final class GetResponseInput implements ChunkedInput {
+
+    private final CacheElement[] results;
+    private final boolean withCas;
+    private final int chunkSize;
+
+    private int next;
+    private boolean done;
+
+    GetResponseInput(CacheElement[] results, boolean withCas, int chunkSize) {
+        this.results = results;
+        this.withCas = withCas;
+        this.chunkSize = chunkSize;
+    }
+
+    public boolean hasNextChunk() {
+        return !done;
+    }
+
+    public Object nextChunk() {
+        if (done) return null;
+
+        List<ChannelBuffer> buffers = new ArrayList<ChannelBuffer>();
+
+        // every chunk carries at least one value, however large, and stops once it reaches the chunk size
+        long bytes = 0;
+        while (next < results.length && bytes < chunkSize) {
+            CacheElement result = results[next++];
+            if (result == null) continue;
+
+            MemcachedResponseEncoder.writeValue(buffers, result, withCas);
+            bytes += result.size();
+        }
+
+        if (next == results.length) {
+            buffers.add(MemcachedResponseEncoder.END.duplicate());
+            done = true;
+        }
+
+        return ChannelBuffers.wrappedBuffer(buffers.toArray(new ChannelBuffer[buffers.size()]));
+    }
+
+    public boolean isEndOfInput() {
+        return done;
+    }
+
+    public void close() {
+        // the values belong to the cache, nothing to release here
+    }
+
+}
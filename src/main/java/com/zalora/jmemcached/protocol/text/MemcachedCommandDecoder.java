@@ -3,6 +3,7 @@ package com.zalora.jmemcached.protocol.text;
 import com.zalora.jmemcached.CacheElement;
 import com.zalora.jmemcached.LocalCacheElement;
 import com.zalora.jmemcached.protocol.CommandMessage;
+import com.zalora.jmemcached.protocol.MetaFlags;
 import com.zalora.jmemcached.protocol.Op;
 import com.zalora.jmemcached.protocol.SessionStatus;
 import com.zalora.jmemcached.protocol.exceptions.IncorrectlyTerminatedPayloadException;
@@ -10,14 +11,15 @@ import com.zalora.jmemcached.protocol.exceptions.InvalidProtocolStateException;
 import com.zalora.jmemcached.protocol.exceptions.MalformedCommandException;
 import com.zalora.jmemcached.protocol.exceptions.UnknownCommandException;
 import com.zalora.jmemcached.util.BufferUtils;
+import com.zalora.jmemcached.util.DelimiterScanner;
 import org.jboss.netty.buffer.ChannelBuffer;
-import org.jboss.netty.buffer.ChannelBufferIndexFinder;
 import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.*;
 import org.jboss.netty.handler.codec.frame.FrameDecoder;
 
 import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Base64;
 import java.util.List;
 
 /**
@@ -31,26 +33,20 @@ public final class MemcachedCommandDecoder extends FrameDecoder {
 
     private static final int MIN_BYTES_LINE = 2;
     private SessionStatus status;
+    private final DelimiterScanner scanner = new DelimiterScanner();
 
     private static final ChannelBuffer NOREPLY = ChannelBuffers.wrappedBuffer("noreply".getBytes());
 
+    // ms: add, append, prepend, replace, set; ma: increment, decrement
+    private static final String META_SET_MODES = "EeAaPpRrSs";
+    private static final String META_ARITHMETIC_MODES = "IiDd+-";
+
     public MemcachedCommandDecoder(SessionStatus status) {
         this.status = status;
     }
 
-    /**
-     * Index finder which locates a byte which is neither a {@code CR ('\r')}
-     * nor a {@code LF ('\n')}.
-     */
-    static ChannelBufferIndexFinder CRLF_OR_WS = new ChannelBufferIndexFinder() {
-        public final boolean find(ChannelBuffer buffer, int guessedIndex) {
-            byte b = buffer.getByte(guessedIndex);
-            return b == ' ' || b == '\r' || b == '\n';
-        }
-    };
-
     static boolean eol(int pos, ChannelBuffer buffer) {
-        return buffer.readableBytes() >= MIN_BYTES_LINE && buffer.getByte(buffer.readerIndex() + pos) == '\r' && buffer.getByte(buffer.readerIndex() + pos+1) == '\n';
+        return buffer.readableBytes() >= pos + MIN_BYTES_LINE && buffer.getByte(buffer.readerIndex() + pos) == '\r' && buffer.getByte(buffer.readerIndex() + pos+1) == '\n';
     }
 
     @Override
@@ -61,19 +57,19 @@ public final class MemcachedCommandDecoder extends FrameDecoder {
             // split into pieces
             List<ChannelBuffer> pieces = new ArrayList<ChannelBuffer>(6);
             if (in.readableBytes() < MIN_BYTES_LINE) return null;
-            int pos = in.bytesBefore(CRLF_OR_WS);
+            int delimiter = scanner.reset(in, in.readerIndex(), in.writerIndex()).next();
             boolean eol = false;
-            do {
-                if (pos != -1) {
-                    eol = eol(pos, in);
-                    int skip = eol ? MIN_BYTES_LINE : 1;
-                    ChannelBuffer slice = in.readSlice(pos);
-                    slice.readerIndex(0);
-                    pieces.add(slice);
-                    in.skipBytes(skip);
-                    if (eol) break;
-                }
-            } while ((pos = in.bytesBefore(CRLF_OR_WS)) != -1);
+            while (delimiter != -1) {
+                int pos = delimiter - in.readerIndex();
+                eol = eol(pos, in);
+                int skip = eol ? MIN_BYTES_LINE : 1;
+                ChannelBuffer slice = in.readSlice(pos);
+                slice.readerIndex(0);
+                pieces.add(slice);
+                in.skipBytes(skip);
+                if (eol) break;
+                delimiter = scanner.next();
+            }
             if (eol) {
                 buffer.skipBytes(in.readerIndex());
 
@@ -84,9 +80,9 @@ public final class MemcachedCommandDecoder extends FrameDecoder {
             if (buffer.readableBytes() >= status.bytesNeeded + MemcachedResponseEncoder.CRLF.capacity()) {
 
                 // verify delimiter matches at the right location
-                ChannelBuffer dest = buffer.slice(buffer.readerIndex() + status.bytesNeeded, MIN_BYTES_LINE);
+                int end = buffer.readerIndex() + status.bytesNeeded;
 
-                if (!dest.equals(MemcachedResponseEncoder.CRLF)) {
+                if (buffer.getByte(end) != '\r' || buffer.getByte(end + 1) != '\n') {
                     // before we throw error... we're ready for the next command
                     status.ready();
 
@@ -95,8 +91,9 @@ public final class MemcachedCommandDecoder extends FrameDecoder {
                 } else {
                     status.processingMultiline();
 
-                    // There's enough bytes in the buffer and the delimiter is at the end. Read it.
-                    ChannelBuffer result = buffer.slice(buffer.readerIndex(), status.bytesNeeded);
+                    // There's enough bytes in the buffer and the delimiter is at the end. Read it. The value
+                    // outlives this read, so copy it out before FrameDecoder discards and reuses the cumulation.
+                    ChannelBuffer result = BufferUtils.copyValue(buffer, buffer.readerIndex(), status.bytesNeeded);
 
                     buffer.skipBytes(status.bytesNeeded + MemcachedResponseEncoder.CRLF.capacity());
 
@@ -161,7 +158,7 @@ public final class MemcachedCommandDecoder extends FrameDecoder {
                     throw new MalformedCommandException("invalid increment command");
 
                 cmd.setKey(parts.get(1));
-                cmd.incrAmount = BufferUtils.atoi(parts.get(MIN_BYTES_LINE));
+                cmd.incrAmount = BufferUtils.atoul(parts.get(MIN_BYTES_LINE));
 
                 if (numParts == 3 && parts.get(MIN_BYTES_LINE).equals(NOREPLY)) {
                     cmd.noreply = true;
@@ -228,6 +225,40 @@ public final class MemcachedCommandDecoder extends FrameDecoder {
                 break;
 
             //
+            case MG:
+            case MD:
+            case MA:
+            case ME:
+                if (numParts < 2) {
+                    throw new MalformedCommandException("missing key");
+                }
+
+                setMetaKeyAndFlags(cmd, parts.get(1), parts.subList(2, numParts));
+                if (op == Op.MA) {
+                    prepareMetaArithmetic(cmd);
+                }
+                return cmd;
+            case MS:
+                // ms <key> <datalen> <flags>*
+                if (numParts < 3) {
+                    throw new MalformedCommandException("invalid command length");
+                }
+
+                setMetaKeyAndFlags(cmd, parts.get(1), parts.subList(3, numParts));
+                String mode = cmd.meta.has('M') ? cmd.meta.token('M') : "S";
+                if (mode.length() != 1 || META_SET_MODES.indexOf(mode.charAt(0)) < 0) {
+                    throw new MalformedCommandException("invalid mode for ms");
+                }
+
+                cmd.element = new LocalCacheElement(
+                    (String) cmd.keys.get(0), cmd.meta.longToken('F', 0), cmd.meta.longToken('T', 0) * 1000, 0L
+                );
+                cmd.cas_key = cmd.meta.longToken('C', 0);
+
+                status.needMore(BufferUtils.atoi(parts.get(2)), cmd);
+                break;
+            case MN:
+                return cmd;
             case GET:
             case GETS:
             case STATS:
@@ -245,6 +276,45 @@ public final class MemcachedCommandDecoder extends FrameDecoder {
         return null;
     }
 
+    /**
+     * Fill in the key and flags of a meta command. With the {@code b} flag the key arrives base64 encoded, which lets
+     * clients use keys with spaces or binary data; it is decoded here so the cache only ever sees the raw key.
+     */
+    private static void setMetaKeyAndFlags(CommandMessage cmd, ChannelBuffer key, List<ChannelBuffer> flags) throws MalformedCommandException {
+        cmd.meta = MetaFlags.parse(flags);
+        cmd.noreply = cmd.meta.has('q');
+
+        if (cmd.meta.has('b')) {
+            try {
+                cmd.setKey(ChannelBuffers.wrappedBuffer(Base64.getDecoder().decode(key.toString(MemcachedPipelineFactory.USASCII))));
+            } catch (IllegalArgumentException e) {
+                throw new MalformedCommandException("key is not valid base64", e);
+            }
+        } else {
+            cmd.setKey(key);
+        }
+    }
+
+    /**
+     * ma takes its delta from {@code D} and its direction from {@code M}. With {@code N} a missing counter is created
+     * from {@code J}, so that element is built here, like the element of a set.
+     */
+    private static void prepareMetaArithmetic(CommandMessage cmd) throws MalformedCommandException {
+        String mode = cmd.meta.has('M') ? cmd.meta.token('M') : "I";
+        if (mode.length() != 1 || META_ARITHMETIC_MODES.indexOf(mode.charAt(0)) < 0) {
+            throw new MalformedCommandException("invalid mode for ma");
+        }
+
+        cmd.incrAmount = cmd.meta.has('D') ? Long.parseUnsignedLong(cmd.meta.token('D')) : 1;
+        cmd.decrement = "Dd-".indexOf(mode.charAt(0)) >= 0;
+
+        if (cmd.meta.has('N')) {
+            LocalCacheElement initial = new LocalCacheElement((String) cmd.keys.get(0), 0, cmd.meta.longToken('N', 0) * 1000, 0L);
+            initial.setData(BufferUtils.ltoa(cmd.meta.longToken('J', 0)));
+            cmd.element = initial;
+        }
+    }
+
     /**
      * Handles the continuation of a SET/ADD/REPLACE command with the data it was waiting for.
      *
@@ -9,6 +9,8 @@ import org.jboss.netty.channel.Channels;
 import org.jboss.netty.channel.ChannelPipeline;
 import org.jboss.netty.channel.ChannelPipelineFactory;
 import org.jboss.netty.channel.group.DefaultChannelGroup;
+import org.jboss.netty.handler.execution.ExecutionHandler;
+import org.jboss.netty.handler.stream.ChunkedWriteHandler;
 
 /**
  * @author Ryan Daum
@@ -23,11 +25,21 @@ public final class MemcachedPipelineFactory implements ChannelPipelineFactory {
     private int idleTime;
 
     private DefaultChannelGroup channelGroup;
+    private final ExecutionHandler executionHandler;
     private final MemcachedResponseEncoder memcachedResponseEncoder = new MemcachedResponseEncoder();
     private final MemcachedCommandHandler memcachedCommandHandler;
 
     public MemcachedPipelineFactory(Cache cache, String version, boolean verbose, int idleTime, int frameSize, DefaultChannelGroup channelGroup) {
+        this(cache, version, verbose, idleTime, frameSize, channelGroup, null);
+    }
+
+    /**
+     * @param executionHandler if not null, commands are handed from the I/O thread to its executor between decoding
+     *                         and execution
+     */
+    public MemcachedPipelineFactory(Cache cache, String version, boolean verbose, int idleTime, int frameSize, DefaultChannelGroup channelGroup, ExecutionHandler executionHandler) {
         this.cache = cache;
+        this.executionHandler = executionHandler;
         this.version = version;
         this.verbose = verbose;
         this.idleTime = idleTime;
@@ -38,11 +50,15 @@ public final class MemcachedPipelineFactory implements ChannelPipelineFactory {
     public final ChannelPipeline getPipeline() throws Exception {
         SessionStatus status = new SessionStatus().ready();
 
-        return Channels.pipeline(
-            new MemcachedCommandDecoder(status),
-            memcachedCommandHandler,
-            memcachedResponseEncoder
-        );
+        ChannelPipeline pipeline = Channels.pipeline();
+        pipeline.addLast("chunkedWriter", new ChunkedWriteHandler());
+        pipeline.addLast("decoder", new MemcachedCommandDecoder(status));
+        if (executionHandler != null) {
+            pipeline.addLast("executor", executionHandler);
+        }
+        pipeline.addLast("handler", memcachedCommandHandler);
+        pipeline.addLast("encoder", memcachedResponseEncoder);
+        return pipeline;
     }
 
 }
@@ -2,6 +2,8 @@ package com.zalora.jmemcached.protocol.text;
 
 import com.zalora.jmemcached.Cache;
 import com.zalora.jmemcached.CacheElement;
+import com.zalora.jmemcached.LocalCacheElement;
+import com.zalora.jmemcached.StorageException;
 import com.zalora.jmemcached.protocol.Op;
 import com.zalora.jmemcached.protocol.ResponseMessage;
 import com.zalora.jmemcached.util.BufferUtils;
@@ -12,13 +14,14 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
 import java.util.Set;
 import java.util.Map;
 
 import com.zalora.jmemcached.protocol.exceptions.ClientException;
 
-import static java.lang.String.valueOf;
-
 /**
  * Response encoder for the memcached text protocol. Produces strings destined for the StringEncoder
  */
@@ -28,16 +31,34 @@ public final class MemcachedResponseEncoder<CACHE_ELEMENT extends CacheElement>
 
     public static final ChannelBuffer CRLF = ChannelBuffers.copiedBuffer("\r\n", MemcachedPipelineFactory.USASCII);
     private static final ChannelBuffer SPACE = ChannelBuffers.copiedBuffer(" ", MemcachedPipelineFactory.USASCII);
-    private static final ChannelBuffer VALUE = ChannelBuffers.copiedBuffer("VALUE ", MemcachedPipelineFactory.USASCII);
     private static final ChannelBuffer EXISTS = ChannelBuffers.copiedBuffer("EXISTS\r\n", MemcachedPipelineFactory.USASCII);
     private static final ChannelBuffer NOT_FOUND = ChannelBuffers.copiedBuffer("NOT_FOUND\r\n", MemcachedPipelineFactory.USASCII);
     private static final ChannelBuffer NOT_STORED = ChannelBuffers.copiedBuffer("NOT_STORED\r\n", MemcachedPipelineFactory.USASCII);
     private static final ChannelBuffer STORED = ChannelBuffers.copiedBuffer("STORED\r\n", MemcachedPipelineFactory.USASCII);
     private static final ChannelBuffer DELETED = ChannelBuffers.copiedBuffer("DELETED\r\n", MemcachedPipelineFactory.USASCII);
-    private static final ChannelBuffer END = ChannelBuffers.copiedBuffer("END\r\n", MemcachedPipelineFactory.USASCII);
+    public static final ChannelBuffer END = ChannelBuffers.copiedBuffer("END\r\n", MemcachedPipelineFactory.USASCII);
     private static final ChannelBuffer OK = ChannelBuffers.copiedBuffer("OK\r\n", MemcachedPipelineFactory.USASCII);
     private static final ChannelBuffer ERROR = ChannelBuffers.copiedBuffer("ERROR\r\n", MemcachedPipelineFactory.USASCII);
     private static final ChannelBuffer CLIENT_ERROR = ChannelBuffers.copiedBuffer("CLIENT_ERROR\r\n", MemcachedPipelineFactory.USASCII);
+    private static final ChannelBuffer EN = ChannelBuffers.copiedBuffer("EN\r\n", MemcachedPipelineFactory.USASCII);
+    private static final ChannelBuffer MN = ChannelBuffers.copiedBuffer("MN\r\n", MemcachedPipelineFactory.USASCII);
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Get responses with more value bytes than this are streamed in chunks of about this size.
+     */
+    public static final int DEFAULT_STREAMING_CHUNK_SIZE = 64 * 1024;
+
+    private final int streamingChunkSize;
+
+    public MemcachedResponseEncoder() {
+        this(DEFAULT_STREAMING_CHUNK_SIZE);
+    }
+
+    public MemcachedResponseEncoder(int streamingChunkSize) {
+        this.streamingChunkSize = streamingChunkSize;
+    }
 
     /**
      * Handle exceptions in protocol processing. Exceptions are either client or internal errors.  Report accordingly.
@@ -53,6 +74,10 @@ public final class MemcachedResponseEncoder<CACHE_ELEMENT extends CacheElement>
         } catch (ClientException ce) {
             if (ctx.getChannel().isOpen())
                 ctx.getChannel().write(CLIENT_ERROR);
+        } catch (StorageException se) {
+            // the storage could not serve the command, the connection to the client is fine
+            if (ctx.getChannel().isOpen())
+                ctx.getChannel().write(ChannelBuffers.copiedBuffer("SERVER_ERROR " + se.getMessage() + "\r\n", UTF8));
         } catch (Throwable tr) {
             logger.error("error", tr);
             if (ctx.getChannel().isOpen())
@@ -70,29 +95,27 @@ public final class MemcachedResponseEncoder<CACHE_ELEMENT extends CacheElement>
             case GET:
             case GETS:
                 CacheElement[] results = command.elements;
+                boolean withCas = cmd == Op.GETS;
+
+                // large responses are produced chunk by chunk as the socket drains, instead of all at once
+                long responseSize = 0;
+                for (CacheElement result : results) {
+                    if (result != null) responseSize += result.size();
+                }
+                if (responseSize > streamingChunkSize) {
+                    Channels.write(channel, new GetResponseInput(results, withCas, streamingChunkSize));
+                    break;
+                }
 
-                ChannelBuffer[] buffers = new ChannelBuffer[results.length * (9 + (cmd == Op.GETS ? 2 : 0)) + 1];
-                int i = 0;
+                List<ChannelBuffer> buffers = new ArrayList<ChannelBuffer>(results.length * (withCas ? 6 : 3) + 1);
                 for (CacheElement result : results) {
                     if (result != null) {
-                        buffers[i++] = VALUE;
-                        buffers[i++] = ChannelBuffers.copiedBuffer(result.getKey().getBytes(Charset.forName("UTF-8")));
-                        buffers[i++] = SPACE;
-                        buffers[i++] = BufferUtils.ltoa(result.getFlags());
-                        buffers[i++] = SPACE;
-                        buffers[i++] = BufferUtils.itoa(result.size());
-                        if (cmd == Op.GETS) {
-                            buffers[i++] = SPACE;
-                            buffers[i++] = BufferUtils.ltoa(result.getCasUnique());
-                        }
-                        buffers[i++] = CRLF;
-                        buffers[i++] = result.getData();
-                        buffers[i++] = CRLF;
+                        writeValue(buffers, result, withCas);
                     }
                 }
-                buffers[i] = END;
+                buffers.add(END);
 
-                Channels.write(channel, ChannelBuffers.wrappedBuffer(buffers));
+                Channels.write(channel, ChannelBuffers.wrappedBuffer(buffers.toArray(new ChannelBuffer[buffers.size()])));
                 break;
             case APPEND:
             case PREPEND:
@@ -143,22 +166,179 @@ public final class MemcachedResponseEncoder<CACHE_ELEMENT extends CacheElement>
                 break;
             case VERBOSITY:
                 break;
+            case MG:
+            case MS:
+            case MD:
+            case MA:
+            case MN:
+            case ME:
+                ChannelBuffer metaResponse = metaResponse(command);
+                if (metaResponse != null) Channels.write(channel, metaResponse);
+                break;
             default:
                 Channels.write(channel, ERROR.duplicate());
                 logger.error("error; unrecognized command: " + cmd);
         }
     }
 
+    /**
+     * Append the buffers making up a single {@code VALUE} block of a get response.
+     *
+     * @param out     the buffers of the response so far
+     * @param result  the element to encode
+     * @param withCas true for gets, which reports the cas unique as well
+     */
+    public static void writeValue(List<ChannelBuffer> out, CacheElement result, boolean withCas) {
+        ChannelBuffer header = result.getTextHeader();
+        if (withCas) {
+            // the cas unique changes with every write, so it goes between the cached line and its CRLF
+            out.add(header.slice(header.readerIndex(), header.readableBytes() - CRLF.capacity()));
+            out.add(SPACE);
+            out.add(BufferUtils.ltoa(result.getCasUnique()));
+            out.add(CRLF);
+        } else {
+            out.add(header);
+        }
+        out.add(result.getData());
+        out.add(CRLF);
+    }
+
+    /**
+     * Encode the response to a meta command: a two letter status, the return flags the client asked for, and for
+     * {@code VA} the value. Quiet mode drops the expected outcome, a miss for mg and success for the rest.
+     *
+     * @return the response, or null if there is nothing to send
+     */
+    private ChannelBuffer metaResponse(ResponseMessage<CACHE_ELEMENT> command) {
+        Op cmd = command.cmd.op;
+        CacheElement element = command.elements != null ? command.elements[0] : null;
+        ChannelBuffer value = null;
+        String status;
+
+        switch (cmd) {
+            case MG:
+                if (element == null) status = "EN";
+                else if (command.cmd.meta.has('v')) {
+                    value = element.getData();
+                    status = "VA " + element.size();
+                } else status = "HD";
+                break;
+            case MS:
+                status = metaStatus(command.response);
+                break;
+            case MD:
+                status = command.deleteResponse == Cache.DeleteResponse.DELETED ? "HD" : "NF";
+                break;
+            case MA:
+                if (command.incrDecrResponse == null) status = "NF";
+                else if (command.cmd.meta.has('v')) {
+                    value = BufferUtils.ultoa(command.incrDecrResponse);
+                    status = "VA " + value.readableBytes();
+                } else status = "HD";
+                break;
+            case MN:
+                return MN.duplicate();
+            default:
+                return metaDebugResponse(command.cmd.keys.get(0), element);
+        }
+
+        if (command.cmd.noreply && status.equals(cmd == Op.MG ? "EN" : "HD")) {
+            return null;
+        }
+
+        StringBuilder line = new StringBuilder(status);
+        for (char flag : command.cmd.meta.order()) {
+            appendReturnFlag(line, flag, command, element);
+        }
+        if (cmd == Op.MG && element != null) {
+            if (command.leaseWon) line.append(" W");
+            if (element.isStale()) line.append(" X");
+            if (command.leasePending) line.append(" Z");
+        }
+        line.append("\r\n");
+
+        ChannelBuffer header = ChannelBuffers.copiedBuffer(line, UTF8);
+        return value == null ? header : ChannelBuffers.wrappedBuffer(header, value, CRLF);
+    }
+
+    private static void appendReturnFlag(StringBuilder line, char flag, ResponseMessage<?> command, CacheElement element) {
+        switch (flag) {
+            case 'O':
+                line.append(" O").append(command.cmd.meta.token('O'));
+                return;
+            case 'k':
+                line.append(" k").append(command.cmd.meta.has('b')
+                        ? Base64.getEncoder().encodeToString(command.cmd.keys.get(0).getBytes(UTF8))
+                        : command.cmd.keys.get(0));
+                return;
+            case 'b':
+                if (command.cmd.meta.has('k')) line.append(" b");
+                return;
+        }
+
+        // the remaining flags describe the item, so there is nothing to say for misses and for md
+        if (command.cmd.op == Op.MG && element != null) {
+            switch (flag) {
+                case 'c':
+                    line.append(" c").append(element.getCasUnique());
+                    break;
+                case 'f':
+                    line.append(" f").append(element.getFlags());
+                    break;
+                case 's':
+                    line.append(" s").append(element.size());
+                    break;
+                case 't':
+                    line.append(" t").append(element.getRemainingTtl());
+                    break;
+                case 'h':
+                    line.append(" h").append(command.previousAccess != 0 ? 1 : 0);
+                    break;
+                case 'l':
+                    line.append(" l").append(command.previousAccess != 0 ? LocalCacheElement.Now() - command.previousAccess : 0);
+                    break;
+            }
+        } else if (command.cmd.op == Op.MS && flag == 'c' && command.response == Cache.StoreResponse.STORED) {
+            line.append(" c").append(command.cmd.element.getCasUnique());
+        }
+    }
+
+    private static String metaStatus(Cache.StoreResponse storeResponse) {
+        switch (storeResponse) {
+            case STORED:
+                return "HD";
+            case NOT_STORED:
+                return "NS";
+            case EXISTS:
+                return "EX";
+            default:
+                return "NF";
+        }
+    }
+
+    private static ChannelBuffer metaDebugResponse(String key, CacheElement element) {
+        if (element == null) return EN.duplicate();
+
+        int lastAccessed = element.getLastAccessed();
+        String line = "ME " + key
+                + " exp=" + element.getRemainingTtl()
+                + " la=" + (lastAccessed != 0 ? LocalCacheElement.Now() - lastAccessed : -1)
+                + " cas=" + element.getCasUnique()
+                + " fetch=" + (lastAccessed != 0 ? "yes" : "no")
+                + " size=" + element.size() + "\r\n";
+        return ChannelBuffers.copiedBuffer(line, UTF8);
+    }
+
     private ChannelBuffer deleteResponseString(Cache.DeleteResponse deleteResponse) {
         if (deleteResponse == Cache.DeleteResponse.DELETED) return DELETED.duplicate();
         else return NOT_FOUND.duplicate();
     }
 
-    private ChannelBuffer incrDecrResponseString(Integer ret) {
+    private ChannelBuffer incrDecrResponseString(Long ret) {
         if (ret == null) {
             return NOT_FOUND.duplicate();
         } else {
-            return ChannelBuffers.copiedBuffer(valueOf(ret) + "\r\n", MemcachedPipelineFactory.USASCII);
+            return ChannelBuffers.wrappedBuffer(BufferUtils.ultoa(ret), CRLF.duplicate());
         }
     }
 
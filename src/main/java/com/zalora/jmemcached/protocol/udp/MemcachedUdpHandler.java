@@ -0,0 +1,186 @@
+package com.zalora.jmemcached.protocol.udp;
+
+import com.zalora.jmemcached.AsyncCache;
+import com.zalora.jmemcached.AsyncCacheAdapter;
+import com.zalora.jmemcached.Cache;
+import com.zalora.jmemcached.CacheElement;
+import com.zalora.jmemcached.LocalCacheElement;
+import com.zalora.jmemcached.StatsSource;
+import com.zalora.jmemcached.protocol.text.MemcachedPipelineFactory;
+import com.zalora.jmemcached.protocol.text.MemcachedResponseEncoder;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandler;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ExceptionEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.SocketAddress;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Serves get and gets over UDP. Every datagram starts with the memcached frame header: request id, sequence number,
+ * total number of datagrams and a reserved field, two bytes each. A request has to fit in a single datagram. The
+ * response is cut into as many datagrams as it takes, none larger than {@link #MAX_DATAGRAM_SIZE}, numbered from 0
+ * and all carrying the id of the request, so the client can put them back together.
+ * <p/>
+ * One datagram channel serves every client, so nothing here is kept per request and the handler is shared.
+ */
+@ChannelHandler.Sharable
+public final class MemcachedUdpHandler<CACHE_ELEMENT extends CacheElement> extends SimpleChannelUpstreamHandler implements StatsSource {
+
+    final Logger logger = LoggerFactory.getLogger(MemcachedUdpHandler.class);
+
+    public static final int HEADER_LENGTH = 8;
+    public static final int MAX_DATAGRAM_SIZE = 1400;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final ChannelBuffer ERROR = ChannelBuffers.copiedBuffer("ERROR\r\n", MemcachedPipelineFactory.USASCII);
+    private static final ChannelBuffer MULTI_PACKET_REQUEST = ChannelBuffers.copiedBuffer("SERVER_ERROR multi-packet request not supported\r\n", MemcachedPipelineFactory.USASCII);
+    private static final ChannelBuffer TOO_LARGE = ChannelBuffers.copiedBuffer("SERVER_ERROR response too large for UDP\r\n", MemcachedPipelineFactory.USASCII);
+    private static final ChannelBuffer LOOKUP_FAILED = ChannelBuffers.copiedBuffer("SERVER_ERROR lookup failed\r\n", MemcachedPipelineFactory.USASCII);
+
+    private final AsyncCache<CACHE_ELEMENT> cache;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong malformed = new AtomicLong();
+    private final AtomicLong getHits = new AtomicLong();
+    private final AtomicLong getMisses = new AtomicLong();
+    private final AtomicLong datagramsSent = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+
+    public MemcachedUdpHandler(Cache<CACHE_ELEMENT> cache) {
+        this.cache = AsyncCacheAdapter.of(cache);
+    }
+
+    @Override
+    public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+        ChannelBuffer in = (ChannelBuffer) e.getMessage();
+        if (in.readableBytes() < HEADER_LENGTH) {
+            // without a header there is no request id to answer to
+            malformed.incrementAndGet();
+            return;
+        }
+
+        requests.incrementAndGet();
+
+        final int requestId = in.readUnsignedShort();
+        in.skipBytes(2); // sequence number
+        int total = in.readUnsignedShort();
+        in.skipBytes(2); // reserved
+
+        // the lookup may complete on another thread; the datagram channel can be written from any of them
+        final Channel channel = e.getChannel();
+        final SocketAddress client = e.getRemoteAddress();
+        CompletionStage<ChannelBuffer> pending = total == 1 ? respond(in) : CompletableFuture.completedFuture(MULTI_PACKET_REQUEST.duplicate());
+        pending.whenComplete(new BiConsumer<ChannelBuffer, Throwable>() {
+            public void accept(ChannelBuffer response, Throwable failure) {
+                if (failure != null) {
+                    logger.error("udp lookup failed", failure);
+                    response = LOOKUP_FAILED.duplicate();
+                }
+                send(channel, client, requestId, response);
+            }
+        });
+    }
+
+    /**
+     * Run the command line of a request and encode its response, exactly as it would look over TCP.
+     */
+    private CompletionStage<ChannelBuffer> respond(ChannelBuffer in) {
+        int eol = in.indexOf(in.readerIndex(), in.writerIndex(), (byte) '\n');
+        if (eol < 0) {
+            malformed.incrementAndGet();
+            return CompletableFuture.completedFuture(ERROR.duplicate());
+        }
+
+        String[] parts = in.toString(in.readerIndex(), eol - in.readerIndex(), UTF8).trim().split(" +");
+        final boolean withCas = parts[0].equals("gets");
+        if (parts.length < 2 || !(withCas || parts[0].equals("get"))) {
+            malformed.incrementAndGet();
+            return CompletableFuture.completedFuture(ERROR.duplicate());
+        }
+
+        return cache.getAsync(Arrays.copyOfRange(parts, 1, parts.length)).thenApply(new Function<CACHE_ELEMENT[], ChannelBuffer>() {
+            public ChannelBuffer apply(CACHE_ELEMENT[] results) {
+                return encode(results, withCas);
+            }
+        });
+    }
+
+    private ChannelBuffer encode(CACHE_ELEMENT[] results, boolean withCas) {
+        int now = LocalCacheElement.Now();
+        int hits = 0;
+        List<ChannelBuffer> buffers = new ArrayList<ChannelBuffer>(results.length * 3 + 1);
+        for (CACHE_ELEMENT result : results) {
+            if (result != null) {
+                result.markAccessed(now);
+                MemcachedResponseEncoder.writeValue(buffers, result, withCas);
+                hits++;
+            }
+        }
+        buffers.add(MemcachedResponseEncoder.END.duplicate());
+
+        getHits.addAndGet(hits);
+        getMisses.addAndGet(results.length - hits);
+
+        return ChannelBuffers.wrappedBuffer(buffers.toArray(new ChannelBuffer[buffers.size()]));
+    }
+
+    private void send(Channel channel, SocketAddress client, int requestId, ChannelBuffer response) {
+        int payloadSize = MAX_DATAGRAM_SIZE - HEADER_LENGTH;
+        int total = Math.max(1, (response.readableBytes() + payloadSize - 1) / payloadSize);
+        if (total > 0xFFFF) {
+            response = TOO_LARGE.duplicate();
+            total = 1;
+        }
+
+        for (int sequence = 0; sequence < total; sequence++) {
+            ChannelBuffer header = ChannelBuffers.buffer(HEADER_LENGTH);
+            header.writeShort(requestId);
+            header.writeShort(sequence);
+            header.writeShort(total);
+            header.writeShort(0);
+
+            ChannelBuffer payload = response.readSlice(Math.min(payloadSize, response.readableBytes()));
+
+            datagramsSent.incrementAndGet();
+            bytesSent.addAndGet(HEADER_LENGTH + payload.readableBytes());
+            channel.write(ChannelBuffers.wrappedBuffer(header, payload), client);
+        }
+    }
+
+    /**
+     * A bad datagram must not take down the channel every other client is using, so errors are only logged.
+     */
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e) throws Exception {
+        logger.error("error", e.getCause());
+    }
+
+    public Map<String, String> getStats() {
+        Map<String, String> stats = new HashMap<String, String>();
+        stats.put("udp_requests", String.valueOf(requests.get()));
+        stats.put("udp_malformed_requests", String.valueOf(malformed.get()));
+        stats.put("udp_get_hits", String.valueOf(getHits.get()));
+        stats.put("udp_get_misses", String.valueOf(getMisses.get()));
+        stats.put("udp_datagrams_sent", String.valueOf(datagramsSent.get()));
+        stats.put("udp_bytes_sent", String.valueOf(bytesSent.get()));
+        return stats;
+    }
+
+}
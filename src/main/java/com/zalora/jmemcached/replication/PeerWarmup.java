@@ -0,0 +1,162 @@
+package com.zalora.jmemcached.replication;
+
+import com.zalora.jmemcached.CacheImpl;
+import com.zalora.jmemcached.LocalCacheElement;
+import org.jboss.netty.bootstrap.ClientBootstrap;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.*;
+import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
+import org.jboss.netty.handler.codec.frame.LengthFieldBasedFrameDecoder;
+import org.jboss.netty.handler.codec.frame.LengthFieldPrepender;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fills a starting daemon's cache from a running peer with a {@link WarmupDonor}, so it serves hits from the start
+ * instead of sending every request to the backend until it has filled up by itself.
+ * <p/>
+ * The keys are split into shards fetched over connections of their own, all at once; each brings the hottest
+ * fraction of its shard, hottest first. Keys clients store in the meantime are kept over the peer's, so the daemon
+ * can take traffic while warming up. A shard that fails leaves what it brought so far in place.
+ */
+public final class PeerWarmup {
+
+    final Logger logger = LoggerFactory.getLogger(PeerWarmup.class);
+
+    private final CacheImpl cache;
+    private final InetSocketAddress donor;
+
+    private int shards = 4;
+    private double fraction = 0.2;
+    private long timeoutMillis = 300000;
+
+    private final AtomicLong keysReceived = new AtomicLong();
+    private final AtomicLong keysStored = new AtomicLong();
+    private final AtomicInteger shardsCompleted = new AtomicInteger();
+
+    public PeerWarmup(CacheImpl cache, InetSocketAddress donor) {
+        this.cache = cache;
+        this.donor = donor;
+    }
+
+    /**
+     * @param shards how many parts the keys are fetched in, in parallel
+     */
+    public void setShards(int shards) {
+        this.shards = shards;
+    }
+
+    /**
+     * @param fraction the share of the peer's keys to fetch, the most recently read ones
+     */
+    public void setFraction(double fraction) {
+        this.fraction = fraction;
+    }
+
+    /**
+     * @param timeoutMillis how long to wait for the transfer before giving up on what has not arrived
+     */
+    public void setTimeoutMillis(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Fetch the hottest keys of the peer, waiting until every shard is in, has failed or the timeout has passed.
+     *
+     * @return whether every shard came in whole
+     */
+    public boolean run() throws InterruptedException {
+        long start = System.currentTimeMillis();
+        NioClientSocketChannelFactory channelFactory = new NioClientSocketChannelFactory(Executors.newCachedThreadPool(), Executors.newCachedThreadPool());
+        CountDownLatch done = new CountDownLatch(shards);
+        Channel[] channels = new Channel[shards];
+        try {
+            for (int shard = 0; shard < shards; shard++) {
+                ClientBootstrap bootstrap = new ClientBootstrap(channelFactory);
+                bootstrap.setPipeline(Channels.pipeline(
+                        new LengthFieldBasedFrameDecoder(ReplicationFrames.MAX_FRAME_LENGTH, 0, 4, 0, 4),
+                        new LengthFieldPrepender(4),
+                        new Shard(shard, done)));
+                bootstrap.setOption("tcpNoDelay", true);
+                bootstrap.setOption("receiveBufferSize", 256 * 1024);
+                channels[shard] = bootstrap.connect(donor).getChannel();
+            }
+
+            boolean finished = done.await(timeoutMillis, TimeUnit.MILLISECONDS);
+            if (!finished) logger.warn("warm-up from " + donor + " timed out");
+            logger.info("warm-up from " + donor + " stored " + keysStored.get() + " of " + keysReceived.get()
+                    + " key(s) received, " + shardsCompleted.get() + " of " + shards + " shard(s) complete, in "
+                    + (System.currentTimeMillis() - start) + " ms");
+            return shardsCompleted.get() == shards;
+        } finally {
+            for (Channel channel : channels) {
+                if (channel != null) channel.close().awaitUninterruptibly();
+            }
+            channelFactory.releaseExternalResources();
+        }
+    }
+
+    public long getKeysReceived() {
+        return keysReceived.get();
+    }
+
+    public long getKeysStored() {
+        return keysStored.get();
+    }
+
+    private final class Shard extends SimpleChannelUpstreamHandler {
+
+        private final int shard;
+        private final CountDownLatch done;
+        private boolean complete;
+
+        Shard(int shard, CountDownLatch done) {
+            this.shard = shard;
+            this.done = done;
+        }
+
+        @Override
+        public void channelConnected(ChannelHandlerContext ctx, ChannelStateEvent e) {
+            e.getChannel().write(ReplicationFrames.frame(ReplicationFrames.WARMUP, shard, shards, Double.doubleToLongBits(fraction)));
+        }
+
+        @Override
+        public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) {
+            ChannelBuffer frame = (ChannelBuffer) e.getMessage();
+            byte type = frame.readByte();
+            if (type == ReplicationFrames.SNAPSHOT) {
+                for (int count = frame.readInt(); count > 0; count--) {
+                    if (frame.readByte() != ReplicationFrames.SET) throw new IllegalStateException("unexpected warm-up record");
+                    keysReceived.incrementAndGet();
+                    if (cache.restoreIfAbsent(LocalCacheElement.readFromBuffer(frame))) keysStored.incrementAndGet();
+                }
+            } else if (type == ReplicationFrames.SYNCED) {
+                complete = true;
+                shardsCompleted.incrementAndGet();
+                e.getChannel().close();
+            } else {
+                throw new IllegalStateException("unexpected warm-up frame " + type);
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e) {
+            logger.warn("warm-up of shard " + shard + " from " + donor + " failed: " + e.getCause());
+            e.getChannel().close();
+        }
+
+        @Override
+        public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) {
+            if (!complete) logger.warn("warm-up of shard " + shard + " from " + donor + " ended early");
+            done.countDown();
+        }
+    }
+
+}
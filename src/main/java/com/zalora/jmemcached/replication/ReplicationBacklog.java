@@ -0,0 +1,107 @@
+package com.zalora.jmemcached.replication;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The recent history of a primary: a ring of encoded records numbered from 1 in the order they happened, bounded by
+ * their total size. The oldest records make room for new ones; a replica whose position has been dropped can no
+ * longer catch up from here and has to take a snapshot.
+ * <p/>
+ * All methods are called under the primary's log lock.
+ */
+final class ReplicationBacklog {
+
+    private final long maxBytes;
+
+    private ChannelBuffer[] records = new ChannelBuffer[1024];
+    private long[] appendedAt = new long[1024];
+    private int start;
+    private int count;
+    private long firstSeq = 1;
+    private long bytes;
+
+    ReplicationBacklog(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return the sequence number of the record
+     */
+    long append(ChannelBuffer record, long now) {
+        if (count == records.length) grow();
+
+        int i = (start + count) % records.length;
+        records[i] = record;
+        appendedAt[i] = now;
+        count++;
+        bytes += record.readableBytes();
+
+        // the newest record stays, however large
+        while (bytes > maxBytes && count > 1) {
+            bytes -= records[start].readableBytes();
+            records[start] = null;
+            start = (start + 1) % records.length;
+            count--;
+            firstSeq++;
+        }
+        return firstSeq + count - 1;
+    }
+
+    /**
+     * @return the oldest sequence number still held
+     */
+    long firstSeq() {
+        return firstSeq;
+    }
+
+    /**
+     * @return the newest sequence number, 0 before the first record
+     */
+    long headSeq() {
+        return firstSeq + count - 1;
+    }
+
+    long bytes() {
+        return bytes;
+    }
+
+    int count() {
+        return count;
+    }
+
+    /**
+     * Collect the records from a position on, up to a total size; the first one is taken whatever its size.
+     *
+     * @param fromSeq a position no older than {@link #firstSeq}
+     * @return when the last record collected was appended, or 0 if there was nothing to collect
+     */
+    long copy(long fromSeq, int maxBytes, List<ChannelBuffer> out) {
+        long last = 0;
+        int size = 0;
+        for (long seq = fromSeq; seq <= headSeq(); seq++) {
+            int i = (int) ((start + seq - firstSeq) % records.length);
+            ChannelBuffer record = records[i];
+            if (!out.isEmpty() && size + record.readableBytes() > maxBytes) break;
+            out.add(record.duplicate());
+            size += record.readableBytes();
+            last = appendedAt[i];
+        }
+        return last;
+    }
+
+    private void grow() {
+        int length = records.length;
+        ChannelBuffer[] grownRecords = Arrays.copyOf(records, length * 2);
+        long[] grownAppendedAt = Arrays.copyOf(appendedAt, length * 2);
+        // unwrap the ring: whatever sat before the start moves up behind the end
+        System.arraycopy(records, 0, grownRecords, length, start);
+        System.arraycopy(appendedAt, 0, grownAppendedAt, length, start);
+        Arrays.fill(grownRecords, 0, start, null);
+        records = grownRecords;
+        appendedAt = grownAppendedAt;
+    }
+
+}
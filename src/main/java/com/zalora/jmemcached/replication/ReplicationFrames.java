@@ -0,0 +1,86 @@
+package com.zalora.jmemcached.replication;
+
+import com.zalora.jmemcached.LocalCacheElement;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+import java.nio.charset.Charset;
+
+/**
+ * The replication wire format. Every frame is length prefixed and starts with its type:
+ * <pre>
+ * HELLO        replica to primary  long runId, long nextSeq      the history and position the replica has
+ * FULL_SYNC    primary to replica  long runId, long seq          drop everything, a snapshot as of seq follows
+ * SNAPSHOT     primary to replica  int count, records            part of the snapshot
+ * SYNCED       primary to replica                                end of the snapshot, the stream goes on at seq + 1
+ * PARTIAL_SYNC primary to replica  long runId                    the stream goes on at the replica's nextSeq
+ * RECORDS      primary to replica  long firstSeq, long headSeq, long appendedAt, int count, records
+ * ACK          replica to primary  long appliedSeq
+ * WARMUP       peer to donor       long shard, long shards, long fraction (double bits)
+ * </pre>
+ * A donor answers {@code WARMUP} with {@code SNAPSHOT} frames, hottest keys first, and ends with {@code SYNCED}.
+ * A record is a key's state rather than the command that changed it: {@code SET} with the element in the form of
+ * {@link LocalCacheElement#writeToBuffer}, {@code DELETE} with the key, or {@code FLUSH}. Increments, appends and
+ * touches all travel as the element they produced, and replaying a record twice does no harm.
+ */
+final class ReplicationFrames {
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    static final byte HELLO = 1;
+    static final byte FULL_SYNC = 2;
+    static final byte SNAPSHOT = 3;
+    static final byte SYNCED = 4;
+    static final byte PARTIAL_SYNC = 5;
+    static final byte RECORDS = 6;
+    static final byte ACK = 7;
+    static final byte WARMUP = 8;
+
+    static final byte SET = 1;
+    static final byte DELETE = 2;
+    static final byte FLUSH = 3;
+
+    static final int MAX_FRAME_LENGTH = 256 * 1024 * 1024;
+
+    private ReplicationFrames() {
+    }
+
+    static ChannelBuffer set(LocalCacheElement element) {
+        ChannelBuffer record = ChannelBuffers.buffer(1 + element.bufferSize());
+        record.writeByte(SET);
+        element.writeToBuffer(record);
+        return record;
+    }
+
+    static ChannelBuffer delete(String key) {
+        byte[] keyBytes = key.getBytes(UTF8);
+        ChannelBuffer record = ChannelBuffers.buffer(1 + 4 + keyBytes.length);
+        record.writeByte(DELETE);
+        record.writeInt(keyBytes.length);
+        record.writeBytes(keyBytes);
+        return record;
+    }
+
+    static ChannelBuffer flush() {
+        ChannelBuffer record = ChannelBuffers.buffer(1);
+        record.writeByte(FLUSH);
+        return record;
+    }
+
+    /**
+     * @return the shard of a key when keys are split into the given number of shards
+     */
+    static int shard(String key, int shards) {
+        return (key.hashCode() & Integer.MAX_VALUE) % shards;
+    }
+
+    static ChannelBuffer frame(byte type, long... values) {
+        ChannelBuffer frame = ChannelBuffers.buffer(1 + 8 * values.length);
+        frame.writeByte(type);
+        for (long value : values) {
+            frame.writeLong(value);
+        }
+        return frame;
+    }
+
+}
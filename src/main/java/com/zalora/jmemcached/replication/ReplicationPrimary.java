@@ -0,0 +1,447 @@
+package com.zalora.jmemcached.replication;
+
+import com.zalora.jmemcached.LocalCacheElement;
+import com.zalora.jmemcached.StatsSource;
+import com.zalora.jmemcached.storage.CacheStorage;
+import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.*;
+import org.jboss.netty.channel.group.DefaultChannelGroup;
+import org.jboss.netty.channel.socket.ServerSocketChannelFactory;
+import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+import org.jboss.netty.handler.codec.frame.LengthFieldBasedFrameDecoder;
+import org.jboss.netty.handler.codec.frame.LengthFieldPrepender;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetSocketAddress;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The primary side of asynchronous replication: keeps a log of what changed in the cache and streams it to the
+ * replicas connected to it, see {@link ReplicationReplica}.
+ * <p/>
+ * The cache reports every element it wrote and every key it deleted. Records are built outside the log lock, which is
+ * held only to number them. Two writers of one key may report in the opposite order to the one the storage took their
+ * writes in, so after logging a state the writer checks the storage still holds it, and logs what it holds if not:
+ * the last record of a key always carries the key's state in the storage. Records go to the replicas in batches from
+ * a single sender thread, and only while a replica's connection takes them: a slow replica does not hold writers up,
+ * it falls behind. The log is a backlog of bounded size; a replica that reconnects within it carries on where it was,
+ * one that comes new, or falls out of it, gets a snapshot of the storage and then the records since.
+ * <p/>
+ * Replication is asynchronous: a client's write is acknowledged before any replica has it, and writes not yet sent
+ * are lost if the primary goes down.
+ */
+public final class ReplicationPrimary implements StatsSource {
+
+    final Logger logger = LoggerFactory.getLogger(ReplicationPrimary.class);
+
+    public static final long DEFAULT_BACKLOG_BYTES = 64L * 1024 * 1024;
+    public static final int DEFAULT_BATCH_BYTES = 64 * 1024;
+
+    // how long an idle stream goes without a batch before a heartbeat tells the replica it is up to date
+    private static final long HEARTBEAT_MILLIS = 1000;
+
+    private final CacheStorage<String, LocalCacheElement> storage;
+    private final InetSocketAddress addr;
+    private final int batchBytes;
+    private final long runId;
+
+    // guarded by itself, the log lock
+    private final ReplicationBacklog backlog;
+
+    private final List<Session> sessions = new CopyOnWriteArrayList<Session>();
+    private ScheduledExecutorService sender;
+    private final AtomicBoolean sendRequested = new AtomicBoolean();
+
+    private ServerSocketChannelFactory channelFactory;
+    private DefaultChannelGroup allChannels;
+
+    private final AtomicLong fullSyncs = new AtomicLong();
+    private final AtomicLong partialSyncs = new AtomicLong();
+    private final AtomicLong backlogOverruns = new AtomicLong();
+    private final AtomicLong recordsSent = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+
+    private final Runnable sendTask = new Runnable() {
+        public void run() {
+            sendRequested.set(false);
+            send();
+        }
+    };
+
+    public ReplicationPrimary(CacheStorage<String, LocalCacheElement> storage, InetSocketAddress addr) {
+        this(storage, addr, DEFAULT_BACKLOG_BYTES, DEFAULT_BATCH_BYTES);
+    }
+
+    /**
+     * @param storage      the storage of the cache being replicated, which must own its keys
+     * @param addr         the address replicas connect to
+     * @param backlogBytes how many bytes of records to keep for replicas catching up
+     * @param batchBytes   roughly the most bytes of records per frame
+     */
+    public ReplicationPrimary(CacheStorage<String, LocalCacheElement> storage, InetSocketAddress addr, long backlogBytes, int batchBytes) {
+        if (!storage.ownsKeys()) {
+            throw new IllegalStateException("replication needs a storage that owns its keys, " + storage.getClass().getSimpleName() + " does not");
+        }
+
+        this.storage = storage;
+        this.addr = addr;
+        this.batchBytes = batchBytes;
+        this.backlog = new ReplicationBacklog(backlogBytes);
+
+        // identifies this run's history; positions in another one mean nothing here
+        long id;
+        do {
+            id = new SecureRandom().nextLong();
+        } while (id == 0);
+        this.runId = id;
+    }
+
+    public void start() {
+        sender = Executors.newSingleThreadScheduledExecutor();
+        sender.scheduleWithFixedDelay(sendTask, HEARTBEAT_MILLIS, HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+
+        channelFactory = new NioServerSocketChannelFactory(Executors.newCachedThreadPool(), Executors.newCachedThreadPool());
+        allChannels = new DefaultChannelGroup("jmemcachedReplicationGroup");
+
+        ServerBootstrap bootstrap = new ServerBootstrap(channelFactory);
+        bootstrap.setPipelineFactory(new ChannelPipelineFactory() {
+            public ChannelPipeline getPipeline() {
+                return Channels.pipeline(
+                        new LengthFieldBasedFrameDecoder(ReplicationFrames.MAX_FRAME_LENGTH, 0, 4, 0, 4),
+                        new LengthFieldPrepender(4),
+                        new Session());
+            }
+        });
+        bootstrap.setOption("reuseAddress", true);
+        bootstrap.setOption("child.tcpNoDelay", true);
+        bootstrap.setOption("child.sendBufferSize", 256 * 1024);
+
+        allChannels.add(bootstrap.bind(addr));
+        logger.info("Replication listening on " + addr.getHostName() + ":" + addr.getPort());
+    }
+
+    public void stop() {
+        if (allChannels != null) allChannels.close().awaitUninterruptibly();
+        if (channelFactory != null) channelFactory.releaseExternalResources();
+        if (sender != null) sender.shutdownNow();
+    }
+
+    /**
+     * Log the new state of a key after the cache changed it: stored, incremented, touched, invalidated or deleted.
+     *
+     * @param element the element the cache wrote, or null if it deleted the key
+     */
+    public void changed(String key, LocalCacheElement element) {
+        ChannelBuffer record = record(key, element);
+        synchronized (backlog) {
+            append(record);
+        }
+
+        // a writer racing this one may have logged its later state first; then the storage no longer holds ours
+        LocalCacheElement current = storage.get(key);
+        while (!same(current, element)) {
+            element = current;
+            record = record(key, element);
+            synchronized (backlog) {
+                append(record);
+            }
+            current = storage.get(key);
+        }
+    }
+
+    private static ChannelBuffer record(String key, LocalCacheElement element) {
+        return deleted(element) ? ReplicationFrames.delete(key) : ReplicationFrames.set(element);
+    }
+
+    private static boolean same(LocalCacheElement a, LocalCacheElement b) {
+        return a == b || deleted(a) && deleted(b);
+    }
+
+    private static boolean deleted(LocalCacheElement element) {
+        return element == null || element.isBlocked();
+    }
+
+    /**
+     * Log that the cache was emptied.
+     */
+    public void flushed() {
+        synchronized (backlog) {
+            append(ReplicationFrames.flush());
+        }
+    }
+
+    private void append(ChannelBuffer record) {
+        backlog.append(record, System.currentTimeMillis());
+        if (!sessions.isEmpty()) requestSend();
+    }
+
+    private void requestSend() {
+        if (sendRequested.compareAndSet(false, true)) {
+            try {
+                sender.execute(sendTask);
+            } catch (RejectedExecutionException stopped) {
+                // stopping, there is nobody left to send to
+            }
+        }
+    }
+
+    /**
+     * Move every replica along as far as its connection takes. Runs on the sender thread only.
+     */
+    private void send() {
+        long now = System.currentTimeMillis();
+        for (Session session : sessions) {
+            try {
+                session.send(now);
+            } catch (Throwable t) {
+                logger.error("replication to " + session.name() + " failed", t);
+                session.channel.close();
+            }
+        }
+    }
+
+    public long getRunId() {
+        return runId;
+    }
+
+    public long getHeadSeq() {
+        synchronized (backlog) {
+            return backlog.headSeq();
+        }
+    }
+
+    public Map<String, String> getStats() {
+        long headSeq;
+        long firstSeq;
+        long bytes;
+        int records;
+        synchronized (backlog) {
+            headSeq = backlog.headSeq();
+            firstSeq = backlog.firstSeq();
+            bytes = backlog.bytes();
+            records = backlog.count();
+        }
+
+        Map<String, String> stats = new HashMap<String, String>();
+        stats.put("replication_role", "primary");
+        stats.put("replication_run_id", Long.toHexString(runId));
+        stats.put("replication_head_seq", String.valueOf(headSeq));
+        stats.put("replication_backlog_first_seq", String.valueOf(firstSeq));
+        stats.put("replication_backlog_records", String.valueOf(records));
+        stats.put("replication_backlog_bytes", String.valueOf(bytes));
+        stats.put("replication_full_syncs", String.valueOf(fullSyncs.get()));
+        stats.put("replication_partial_syncs", String.valueOf(partialSyncs.get()));
+        stats.put("replication_backlog_overruns", String.valueOf(backlogOverruns.get()));
+        stats.put("replication_records_sent", String.valueOf(recordsSent.get()));
+        stats.put("replication_bytes_sent", String.valueOf(bytesSent.get()));
+
+        int replicas = 0;
+        long maxLag = 0;
+        for (Session session : sessions) {
+            if (!session.hello) continue;
+            replicas++;
+            long lag = Math.max(0, headSeq - session.ackedSeq);
+            maxLag = Math.max(maxLag, lag);
+            String prefix = "replication_replica_" + session.name() + "_";
+            stats.put(prefix + "acked_seq", String.valueOf(session.ackedSeq));
+            stats.put(prefix + "lag_records", String.valueOf(lag));
+            stats.put(prefix + "syncing", session.syncing ? "1" : "0");
+        }
+        stats.put("replication_replicas", String.valueOf(replicas));
+        stats.put("replication_max_lag_records", String.valueOf(maxLag));
+        return stats;
+    }
+
+    /**
+     * One connected replica. The handshake and acknowledgements arrive on the I/O thread; everything sent is sent
+     * from the sender thread.
+     */
+    private final class Session extends SimpleChannelUpstreamHandler {
+
+        volatile Channel channel;
+        volatile boolean hello;
+        volatile boolean syncing;
+        volatile long ackedSeq;
+
+        private volatile long requestedRunId;
+        private volatile long requestedSeq;
+
+        // sender thread only
+        private boolean started;
+        private Iterator<String> snapshot;
+        private long snapshotSeq;
+        private long cursor;
+        private long lastSentAt;
+
+        String name() {
+            Channel channel = this.channel;
+            InetSocketAddress remote = channel != null ? (InetSocketAddress) channel.getRemoteAddress() : null;
+            return remote != null ? remote.getAddress().getHostAddress() + ":" + remote.getPort() : "unknown";
+        }
+
+        @Override
+        public void channelOpen(ChannelHandlerContext ctx, ChannelStateEvent e) {
+            channel = e.getChannel();
+            allChannels.add(channel);
+        }
+
+        @Override
+        public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) {
+            if (sessions.remove(this)) logger.info("replica " + name() + " disconnected");
+        }
+
+        @Override
+        public void channelInterestChanged(ChannelHandlerContext ctx, ChannelStateEvent e) {
+            // room in the socket again, carry on
+            if (hello && channel.isWritable()) requestSend();
+        }
+
+        @Override
+        public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) {
+            ChannelBuffer frame = (ChannelBuffer) e.getMessage();
+            byte type = frame.readByte();
+            if (type == ReplicationFrames.HELLO && !hello) {
+                requestedRunId = frame.readLong();
+                requestedSeq = frame.readLong();
+                hello = true;
+                sessions.add(this);
+                requestSend();
+            } else if (type == ReplicationFrames.ACK) {
+                ackedSeq = frame.readLong();
+            } else {
+                logger.warn("unexpected replication frame " + type + " from " + name() + ", disconnecting");
+                channel.close();
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e) {
+            logger.warn("replication connection to " + name() + " failed: " + e.getCause());
+            e.getChannel().close();
+        }
+
+        void send(long now) {
+            if (!channel.isConnected()) return;
+
+            if (!started) {
+                started = true;
+                boolean partial;
+                synchronized (backlog) {
+                    partial = requestedRunId == runId && requestedSeq >= backlog.firstSeq() && requestedSeq <= backlog.headSeq() + 1;
+                }
+                if (partial) {
+                    partialSyncs.incrementAndGet();
+                    logger.info("replica " + name() + " continues from " + requestedSeq);
+                    cursor = requestedSeq;
+                    ackedSeq = requestedSeq - 1;
+                    write(ReplicationFrames.frame(ReplicationFrames.PARTIAL_SYNC, runId), now);
+                } else {
+                    startSnapshot(now);
+                }
+            }
+
+            while (channel.isWritable()) {
+                if (snapshot != null) {
+                    sendSnapshot(now);
+                    continue;
+                }
+
+                List<ChannelBuffer> records = new ArrayList<ChannelBuffer>();
+                long headSeq;
+                long appendedAt = 0;
+                boolean overrun;
+                synchronized (backlog) {
+                    headSeq = backlog.headSeq();
+                    overrun = cursor < backlog.firstSeq();
+                    if (!overrun) appendedAt = backlog.copy(cursor, batchBytes, records);
+                }
+
+                if (overrun) {
+                    // dropped from the backlog before we got to send it
+                    backlogOverruns.incrementAndGet();
+                    logger.warn("replica " + name() + " fell out of the backlog, sending a new snapshot");
+                    startSnapshot(now);
+                } else if (records.isEmpty()) {
+                    if (now - lastSentAt >= HEARTBEAT_MILLIS) {
+                        writeRecords(cursor, headSeq, now, records, now);
+                    }
+                    break;
+                } else {
+                    writeRecords(cursor, headSeq, appendedAt, records, now);
+                    cursor += records.size();
+                }
+            }
+        }
+
+        /**
+         * Tell the replica to start over and begin sending it the storage. The snapshot reflects at least every
+         * record up to the current head; the ones after it are streamed once the snapshot is through, and applying a
+         * record the snapshot already reflects changes nothing.
+         */
+        private void startSnapshot(long now) {
+            fullSyncs.incrementAndGet();
+            syncing = true;
+            synchronized (backlog) {
+                snapshotSeq = backlog.headSeq();
+            }
+            logger.info("sending replica " + name() + " a snapshot as of " + snapshotSeq);
+            ackedSeq = 0;
+            snapshot = storage.keySet().iterator();
+            write(ReplicationFrames.frame(ReplicationFrames.FULL_SYNC, runId, snapshotSeq), now);
+        }
+
+        private void sendSnapshot(long now) {
+            ChannelBuffer frame = ChannelBuffers.dynamicBuffer(batchBytes + 1024);
+            frame.writeByte(ReplicationFrames.SNAPSHOT);
+            frame.writeInt(0);
+            int count = 0;
+            while (snapshot.hasNext() && frame.readableBytes() < batchBytes) {
+                LocalCacheElement element = storage.get(snapshot.next());
+                if (element == null || element.isBlocked()) continue;
+                frame.writeByte(ReplicationFrames.SET);
+                element.writeToBuffer(frame);
+                count++;
+            }
+            frame.setInt(1, count);
+            if (count > 0) write(frame, now);
+
+            if (!snapshot.hasNext()) {
+                snapshot = null;
+                syncing = false;
+                cursor = snapshotSeq + 1;
+                write(ReplicationFrames.frame(ReplicationFrames.SYNCED), now);
+            }
+        }
+
+        private void writeRecords(long firstSeq, long headSeq, long appendedAt, List<ChannelBuffer> records, long now) {
+            ChannelBuffer header = ChannelBuffers.buffer(1 + 8 + 8 + 8 + 4);
+            header.writeByte(ReplicationFrames.RECORDS);
+            header.writeLong(firstSeq);
+            header.writeLong(headSeq);
+            header.writeLong(appendedAt);
+            header.writeInt(records.size());
+
+            ChannelBuffer[] parts = new ChannelBuffer[records.size() + 1];
+            parts[0] = header;
+            for (int i = 0; i < records.size(); i++) {
+                parts[i + 1] = records.get(i);
+            }
+            recordsSent.addAndGet(records.size());
+            write(ChannelBuffers.wrappedBuffer(parts), now);
+        }
+
+        private void write(ChannelBuffer frame, long now) {
+            bytesSent.addAndGet(frame.readableBytes());
+            lastSentAt = now;
+            channel.write(frame);
+        }
+    }
+
+}
@@ -0,0 +1,247 @@
+package com.zalora.jmemcached.replication;
+
+import com.zalora.jmemcached.CacheImpl;
+import com.zalora.jmemcached.LocalCacheElement;
+import com.zalora.jmemcached.StatsSource;
+import org.jboss.netty.bootstrap.ClientBootstrap;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.*;
+import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
+import org.jboss.netty.handler.codec.frame.LengthFieldBasedFrameDecoder;
+import org.jboss.netty.handler.codec.frame.LengthFieldPrepender;
+import org.jboss.netty.util.HashedWheelTimer;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.TimerTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The replica side of asynchronous replication: follows a {@link ReplicationPrimary} and applies what it sends to a
+ * local cache, which serves reads as usual.
+ * <p/>
+ * The replica keeps the primary's run id and the position it has applied up to. On reconnecting it asks to carry on
+ * from there, and the primary either does so or starts it over with a snapshot. A snapshot only sets the position
+ * once all of it is in, so a replica cut off halfway asks for a new one. Records are applied in order; a gap in the
+ * numbering means something was lost and the replica reconnects to be put right.
+ * <p/>
+ * Nothing stops clients from writing to the replica's cache, but whatever they write is overwritten by the primary's
+ * next record for the key or lost at the next snapshot. Expire times travel as absolute times, so the clocks of the
+ * daemons should agree; the lag in milliseconds depends on that as well.
+ */
+public final class ReplicationReplica implements StatsSource {
+
+    final Logger logger = LoggerFactory.getLogger(ReplicationReplica.class);
+
+    private static final long RECONNECT_DELAY_MILLIS = 1000;
+
+    private final CacheImpl cache;
+    private final InetSocketAddress primary;
+
+    private NioClientSocketChannelFactory channelFactory;
+    private HashedWheelTimer timer;
+    private volatile Channel channel;
+    private volatile boolean stopped;
+
+    // the I/O thread of the current connection only, read by stats
+    private volatile long runId;
+    private volatile long appliedSeq;
+    private volatile long headSeq;
+    private volatile long lagMillis;
+    private volatile boolean connected;
+    private volatile boolean synced;
+
+    // the snapshot being received; it only becomes the position once it is complete
+    private long snapshotRunId;
+    private long snapshotSeq;
+
+    private final AtomicLong fullSyncs = new AtomicLong();
+    private final AtomicLong partialSyncs = new AtomicLong();
+    private final AtomicLong reconnects = new AtomicLong();
+    private final AtomicLong recordsApplied = new AtomicLong();
+
+    /**
+     * @param cache   the cache to apply the primary's changes to; its stats get the replication counters
+     * @param primary the address of the primary's replication listener
+     */
+    public ReplicationReplica(CacheImpl cache, InetSocketAddress primary) {
+        this.cache = cache;
+        this.primary = primary;
+        cache.addStatsSource(this);
+    }
+
+    public void start() {
+        stopped = false;
+        channelFactory = new NioClientSocketChannelFactory(Executors.newCachedThreadPool(), Executors.newCachedThreadPool());
+        timer = new HashedWheelTimer();
+        connect();
+    }
+
+    public void stop() {
+        stopped = true;
+        Channel channel = this.channel;
+        if (channel != null) channel.close().awaitUninterruptibly();
+        if (timer != null) timer.stop();
+        if (channelFactory != null) channelFactory.releaseExternalResources();
+    }
+
+    private void connect() {
+        if (stopped) return;
+
+        ClientBootstrap bootstrap = new ClientBootstrap(channelFactory);
+        bootstrap.setPipeline(Channels.pipeline(
+                new LengthFieldBasedFrameDecoder(ReplicationFrames.MAX_FRAME_LENGTH, 0, 4, 0, 4),
+                new LengthFieldPrepender(4),
+                new Follower()));
+        bootstrap.setOption("tcpNoDelay", true);
+        bootstrap.setOption("receiveBufferSize", 256 * 1024);
+        bootstrap.setOption("connectTimeoutMillis", (int) RECONNECT_DELAY_MILLIS * 5);
+        channel = bootstrap.connect(primary).getChannel();
+    }
+
+    private void reconnectLater() {
+        if (stopped) return;
+        try {
+            timer.newTimeout(new TimerTask() {
+                public void run(Timeout timeout) {
+                    reconnects.incrementAndGet();
+                    connect();
+                }
+            }, RECONNECT_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (IllegalStateException timerStopped) {
+            // stopping
+        }
+    }
+
+    public Map<String, String> getStats() {
+        Map<String, String> stats = new HashMap<String, String>();
+        stats.put("replication_role", "replica");
+        stats.put("replication_primary", primary.getHostName() + ":" + primary.getPort());
+        stats.put("replication_connected", connected ? "1" : "0");
+        stats.put("replication_synced", synced ? "1" : "0");
+        stats.put("replication_run_id", Long.toHexString(runId));
+        stats.put("replication_applied_seq", String.valueOf(appliedSeq));
+        stats.put("replication_lag_records", String.valueOf(Math.max(0, headSeq - appliedSeq)));
+        stats.put("replication_lag_ms", String.valueOf(lagMillis));
+        stats.put("replication_full_syncs", String.valueOf(fullSyncs.get()));
+        stats.put("replication_partial_syncs", String.valueOf(partialSyncs.get()));
+        stats.put("replication_reconnects", String.valueOf(reconnects.get()));
+        stats.put("replication_records_applied", String.valueOf(recordsApplied.get()));
+        return stats;
+    }
+
+    private final class Follower extends SimpleChannelUpstreamHandler {
+
+        @Override
+        public void channelConnected(ChannelHandlerContext ctx, ChannelStateEvent e) {
+            connected = true;
+            logger.info("connected to replication primary " + primary + ", asking for " + (appliedSeq + 1));
+            e.getChannel().write(ReplicationFrames.frame(ReplicationFrames.HELLO, runId, appliedSeq + 1));
+        }
+
+        @Override
+        public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) {
+            if (connected) logger.warn("lost the replication primary " + primary);
+            connected = false;
+            synced = false;
+            reconnectLater();
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e) {
+            if (connected) logger.warn("replication from " + primary + " failed: " + e.getCause());
+            e.getChannel().close();
+        }
+
+        @Override
+        public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) {
+            ChannelBuffer frame = (ChannelBuffer) e.getMessage();
+            byte type = frame.readByte();
+            switch (type) {
+                case ReplicationFrames.FULL_SYNC:
+                    snapshotRunId = frame.readLong();
+                    snapshotSeq = frame.readLong();
+                    // the cache holds no history until the snapshot is through; cut short, it has to start over
+                    runId = 0;
+                    appliedSeq = 0;
+                    headSeq = snapshotSeq;
+                    synced = false;
+                    fullSyncs.incrementAndGet();
+                    logger.info("replication primary sent a snapshot as of " + snapshotSeq);
+                    cache.flush_all();
+                    break;
+                case ReplicationFrames.SNAPSHOT:
+                    for (int count = frame.readInt(); count > 0; count--) {
+                        apply(frame);
+                    }
+                    break;
+                case ReplicationFrames.SYNCED:
+                    runId = snapshotRunId;
+                    appliedSeq = snapshotSeq;
+                    synced = true;
+                    logger.info("replication snapshot applied");
+                    break;
+                case ReplicationFrames.PARTIAL_SYNC:
+                    runId = frame.readLong();
+                    synced = true;
+                    partialSyncs.incrementAndGet();
+                    break;
+                case ReplicationFrames.RECORDS:
+                    records(e.getChannel(), frame);
+                    break;
+                default:
+                    logger.warn("unexpected replication frame " + type + ", reconnecting");
+                    e.getChannel().close();
+            }
+        }
+
+        private void records(Channel channel, ChannelBuffer frame) {
+            long firstSeq = frame.readLong();
+            long head = frame.readLong();
+            long appendedAt = frame.readLong();
+            int count = frame.readInt();
+
+            if (count > 0 && firstSeq != appliedSeq + 1) {
+                logger.warn("replication stream skipped from " + appliedSeq + " to " + firstSeq + ", reconnecting");
+                channel.close();
+                return;
+            }
+
+            for (int i = 0; i < count; i++) {
+                apply(frame);
+            }
+            appliedSeq += count;
+            recordsApplied.addAndGet(count);
+            headSeq = head;
+            lagMillis = Math.max(0, System.currentTimeMillis() - appendedAt);
+            channel.write(ReplicationFrames.frame(ReplicationFrames.ACK, appliedSeq));
+        }
+
+        private void apply(ChannelBuffer frame) {
+            byte op = frame.readByte();
+            switch (op) {
+                case ReplicationFrames.SET:
+                    cache.restore(LocalCacheElement.readFromBuffer(frame));
+                    break;
+                case ReplicationFrames.DELETE:
+                    int length = frame.readInt();
+                    String key = frame.toString(frame.readerIndex(), length, ReplicationFrames.UTF8);
+                    frame.skipBytes(length);
+                    cache.delete(key, 0);
+                    break;
+                case ReplicationFrames.FLUSH:
+                    cache.flush_all();
+                    break;
+                default:
+                    throw new IllegalStateException("unknown replication record " + op);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,294 @@
+package com.zalora.jmemcached.replication;
+
+import com.zalora.jmemcached.LocalCacheElement;
+import com.zalora.jmemcached.StatsSource;
+import com.zalora.jmemcached.storage.CacheStorage;
+import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.*;
+import org.jboss.netty.channel.group.DefaultChannelGroup;
+import org.jboss.netty.channel.socket.ServerSocketChannelFactory;
+import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+import org.jboss.netty.handler.codec.frame.LengthFieldBasedFrameDecoder;
+import org.jboss.netty.handler.codec.frame.LengthFieldPrepender;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lets a starting daemon warm up from this one, see {@link PeerWarmup}. A peer asks for one shard of the keys at a
+ * time and gets the most recently read part of it, hottest first, in large chunks.
+ * <p/>
+ * Transfers are kept from hurting the clients of this daemon: only a few run at once, on threads of their own, each
+ * waits for a chunk to be written before it builds the next, and all of them share one byte rate.
+ */
+public final class WarmupDonor implements StatsSource {
+
+    final Logger logger = LoggerFactory.getLogger(WarmupDonor.class);
+
+    private final CacheStorage<String, LocalCacheElement> storage;
+    private final InetSocketAddress addr;
+
+    private long bytesPerSecond = 32L * 1024 * 1024;
+    private int maxTransfers = 2;
+    private int chunkBytes = 256 * 1024;
+
+    // a peer asks for all its shards at once, so their keys are sorted out in one pass for all of them; a partition
+    // is dropped once every shard has been claimed, or rebuilt when it is too old to still be worth handing out
+    private static final long PARTITION_MAX_AGE_MILLIS = 60000;
+    private final Object partitionLock = new Object();
+    private Partition partition;
+
+    private ExecutorService transfers;
+    private ServerSocketChannelFactory channelFactory;
+    private DefaultChannelGroup allChannels;
+
+    // guarded by this: when the byte budget spent so far runs out, in nanoseconds
+    private long budgetUntil;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicLong keysSent = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong throttledMillis = new AtomicLong();
+
+    /**
+     * @param storage the storage of the cache to warm peers up from, which must own its keys
+     * @param addr    the address peers connect to
+     */
+    public WarmupDonor(CacheStorage<String, LocalCacheElement> storage, InetSocketAddress addr) {
+        if (!storage.ownsKeys()) {
+            throw new IllegalStateException("a warm-up donor needs a storage that owns its keys, " + storage.getClass().getSimpleName() + " does not");
+        }
+        this.storage = storage;
+        this.addr = addr;
+    }
+
+    /**
+     * @param bytesPerSecond the combined rate of all transfers, 0 for no limit
+     */
+    public void setBytesPerSecond(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * @param maxTransfers how many shards are sent at once; further requests wait their turn
+     */
+    public void setMaxTransfers(int maxTransfers) {
+        this.maxTransfers = maxTransfers;
+    }
+
+    /**
+     * @param chunkBytes roughly the most bytes per frame
+     */
+    public void setChunkBytes(int chunkBytes) {
+        this.chunkBytes = chunkBytes;
+    }
+
+    public void start() {
+        transfers = Executors.newFixedThreadPool(Math.max(1, maxTransfers));
+        channelFactory = new NioServerSocketChannelFactory(Executors.newCachedThreadPool(), Executors.newCachedThreadPool());
+        allChannels = new DefaultChannelGroup("jmemcachedWarmupGroup");
+
+        ServerBootstrap bootstrap = new ServerBootstrap(channelFactory);
+        bootstrap.setPipelineFactory(new ChannelPipelineFactory() {
+            public ChannelPipeline getPipeline() {
+                return Channels.pipeline(
+                        new LengthFieldBasedFrameDecoder(ReplicationFrames.MAX_FRAME_LENGTH, 0, 4, 0, 4),
+                        new LengthFieldPrepender(4),
+                        new Requests());
+            }
+        });
+        bootstrap.setOption("reuseAddress", true);
+        bootstrap.setOption("child.sendBufferSize", 256 * 1024);
+
+        allChannels.add(bootstrap.bind(addr));
+        logger.info("Warm-up donor listening on " + addr.getHostName() + ":" + addr.getPort());
+    }
+
+    public void stop() {
+        if (allChannels != null) allChannels.close().awaitUninterruptibly();
+        if (transfers != null) transfers.shutdownNow();
+        if (channelFactory != null) channelFactory.releaseExternalResources();
+    }
+
+    /**
+     * Send the hottest part of a shard: pick its keys by when they were last read, most recent first, so a transfer
+     * cut short still delivers the most useful part. Keys never read come last, in no particular order.
+     */
+    private void transfer(Channel channel, int shard, int shards, double fraction) throws InterruptedException {
+        List<LocalCacheElement> elements = new ArrayList<LocalCacheElement>();
+        for (String key : claim(shard, shards)) {
+            LocalCacheElement element = storage.get(key);
+            if (element == null || element.isBlocked() || element.getRemainingTtl() == 0) continue;
+            elements.add(element);
+        }
+
+        // last access in the upper half and position in the lower, so one sort of primitives orders them
+        long[] order = new long[elements.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = (long) elements.get(i).getLastAccessed() << 32 | i;
+        }
+        Arrays.sort(order);
+
+        int wanted = (int) Math.ceil(order.length * Math.min(1.0, Math.max(0.0, fraction)));
+        int sent = 0;
+        while (sent < wanted && channel.isConnected()) {
+            ChannelBuffer frame = ChannelBuffers.dynamicBuffer(chunkBytes + 1024);
+            frame.writeByte(ReplicationFrames.SNAPSHOT);
+            frame.writeInt(0);
+            int count = 0;
+            while (sent < wanted && frame.readableBytes() < chunkBytes) {
+                LocalCacheElement element = elements.get((int) order[order.length - 1 - sent++]);
+                frame.writeByte(ReplicationFrames.SET);
+                element.writeToBuffer(frame);
+                count++;
+            }
+            frame.setInt(1, count);
+            int size = frame.readableBytes();
+
+            throttle(size);
+            // one chunk in flight at a time, so a slow peer holds up its own transfer and nothing else
+            channel.write(frame).await();
+            keysSent.addAndGet(count);
+            bytesSent.addAndGet(size);
+        }
+
+        if (channel.isConnected()) {
+            channel.write(ReplicationFrames.frame(ReplicationFrames.SYNCED));
+            logger.info("sent " + sent + " of " + order.length + " key(s) of shard " + shard + "/" + shards + " to " + channel.getRemoteAddress());
+        }
+    }
+
+    /**
+     * @return the keys of a shard, from the partition built for the first shard of the same warm-up
+     */
+    private List<String> claim(int shard, int shards) {
+        synchronized (partitionLock) {
+            Partition current = partition;
+            if (current == null || current.shards != shards || current.keys[shard] == null
+                    || System.currentTimeMillis() - current.builtAt > PARTITION_MAX_AGE_MILLIS) {
+                current = new Partition(shards);
+                for (String key : storage.keySet()) {
+                    current.keys[ReplicationFrames.shard(key, shards)].add(key);
+                }
+                partition = current;
+            }
+
+            List<String> keys = current.keys[shard];
+            current.keys[shard] = null;
+            if (--current.unclaimed == 0) partition = null;
+            return keys;
+        }
+    }
+
+    private void throttle(int bytes) throws InterruptedException {
+        long rate = bytesPerSecond;
+        if (rate <= 0) return;
+
+        long wait;
+        synchronized (this) {
+            long now = System.nanoTime();
+            if (budgetUntil < now) budgetUntil = now;
+            wait = budgetUntil - now;
+            budgetUntil += TimeUnit.SECONDS.toNanos(bytes) / rate;
+        }
+        if (wait > 0) {
+            throttledMillis.addAndGet(TimeUnit.NANOSECONDS.toMillis(wait));
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+
+    public Map<String, String> getStats() {
+        Map<String, String> stats = new HashMap<String, String>();
+        stats.put("warmup_requests", String.valueOf(requests.get()));
+        stats.put("warmup_active", String.valueOf(active.get()));
+        stats.put("warmup_keys_sent", String.valueOf(keysSent.get()));
+        stats.put("warmup_bytes_sent", String.valueOf(bytesSent.get()));
+        stats.put("warmup_throttled_ms", String.valueOf(throttledMillis.get()));
+        return stats;
+    }
+
+    /**
+     * The keys of the storage split by shard, each list handed out once.
+     */
+    private static final class Partition {
+
+        final int shards;
+        final long builtAt = System.currentTimeMillis();
+        final List<String>[] keys;
+        int unclaimed;
+
+        @SuppressWarnings("unchecked")
+        Partition(int shards) {
+            this.shards = shards;
+            this.keys = new List[shards];
+            for (int i = 0; i < shards; i++) {
+                keys[i] = new ArrayList<String>();
+            }
+            this.unclaimed = shards;
+        }
+    }
+
+    private final class Requests extends SimpleChannelUpstreamHandler {
+
+        @Override
+        public void channelOpen(ChannelHandlerContext ctx, ChannelStateEvent e) {
+            allChannels.add(e.getChannel());
+        }
+
+        @Override
+        public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) {
+            final Channel channel = e.getChannel();
+            ChannelBuffer frame = (ChannelBuffer) e.getMessage();
+            if (frame.readByte() != ReplicationFrames.WARMUP) {
+                channel.close();
+                return;
+            }
+            final int shard = (int) frame.readLong();
+            final int shards = (int) frame.readLong();
+            final double fraction = Double.longBitsToDouble(frame.readLong());
+            if (shards <= 0 || shard < 0 || shard >= shards) {
+                channel.close();
+                return;
+            }
+
+            requests.incrementAndGet();
+            try {
+                transfers.execute(new Runnable() {
+                    public void run() {
+                        active.incrementAndGet();
+                        try {
+                            transfer(channel, shard, shards, fraction);
+                        } catch (InterruptedException stopped) {
+                            channel.close();
+                        } catch (Throwable t) {
+                            logger.error("warm-up transfer of shard " + shard + "/" + shards + " failed", t);
+                            channel.close();
+                        } finally {
+                            active.decrementAndGet();
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException stopped) {
+                channel.close();
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e) {
+            logger.warn("warm-up connection failed: " + e.getCause());
+            e.getChannel().close();
+        }
+    }
+
+}
@@ -0,0 +1,60 @@
+package com.zalora.jmemcached.snapshot;
+
+import com.zalora.jmemcached.LocalCacheElement;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * The snapshot file layout. A snapshot is a set of shard files, {@code <base>.0} to {@code <base>.<shards - 1>},
+ * each holding the keys that hash to it:
+ * <pre>
+ * header   int magic, int version, int shard, int shards, long snapshot id
+ * chunk    int payload length, int element count, int CRC-32 of the payload, payload
+ * ...
+ * trailer  int -1, long element count of the shard
+ * </pre>
+ * The payload of a chunk is elements in the form of {@link LocalCacheElement#writeToBuffer}. Every shard of one
+ * snapshot carries the same id, so shards of different snapshots are never mixed; a shard without its trailer was
+ * cut short.
+ */
+final class SnapshotFormat {
+
+    static final int MAGIC = 0x4A4D5331; // "JMS1"
+    static final int VERSION = 1;
+
+    static final int HEADER_BYTES = 4 + 4 + 4 + 4 + 8;
+    static final int CHUNK_HEADER_BYTES = 4 + 4 + 4;
+    static final int TRAILER = -1;
+
+    private SnapshotFormat() {
+    }
+
+    static File shardFile(File base, int shard) {
+        return new File(base.getPath() + "." + shard);
+    }
+
+    static int crc(byte[] bytes, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, offset, length);
+        return (int) crc.getValue();
+    }
+
+    static void readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) throw new EOFException("snapshot shard ends early");
+        }
+        buffer.flip();
+    }
+
+    static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+}
@@ -0,0 +1,213 @@
+package com.zalora.jmemcached.snapshot;
+
+import com.zalora.jmemcached.CacheImpl;
+import com.zalora.jmemcached.LocalCacheElement;
+import com.zalora.jmemcached.StatsSource;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Restores a snapshot written by {@link SnapshotWriter} into a cache, one thread per shard up to a limit.
+ * <p/>
+ * Elements keep the expire time they had, so they live out the rest of their TTL rather than a new one, and those
+ * that expired while the snapshot sat on disk are dropped. Keys clients stored in the meantime are kept over the
+ * snapshot's, so the daemon can take traffic while loading. Every chunk is checked against its checksum; a shard
+ * that turns out corrupt or cut short stops there, keeping what it restored up to that point, and the other shards
+ * carry on.
+ */
+public final class SnapshotLoader implements StatsSource {
+
+    final Logger logger = LoggerFactory.getLogger(SnapshotLoader.class);
+
+    private final CacheImpl cache;
+    private final File base;
+
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    private final AtomicLong restored = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+    private final AtomicLong existing = new AtomicLong();
+    private final AtomicLong failedShards = new AtomicLong();
+    private volatile long loadMillis;
+
+    /**
+     * @param cache the cache to restore into; its stats get the load counters
+     * @param base  the path the snapshot was written to
+     */
+    public SnapshotLoader(CacheImpl cache, File base) {
+        this.cache = cache;
+        this.base = base;
+        cache.addStatsSource(this);
+    }
+
+    /**
+     * @param threads the most shards loaded at once
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * Restore the snapshot, waiting until every shard is loaded or has failed.
+     *
+     * @return whether every shard loaded whole; false as well if there is no snapshot
+     */
+    public boolean load() throws InterruptedException {
+        File first = SnapshotFormat.shardFile(base, 0);
+        if (!first.exists()) {
+            logger.info("no snapshot at " + base);
+            return false;
+        }
+
+        long start = System.currentTimeMillis();
+        final int shards;
+        final long snapshotId;
+        try {
+            ByteBuffer header = readHeader(first);
+            header.getInt();
+            shards = header.getInt();
+            snapshotId = header.getLong();
+        } catch (IOException e) {
+            logger.error("cannot read snapshot " + base, e);
+            failedShards.incrementAndGet();
+            return false;
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, shards)));
+        try {
+            List<Future<?>> loads = new ArrayList<Future<?>>(shards);
+            for (int shard = 0; shard < shards; shard++) {
+                final int s = shard;
+                loads.add(pool.submit(new Callable<Void>() {
+                    public Void call() throws IOException {
+                        loadShard(s, shards, snapshotId);
+                        return null;
+                    }
+                }));
+            }
+
+            boolean complete = true;
+            for (int shard = 0; shard < shards; shard++) {
+                try {
+                    loads.get(shard).get();
+                } catch (ExecutionException e) {
+                    complete = false;
+                    failedShards.incrementAndGet();
+                    logger.error("snapshot shard " + SnapshotFormat.shardFile(base, shard) + " stopped", e.getCause());
+                }
+            }
+
+            loadMillis = System.currentTimeMillis() - start;
+            logger.info("restored " + restored.get() + " element(s) from " + base + " in " + loadMillis + " ms, "
+                    + expired.get() + " expired, " + existing.get() + " already stored, " + failedShards.get() + " shard(s) failed");
+            return complete;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static ByteBuffer readHeader(File file) throws IOException {
+        FileChannel channel = new FileInputStream(file).getChannel();
+        try {
+            return readHeader(channel, file);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * @return the header, positioned at the shard number
+     */
+    private static ByteBuffer readHeader(FileChannel channel, File file) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(SnapshotFormat.HEADER_BYTES);
+        SnapshotFormat.readFully(channel, header);
+        if (header.getInt() != SnapshotFormat.MAGIC) throw new IOException(file + " is not a snapshot");
+        int version = header.getInt();
+        if (version != SnapshotFormat.VERSION) throw new IOException(file + " has unknown snapshot version " + version);
+        return header;
+    }
+
+    private void loadShard(int shard, int shards, long snapshotId) throws IOException {
+        File file = SnapshotFormat.shardFile(base, shard);
+        FileChannel channel = new FileInputStream(file).getChannel();
+        try {
+            ByteBuffer header = readHeader(channel, file);
+            if (header.getInt() != shard || header.getInt() != shards || header.getLong() != snapshotId) {
+                throw new IOException(file + " belongs to another snapshot");
+            }
+
+            long elements = 0;
+            ByteBuffer chunkHeader = ByteBuffer.allocate(SnapshotFormat.CHUNK_HEADER_BYTES);
+            while (true) {
+                long offset = channel.position();
+                chunkHeader.clear();
+                chunkHeader.limit(4);
+                SnapshotFormat.readFully(channel, chunkHeader);
+                int length = chunkHeader.getInt();
+                if (length == SnapshotFormat.TRAILER) {
+                    ByteBuffer trailer = ByteBuffer.allocate(8);
+                    SnapshotFormat.readFully(channel, trailer);
+                    long written = trailer.getLong();
+                    if (written != elements) throw new IOException(file + " holds " + elements + " element(s), the trailer says " + written);
+                    return;
+                }
+
+                chunkHeader.clear();
+                chunkHeader.limit(8);
+                SnapshotFormat.readFully(channel, chunkHeader);
+                int count = chunkHeader.getInt();
+                int crc = chunkHeader.getInt();
+                if (length < 0 || count < 0) throw new IOException(file + " has a broken chunk at " + offset);
+
+                ByteBuffer payload = ByteBuffer.allocate(length);
+                SnapshotFormat.readFully(channel, payload);
+                if (SnapshotFormat.crc(payload.array(), 0, length) != crc) {
+                    throw new IOException(file + " fails its checksum at " + offset);
+                }
+
+                restore(ChannelBuffers.wrappedBuffer(payload), count);
+                elements += count;
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void restore(ChannelBuffer payload, int count) {
+        for (int i = 0; i < count; i++) {
+            LocalCacheElement element = LocalCacheElement.readFromBuffer(payload);
+            if (element.getRemainingTtl() == 0) {
+                expired.incrementAndGet();
+            } else if (cache.restoreIfAbsent(element)) {
+                restored.incrementAndGet();
+            } else {
+                existing.incrementAndGet();
+            }
+        }
+    }
+
+    public Map<String, String> getStats() {
+        Map<String, String> stats = new HashMap<String, String>();
+        stats.put("snapshot_loaded_keys", String.valueOf(restored.get()));
+        stats.put("snapshot_load_expired", String.valueOf(expired.get()));
+        stats.put("snapshot_load_existing", String.valueOf(existing.get()));
+        stats.put("snapshot_load_failed_shards", String.valueOf(failedShards.get()));
+        stats.put("snapshot_load_ms", String.valueOf(loadMillis));
+        return stats;
+    }
+
+}
@@ -0,0 +1,232 @@
+package com.zalora.jmemcached.snapshot;
+
+import com.zalora.jmemcached.LocalCacheElement;
+import com.zalora.jmemcached.StatsSource;
+import com.zalora.jmemcached.storage.CacheStorage;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Dumps the cache to a snapshot on disk, in the background, for {@link SnapshotLoader} to restore after a restart or
+ * on another machine. See {@link SnapshotFormat} for the layout.
+ * <p/>
+ * A dump walks the storage while clients keep using it, nothing is locked or paused. Each element is written as it
+ * was at one moment, but the snapshot as a whole is not: keys changed during the dump may be in it with their old or
+ * their new state. Shards are written to temporary files and only moved in place once all of them are complete, so
+ * a failed dump leaves the previous snapshot alone.
+ */
+public final class SnapshotWriter implements StatsSource {
+
+    final Logger logger = LoggerFactory.getLogger(SnapshotWriter.class);
+
+    private final CacheStorage<String, LocalCacheElement> storage;
+    private final File base;
+
+    private int shards = 8;
+    private int chunkBytes = 1024 * 1024;
+
+    // guarded by this
+    private CompletableFuture<Long> running;
+
+    private final AtomicLong dumps = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private volatile long lastDumpAt;
+    private volatile long lastDumpKeys;
+    private volatile long lastDumpBytes;
+    private volatile long lastDumpMillis;
+
+    /**
+     * @param storage the storage of the cache to dump, which must own its keys
+     * @param base    the path of the snapshot; shards go next to it with their number appended
+     */
+    public SnapshotWriter(CacheStorage<String, LocalCacheElement> storage, File base) {
+        if (!storage.ownsKeys()) {
+            throw new IllegalStateException("a snapshot needs a storage that owns its keys, " + storage.getClass().getSimpleName() + " does not");
+        }
+        this.storage = storage;
+        this.base = base;
+    }
+
+    /**
+     * @param shards how many files the snapshot is split into, and so how many threads can load it at once
+     */
+    public void setShards(int shards) {
+        this.shards = shards;
+    }
+
+    /**
+     * @param chunkBytes roughly the most bytes per checksummed chunk
+     */
+    public void setChunkBytes(int chunkBytes) {
+        this.chunkBytes = chunkBytes;
+    }
+
+    /**
+     * Start a dump on a background thread, or join the one already running.
+     *
+     * @return the number of elements written, once the snapshot is in place
+     */
+    public synchronized CompletableFuture<Long> dump() {
+        if (running != null) {
+            return running;
+        }
+
+        final CompletableFuture<Long> dump = new CompletableFuture<Long>();
+        running = dump;
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                long keys = 0;
+                Throwable failure = null;
+                try {
+                    keys = write();
+                } catch (Throwable t) {
+                    errors.incrementAndGet();
+                    logger.error("snapshot dump to " + base + " failed", t);
+                    failure = t;
+                }
+
+                // done before completing, so whoever the completion wakes up can start the next dump
+                synchronized (SnapshotWriter.this) {
+                    running = null;
+                }
+                if (failure != null) dump.completeExceptionally(failure);
+                else dump.complete(keys);
+            }
+        }, "jmemcached-snapshot");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+        return dump;
+    }
+
+    private long write() throws IOException {
+        long start = System.currentTimeMillis();
+        int shards = Math.max(1, this.shards);
+
+        File[] temporary = new File[shards];
+        FileChannel[] files = new FileChannel[shards];
+        ChannelBuffer[] chunks = new ChannelBuffer[shards];
+        int[] chunkCounts = new int[shards];
+        long[] shardCounts = new long[shards];
+        long bytes = 0;
+        boolean complete = false;
+        try {
+            for (int shard = 0; shard < shards; shard++) {
+                temporary[shard] = new File(SnapshotFormat.shardFile(base, shard).getPath() + ".tmp");
+                files[shard] = new FileOutputStream(temporary[shard]).getChannel();
+
+                ByteBuffer header = ByteBuffer.allocate(SnapshotFormat.HEADER_BYTES);
+                header.putInt(SnapshotFormat.MAGIC).putInt(SnapshotFormat.VERSION).putInt(shard).putInt(shards).putLong(start);
+                header.flip();
+                SnapshotFormat.writeFully(files[shard], header);
+                bytes += SnapshotFormat.HEADER_BYTES;
+
+                chunks[shard] = newChunk();
+            }
+
+            for (String key : storage.keySet()) {
+                LocalCacheElement element = storage.get(key);
+                if (element == null || element.isBlocked() || element.getRemainingTtl() == 0) continue;
+
+                int shard = (key.hashCode() & Integer.MAX_VALUE) % shards;
+                element.writeToBuffer(chunks[shard]);
+                chunkCounts[shard]++;
+                shardCounts[shard]++;
+                if (chunks[shard].readableBytes() >= chunkBytes) {
+                    bytes += writeChunk(files[shard], chunks[shard], chunkCounts[shard]);
+                    chunks[shard] = newChunk();
+                    chunkCounts[shard] = 0;
+                }
+            }
+
+            for (int shard = 0; shard < shards; shard++) {
+                if (chunkCounts[shard] > 0) bytes += writeChunk(files[shard], chunks[shard], chunkCounts[shard]);
+
+                ByteBuffer trailer = ByteBuffer.allocate(4 + 8);
+                trailer.putInt(SnapshotFormat.TRAILER).putLong(shardCounts[shard]);
+                trailer.flip();
+                SnapshotFormat.writeFully(files[shard], trailer);
+                bytes += 4 + 8;
+
+                files[shard].force(false);
+                files[shard].close();
+            }
+            complete = true;
+        } finally {
+            if (!complete) {
+                for (int shard = 0; shard < shards; shard++) {
+                    if (files[shard] != null) files[shard].close();
+                    if (temporary[shard] != null) temporary[shard].delete();
+                }
+            }
+        }
+
+        for (int shard = 0; shard < shards; shard++) {
+            Files.move(temporary[shard].toPath(), SnapshotFormat.shardFile(base, shard).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        // shards of an earlier snapshot split more finely would be taken for part of this one
+        for (int shard = shards; SnapshotFormat.shardFile(base, shard).delete(); shard++) ;
+
+        long keys = 0;
+        for (long count : shardCounts) {
+            keys += count;
+        }
+        dumps.incrementAndGet();
+        lastDumpAt = start;
+        lastDumpKeys = keys;
+        lastDumpBytes = bytes;
+        lastDumpMillis = System.currentTimeMillis() - start;
+        logger.info("dumped " + keys + " element(s), " + bytes + " bytes in " + shards + " shard(s) to " + base
+                + " in " + lastDumpMillis + " ms");
+        return keys;
+    }
+
+    private ChannelBuffer newChunk() {
+        ChannelBuffer chunk = ChannelBuffers.dynamicBuffer(chunkBytes + 1024);
+        // the chunk header is filled in once the payload is complete
+        chunk.writerIndex(SnapshotFormat.CHUNK_HEADER_BYTES);
+        return chunk;
+    }
+
+    private static int writeChunk(FileChannel file, ChannelBuffer chunk, int count) throws IOException {
+        int payload = chunk.readableBytes() - SnapshotFormat.CHUNK_HEADER_BYTES;
+        chunk.setInt(0, payload);
+        chunk.setInt(4, count);
+        chunk.setInt(8, SnapshotFormat.crc(chunk.array(), chunk.arrayOffset() + SnapshotFormat.CHUNK_HEADER_BYTES, payload));
+        SnapshotFormat.writeFully(file, chunk.toByteBuffer());
+        return chunk.readableBytes();
+    }
+
+    public Map<String, String> getStats() {
+        boolean inProgress;
+        synchronized (this) {
+            inProgress = running != null;
+        }
+
+        Map<String, String> stats = new HashMap<String, String>();
+        stats.put("snapshot_dumps", String.valueOf(dumps.get()));
+        stats.put("snapshot_dump_errors", String.valueOf(errors.get()));
+        stats.put("snapshot_dump_in_progress", inProgress ? "1" : "0");
+        stats.put("snapshot_last_dump_time", String.valueOf(lastDumpAt / 1000));
+        stats.put("snapshot_last_dump_keys", String.valueOf(lastDumpKeys));
+        stats.put("snapshot_last_dump_bytes", String.valueOf(lastDumpBytes));
+        stats.put("snapshot_last_dump_ms", String.valueOf(lastDumpMillis));
+        return stats;
+    }
+
+}
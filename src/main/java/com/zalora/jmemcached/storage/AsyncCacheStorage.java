@@ -0,0 +1,36 @@
+package com.zalora.jmemcached.storage;
+
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Non-blocking counterpart of the map operations the cache performs on a {@link CacheStorage}. A storage unit whose
+ * lookups go over the network implements this next to {@link CacheStorage}, and the cache then drives it without
+ * holding a thread per request; the blocking methods are still used for the administrative paths (flush, stats,
+ * delayed deletes).
+ * <p/>
+ * Stages complete with exactly what the {@link java.util.concurrent.ConcurrentMap} method of the same name returns.
+ */
+public interface AsyncCacheStorage<K, V extends SizedItem> {
+
+    CompletionStage<V> getAsync(K key);
+
+    /**
+     * Positional multi-get, see {@link CacheStorage#getMulti(Object[], SizedItem[])}.
+     *
+     * @param keys    the keys to look up
+     * @param results receives the values, must be at least as long as keys
+     * @return a stage completing with results once every slot is filled in
+     */
+    CompletionStage<V[]> getMultiAsync(K[] keys, V[] results);
+
+    CompletionStage<V> putAsync(K key, V value);
+
+    CompletionStage<V> putIfAbsentAsync(K key, V value);
+
+    CompletionStage<V> replaceAsync(K key, V value);
+
+    CompletionStage<Boolean> replaceAsync(K key, V oldValue, V newValue);
+
+    CompletionStage<V> removeAsync(K key);
+
+}
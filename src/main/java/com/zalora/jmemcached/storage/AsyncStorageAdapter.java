@@ -0,0 +1,85 @@
+package com.zalora.jmemcached.storage;
+
+import com.zalora.jmemcached.AsyncCacheAdapter;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Exposes a blocking {@link CacheStorage} through the {@link AsyncCacheStorage} API. Every call runs on the calling
+ * thread and returns an already completed stage.
+ */
+public final class AsyncStorageAdapter<K, V extends SizedItem> implements AsyncCacheStorage<K, V> {
+
+    private final CacheStorage<K, V> storage;
+
+    public AsyncStorageAdapter(CacheStorage<K, V> storage) {
+        this.storage = storage;
+    }
+
+    /**
+     * @return the storage itself if it implements the async API, otherwise an adapter around it
+     */
+    @SuppressWarnings("unchecked")
+    public static <K, V extends SizedItem> AsyncCacheStorage<K, V> of(CacheStorage<K, V> storage) {
+        return storage instanceof AsyncCacheStorage ? (AsyncCacheStorage<K, V>) storage : new AsyncStorageAdapter<K, V>(storage);
+    }
+
+    public CompletionStage<V> getAsync(K key) {
+        try {
+            return CompletableFuture.completedFuture(storage.get(key));
+        } catch (Throwable t) {
+            return AsyncCacheAdapter.failed(t);
+        }
+    }
+
+    public CompletionStage<V[]> getMultiAsync(K[] keys, V[] results) {
+        try {
+            storage.getMulti(keys, results);
+            return CompletableFuture.completedFuture(results);
+        } catch (Throwable t) {
+            return AsyncCacheAdapter.failed(t);
+        }
+    }
+
+    public CompletionStage<V> putAsync(K key, V value) {
+        try {
+            return CompletableFuture.completedFuture(storage.put(key, value));
+        } catch (Throwable t) {
+            return AsyncCacheAdapter.failed(t);
+        }
+    }
+
+    public CompletionStage<V> putIfAbsentAsync(K key, V value) {
+        try {
+            return CompletableFuture.completedFuture(storage.putIfAbsent(key, value));
+        } catch (Throwable t) {
+            return AsyncCacheAdapter.failed(t);
+        }
+    }
+
+    public CompletionStage<V> replaceAsync(K key, V value) {
+        try {
+            return CompletableFuture.completedFuture(storage.replace(key, value));
+        } catch (Throwable t) {
+            return AsyncCacheAdapter.failed(t);
+        }
+    }
+
+    public CompletionStage<Boolean> replaceAsync(K key, V oldValue, V newValue) {
+        try {
+            return CompletableFuture.completedFuture(storage.replace(key, oldValue, newValue));
+        } catch (Throwable t) {
+            return AsyncCacheAdapter.failed(t);
+        }
+    }
+
+    public CompletionStage<V> removeAsync(K key) {
+        try {
+            return CompletableFuture.completedFuture(storage.remove(key));
+        } catch (Throwable t) {
+            return AsyncCacheAdapter.failed(t);
+        }
+    }
+
+}
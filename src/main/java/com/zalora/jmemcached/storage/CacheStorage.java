@@ -41,4 +41,27 @@ public interface CacheStorage<K, V extends SizedItem> extends ConcurrentMap<K, V
      */
     Collection<V> getMulti(Set<K> keys);
 
+    /**
+     * Positional multi-get: the value for keys[i] ends up in results[i], or null on a miss. Key order and duplicates
+     * are preserved. The default fans out to {@link #get(Object)}; backends with a native batch lookup should
+     * override it.
+     *
+     * @param keys    the keys to look up
+     * @param results receives the values, must be at least as long as keys
+     */
+    default void getMulti(K[] keys, V[] results) {
+        for (int i = 0; i < keys.length; i++) {
+            results[i] = get(keys[i]);
+        }
+    }
+
+    /**
+     * Whether every key in the storage was put there through this storage unit, and {@link #keySet()} lists them.
+     * Only then does a key this unit has not seen stored miss for sure, which a key filter in front of it relies on.
+     * Storages shared with other writers or unable to list their keys must return false.
+     */
+    default boolean ownsKeys() {
+        return true;
+    }
+
 }
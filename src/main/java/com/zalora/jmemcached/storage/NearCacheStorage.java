@@ -0,0 +1,444 @@
+package com.zalora.jmemcached.storage;
+
+import com.zalora.jmemcached.CacheElement;
+import com.zalora.jmemcached.StatsSource;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * A small local cache in front of a remote storage unit, so the hottest keys are served from memory instead of
+ * going over the network for every get.
+ * <p/>
+ * Values read from the backend are kept for at most the configured TTL (less if the element expires sooner), and
+ * the least recently used ones are evicted beyond the configured number of entries. Writes go straight to the
+ * backend and drop the local copy. Changes made to the backend by other clients are only seen once the local copy
+ * expires, unless the backend reports them through {@link #invalidate} or {@link #invalidateAll}.
+ * <p/>
+ * The entries are split over a fixed number of segments, each a small LRU map under its own lock. A segment's
+ * generation moves on with every write and invalidation, and a value read from the backend is only kept if the
+ * generation has not moved while the read was in flight, so a slow read cannot bring back a value that was just
+ * overwritten.
+ */
+public final class NearCacheStorage<K, V extends SizedItem> extends AbstractMap<K, V>
+        implements CacheStorage<K, V>, AsyncCacheStorage<K, V>, StatsSource {
+
+    private static final int SEGMENTS = 16;
+
+    private final CacheStorage<K, V> backend;
+    private final AsyncCacheStorage<K, V> asyncBackend;
+    private final int maxEntries;
+    private final long maxTtlNanos;
+    private final Segment[] segments;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    /**
+     * @param backend      the storage to front
+     * @param maxEntries   the most values kept locally
+     * @param maxTtlMillis the longest a value is served locally without asking the backend again
+     */
+    @SuppressWarnings("unchecked")
+    public NearCacheStorage(CacheStorage<K, V> backend, int maxEntries, long maxTtlMillis) {
+        this.backend = backend;
+        this.asyncBackend = AsyncStorageAdapter.of(backend);
+        this.maxEntries = maxEntries;
+        this.maxTtlNanos = TimeUnit.MILLISECONDS.toNanos(maxTtlMillis);
+
+        segments = (Segment[]) new NearCacheStorage<?, ?>.Segment[SEGMENTS];
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(Math.max(1, maxEntries / SEGMENTS));
+        }
+    }
+
+    /**
+     * Invalidation hook: drop the local copy of a key that changed in the backend.
+     */
+    public void invalidate(Object key) {
+        invalidations.incrementAndGet();
+        forget(key);
+    }
+
+    /**
+     * Invalidation hook: drop every local copy, for instance after the backend was flushed or the connection to its
+     * change feed was lost.
+     */
+    public void invalidateAll() {
+        invalidations.incrementAndGet();
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.generation++;
+                segment.clear();
+            }
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+        V value = local(key);
+        if (value != null) {
+            return value;
+        }
+
+        long generation = generation(key);
+        value = backend.get(key);
+        fill((K) key, value, generation);
+        return value;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return local(key) != null || backend.containsKey(key);
+    }
+
+    public Collection<V> getMulti(Set<K> keys) {
+        List<V> values = new ArrayList<V>(keys.size());
+        for (K key : keys) {
+            V value = get(key);
+            if (value != null) values.add(value);
+        }
+        return values;
+    }
+
+    /**
+     * Serve what is held locally, and fetch the rest from the backend in one positional multi-get.
+     */
+    public void getMulti(K[] keys, V[] results) {
+        int[] missing = localMulti(keys, results);
+        if (missing.length == 0) return;
+
+        long[] generations = generations(keys, missing);
+        K[] missingKeys = select(keys, missing);
+        V[] found = Arrays.copyOf(results, missing.length);
+        backend.getMulti(missingKeys, found);
+        fillMulti(missingKeys, found, generations, missing, results);
+    }
+
+    @Override
+    public V put(K key, V value) {
+        try {
+            return backend.put(key, value);
+        } finally {
+            forget(key);
+        }
+    }
+
+    public V putIfAbsent(K key, V value) {
+        try {
+            return backend.putIfAbsent(key, value);
+        } finally {
+            forget(key);
+        }
+    }
+
+    public V replace(K key, V value) {
+        try {
+            return backend.replace(key, value);
+        } finally {
+            forget(key);
+        }
+    }
+
+    public boolean replace(K key, V oldValue, V newValue) {
+        try {
+            return backend.replace(key, oldValue, newValue);
+        } finally {
+            forget(key);
+        }
+    }
+
+    @Override
+    public V remove(Object key) {
+        try {
+            return backend.remove(key);
+        } finally {
+            forget(key);
+        }
+    }
+
+    public boolean remove(Object key, Object value) {
+        try {
+            return backend.remove(key, value);
+        } finally {
+            forget(key);
+        }
+    }
+
+    @Override
+    public void clear() {
+        try {
+            backend.clear();
+        } finally {
+            for (Segment segment : segments) {
+                synchronized (segment) {
+                    segment.generation++;
+                    segment.clear();
+                }
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        return backend.size();
+    }
+
+    @Override
+    public Set<K> keySet() {
+        return backend.keySet();
+    }
+
+    /**
+     * @return false: the backend is shared, other clients store keys in it that never pass through here
+     */
+    public boolean ownsKeys() {
+        return false;
+    }
+
+    @Override
+    public Collection<V> values() {
+        return backend.values();
+    }
+
+    @Override
+    public Set<Map.Entry<K, V>> entrySet() {
+        return backend.entrySet();
+    }
+
+    public CompletionStage<V> getAsync(final K key) {
+        V value = local(key);
+        if (value != null) {
+            return CompletableFuture.completedFuture(value);
+        }
+
+        final long generation = generation(key);
+        return asyncBackend.getAsync(key).thenApply(new Function<V, V>() {
+            public V apply(V value) {
+                fill(key, value, generation);
+                return value;
+            }
+        });
+    }
+
+    public CompletionStage<V[]> getMultiAsync(final K[] keys, final V[] results) {
+        final int[] missing = localMulti(keys, results);
+        if (missing.length == 0) {
+            return CompletableFuture.completedFuture(results);
+        }
+
+        final long[] generations = generations(keys, missing);
+        final K[] missingKeys = select(keys, missing);
+        return asyncBackend.getMultiAsync(missingKeys, Arrays.copyOf(results, missing.length)).thenApply(new Function<V[], V[]>() {
+            public V[] apply(V[] found) {
+                fillMulti(missingKeys, found, generations, missing, results);
+                return results;
+            }
+        });
+    }
+
+    public CompletionStage<V> putAsync(K key, V value) {
+        return forgetAfter(key, asyncBackend.putAsync(key, value));
+    }
+
+    public CompletionStage<V> putIfAbsentAsync(K key, V value) {
+        return forgetAfter(key, asyncBackend.putIfAbsentAsync(key, value));
+    }
+
+    public CompletionStage<V> replaceAsync(K key, V value) {
+        return forgetAfter(key, asyncBackend.replaceAsync(key, value));
+    }
+
+    public CompletionStage<Boolean> replaceAsync(K key, V oldValue, V newValue) {
+        return forgetAfter(key, asyncBackend.replaceAsync(key, oldValue, newValue));
+    }
+
+    public CompletionStage<V> removeAsync(K key) {
+        return forgetAfter(key, asyncBackend.removeAsync(key));
+    }
+
+    public long getMemoryCapacity() {
+        return backend.getMemoryCapacity();
+    }
+
+    public long getMemoryUsed() {
+        return backend.getMemoryUsed();
+    }
+
+    public int capacity() {
+        return backend.capacity();
+    }
+
+    public void close() throws IOException {
+        backend.close();
+    }
+
+    public Map<String, String> getStats() {
+        int items = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                items += segment.size();
+            }
+        }
+
+        Map<String, String> stats = new HashMap<String, String>();
+        stats.put("near_cache_hits", String.valueOf(hits.get()));
+        stats.put("near_cache_misses", String.valueOf(misses.get()));
+        stats.put("near_cache_evictions", String.valueOf(evictions.get()));
+        stats.put("near_cache_expirations", String.valueOf(expirations.get()));
+        stats.put("near_cache_invalidations", String.valueOf(invalidations.get()));
+        stats.put("near_cache_items", String.valueOf(items));
+        stats.put("near_cache_max_items", String.valueOf(maxEntries));
+        return stats;
+    }
+
+    private Segment segment(Object key) {
+        int h = key.hashCode();
+        return segments[(h ^ (h >>> 16)) & (SEGMENTS - 1)];
+    }
+
+    /**
+     * @return the live local copy of a key, or null; counts as a near cache hit or miss
+     */
+    private V local(Object key) {
+        Segment segment = segment(key);
+        synchronized (segment) {
+            Entry<V> entry = segment.get(key);
+            if (entry != null) {
+                if (entry.expiresAt - System.nanoTime() > 0) {
+                    hits.incrementAndGet();
+                    return entry.value;
+                }
+                segment.remove(key);
+                expirations.incrementAndGet();
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Look up every key locally.
+     *
+     * @return the positions of the keys not held locally
+     */
+    private int[] localMulti(K[] keys, V[] results) {
+        int[] missing = new int[keys.length];
+        int count = 0;
+        for (int i = 0; i < keys.length; i++) {
+            results[i] = local(keys[i]);
+            if (results[i] == null) missing[count++] = i;
+        }
+        return count == keys.length ? missing : Arrays.copyOf(missing, count);
+    }
+
+    private long generation(Object key) {
+        Segment segment = segment(key);
+        synchronized (segment) {
+            return segment.generation;
+        }
+    }
+
+    private long[] generations(K[] keys, int[] positions) {
+        long[] generations = new long[positions.length];
+        for (int i = 0; i < positions.length; i++) {
+            generations[i] = generation(keys[positions[i]]);
+        }
+        return generations;
+    }
+
+    private static <T> T[] select(T[] values, int[] positions) {
+        T[] selected = Arrays.copyOf(values, positions.length);
+        for (int i = 0; i < positions.length; i++) {
+            selected[i] = values[positions[i]];
+        }
+        return selected;
+    }
+
+    private void fillMulti(K[] missingKeys, V[] found, long[] generations, int[] positions, V[] results) {
+        for (int i = 0; i < positions.length; i++) {
+            results[positions[i]] = found[i];
+            fill(missingKeys[i], found[i], generations[i]);
+        }
+    }
+
+    /**
+     * Keep a value read from the backend, unless its key's segment was written to since the read started.
+     */
+    private void fill(K key, V value, long generation) {
+        if (value == null) return;
+
+        long ttl = maxTtlNanos;
+        if (value instanceof CacheElement) {
+            long remaining = ((CacheElement) value).getRemainingTtl();
+            if (remaining == 0) return;
+            if (remaining > 0) ttl = Math.min(ttl, TimeUnit.SECONDS.toNanos(remaining));
+        }
+
+        Segment segment = segment(key);
+        synchronized (segment) {
+            if (segment.generation == generation) {
+                segment.put(key, new Entry<V>(value, System.nanoTime() + ttl));
+            }
+        }
+    }
+
+    private void forget(Object key) {
+        Segment segment = segment(key);
+        synchronized (segment) {
+            segment.generation++;
+            segment.remove(key);
+        }
+    }
+
+    private <T> CompletionStage<T> forgetAfter(final K key, CompletionStage<T> write) {
+        return write.whenComplete(new BiConsumer<T, Throwable>() {
+            public void accept(T result, Throwable failure) {
+                forget(key);
+            }
+        });
+    }
+
+    private static final class Entry<V> {
+        final V value;
+        final long expiresAt;
+
+        Entry(V value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * One lock's worth of local entries, in access order so the eldest entry is the least recently used one.
+     */
+    private final class Segment extends LinkedHashMap<K, Entry<V>> {
+        private static final long serialVersionUID = 1L;
+
+        private final int capacity;
+        long generation;
+
+        Segment(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+            if (size() <= capacity) return false;
+            evictions.incrementAndGet();
+            return true;
+        }
+    }
+
+}
@@ -0,0 +1,105 @@
+package com.zalora.jmemcached.storage.proxy;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Ketama consistent hashing, laid out the way libmemcached and twemproxy do it so a key lands on the same server as
+ * with those clients: every server gets 160 points on a 32 bit circle at equal weights, four per MD5 of
+ * {@code "host:port-i"}, and a key belongs to the first point at or after the first four bytes of its own MD5.
+ * Adding or removing a server only moves the keys between its points and their predecessors.
+ * <p/>
+ * A ring is immutable; the proxy builds a new one whenever the set of live servers changes.
+ */
+final class KetamaRing {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int HASHES_PER_SERVER = 40;
+    private static final int POINTS_PER_HASH = 4;
+
+    private static final ThreadLocal<MessageDigest> MD5 = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("MD5 not available", e);
+            }
+        }
+    };
+
+    private final long[] points;
+    private final Upstream[] owners;
+
+    /**
+     * @param upstreams the servers to spread keys over, at most 65536
+     */
+    KetamaRing(List<Upstream> upstreams) {
+        long totalWeight = 0;
+        for (Upstream upstream : upstreams) {
+            totalWeight += upstream.weight;
+        }
+
+        // point in the upper bits and server index in the lower 16, so one sort orders both
+        long[] packed = new long[0];
+        int count = 0;
+        for (int s = 0; s < upstreams.size(); s++) {
+            Upstream upstream = upstreams.get(s);
+            int hashes = (int) Math.floor((double) upstream.weight / totalWeight * HASHES_PER_SERVER * upstreams.size());
+            packed = Arrays.copyOf(packed, count + hashes * POINTS_PER_HASH);
+            for (int i = 0; i < hashes; i++) {
+                byte[] digest = md5(upstream.name + "-" + i);
+                for (int p = 0; p < POINTS_PER_HASH; p++) {
+                    packed[count++] = point(digest, p) << 16 | s;
+                }
+            }
+        }
+        Arrays.sort(packed, 0, count);
+
+        points = new long[count];
+        owners = new Upstream[count];
+        for (int i = 0; i < count; i++) {
+            points[i] = packed[i] >>> 16;
+            owners[i] = upstreams.get((int) (packed[i] & 0xFFFF));
+        }
+    }
+
+    /**
+     * @return the server owning the key, or null if the ring is empty
+     */
+    Upstream locate(String key) {
+        if (points.length == 0) return null;
+
+        long hash = point(md5(key), 0);
+        int i = Arrays.binarySearch(points, hash);
+        if (i < 0) i = -i - 1;
+        // equal points: the first of them wins, as in libmemcached
+        while (i > 0 && points[i - 1] == hash) i--;
+        return owners[i == points.length ? 0 : i];
+    }
+
+    boolean isEmpty() {
+        return points.length == 0;
+    }
+
+    private static byte[] md5(String s) {
+        MessageDigest md5 = MD5.get();
+        md5.reset();
+        return md5.digest(s.getBytes(UTF8));
+    }
+
+    /**
+     * @return the n-th little endian 32 bit word of the digest, unsigned
+     */
+    private static long point(byte[] digest, int n) {
+        return (long) (digest[3 + n * 4] & 0xFF) << 24
+                | (digest[2 + n * 4] & 0xFF) << 16
+                | (digest[1 + n * 4] & 0xFF) << 8
+                | (digest[n * 4] & 0xFF);
+    }
+
+}
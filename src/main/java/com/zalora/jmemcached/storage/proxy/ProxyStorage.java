@@ -0,0 +1,516 @@
+package com.zalora.jmemcached.storage.proxy;
+
+import com.zalora.jmemcached.AsyncCacheAdapter;
+import com.zalora.jmemcached.CacheElement;
+import com.zalora.jmemcached.LocalCacheElement;
+import com.zalora.jmemcached.StatsSource;
+import com.zalora.jmemcached.storage.AsyncCacheStorage;
+import com.zalora.jmemcached.storage.CacheStorage;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.socket.ClientSocketChannelFactory;
+import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
+import org.jboss.netty.util.HashedWheelTimer;
+import org.jboss.netty.util.Timer;
+
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * A storage unit that keeps nothing itself and forwards every operation to a pool of memcached servers, choosing
+ * the server of a key by ketama consistent hashing. Put behind a {@link com.zalora.jmemcached.CacheImpl} it turns
+ * the daemon into a memcached proxy, in the way twemproxy is used.
+ * <p/>
+ * The map operations become text protocol commands: lookups are {@code mg} with the value, flags, cas unique and
+ * remaining TTL, conditional replaces are {@code cas} on the cas unique of the element read, and the rest are
+ * {@code set}, {@code add}, {@code replace} and {@code delete}. The servers must therefore speak the meta commands,
+ * as memcached does since 1.6. A multi-get is split by server and every part sent at once, so it takes as long as
+ * the slowest server rather than the sum of them. Everything the cache does in terms of gets and compare-and-replace
+ * works across the proxy; leases and stale items are the exception, the servers keep no flags for them. The key set
+ * of a pool cannot be listed, so key filters do not work on top of it.
+ * <p/>
+ * A server that fails is ejected after a number of failures in a row and retried after a timeout, see
+ * {@link Upstream}. Errors reach clients as {@code SERVER_ERROR}, except in multi-gets, where the keys of a failing
+ * server come back as misses and the keys of the healthy ones are served.
+ * <p/>
+ * The settings are read when connections are opened, which happens on first use; set them before that.
+ */
+public final class ProxyStorage extends AbstractMap<String, LocalCacheElement>
+        implements CacheStorage<String, LocalCacheElement>, AsyncCacheStorage<String, LocalCacheElement>, StatsSource {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final ChannelBuffer CRLF = ChannelBuffers.copiedBuffer("\r\n", UTF8);
+
+    public static final int DEFAULT_PORT = 11211;
+    public static final int DEFAULT_CONNECTIONS_PER_UPSTREAM = 2;
+    public static final long DEFAULT_TIMEOUT_MILLIS = 1000;
+    public static final int DEFAULT_FAILURE_LIMIT = 2;
+    public static final long DEFAULT_RETRY_TIMEOUT_MILLIS = 30000;
+
+    final ClientSocketChannelFactory channelFactory;
+    final Timer timer;
+    private final ExecutorService callbacks;
+
+    volatile int connectionsPerUpstream = DEFAULT_CONNECTIONS_PER_UPSTREAM;
+    volatile long timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+    volatile int failureLimit = DEFAULT_FAILURE_LIMIT;
+    volatile long retryTimeoutMillis = DEFAULT_RETRY_TIMEOUT_MILLIS;
+
+    private final List<Upstream> upstreams = new ArrayList<Upstream>();
+    private volatile KetamaRing ring;
+    // when the first ejected server is due back, 0 if none is ejected
+    private volatile long nextRetry;
+    private volatile boolean closed;
+
+    /**
+     * @param servers the pool, each as {@code host:port} or {@code host:port:weight}; the weights are relative
+     */
+    public ProxyStorage(List<String> servers) {
+        if (servers.isEmpty() || servers.size() > 65536) {
+            throw new IllegalArgumentException("need between 1 and 65536 upstream servers");
+        }
+        for (String server : servers) {
+            String[] parts = server.trim().split(":");
+            int port = parts.length > 1 ? Integer.parseInt(parts[1]) : DEFAULT_PORT;
+            int weight = parts.length > 2 ? Integer.parseInt(parts[2]) : 1;
+            if (weight <= 0) throw new IllegalArgumentException("weight of " + server + " must be positive");
+            upstreams.add(new Upstream(this, parts[0], port, weight));
+        }
+
+        channelFactory = new NioClientSocketChannelFactory(Executors.newCachedThreadPool(), Executors.newCachedThreadPool());
+        timer = new HashedWheelTimer();
+        final AtomicInteger threads = new AtomicInteger();
+        callbacks = Executors.newCachedThreadPool(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "proxy-callback-" + threads.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        ring = new KetamaRing(upstreams);
+    }
+
+    /**
+     * @param connectionsPerUpstream how many pipelined connections to keep to each server
+     */
+    public void setConnectionsPerUpstream(int connectionsPerUpstream) {
+        this.connectionsPerUpstream = connectionsPerUpstream;
+    }
+
+    /**
+     * @param timeoutMillis how long to wait for a connection or a reply before the connection is given up
+     */
+    public void setTimeoutMillis(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * @param failureLimit how many failures in a row eject a server, 0 to never eject
+     */
+    public void setFailureLimit(int failureLimit) {
+        this.failureLimit = failureLimit;
+    }
+
+    /**
+     * @param retryTimeoutMillis how long an ejected server stays off the ring
+     */
+    public void setRetryTimeoutMillis(long retryTimeoutMillis) {
+        this.retryTimeoutMillis = retryTimeoutMillis;
+    }
+
+    @Override
+    public LocalCacheElement get(Object key) {
+        return join(getAsync((String) key));
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    public Collection<LocalCacheElement> getMulti(Set<String> keys) {
+        String[] keyArray = keys.toArray(new String[keys.size()]);
+        LocalCacheElement[] results = new LocalCacheElement[keyArray.length];
+        getMulti(keyArray, results);
+
+        List<LocalCacheElement> found = new ArrayList<LocalCacheElement>(results.length);
+        for (LocalCacheElement result : results) {
+            if (result != null) found.add(result);
+        }
+        return found;
+    }
+
+    public void getMulti(String[] keys, LocalCacheElement[] results) {
+        join(getMultiAsync(keys, results));
+    }
+
+    @Override
+    public LocalCacheElement put(String key, LocalCacheElement value) {
+        return join(putAsync(key, value));
+    }
+
+    public LocalCacheElement putIfAbsent(String key, LocalCacheElement value) {
+        return join(putIfAbsentAsync(key, value));
+    }
+
+    public LocalCacheElement replace(String key, LocalCacheElement value) {
+        return join(replaceAsync(key, value));
+    }
+
+    public boolean replace(String key, LocalCacheElement oldValue, LocalCacheElement newValue) {
+        return join(replaceAsync(key, oldValue, newValue));
+    }
+
+    @Override
+    public LocalCacheElement remove(Object key) {
+        return join(removeAsync((String) key));
+    }
+
+    /**
+     * Not supported: the text protocol has no delete conditional on the value, and the cache does not need one.
+     */
+    public boolean remove(Object key, Object value) {
+        throw new UnsupportedOperationException("conditional removes are not proxied");
+    }
+
+    public CompletionStage<LocalCacheElement> getAsync(final String key) {
+        return send(key, command("mg " + key + " v f c t")).thenApply(new Function<UpstreamReply, LocalCacheElement>() {
+            public LocalCacheElement apply(UpstreamReply reply) {
+                return element(key, reply);
+            }
+        });
+    }
+
+    public CompletionStage<LocalCacheElement[]> getMultiAsync(final String[] keys, final LocalCacheElement[] results) {
+        KetamaRing ring = ring();
+        if (ring.isEmpty()) {
+            return AsyncCacheAdapter.failed(noUpstream());
+        }
+
+        Map<Upstream, List<Integer>> byUpstream = new HashMap<Upstream, List<Integer>>();
+        for (int i = 0; i < keys.length; i++) {
+            Upstream upstream = ring.locate(keys[i]);
+            List<Integer> positions = byUpstream.get(upstream);
+            if (positions == null) {
+                positions = new ArrayList<Integer>();
+                byUpstream.put(upstream, positions);
+            }
+            positions.add(i);
+        }
+
+        List<CompletableFuture<?>> parts = new ArrayList<CompletableFuture<?>>(keys.length);
+        for (Map.Entry<Upstream, List<Integer>> entry : byUpstream.entrySet()) {
+            List<Integer> positions = entry.getValue();
+            List<ChannelBuffer> commands = new ArrayList<ChannelBuffer>(positions.size());
+            for (int position : positions) {
+                commands.add(command("mg " + keys[position] + " v f c t"));
+            }
+
+            List<CompletableFuture<UpstreamReply>> replies = entry.getKey().send(commands);
+            for (int i = 0; i < replies.size(); i++) {
+                final int position = positions.get(i);
+                parts.add(replies.get(i).handle(new BiFunction<UpstreamReply, Throwable, Void>() {
+                    public Void apply(UpstreamReply reply, Throwable failure) {
+                        try {
+                            results[position] = failure == null ? element(keys[position], reply) : null;
+                        } catch (UpstreamException e) {
+                            results[position] = null;
+                        }
+                        return null;
+                    }
+                }));
+            }
+        }
+
+        return CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[parts.size()])).thenApply(new Function<Void, LocalCacheElement[]>() {
+            public LocalCacheElement[] apply(Void done) {
+                return results;
+            }
+        });
+    }
+
+    public CompletionStage<LocalCacheElement> putAsync(String key, LocalCacheElement value) {
+        return send(key, storageCommand("set", value, "")).thenApply(new Function<UpstreamReply, LocalCacheElement>() {
+            public LocalCacheElement apply(UpstreamReply reply) {
+                if (!reply.is("STORED")) throw error(reply);
+                // the protocol does not return what was there before
+                return null;
+            }
+        });
+    }
+
+    public CompletionStage<LocalCacheElement> putIfAbsentAsync(final String key, final LocalCacheElement value) {
+        return send(key, storageCommand("add", value, "")).thenCompose(new Function<UpstreamReply, CompletionStage<LocalCacheElement>>() {
+            public CompletionStage<LocalCacheElement> apply(UpstreamReply reply) {
+                if (reply.is("STORED")) return CompletableFuture.completedFuture(null);
+                if (!reply.is("NOT_STORED")) throw error(reply);
+
+                // the protocol does not say what is in the way, so look it up, and try again if it is gone by then
+                return getAsync(key).thenCompose(new Function<LocalCacheElement, CompletionStage<LocalCacheElement>>() {
+                    public CompletionStage<LocalCacheElement> apply(LocalCacheElement existing) {
+                        return existing != null ? CompletableFuture.completedFuture(existing) : putIfAbsentAsync(key, value);
+                    }
+                });
+            }
+        });
+    }
+
+    public CompletionStage<LocalCacheElement> replaceAsync(String key, final LocalCacheElement value) {
+        return send(key, storageCommand("replace", value, "")).thenApply(new Function<UpstreamReply, LocalCacheElement>() {
+            public LocalCacheElement apply(UpstreamReply reply) {
+                if (reply.is("NOT_STORED")) return null;
+                if (!reply.is("STORED")) throw error(reply);
+                // the previous value is not returned; the new one stands in for it, all callers need is non-null
+                return value;
+            }
+        });
+    }
+
+    public CompletionStage<Boolean> replaceAsync(String key, LocalCacheElement oldValue, LocalCacheElement newValue) {
+        return send(key, storageCommand("cas", newValue, " " + oldValue.getCasUnique())).thenApply(new Function<UpstreamReply, Boolean>() {
+            public Boolean apply(UpstreamReply reply) {
+                if (reply.is("STORED")) return true;
+                if (reply.is("EXISTS") || reply.is("NOT_FOUND")) return false;
+                throw error(reply);
+            }
+        });
+    }
+
+    public CompletionStage<LocalCacheElement> removeAsync(final String key) {
+        return send(key, command("delete " + key)).thenApply(new Function<UpstreamReply, LocalCacheElement>() {
+            public LocalCacheElement apply(UpstreamReply reply) {
+                if (reply.is("NOT_FOUND")) return null;
+                if (!reply.is("DELETED")) throw error(reply);
+                // the removed value is not returned either; an element with just the key stands in for it
+                return LocalCacheElement.key(key);
+            }
+        });
+    }
+
+    /**
+     * Flush every server on the ring.
+     */
+    @Override
+    public void clear() {
+        List<CompletableFuture<UpstreamReply>> replies = new ArrayList<CompletableFuture<UpstreamReply>>();
+        for (Upstream upstream : liveUpstreams()) {
+            replies.add(upstream.send(command("flush_all")));
+        }
+        for (CompletableFuture<UpstreamReply> reply : replies) {
+            UpstreamReply flushed = join(reply);
+            if (!flushed.is("OK")) throw error(flushed);
+        }
+    }
+
+    /**
+     * @return the number of items on all servers on the ring
+     */
+    @Override
+    public int size() {
+        return (int) Math.min(Integer.MAX_VALUE, sumStats("curr_items"));
+    }
+
+    @Override
+    public Set<Entry<String, LocalCacheElement>> entrySet() {
+        throw new UnsupportedOperationException("the keys of an upstream pool cannot be listed");
+    }
+
+    /**
+     * @return false: the keys of the pool cannot be listed, and other clients write to the servers too
+     */
+    public boolean ownsKeys() {
+        return false;
+    }
+
+    public long getMemoryCapacity() {
+        return sumStats("limit_maxbytes");
+    }
+
+    public long getMemoryUsed() {
+        // memcached calls it bytes, jmemcached current_bytes
+        return sumStats("bytes", "current_bytes");
+    }
+
+    /**
+     * @return no limit; the servers are bounded by memory, not by a number of items
+     */
+    public int capacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    public void close() {
+        closed = true;
+        for (Upstream upstream : upstreams) {
+            upstream.close();
+        }
+        channelFactory.releaseExternalResources();
+        timer.stop();
+        callbacks.shutdown();
+    }
+
+    public Map<String, String> getStats() {
+        long now = System.currentTimeMillis();
+        int live = 0;
+
+        Map<String, String> stats = new HashMap<String, String>();
+        for (Upstream upstream : upstreams) {
+            boolean ejected = upstream.isEjected(now);
+            if (!ejected) live++;
+
+            String prefix = "proxy_upstream_" + upstream.name + "_";
+            stats.put(prefix + "requests", String.valueOf(upstream.requests.get()));
+            stats.put(prefix + "failures", String.valueOf(upstream.failures.get()));
+            stats.put(prefix + "timeouts", String.valueOf(upstream.timeouts.get()));
+            stats.put(prefix + "ejections", String.valueOf(upstream.ejections.get()));
+            stats.put(prefix + "ejected", ejected ? "1" : "0");
+        }
+        stats.put("proxy_upstreams", String.valueOf(upstreams.size()));
+        stats.put("proxy_upstreams_live", String.valueOf(live));
+        return stats;
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Run a completion off the I/O threads; inline once the proxy is closed.
+     */
+    void callback(Runnable completion) {
+        try {
+            callbacks.execute(completion);
+        } catch (RejectedExecutionException e) {
+            completion.run();
+        }
+    }
+
+    /**
+     * Take ejected servers off the ring and put those whose retry timeout has passed back on.
+     */
+    synchronized void rebuildRing() {
+        long now = System.currentTimeMillis();
+        List<Upstream> live = new ArrayList<Upstream>(upstreams.size());
+        long nextRetry = 0;
+        for (Upstream upstream : upstreams) {
+            long ejectedUntil = upstream.getEjectedUntil();
+            if (ejectedUntil != 0 && ejectedUntil <= now) {
+                upstream.reinstate();
+                ejectedUntil = 0;
+            }
+
+            if (ejectedUntil == 0) live.add(upstream);
+            else if (nextRetry == 0 || ejectedUntil < nextRetry) nextRetry = ejectedUntil;
+        }
+
+        ring = new KetamaRing(live);
+        this.nextRetry = nextRetry;
+    }
+
+    private KetamaRing ring() {
+        long nextRetry = this.nextRetry;
+        if (nextRetry != 0 && System.currentTimeMillis() >= nextRetry) {
+            rebuildRing();
+        }
+        return ring;
+    }
+
+    private List<Upstream> liveUpstreams() {
+        ring();
+        long now = System.currentTimeMillis();
+        List<Upstream> live = new ArrayList<Upstream>(upstreams.size());
+        for (Upstream upstream : upstreams) {
+            if (!upstream.isEjected(now)) live.add(upstream);
+        }
+        return live;
+    }
+
+    private CompletableFuture<UpstreamReply> send(String key, ChannelBuffer command) {
+        Upstream upstream = ring().locate(key);
+        return upstream != null ? upstream.send(command) : AsyncCacheAdapter.<UpstreamReply>failed(noUpstream());
+    }
+
+    /**
+     * Add up counters over the servers on the ring; servers that do not answer count as 0.
+     */
+    private long sumStats(String... names) {
+        List<CompletableFuture<UpstreamReply>> replies = new ArrayList<CompletableFuture<UpstreamReply>>();
+        for (Upstream upstream : liveUpstreams()) {
+            replies.add(upstream.send(command("stats")));
+        }
+
+        long sum = 0;
+        for (CompletableFuture<UpstreamReply> reply : replies) {
+            try {
+                Map<String, String> stats = reply.join().stats;
+                for (String name : names) {
+                    if (stats != null && stats.containsKey(name)) sum += Long.parseLong(stats.get(name));
+                }
+            } catch (CompletionException ignored) {
+                // counted against the server already
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        return sum;
+    }
+
+    private static LocalCacheElement element(String key, UpstreamReply reply) {
+        if (reply.is("EN")) return null;
+        if (!reply.is("VA")) throw error(reply);
+
+        // t is -1 for items that do not expire; a relative expire counts from the moment the element is made
+        long ttl = longFlag(reply, 't', -1);
+        long expire = ttl < 0 ? 0 : Math.max(1, ttl) * 1000;
+        LocalCacheElement element = new LocalCacheElement(key, longFlag(reply, 'f', 0), expire, longFlag(reply, 'c', 0));
+        element.setData(reply.value);
+        return element;
+    }
+
+    private static long longFlag(UpstreamReply reply, char flag, long defaultValue) {
+        String token = reply.flag(flag);
+        return token == null ? defaultValue : Long.parseLong(token);
+    }
+
+    private static ChannelBuffer command(String line) {
+        return ChannelBuffers.copiedBuffer(line + "\r\n", UTF8);
+    }
+
+    private static ChannelBuffer storageCommand(String command, LocalCacheElement element, String suffix) {
+        // placeholders of delayed deletes carry no data
+        ChannelBuffer data = element.isBlocked() ? ChannelBuffers.EMPTY_BUFFER : element.getData();
+        String header = command + " " + element.getKey() + " " + element.getFlags() + " " + exptime(element.getExpire())
+                + " " + data.readableBytes() + suffix + "\r\n";
+        return ChannelBuffers.wrappedBuffer(ChannelBuffers.copiedBuffer(header, UTF8), data, CRLF);
+    }
+
+    /**
+     * @return the expire in protocol form: seconds, relative up to thirty days and absolute beyond
+     */
+    private static long exptime(long expireMillis) {
+        if (expireMillis == 0) return 0;
+        if (expireMillis > CacheElement.THIRTY_DAYS) return expireMillis / 1000;
+        return Math.max(1, (expireMillis + 999) / 1000);
+    }
+
+    private static UpstreamException error(UpstreamReply reply) {
+        return new UpstreamException("upstream replied " + reply.line);
+    }
+
+    private static UpstreamException noUpstream() {
+        return new UpstreamException("no upstream server available");
+    }
+
+    private static <T> T join(CompletionStage<T> stage) {
+        try {
+            return stage.toCompletableFuture().join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new UpstreamException(String.valueOf(cause.getMessage()), cause);
+        }
+    }
+
+}
@@ -0,0 +1,321 @@
+package com.zalora.jmemcached.storage.proxy;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.*;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.TimerTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One server of a {@link ProxyStorage} pool, reached over a few persistent connections that requests are spread
+ * over round robin.
+ * <p/>
+ * Each connection is pipelined: commands are written as they come, without waiting for the replies before them,
+ * and since a memcached server answers in order, replies are matched to requests by a FIFO. A connection that
+ * fails, or keeps a reply waiting longer than the timeout, is closed, which fails everything still waiting on it;
+ * the stream cannot be trusted to be in step after that. The next request opens a new one.
+ * <p/>
+ * After a number of failures in a row the server is ejected: the proxy takes it off the ring, so its keys go to the
+ * other servers, and puts it back once the retry timeout has passed. A single failure after that ejects it again, a
+ * single success makes it a regular member.
+ */
+final class Upstream {
+
+    final Logger logger = LoggerFactory.getLogger(Upstream.class);
+
+    final String name;
+    final int weight;
+
+    private final ProxyStorage proxy;
+    private final InetSocketAddress address;
+
+    private volatile Connection[] connections;
+    private final AtomicInteger nextConnection = new AtomicInteger();
+
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private volatile long ejectedUntil;
+
+    final AtomicLong requests = new AtomicLong();
+    final AtomicLong failures = new AtomicLong();
+    final AtomicLong timeouts = new AtomicLong();
+    final AtomicLong ejections = new AtomicLong();
+
+    Upstream(ProxyStorage proxy, String host, int port, int weight) {
+        this.proxy = proxy;
+        this.name = host + ":" + port;
+        this.weight = weight;
+        this.address = new InetSocketAddress(host, port);
+    }
+
+    CompletableFuture<UpstreamReply> send(ChannelBuffer command) {
+        return send(Collections.singletonList(command)).get(0);
+    }
+
+    /**
+     * Send commands down one connection in a single write.
+     *
+     * @return the replies, in the order of the commands
+     */
+    List<CompletableFuture<UpstreamReply>> send(List<ChannelBuffer> commands) {
+        requests.addAndGet(commands.size());
+        return connection().send(commands);
+    }
+
+    /**
+     * @return whether the server is off the ring at the given time
+     */
+    boolean isEjected(long now) {
+        return ejectedUntil > now;
+    }
+
+    /**
+     * @return when the server is due back on the ring, or 0 if it is on it
+     */
+    long getEjectedUntil() {
+        return ejectedUntil;
+    }
+
+    /**
+     * Let an ejected server whose retry timeout has passed take requests again.
+     */
+    void reinstate() {
+        ejectedUntil = 0;
+    }
+
+    void close() {
+        Connection[] connections = this.connections;
+        if (connections == null) return;
+        for (Connection connection : connections) {
+            if (connection != null) connection.channel.close();
+        }
+    }
+
+    private Connection connection() {
+        Connection[] connections = this.connections;
+        if (connections == null) {
+            synchronized (this) {
+                if (this.connections == null) this.connections = new Connection[Math.max(1, proxy.connectionsPerUpstream)];
+                connections = this.connections;
+            }
+        }
+
+        int i = (nextConnection.getAndIncrement() & Integer.MAX_VALUE) % connections.length;
+        Connection connection = connections[i];
+        if (connection == null || connection.isClosed()) {
+            synchronized (this) {
+                connection = connections[i];
+                if (connection == null || connection.isClosed()) {
+                    connection = new Connection();
+                    connections[i] = connection;
+                }
+            }
+        }
+        return connection;
+    }
+
+    private void succeeded() {
+        if (consecutiveFailures.get() != 0) consecutiveFailures.set(0);
+    }
+
+    private void failed(Throwable cause) {
+        failures.incrementAndGet();
+        int failuresInARow = consecutiveFailures.incrementAndGet();
+        int limit = proxy.failureLimit;
+        if (limit > 0 && failuresInARow >= limit) {
+            eject(failuresInARow, cause);
+        } else {
+            logger.warn("upstream " + name + " failed: " + cause.getMessage());
+        }
+    }
+
+    private synchronized void eject(int failuresInARow, Throwable cause) {
+        if (ejectedUntil != 0 || proxy.isClosed()) return;
+
+        ejectedUntil = System.currentTimeMillis() + proxy.retryTimeoutMillis;
+        ejections.incrementAndGet();
+        logger.warn("ejecting upstream " + name + " for " + proxy.retryTimeoutMillis + " ms after " + failuresInARow
+                + " failure(s) in a row, the last one: " + cause.getMessage());
+        proxy.rebuildRing();
+    }
+
+    /**
+     * A request waiting for its reply. Only the last request of a write carries a timeout: replies come in order,
+     * so once it is answered the ones before it are as well.
+     */
+    private static final class Pending {
+        final CompletableFuture<UpstreamReply> reply = new CompletableFuture<UpstreamReply>();
+        Timeout timeout;
+    }
+
+    private final class Connection extends SimpleChannelUpstreamHandler {
+
+        final Channel channel;
+
+        // guarded by this
+        private final ArrayDeque<Pending> pending = new ArrayDeque<Pending>();
+        private List<ChannelBuffer> unsent = new ArrayList<ChannelBuffer>();
+        private boolean closed;
+        private Throwable failure;
+
+        Connection() {
+            channel = proxy.channelFactory.newChannel(Channels.pipeline(new UpstreamResponseDecoder(), this));
+            channel.getConfig().setOption("tcpNoDelay", true);
+            channel.getConfig().setConnectTimeoutMillis((int) proxy.timeoutMillis);
+            channel.connect(address).addListener(new ChannelFutureListener() {
+                public void operationComplete(ChannelFuture future) {
+                    if (future.isSuccess()) connected();
+                    else fail(new UpstreamException("cannot connect to upstream " + name, future.getCause()));
+                }
+            });
+        }
+
+        synchronized boolean isClosed() {
+            return closed;
+        }
+
+        List<CompletableFuture<UpstreamReply>> send(List<ChannelBuffer> commands) {
+            List<CompletableFuture<UpstreamReply>> replies = new ArrayList<CompletableFuture<UpstreamReply>>(commands.size());
+            ChannelBuffer batch = commands.size() == 1
+                    ? commands.get(0)
+                    : ChannelBuffers.wrappedBuffer(commands.toArray(new ChannelBuffer[commands.size()]));
+
+            Pending last = null;
+            Throwable failure = null;
+            synchronized (this) {
+                for (int i = 0; i < commands.size(); i++) {
+                    last = new Pending();
+                    replies.add(last.reply);
+                    if (!closed) pending.add(last);
+                }
+                if (closed) {
+                    failure = this.failure;
+                } else if (unsent != null) {
+                    unsent.add(batch);
+                } else {
+                    channel.write(batch);
+                }
+            }
+
+            if (failure != null) {
+                fail(replies, failure);
+            } else {
+                final Pending awaited = last;
+                awaited.timeout = proxy.timer.newTimeout(new TimerTask() {
+                    public void run(Timeout timeout) {
+                        if (!awaited.reply.isDone()) {
+                            timeouts.incrementAndGet();
+                            fail(new UpstreamException("upstream " + name + " did not answer within " + proxy.timeoutMillis + " ms"));
+                        }
+                    }
+                }, proxy.timeoutMillis, TimeUnit.MILLISECONDS);
+            }
+            return replies;
+        }
+
+        private synchronized void connected() {
+            if (closed) return;
+            for (ChannelBuffer batch : unsent) {
+                channel.write(batch);
+            }
+            unsent = null;
+        }
+
+        @Override
+        public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) {
+            Pending head;
+            synchronized (this) {
+                head = pending.poll();
+            }
+            if (head == null) {
+                fail(new UpstreamException("upstream " + name + " sent a reply nobody asked for"));
+                return;
+            }
+
+            if (head.timeout != null) head.timeout.cancel();
+            succeeded();
+            complete(head.reply, (UpstreamReply) e.getMessage());
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e) {
+            fail(new UpstreamException("upstream " + name + " failed", e.getCause()));
+        }
+
+        @Override
+        public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) {
+            boolean wasConnected;
+            synchronized (this) {
+                wasConnected = unsent == null;
+            }
+            if (proxy.isClosed()) {
+                fail(new UpstreamException("proxy closed"));
+            } else if (wasConnected) {
+                fail(new UpstreamException("upstream " + name + " closed the connection"));
+            } else {
+                fail(new UpstreamException("cannot connect to upstream " + name));
+            }
+        }
+
+        /**
+         * Close the connection and fail everything waiting on it; only the first failure of a connection counts
+         * against the server.
+         */
+        private void fail(Throwable cause) {
+            List<CompletableFuture<UpstreamReply>> waiting = new ArrayList<CompletableFuture<UpstreamReply>>();
+            boolean first = false;
+            Throwable failure;
+            synchronized (this) {
+                if (!closed) {
+                    closed = true;
+                    first = true;
+                    this.failure = cause;
+                    unsent = null;
+                }
+                for (Pending p : pending) {
+                    if (p.timeout != null) p.timeout.cancel();
+                    waiting.add(p.reply);
+                }
+                pending.clear();
+                failure = this.failure;
+            }
+
+            // outside the lock: ejecting takes the server's lock, which is held while connections are opened
+            if (first && !proxy.isClosed()) failed(cause);
+            channel.close();
+            fail(waiting, failure);
+        }
+
+        private void complete(final CompletableFuture<UpstreamReply> reply, final UpstreamReply value) {
+            // callers go on from here; keep them off the I/O thread, which a blocking call there would deadlock
+            proxy.callback(new Runnable() {
+                public void run() {
+                    reply.complete(value);
+                }
+            });
+        }
+
+        private void fail(final List<CompletableFuture<UpstreamReply>> replies, final Throwable cause) {
+            if (replies.isEmpty()) return;
+            proxy.callback(new Runnable() {
+                public void run() {
+                    for (CompletableFuture<UpstreamReply> reply : replies) {
+                        reply.completeExceptionally(cause);
+                    }
+                }
+            });
+        }
+    }
+
+}
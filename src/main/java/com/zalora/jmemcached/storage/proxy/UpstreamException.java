@@ -0,0 +1,20 @@
+package com.zalora.jmemcached.storage.proxy;
+
+import com.zalora.jmemcached.StorageException;
+
+/**
+ * An upstream server could not be reached, did not answer in time, or answered with an error.
+ */
+public class UpstreamException extends StorageException {
+
+    private static final long serialVersionUID = 1L;
+
+    public UpstreamException(String message) {
+        super(message);
+    }
+
+    public UpstreamException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+}
@@ -0,0 +1,42 @@
+package com.zalora.jmemcached.storage.proxy;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+import java.util.Map;
+
+/**
+ * One response from an upstream server: the status line, plus the value of a {@code VA} response or the counters of
+ * a {@code stats} response.
+ */
+final class UpstreamReply {
+
+    final String line;
+    final ChannelBuffer value;
+    final Map<String, String> stats;
+
+    UpstreamReply(String line, ChannelBuffer value, Map<String, String> stats) {
+        this.line = line;
+        this.value = value;
+        this.stats = stats;
+    }
+
+    boolean is(String status) {
+        return line.equals(status) || line.startsWith(status) && line.length() > status.length() && line.charAt(status.length()) == ' ';
+    }
+
+    /**
+     * @return the token of a meta return flag, or null if the response does not carry it
+     */
+    String flag(char flag) {
+        int start = line.indexOf(' ');
+        while (start >= 0 && start + 1 < line.length()) {
+            int end = line.indexOf(' ', start + 1);
+            if (line.charAt(start + 1) == flag) {
+                return line.substring(start + 2, end < 0 ? line.length() : end);
+            }
+            start = end;
+        }
+        return null;
+    }
+
+}
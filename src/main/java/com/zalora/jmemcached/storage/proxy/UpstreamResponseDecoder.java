@@ -0,0 +1,68 @@
+package com.zalora.jmemcached.storage.proxy;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.handler.codec.frame.FrameDecoder;
+import org.jboss.netty.handler.codec.frame.TooLongFrameException;
+
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Splits what an upstream server sends into {@link UpstreamReply}s. The proxy only sends commands answered by a
+ * single line, {@code mg} whose {@code VA} response is followed by the value, and {@code stats} whose {@code STAT}
+ * lines are gathered up to the closing {@code END}.
+ */
+final class UpstreamResponseDecoder extends FrameDecoder {
+
+    private static final Charset USASCII = Charset.forName("US-ASCII");
+
+    private static final int MAX_LINE_LENGTH = 2048;
+
+    private Map<String, String> stats;
+
+    @Override
+    protected Object decode(ChannelHandlerContext ctx, Channel channel, ChannelBuffer buffer) throws Exception {
+        int eol = buffer.indexOf(buffer.readerIndex(), buffer.writerIndex(), (byte) '\n');
+        if (eol < 0) {
+            if (buffer.readableBytes() > MAX_LINE_LENGTH) {
+                throw new TooLongFrameException("upstream response line longer than " + MAX_LINE_LENGTH + " bytes");
+            }
+            return null;
+        }
+
+        int lineLength = eol - buffer.readerIndex();
+        int contentLength = lineLength > 0 && buffer.getByte(eol - 1) == '\r' ? lineLength - 1 : lineLength;
+        String line = buffer.toString(buffer.readerIndex(), contentLength, USASCII);
+
+        if (line.startsWith("VA ")) {
+            int end = line.indexOf(' ', 3);
+            int size = Integer.parseInt(line.substring(3, end < 0 ? line.length() : end));
+            // the value and its CRLF have to be there as well
+            if (buffer.readableBytes() < lineLength + 1 + size + 2) {
+                return null;
+            }
+            buffer.skipBytes(lineLength + 1);
+            ChannelBuffer value = buffer.readBytes(size);
+            buffer.skipBytes(2);
+            return new UpstreamReply(line, value, null);
+        }
+
+        buffer.skipBytes(lineLength + 1);
+        if (line.startsWith("STAT ")) {
+            if (stats == null) stats = new HashMap<String, String>();
+            int end = line.indexOf(' ', 5);
+            if (end > 0) stats.put(line.substring(5, end), line.substring(end + 1));
+            return null;
+        }
+        if (line.equals("END") && stats != null) {
+            Map<String, String> collected = stats;
+            stats = null;
+            return new UpstreamReply(line, null, collected);
+        }
+        return new UpstreamReply(line, null, null);
+    }
+
+}
@@ -0,0 +1,103 @@
+package com.zalora.jmemcached.util;
+
+/**
+ * A Bloom filter over strings on top of an {@link OpenBitSet}.
+ * <p/>
+ * Adds are serialized, lookups take no lock: an add bumps a volatile counter once its bits are set and a lookup reads
+ * that counter first, so a lookup sees every add that completed before it started. Bit indexes come from two 64 bit
+ * hashes of the key combined as {@code h1 + i * h2} (Kirsch and Mitzenmacher), which is as good as independent
+ * hashes for this purpose.
+ */
+public final class BloomFilter {
+
+    private final OpenBitSet bits;
+    private final long numBits;
+    private final int numHashes;
+
+    private volatile long adds;
+
+    /**
+     * Size the filter for the given number of keys at the given false positive probability.
+     *
+     * @param expectedItems     how many keys the filter is meant to hold
+     * @param falsePositiveRate the probability of a lookup of an absent key answering true, once that many are in
+     */
+    public BloomFilter(long expectedItems, double falsePositiveRate) {
+        long n = Math.max(1, expectedItems);
+        double ln2 = Math.log(2);
+        numBits = Math.max(64, (long) Math.ceil(-n * Math.log(falsePositiveRate) / (ln2 * ln2)));
+        numHashes = Math.max(1, (int) Math.round((double) numBits / n * ln2));
+        bits = new OpenBitSet(numBits);
+    }
+
+    public synchronized void add(String key) {
+        long h1 = hash(key);
+        long h2 = mix(h1 ^ 0x9E3779B97F4A7C15L) | 1;
+        for (int i = 0; i < numHashes; i++) {
+            bits.fastSet(index(h1 + i * h2));
+        }
+        adds++;
+    }
+
+    /**
+     * @return false if the key has definitely not been added, true if it probably has
+     */
+    public boolean mightContain(String key) {
+        if (adds == 0) return false;
+
+        long h1 = hash(key);
+        long h2 = mix(h1 ^ 0x9E3779B97F4A7C15L) | 1;
+        for (int i = 0; i < numHashes; i++) {
+            if (!bits.fastGet(index(h1 + i * h2))) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the false positive probability at the current fill, {@code (set bits / bits) ^ hashes}
+     */
+    public double expectedFalsePositiveRate() {
+        return Math.pow((double) bits.cardinality() / numBits, numHashes);
+    }
+
+    public long getNumBits() {
+        return numBits;
+    }
+
+    public int getNumHashes() {
+        return numHashes;
+    }
+
+    /**
+     * @return how many adds the filter has seen, repeated keys included
+     */
+    public long getAdds() {
+        return adds;
+    }
+
+    private long index(long hash) {
+        return (hash & Long.MAX_VALUE) % numBits;
+    }
+
+    /**
+     * 64 bit FNV-1a over the characters of the key, finished with the MurmurHash3 mixer to spread the low bits.
+     */
+    private static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return mix(h);
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+}
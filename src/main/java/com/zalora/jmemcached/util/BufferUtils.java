@@ -3,6 +3,8 @@ package com.zalora.jmemcached.util;
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
 
+import java.nio.charset.Charset;
+
 /**
  * @author Ryan Daum
  */
@@ -42,8 +44,26 @@ public class BufferUtils {
             '0', '1', '2', '3', '4', '5', '6', '7', '8', '9',
             '0', '1', '2', '3', '4', '5', '6', '7', '8', '9',
     };
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
     private static final ChannelBuffer LONG_MIN_VALUE_BYTES = ChannelBuffers.wrappedBuffer("-9223372036854775808".getBytes());
 
+    /**
+     * Copy a value out of a decoder's cumulation buffer, which is reused once the frame has been read. The copy
+     * always goes on the heap, even from a channel that reads into direct memory: direct memory is for I/O, and a
+     * cached value held in it would stay outside the heap limits for as long as it is cached, or keep a whole chunk
+     * of Netty's direct buffer factory from being freed.
+     *
+     * @param source the buffer holding the value
+     * @param index  where the value starts
+     * @param length the number of bytes in the value
+     * @return a buffer owned by the value alone
+     */
+    public static ChannelBuffer copyValue(ChannelBuffer source, int index, int length) {
+        ChannelBuffer value = ChannelBuffers.buffer(length);
+        value.writeBytes(source, index, length);
+        return value;
+    }
+
     // Requires positive x
     static int stringSize(int x) {
         for (int i = 0; ; i++)
@@ -162,6 +182,24 @@ public class BufferUtils {
         return buf;
     }
 
+    /**
+     * Parse an unsigned 64 bit decimal, the form memcached keeps its counters in.
+     *
+     * @return the value, with values past {@link Long#MAX_VALUE} wrapping around to negative ones
+     */
+    public static long atoul(ChannelBuffer s) throws NumberFormatException {
+        if (s.readableBytes() == 0 || s.getByte(s.readerIndex()) == '-') throw new NumberFormatException();
+        return Long.parseUnsignedLong(s.toString(s.readerIndex(), s.readableBytes(), US_ASCII));
+    }
+
+    /**
+     * @return the value as an unsigned 64 bit decimal, the counterpart of {@link #atoul(ChannelBuffer)}
+     */
+    public static ChannelBuffer ultoa(long i) {
+        if (i >= 0) return ltoa(i);
+        return ChannelBuffers.wrappedBuffer(Long.toUnsignedString(i).getBytes());
+    }
+
     /**
      * Places characters representing the integer i into the
      * character array buf. The characters are placed into
@@ -0,0 +1,181 @@
+package com.zalora.jmemcached.util;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import org.jboss.netty.buffer.ChannelBuffer;
+
+/**
+ * Word-at-a-time (SWAR) scanner for the text protocol delimiters {@code ' '}, {@code '\r'} and {@code '\n'}.
+ * <p/>
+ * Eight bytes are loaded with a single {@code getLong} and compared against all three delimiters at once. A scanner
+ * instance keeps the match mask of the current word between calls to {@link #next()}, so tokenizing a long
+ * multi-get line touches each word exactly once no matter how short the keys are. The zero-byte test used here is
+ * the exact variant (no false positives from borrows), which lets us take matches straight from the leading zeros.
+ * <p/>
+ * Words of direct buffers are read through their NIO view. Heap arrays are read with {@code Unsafe.getLong}: the NIO
+ * view of a heap buffer assembles its words byte by byte on Java 8, which makes it slower than the plain loop. Where
+ * {@code Unsafe} is not available, heap buffers are scanned a byte at a time. Composite buffers always are.
+ * <p/>
+ * Instances are not thread safe; keep one per decoder.
+ */
+public final class DelimiterScanner {
+
+    private static final long SPACES = 0x2020202020202020L;
+    private static final long CRS = 0x0D0D0D0D0D0D0D0DL;
+    private static final long LFS = 0x0A0A0A0A0A0A0A0AL;
+    private static final long LOW_BITS = 0x7F7F7F7F7F7F7F7FL;
+
+    private static final boolean LITTLE_ENDIAN = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+
+    // Unsafe.getLong(Object, long) bound to the instance and the offset of a byte[]'s first element, or null; looked
+    // up reflectively and called through a constant method handle, which the JIT inlines like a direct call
+    private static final MethodHandle ARRAY_GET_LONG;
+    private static final long ARRAY_BASE_OFFSET;
+
+    static {
+        MethodHandle getLong = null;
+        long baseOffset = 0;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            Object unsafe = theUnsafe.get(null);
+            getLong = MethodHandles.lookup()
+                    .findVirtual(unsafeClass, "getLong", MethodType.methodType(long.class, Object.class, long.class))
+                    .bindTo(unsafe);
+            baseOffset = ((Number) unsafeClass.getMethod("arrayBaseOffset", Class.class).invoke(unsafe, byte[].class)).longValue();
+        } catch (Throwable unavailable) {
+            getLong = null;
+        }
+        ARRAY_GET_LONG = getLong;
+        ARRAY_BASE_OFFSET = baseOffset;
+    }
+
+    private ChannelBuffer buffer;
+    private ByteBuffer words;
+    private byte[] array;
+
+    // buffer index of the first byte of the word view (or the array offset of index 0), and of the next byte to load
+    private int base;
+    private int index;
+    private int end;
+
+    // matches of the last loaded word that have not been handed out yet, and where that word starts
+    private long pending;
+    private int pendingIndex;
+
+    /**
+     * Start scanning the given range of the buffer.
+     *
+     * @param buffer    the buffer to scan
+     * @param fromIndex first index to look at (inclusive)
+     * @param toIndex   last index to look at (exclusive)
+     * @return this scanner
+     */
+    public DelimiterScanner reset(ChannelBuffer buffer, int fromIndex, int toIndex) {
+        this.buffer = buffer;
+        this.index = fromIndex;
+        this.end = toIndex;
+        this.pending = 0;
+        this.words = null;
+        this.array = null;
+
+        if (toIndex - fromIndex >= 8) {
+            if (buffer.isDirect()) {
+                words = buffer.toByteBuffer(fromIndex, toIndex - fromIndex).order(ByteOrder.BIG_ENDIAN);
+                base = fromIndex - words.position();
+            } else if (ARRAY_GET_LONG != null && buffer.hasArray()
+                    && buffer.arrayOffset() + toIndex <= buffer.array().length) {
+                array = buffer.array();
+                base = buffer.arrayOffset();
+            }
+        }
+        return this;
+    }
+
+    /**
+     * @return the absolute index of the next delimiter, or -1 if the range is exhausted
+     */
+    public int next() {
+        if (pending != 0) {
+            return takePending();
+        }
+
+        if (words != null) {
+            for (; index + 8 <= end; index += 8) {
+                long matches = matches(words.getLong(index - base));
+                if (matches != 0) {
+                    pending = matches;
+                    pendingIndex = index;
+                    index += 8;
+                    return takePending();
+                }
+            }
+        } else if (array != null) {
+            for (; index + 8 <= end; index += 8) {
+                long matches = matches(arrayWord(array, base + index));
+                if (matches != 0) {
+                    pending = matches;
+                    pendingIndex = index;
+                    index += 8;
+                    return takePending();
+                }
+            }
+        }
+
+        for (; index < end; index++) {
+            byte b = buffer.getByte(index);
+            if (b == ' ' || b == '\r' || b == '\n') return index++;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Find the first space, CR or LF in the given range of the buffer.
+     *
+     * @param buffer    the buffer to scan
+     * @param fromIndex first index to look at (inclusive)
+     * @param toIndex   last index to look at (exclusive)
+     * @return the absolute index of the delimiter, or -1 if there is none
+     */
+    public static int indexOf(ChannelBuffer buffer, int fromIndex, int toIndex) {
+        return new DelimiterScanner().reset(buffer, fromIndex, toIndex).next();
+    }
+
+    private int takePending() {
+        int offset = Long.numberOfLeadingZeros(pending) >>> 3;
+        pending &= ~(0x8000000000000000L >>> (offset << 3));
+        return pendingIndex + offset;
+    }
+
+    /**
+     * @return the eight bytes of the array from the offset on, the first one in the most significant position
+     */
+    private static long arrayWord(byte[] array, int offset) {
+        long word;
+        try {
+            word = (long) ARRAY_GET_LONG.invokeExact((Object) array, ARRAY_BASE_OFFSET + offset);
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+        return LITTLE_ENDIAN ? Long.reverseBytes(word) : word;
+    }
+
+    private static long matches(long word) {
+        return zeroBytes(word ^ SPACES) | zeroBytes(word ^ CRS) | zeroBytes(word ^ LFS);
+    }
+
+    /**
+     * @return a word with the high bit set in exactly those bytes of x which are zero
+     */
+    private static long zeroBytes(long x) {
+        long y = (x & LOW_BITS) + LOW_BITS;
+        return ~(y | x | LOW_BITS);
+    }
+
+}
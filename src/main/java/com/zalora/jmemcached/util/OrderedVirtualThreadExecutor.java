@@ -0,0 +1,199 @@
+package com.zalora.jmemcached.util;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.handler.execution.ChannelEventRunnable;
+import org.jboss.netty.util.DefaultObjectSizeEstimator;
+import org.jboss.netty.util.ObjectSizeEstimator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An executor for an {@link org.jboss.netty.handler.execution.ExecutionHandler} that runs events on virtual threads
+ * without pooling them. The events of a channel run one after the other, in the order they arrived: a channel that
+ * gets an event while idle starts a new virtual thread, which runs its queued events and ends once the queue is
+ * empty. A virtual thread that blocks on the storage costs next to nothing, so there is no pool size to tune.
+ * <p/>
+ * Queued events are bounded like Netty's memory aware executors bound them: a channel with more than
+ * {@code maxChannelQueueBytes} queued stops being read from until half of it has been run, and past
+ * {@code maxTotalQueueBytes} across all channels the I/O worker handing over an event waits for room.
+ */
+public final class OrderedVirtualThreadExecutor extends AbstractExecutorService {
+
+    final Logger logger = LoggerFactory.getLogger(OrderedVirtualThreadExecutor.class);
+
+    private final ExecutorService threads;
+    private final long maxChannelQueueBytes;
+    private final long maxTotalQueueBytes;
+    private final ObjectSizeEstimator sizeEstimator = new DefaultObjectSizeEstimator();
+    private final ConcurrentMap<Channel, ChannelQueue> queues = new ConcurrentHashMap<Channel, ChannelQueue>();
+
+    // guarded by this
+    private long totalQueueBytes;
+
+    /**
+     * @param namePrefix           the name of the threads, which get a counter appended
+     * @param maxChannelQueueBytes the most bytes of events queued per channel before it stops being read, 0 for no
+     *                             limit
+     * @param maxTotalQueueBytes   the most bytes of events queued in all, 0 for no limit
+     * @throws UnsupportedOperationException if the running JDK has no virtual threads
+     */
+    public OrderedVirtualThreadExecutor(String namePrefix, long maxChannelQueueBytes, long maxTotalQueueBytes) {
+        this.threads = VirtualThreads.perTaskExecutor(namePrefix);
+        this.maxChannelQueueBytes = maxChannelQueueBytes;
+        this.maxTotalQueueBytes = maxTotalQueueBytes;
+    }
+
+    /**
+     * Run a channel event after the ones of its channel that came before it. Anything else gets a virtual thread
+     * of its own.
+     */
+    public void execute(Runnable task) {
+        if (!(task instanceof ChannelEventRunnable)) {
+            threads.execute(task);
+            return;
+        }
+
+        ChannelEventRunnable event = (ChannelEventRunnable) task;
+        long size = sizeEstimator.estimateSize(event);
+        reserve(size);
+        queue(event.getEvent().getChannel()).add(event, size);
+    }
+
+    private ChannelQueue queue(final Channel channel) {
+        ChannelQueue queue = queues.get(channel);
+        if (queue == null) {
+            ChannelQueue created = new ChannelQueue(channel);
+            queue = queues.putIfAbsent(channel, created);
+            if (queue == null) {
+                queue = created;
+                // the close event itself still runs, it is in the queue before this fires
+                channel.getCloseFuture().addListener(new ChannelFutureListener() {
+                    public void operationComplete(ChannelFuture future) {
+                        queues.remove(channel);
+                    }
+                });
+            }
+        }
+        return queue;
+    }
+
+    private synchronized void reserve(long size) {
+        // a single event larger than the limit still goes through once everything else has drained
+        boolean interrupted = false;
+        while (maxTotalQueueBytes > 0 && totalQueueBytes > 0 && totalQueueBytes + size > maxTotalQueueBytes) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        totalQueueBytes += size;
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    private synchronized void release(long size) {
+        totalQueueBytes -= size;
+        notifyAll();
+    }
+
+    public void shutdown() {
+        threads.shutdown();
+    }
+
+    public List<Runnable> shutdownNow() {
+        return threads.shutdownNow();
+    }
+
+    public boolean isShutdown() {
+        return threads.isShutdown();
+    }
+
+    public boolean isTerminated() {
+        return threads.isTerminated();
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return threads.awaitTermination(timeout, unit);
+    }
+
+    /**
+     * The events of one channel waiting to run, and whether a thread is running them.
+     */
+    private final class ChannelQueue implements Runnable {
+
+        private final Channel channel;
+
+        // guarded by this
+        private final Queue<ChannelEventRunnable> events = new ArrayDeque<ChannelEventRunnable>();
+        private final Queue<Long> sizes = new ArrayDeque<Long>();
+        private boolean running;
+        private long queueBytes;
+        private boolean paused;
+
+        ChannelQueue(Channel channel) {
+            this.channel = channel;
+        }
+
+        void add(ChannelEventRunnable event, long size) {
+            boolean start;
+            synchronized (this) {
+                events.add(event);
+                sizes.add(size);
+                queueBytes += size;
+                // the command handler pauses and resumes reading too, so check what the channel actually does
+                if (maxChannelQueueBytes > 0 && queueBytes > maxChannelQueueBytes && (!paused || channel.isReadable())) {
+                    paused = true;
+                    channel.setReadable(false);
+                }
+                start = !running;
+                running = true;
+            }
+
+            if (start) {
+                threads.execute(this);
+            }
+        }
+
+        public void run() {
+            while (true) {
+                ChannelEventRunnable event;
+                long size;
+                synchronized (this) {
+                    event = events.poll();
+                    if (event == null) {
+                        running = false;
+                        return;
+                    }
+                    size = sizes.poll();
+                }
+
+                try {
+                    event.run();
+                } catch (Throwable t) {
+                    logger.error("event on " + channel + " failed", t);
+                }
+
+                synchronized (this) {
+                    queueBytes -= size;
+                    if (paused && queueBytes <= maxChannelQueueBytes / 2) {
+                        paused = false;
+                        channel.setReadable(true);
+                    }
+                }
+                release(size);
+            }
+        }
+    }
+
+}
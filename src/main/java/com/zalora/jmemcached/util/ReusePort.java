@@ -0,0 +1,73 @@
+package com.zalora.jmemcached.util;
+
+import org.jboss.netty.channel.Channel;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+
+/**
+ * SO_REUSEPORT for the listening sockets of the NIO transport. Java has the option since 9 and Netty 3 has no
+ * setting for it, so both the option and the socket inside Netty's server channel are reached through reflection;
+ * the classes load on any JDK and only using them where the option is missing fails.
+ */
+public final class ReusePort {
+
+    private ReusePort() {}
+
+    /**
+     * @return true if the running JDK and OS let listening sockets share a port
+     */
+    public static boolean isSupported() {
+        SocketOption<Boolean> option = option();
+        if (option == null) return false;
+
+        try {
+            ServerSocketChannel socket = ServerSocketChannel.open();
+            try {
+                return socket.supportedOptions().contains(option);
+            } finally {
+                socket.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Turn SO_REUSEPORT on for a server channel that has not been bound yet.
+     *
+     * @param serverChannel a server channel of the NIO transport
+     * @throws UnsupportedOperationException if the running JDK or OS has no SO_REUSEPORT
+     */
+    public static void enable(Channel serverChannel) throws IOException {
+        SocketOption<Boolean> option = option();
+        if (option == null) {
+            throw new UnsupportedOperationException("SO_REUSEPORT needs Java 9 or later, running on " + System.getProperty("java.version"));
+        }
+
+        try {
+            Field socket = serverChannel.getClass().getDeclaredField("socket");
+            socket.setAccessible(true);
+            ((ServerSocketChannel) socket.get(serverChannel)).setOption(option, Boolean.TRUE);
+        } catch (NoSuchFieldException e) {
+            throw new IllegalStateException("not a server channel of the NIO transport: " + serverChannel.getClass().getName(), e);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("could not reach the socket of " + serverChannel, e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> option() {
+        try {
+            return (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+        } catch (NoSuchFieldException e) {
+            return null;
+        } catch (IllegalAccessException e) {
+            return null;
+        }
+    }
+
+}
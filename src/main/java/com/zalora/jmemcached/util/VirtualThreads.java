@@ -0,0 +1,60 @@
+package com.zalora.jmemcached.util;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Access to virtual threads (Java 21 and later) for a build that still targets Java 8. Everything goes through
+ * reflection, so the classes load on any JDK and only using them on an old one fails.
+ */
+public final class VirtualThreads {
+
+    private VirtualThreads() {}
+
+    /**
+     * @return true if the running JDK has virtual threads
+     */
+    public static boolean isSupported() {
+        try {
+            Thread.class.getMethod("ofVirtual");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @param namePrefix the name of the threads, which get a counter appended
+     * @return a factory creating a new virtual thread for every task it is given
+     * @throws UnsupportedOperationException if the running JDK has no virtual threads
+     */
+    public static ThreadFactory factory(String namePrefix) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            builder = builderType.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 0L);
+            return (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+        } catch (NoSuchMethodException e) {
+            throw new UnsupportedOperationException("virtual threads need Java 21 or later, running on " + System.getProperty("java.version"), e);
+        } catch (Exception e) {
+            throw new IllegalStateException("could not create a virtual thread factory", e);
+        }
+    }
+
+    /**
+     * @param namePrefix the name of the threads, which get a counter appended
+     * @return an executor starting a new virtual thread for every task, as
+     *         {@code Executors.newVirtualThreadPerTaskExecutor()} does, but with named threads
+     * @throws UnsupportedOperationException if the running JDK has no virtual threads
+     */
+    public static ExecutorService perTaskExecutor(String namePrefix) {
+        ThreadFactory factory = factory(namePrefix);
+        try {
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class).invoke(null, factory);
+        } catch (Exception e) {
+            throw new IllegalStateException("could not create a virtual thread per task executor", e);
+        }
+    }
+
+}
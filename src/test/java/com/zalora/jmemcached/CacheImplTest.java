@@ -0,0 +1,350 @@
+package com.zalora.jmemcached;
+
+import com.zalora.jmemcached.storage.MapStorage;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.util.CharsetUtil;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CacheImplTest {
+
+    private CacheImpl cache;
+
+    @After
+    public void close() throws Exception {
+        if (cache != null) cache.close();
+    }
+
+    @Test
+    public void parallelGetsDoNotBlockTheCaller() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        MapStorage storage = new MapStorage() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public LocalCacheElement get(Object key) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.get(key);
+            }
+        };
+        for (int i = 0; i < 100; i += 2) {
+            storage.put("key" + i, element("key" + i, "value" + i));
+        }
+
+        cache = new CacheImpl(storage);
+        cache.setParallelGets(10, 4);
+
+        String[] keys = new String[100];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = "key" + i;
+        }
+
+        // the storage holds every lookup until released, so this only returns if the lookup runs elsewhere
+        CompletableFuture<LocalCacheElement[]> found = cache.getAsync(keys).toCompletableFuture();
+        assertFalse(found.isDone());
+        release.countDown();
+
+        LocalCacheElement[] elements = found.get(10, TimeUnit.SECONDS);
+        for (int i = 0; i < keys.length; i++) {
+            if (i % 2 == 0) assertEquals("key" + i, elements[i].getKey());
+            else assertNull(elements[i]);
+        }
+    }
+
+    @Test
+    public void smallGetsStayOnTheCallingThread() throws Exception {
+        MapStorage storage = new MapStorage();
+        storage.put("a", element("a", "1"));
+        cache = new CacheImpl(storage);
+        cache.setParallelGets(10, 4);
+
+        CompletableFuture<LocalCacheElement[]> found = cache.getAsync("a", "b").toCompletableFuture();
+        assertTrue(found.isDone());
+        assertEquals("a", found.get()[0].getKey());
+        assertNull(found.get()[1]);
+    }
+
+    @Test
+    public void concurrentMissesShareOneLoad() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        StubLoader loader = new StubLoader(release);
+        cache = new CacheImpl(new MapStorage());
+        cache.setLoader(loader);
+
+        List<CompletableFuture<LocalCacheElement[]>> gets = new ArrayList<CompletableFuture<LocalCacheElement[]>>();
+        for (int i = 0; i < 10; i++) {
+            gets.add(cache.getAsync("a").toCompletableFuture());
+        }
+        for (CompletableFuture<LocalCacheElement[]> get : gets) {
+            assertFalse(get.isDone());
+        }
+        release.countDown();
+
+        for (CompletableFuture<LocalCacheElement[]> get : gets) {
+            assertEquals("a", get.get(10, TimeUnit.SECONDS)[0].getKey());
+        }
+        assertEquals(1, loader.loads.get());
+        assertEquals(Collections.singletonList(Collections.singletonList("a")), loader.requested);
+        assertEquals(Collections.singleton("9"), cache.stat(null).get("loader_coalesced"));
+    }
+
+    @Test
+    public void multiGetMissesAreLoadedInOneBatch() throws Exception {
+        StubLoader loader = new StubLoader(null);
+        MapStorage storage = new MapStorage();
+        storage.put("b", element("b", "cached"));
+        cache = new CacheImpl(storage);
+        cache.setLoader(loader);
+
+        LocalCacheElement[] elements = cache.get("a", "b", "c", "missing");
+        assertEquals("a", elements[0].getKey());
+        assertEquals("b", elements[1].getKey());
+        assertEquals("c", elements[2].getKey());
+        assertNull(elements[3]);
+        assertEquals(Collections.singletonList(Arrays.asList("a", "c", "missing")), loader.requested);
+
+        // loaded keys are cached, so asking again does not load again
+        cache.get("a", "c");
+        assertEquals(1, loader.requested.size());
+    }
+
+    @Test
+    public void loadsRunOnTheLoaderPool() throws Exception {
+        StubLoader loader = new StubLoader(null);
+        cache = new CacheImpl(new MapStorage());
+        cache.setLoader(loader);
+
+        cache.getAsync("a").toCompletableFuture().get(10, TimeUnit.SECONDS);
+        assertTrue(loader.thread.startsWith("jmemcached-loader-"));
+    }
+
+    @Test
+    public void failedLoadsAreMisses() throws Exception {
+        cache = new CacheImpl(new MapStorage());
+        cache.setLoader(new CacheLoader<LocalCacheElement>() {
+            public LocalCacheElement load(String key) throws Exception {
+                throw new Exception("source down");
+            }
+        });
+
+        assertNull(cache.get("a")[0]);
+        assertEquals(Collections.singleton("1"), cache.stat(null).get("loader_errors"));
+    }
+
+    @Test
+    public void flushAllDropsPendingWrites() throws Exception {
+        final List<String> written = new CopyOnWriteArrayList<String>();
+        cache = new CacheImpl(new MapStorage());
+        cache.setWriteBehind(new WriteBehindSink<LocalCacheElement>() {
+            public void write(Map<String, LocalCacheElement> updated, Set<String> deleted) {
+                written.addAll(updated.keySet());
+            }
+        }, 100, 60000, 1000);
+
+        cache.set(element("a", "1"));
+        cache.flush_all();
+        cache.set(element("b", "2"));
+        cache.close();
+        cache = null;
+
+        assertEquals(Collections.singletonList("b"), written);
+    }
+
+    @Test
+    public void invalidationsAreWrittenBehind() throws Exception {
+        final Map<String, LocalCacheElement> written = new HashMap<String, LocalCacheElement>();
+        cache = new CacheImpl(new MapStorage());
+        cache.setWriteBehind(new WriteBehindSink<LocalCacheElement>() {
+            public void write(Map<String, LocalCacheElement> updated, Set<String> deleted) {
+                written.putAll(updated);
+            }
+        }, 100, 60000, 1000);
+
+        cache.set(element("a", "1"));
+        assertEquals(Cache.DeleteResponse.DELETED, cache.invalidate("a", -1));
+        cache.close();
+        cache = null;
+
+        assertTrue(written.get("a").isStale());
+    }
+
+    @Test
+    public void writersGiveUpOnASinkThatStoppedTakingBatches() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        cache = new CacheImpl(new MapStorage());
+        cache.setWriteBehind(new WriteBehindSink<LocalCacheElement>() {
+            public void write(Map<String, LocalCacheElement> updated, Set<String> deleted) throws Exception {
+                release.await();
+            }
+        }, 1, 60000, 1, 100);
+
+        // "a" holds the only slot while its batch is stuck in the sink
+        cache.set(element("a", "1"));
+        long start = System.currentTimeMillis();
+        assertEquals(Cache.StoreResponse.STORED, cache.set(element("b", "2")));
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        assertEquals(Collections.singleton("1"), cache.stat(null).get("write_behind_dropped"));
+        assertEquals("2", cache.get("b")[0].getData().toString(CharsetUtil.US_ASCII));
+
+        release.countDown();
+    }
+
+    @Test
+    public void delayedDeletesOfMissingKeysAreNotWrittenBehind() throws Exception {
+        final Set<String> deleted = new HashSet<String>();
+        cache = new CacheImpl(new MapStorage());
+        cache.setWriteBehind(new WriteBehindSink<LocalCacheElement>() {
+            public void write(Map<String, LocalCacheElement> updated, Set<String> deletedKeys) {
+                deleted.addAll(deletedKeys);
+            }
+        }, 100, 60000, 1000);
+
+        cache.set(element("a", "1"));
+        cache.delete("a", 10);
+        cache.delete("missing", 10);
+        cache.close();
+        cache = null;
+
+        assertEquals(Collections.singleton("a"), deleted);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void keyFilterNeedsAStorageThatOwnsItsKeys() {
+        cache = new CacheImpl(new MapStorage() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public boolean ownsKeys() {
+                return false;
+            }
+        });
+        cache.setKeyFilter(1000, 0.01, 60000);
+    }
+
+    @Test
+    public void flushAllResetsTheKeyFilter() throws Exception {
+        MapStorage storage = new MapStorage();
+        cache = new CacheImpl(storage);
+        cache.setKeyFilter(1000, 0.01, 60000);
+        cache.set(element("a", "1"));
+        awaitStat("key_filter_rebuilds", "1");
+
+        cache.flush_all();
+        awaitStat("key_filter_rebuilds", "2");
+
+        // "a" was put back behind the cache's back, the build made after the flush never saw it
+        storage.put("a", element("a", "1"));
+        assertNull(cache.get("a")[0]);
+
+        cache.set(element("c", "3"));
+        assertEquals("c", cache.get("c")[0].getKey());
+    }
+
+    @Test
+    public void positionalMultiGetsKeepOrderDuplicatesAndMisses() {
+        MapStorage storage = new MapStorage();
+        storage.put("a", element("a", "1"));
+        storage.put("b", element("b", "2"));
+
+        String[] keys = {"b", "missing", "a", "b"};
+        LocalCacheElement[] results = new LocalCacheElement[keys.length];
+        storage.getMulti(keys, results);
+
+        assertEquals("b", results[0].getKey());
+        assertNull(results[1]);
+        assertEquals("a", results[2].getKey());
+        assertEquals("b", results[3].getKey());
+    }
+
+    @Test
+    public void multiGetsCountAHitOrMissPerKey() {
+        MapStorage storage = new MapStorage();
+        storage.put("a", element("a", "1"));
+        LocalCacheElement blocked = element("b", "2");
+        blocked.block(Long.MAX_VALUE);
+        storage.put("b", blocked);
+        cache = new CacheImpl(storage);
+
+        LocalCacheElement[] results = cache.get("a", "missing", "a", "b");
+        assertEquals("a", results[0].getKey());
+        assertNull(results[1]);
+        assertEquals("a", results[2].getKey());
+        // a blocked element is a miss
+        assertNull(results[3]);
+
+        assertEquals(Collections.singleton("1"), cache.stat(null).get("cmd_get"));
+        assertEquals(Collections.singleton("2"), cache.stat(null).get("get_hits"));
+        assertEquals(Collections.singleton("2"), cache.stat(null).get("get_misses"));
+    }
+
+    private void awaitStat(String name, String value) throws InterruptedException {
+        for (int i = 0; i < 500 && !Collections.singleton(value).equals(cache.stat(null).get(name)); i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(Collections.singleton(value), cache.stat(null).get(name));
+    }
+
+    static LocalCacheElement element(String key, String value) {
+        LocalCacheElement element = new LocalCacheElement(key, 0, 0, 0L);
+        element.setData(ChannelBuffers.wrappedBuffer(value.getBytes()));
+        return element;
+    }
+
+    /**
+     * Loads every key except "missing", optionally holding each call until released.
+     */
+    static final class StubLoader implements CacheLoader<LocalCacheElement> {
+
+        private final CountDownLatch release;
+        final AtomicInteger loads = new AtomicInteger();
+        final List<List<String>> requested = new CopyOnWriteArrayList<List<String>>();
+        volatile String thread;
+
+        StubLoader(CountDownLatch release) {
+            this.release = release;
+        }
+
+        public LocalCacheElement load(String key) throws Exception {
+            return loadAll(Collections.singletonList(key)).get(key);
+        }
+
+        @Override
+        public Map<String, LocalCacheElement> loadAll(Collection<String> keys) throws Exception {
+            loads.incrementAndGet();
+            requested.add(new ArrayList<String>(keys));
+            thread = Thread.currentThread().getName();
+            if (release != null) release.await();
+
+            Map<String, LocalCacheElement> elements = new HashMap<String, LocalCacheElement>();
+            for (String key : keys) {
+                if (!key.equals("missing")) elements.put(key, element(key, "loaded"));
+            }
+            return elements;
+        }
+    }
+
+}
@@ -0,0 +1,117 @@
+package com.zalora.jmemcached;
+
+import com.zalora.jmemcached.storage.MapStorage;
+import com.zalora.jmemcached.util.ReusePort;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.channel.group.DefaultChannelGroup;
+import org.jboss.netty.handler.execution.ExecutionHandler;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeFalse;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Several listening sockets sharing one port through SO_REUSEPORT. Which half runs depends on the JDK the build
+ * runs on.
+ */
+public class MemCacheDaemonAcceptorsTest {
+
+    private MemCacheDaemon<LocalCacheElement> daemon;
+
+    @After
+    public void stop() {
+        if (daemon != null && daemon.isRunning()) daemon.stop();
+    }
+
+    @Test
+    public void connectionsAreServedByEveryAcceptor() throws IOException {
+        assumeTrue(ReusePort.isSupported());
+
+        // the listening socket each connection was accepted on
+        final Set<Channel> acceptedOn = Collections.newSetFromMap(new ConcurrentHashMap<Channel, Boolean>());
+        int port = freePort();
+        daemon = new MemCacheDaemon<LocalCacheElement>(new CacheImpl(new MapStorage())) {
+            @Override
+            protected ChannelPipelineFactory createMemcachedPipelineFactory(Cache cache, String memcachedVersion, boolean verbose, int idleTime, int receiveBufferSize, DefaultChannelGroup allChannels, ExecutionHandler executionHandler) {
+                final ChannelPipelineFactory factory = super.createMemcachedPipelineFactory(cache, memcachedVersion, verbose, idleTime, receiveBufferSize, allChannels, executionHandler);
+                return new ChannelPipelineFactory() {
+                    public ChannelPipeline getPipeline() throws Exception {
+                        ChannelPipeline pipeline = factory.getPipeline();
+                        pipeline.addFirst("acceptor", new SimpleChannelUpstreamHandler() {
+                            @Override
+                            public void channelOpen(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+                                acceptedOn.add(e.getChannel().getParent());
+                                super.channelOpen(ctx, e);
+                            }
+                        });
+                        return pipeline;
+                    }
+                };
+            }
+        };
+        daemon.setAddr(new InetSocketAddress("127.0.0.1", port));
+        daemon.setAcceptors(4);
+        daemon.start();
+
+        // the kernel hashes connections over the sockets; 32 leave one of them out about once in 2500 runs, so
+        // carry on a while longer before calling it a failure
+        List<Socket> sockets = new ArrayList<Socket>();
+        try {
+            for (int i = 0; i < 32 || acceptedOn.size() < 4 && i < 256; i++) {
+                Socket socket = new Socket("127.0.0.1", port);
+                sockets.add(socket);
+                OutputStream out = socket.getOutputStream();
+                out.write(("set k" + i + " 0 0 1\r\nx\r\n").getBytes("US-ASCII"));
+                out.flush();
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+                assertEquals("STORED", in.readLine());
+            }
+        } finally {
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+        }
+        assertEquals(4, acceptedOn.size());
+        assertEquals(sockets.size(), daemon.getCache().getCurrentItems());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void startFailsWithoutReusePort() throws IOException {
+        assumeFalse(ReusePort.isSupported());
+
+        daemon = new MemCacheDaemon<LocalCacheElement>(new CacheImpl(new MapStorage()));
+        daemon.setAddr(new InetSocketAddress("127.0.0.1", freePort()));
+        daemon.setAcceptors(2);
+        daemon.start();
+    }
+
+    private static int freePort() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+
+}
@@ -0,0 +1,138 @@
+package com.zalora.jmemcached;
+
+import com.zalora.jmemcached.storage.MapStorage;
+import com.zalora.jmemcached.util.VirtualThreads;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Commands run on virtual threads against a storage whose lookups block. Skipped on JDKs without virtual threads.
+ */
+public class VirtualThreadsTest {
+
+    private static final long LOOKUP_MILLIS = 200;
+
+    private final Set<String> threads = new CopyOnWriteArraySet<String>();
+    private int port;
+    private MemCacheDaemon<LocalCacheElement> daemon;
+
+    @Before
+    public void start() throws IOException {
+        assumeTrue(VirtualThreads.isSupported());
+
+        MapStorage storage = new MapStorage() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public LocalCacheElement get(Object key) {
+                threads.add(Thread.currentThread().getName());
+                try {
+                    Thread.sleep(LOOKUP_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.get(key);
+            }
+        };
+
+        port = freePort();
+        daemon = new MemCacheDaemon<LocalCacheElement>(new CacheImpl(storage));
+        daemon.setAddr(new InetSocketAddress("127.0.0.1", port));
+        daemon.setVirtualThreads(true);
+        daemon.start();
+    }
+
+    @After
+    public void stop() {
+        if (daemon != null && daemon.isRunning()) daemon.stop();
+    }
+
+    @Test
+    public void commandsOfAConnectionRunInOrder() throws IOException {
+        Socket socket = new Socket("127.0.0.1", port);
+        try {
+            OutputStream out = socket.getOutputStream();
+            out.write("get a\r\nset a 0 0 1\r\nx\r\nget a\r\ndelete a\r\nget a\r\n".getBytes("US-ASCII"));
+            out.flush();
+
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+            assertEquals("END", in.readLine());
+            assertEquals("STORED", in.readLine());
+            assertEquals("VALUE a 0 1", in.readLine());
+            assertEquals("x", in.readLine());
+            assertEquals("END", in.readLine());
+            assertEquals("DELETED", in.readLine());
+            assertEquals("END", in.readLine());
+        } finally {
+            socket.close();
+        }
+
+        for (String thread : threads) {
+            assertTrue(thread, thread.startsWith("jmemcached-command-"));
+        }
+    }
+
+    @Test
+    public void blockedConnectionsDoNotHoldUpEachOther() throws Exception {
+        final int connections = 100;
+        final CountDownLatch answered = new CountDownLatch(connections);
+        List<Thread> clients = new ArrayList<Thread>();
+        for (int i = 0; i < connections; i++) {
+            Thread client = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        Socket socket = new Socket("127.0.0.1", port);
+                        try {
+                            OutputStream out = socket.getOutputStream();
+                            out.write("get a\r\n".getBytes("US-ASCII"));
+                            out.flush();
+                            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+                            if ("END".equals(in.readLine())) answered.countDown();
+                        } finally {
+                            socket.close();
+                        }
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+            client.start();
+            clients.add(client);
+        }
+
+        // one after the other the lookups would take 20 seconds
+        assertTrue(answered.await(5, TimeUnit.SECONDS));
+        for (Thread client : clients) {
+            client.join();
+        }
+    }
+
+    private static int freePort() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+
+}
@@ -0,0 +1,219 @@
+package com.zalora.jmemcached.protocol;
+
+import com.zalora.jmemcached.Cache;
+import com.zalora.jmemcached.CacheImpl;
+import com.zalora.jmemcached.LocalCacheElement;
+import com.zalora.jmemcached.MemCacheDaemon;
+import com.zalora.jmemcached.storage.AsyncCacheStorage;
+import com.zalora.jmemcached.storage.MapStorage;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.*;
+import org.jboss.netty.channel.group.DefaultChannelGroup;
+import org.jboss.netty.handler.execution.ExecutionHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A connection whose commands wait on a slow storage stops being read once it has too many of them queued, and is
+ * read again once they drain.
+ */
+public class MemcachedCommandHandlerTest {
+
+    private GatedStorage storage;
+    private MemCacheDaemon<LocalCacheElement> daemon;
+    private volatile Channel serverChannel;
+    private Socket socket;
+
+    @Before
+    public void start() throws IOException {
+        int port = freePort();
+        storage = new GatedStorage();
+        LocalCacheElement element = new LocalCacheElement("k", 0, 0, 0L);
+        element.setData(ChannelBuffers.wrappedBuffer("x".getBytes()));
+        storage.put("k", element);
+
+        daemon = new MemCacheDaemon<LocalCacheElement>(new CacheImpl(storage)) {
+            @Override
+            protected ChannelPipelineFactory createMemcachedPipelineFactory(Cache cache, String memcachedVersion, boolean verbose, int idleTime, int receiveBufferSize, DefaultChannelGroup allChannels, ExecutionHandler executionHandler) {
+                final ChannelPipelineFactory factory = super.createMemcachedPipelineFactory(cache, memcachedVersion, verbose, idleTime, receiveBufferSize, allChannels, executionHandler);
+                return new ChannelPipelineFactory() {
+                    public ChannelPipeline getPipeline() throws Exception {
+                        ChannelPipeline pipeline = factory.getPipeline();
+                        pipeline.addFirst("capture", new SimpleChannelUpstreamHandler() {
+                            @Override
+                            public void channelOpen(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+                                serverChannel = e.getChannel();
+                                super.channelOpen(ctx, e);
+                            }
+                        });
+                        return pipeline;
+                    }
+                };
+            }
+        };
+        daemon.setAddr(new InetSocketAddress("127.0.0.1", port));
+        daemon.start();
+
+        socket = new Socket("127.0.0.1", port);
+    }
+
+    @After
+    public void stop() throws IOException {
+        storage.open();
+        socket.close();
+        daemon.stop();
+    }
+
+    @Test
+    public void stopsReadingWhileTooManyCommandsAreInFlight() throws Exception {
+        int commands = MemcachedCommandHandler.MAX_IN_FLIGHT * 2;
+        StringBuilder pipelined = new StringBuilder();
+        for (int i = 0; i < commands; i++) {
+            pipelined.append("get k\r\n");
+        }
+        OutputStream out = socket.getOutputStream();
+        out.write(pipelined.toString().getBytes("US-ASCII"));
+        out.flush();
+
+        // the first get waits on the storage and everything else queues up behind it
+        assertTrue("reading was not paused", await(false));
+
+        storage.open();
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        byte[] response = "VALUE k 0 1\r\nx\r\nEND\r\n".getBytes("US-ASCII");
+        byte[] received = new byte[response.length];
+        for (int i = 0; i < commands; i++) {
+            in.readFully(received);
+            assertEquals("response " + i, new String(response, "US-ASCII"), new String(received, "US-ASCII"));
+        }
+
+        assertTrue("reading was not resumed", await(true));
+        out.write("get k\r\n".getBytes("US-ASCII"));
+        out.flush();
+        in.readFully(received);
+        assertEquals(new String(response, "US-ASCII"), new String(received, "US-ASCII"));
+    }
+
+    @Test
+    public void keepsReadingBelowTheLimit() throws Exception {
+        OutputStream out = socket.getOutputStream();
+        for (int i = 0; i < MemcachedCommandHandler.MAX_IN_FLIGHT / 2; i++) {
+            out.write("get k\r\n".getBytes("US-ASCII"));
+        }
+        out.flush();
+
+        assertFalse("reading was paused", await(false));
+    }
+
+    /**
+     * @return whether the server side of the connection reached the given readability within a second
+     */
+    private boolean await(boolean readable) throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            Channel channel = serverChannel;
+            if (channel != null && channel.isReadable() == readable) return true;
+            Thread.sleep(10);
+        }
+        return false;
+    }
+
+    private static int freePort() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * Holds back every lookup until it is opened, like a backend that has stopped answering.
+     */
+    static final class GatedStorage extends MapStorage implements AsyncCacheStorage<String, LocalCacheElement> {
+
+        private static final long serialVersionUID = 1L;
+
+        // guarded by this
+        private boolean open;
+        private final List<Runnable> held = new ArrayList<Runnable>();
+
+        void open() {
+            List<Runnable> release;
+            synchronized (this) {
+                open = true;
+                release = new ArrayList<Runnable>(held);
+                held.clear();
+            }
+            for (Runnable runnable : release) {
+                runnable.run();
+            }
+        }
+
+        private <T> CompletionStage<T> gate(final CompletableFuture<T> result, final Runnable lookup) {
+            synchronized (this) {
+                if (!open) {
+                    held.add(lookup);
+                    return result;
+                }
+            }
+            lookup.run();
+            return result;
+        }
+
+        public CompletionStage<LocalCacheElement> getAsync(final String key) {
+            final CompletableFuture<LocalCacheElement> result = new CompletableFuture<LocalCacheElement>();
+            return gate(result, new Runnable() {
+                public void run() {
+                    result.complete(get(key));
+                }
+            });
+        }
+
+        public CompletionStage<LocalCacheElement[]> getMultiAsync(final String[] keys, final LocalCacheElement[] results) {
+            final CompletableFuture<LocalCacheElement[]> result = new CompletableFuture<LocalCacheElement[]>();
+            return gate(result, new Runnable() {
+                public void run() {
+                    getMulti(keys, results);
+                    result.complete(results);
+                }
+            });
+        }
+
+        public CompletionStage<LocalCacheElement> putAsync(String key, LocalCacheElement value) {
+            return CompletableFuture.completedFuture(put(key, value));
+        }
+
+        public CompletionStage<LocalCacheElement> putIfAbsentAsync(String key, LocalCacheElement value) {
+            return CompletableFuture.completedFuture(putIfAbsent(key, value));
+        }
+
+        public CompletionStage<LocalCacheElement> replaceAsync(String key, LocalCacheElement value) {
+            return CompletableFuture.completedFuture(replace(key, value));
+        }
+
+        public CompletionStage<Boolean> replaceAsync(String key, LocalCacheElement oldValue, LocalCacheElement newValue) {
+            return CompletableFuture.completedFuture(replace(key, oldValue, newValue));
+        }
+
+        public CompletionStage<LocalCacheElement> removeAsync(String key) {
+            return CompletableFuture.completedFuture(remove(key));
+        }
+    }
+
+}
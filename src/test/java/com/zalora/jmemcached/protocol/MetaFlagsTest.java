@@ -0,0 +1,87 @@
+package com.zalora.jmemcached.protocol;
+
+import com.zalora.jmemcached.protocol.exceptions.MalformedCommandException;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.util.CharsetUtil;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Parsing the flags of meta commands, and the malformed flags that are refused.
+ */
+public class MetaFlagsTest {
+
+    @Test
+    public void keepsTokensByLetterAndTheOrderGiven() throws MalformedCommandException {
+        MetaFlags flags = parse("v", "T30", "Oabc", "k");
+
+        assertTrue(flags.has('v'));
+        assertEquals("", flags.token('v'));
+        assertEquals("abc", flags.token('O'));
+        assertEquals(30, flags.longToken('T', 0));
+        assertArrayEquals(new char[]{'v', 'T', 'O', 'k'}, flags.order());
+    }
+
+    @Test
+    public void absentFlagsHaveNoTokenAndTheDefaultNumber() throws MalformedCommandException {
+        MetaFlags flags = parse("v");
+
+        assertFalse(flags.has('T'));
+        assertNull(flags.token('T'));
+        assertEquals(7, flags.longToken('T', 7));
+        assertFalse(flags.has('0'));
+    }
+
+    @Test
+    public void upperAndLowerCaseAreDifferentFlags() throws MalformedCommandException {
+        MetaFlags flags = parse("c", "C12");
+
+        assertEquals("", flags.token('c'));
+        assertEquals("12", flags.token('C'));
+    }
+
+    @Test
+    public void deltasAreUnsigned() throws MalformedCommandException {
+        assertEquals("18446744073709551615", parse("D18446744073709551615").token('D'));
+    }
+
+    @Test
+    public void refusesMalformedFlags() {
+        refuses("1");
+        refuses("");
+        refuses("v", "v");
+        refuses("Tabc");
+        refuses("T");
+        refuses("D-1");
+        refuses("O012345678901234567890123456789012");
+    }
+
+    private static void refuses(String... words) {
+        try {
+            parse(words);
+            fail("accepted " + Arrays.toString(words));
+        } catch (MalformedCommandException expected) {
+            // the client gets CLIENT_ERROR
+        }
+    }
+
+    private static MetaFlags parse(String... words) throws MalformedCommandException {
+        List<ChannelBuffer> parts = new ArrayList<ChannelBuffer>();
+        for (String word : words) {
+            parts.add(ChannelBuffers.copiedBuffer(word, CharsetUtil.US_ASCII));
+        }
+        return MetaFlags.parse(parts);
+    }
+
+}
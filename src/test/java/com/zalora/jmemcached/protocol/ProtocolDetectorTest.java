@@ -0,0 +1,195 @@
+package com.zalora.jmemcached.protocol;
+
+import com.zalora.jmemcached.CacheImpl;
+import com.zalora.jmemcached.LocalCacheElement;
+import com.zalora.jmemcached.MemCacheDaemon;
+import com.zalora.jmemcached.storage.MapStorage;
+import org.jboss.netty.channel.*;
+import org.jboss.netty.channel.group.DefaultChannelGroup;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Connections to a port serving both protocols, each checked for the pipeline it was given and for the open event
+ * that pipeline saw before the first command.
+ */
+public class ProtocolDetectorTest {
+
+    private static final byte[] BINARY_NOOP = {
+            (byte) 0x80, 0x0a, 0, 0, 0, 0, 0, 0,
+            0, 0, 0, 0, 0, 0, 0, 0x2a,
+            0, 0, 0, 0, 0, 0, 0, 0
+    };
+
+    // what each connection's pipeline saw, in order: "text open", "binary message" and so on
+    private final List<String> events = new CopyOnWriteArrayList<String>();
+    private int port;
+    private MemCacheDaemon<LocalCacheElement> daemon;
+    private Socket socket;
+
+    @Before
+    public void start() throws IOException {
+        port = freePort();
+        daemon = new MemCacheDaemon<LocalCacheElement>(new CacheImpl(new MapStorage())) {
+            @Override
+            protected ChannelPipelineFactory createProtocolDetectingPipelineFactory(ChannelPipelineFactory textPipelineFactory, ChannelPipelineFactory binaryPipelineFactory, DefaultChannelGroup allChannels) {
+                return super.createProtocolDetectingPipelineFactory(recording("text", textPipelineFactory), recording("binary", binaryPipelineFactory), allChannels);
+            }
+        };
+        daemon.setAddr(new InetSocketAddress("127.0.0.1", port));
+        daemon.setAutoDetect(true);
+        daemon.start();
+
+        socket = new Socket("127.0.0.1", port);
+        socket.setTcpNoDelay(true);
+    }
+
+    @After
+    public void stop() throws IOException {
+        socket.close();
+        daemon.stop();
+    }
+
+    @Test
+    public void textCommandsGetTheTextPipeline() throws IOException {
+        send("set a 0 0 1\r\nx\r\nget a\r\n".getBytes("US-ASCII"));
+
+        BufferedReader in = reader();
+        assertEquals("STORED", in.readLine());
+        assertEquals("VALUE a 0 1", in.readLine());
+        assertEquals("x", in.readLine());
+        assertEquals("END", in.readLine());
+        assertEquals("text open", events.get(0));
+        assertEquals("text message", events.get(1));
+    }
+
+    @Test
+    public void metaCommandsGetTheTextPipeline() throws IOException {
+        send("mn\r\n".getBytes("US-ASCII"));
+
+        assertEquals("MN", reader().readLine());
+        assertEquals("text open", events.get(0));
+    }
+
+    @Test
+    public void binaryRequestsGetTheBinaryPipeline() throws IOException {
+        send(BINARY_NOOP);
+
+        assertNoOpResponse();
+        assertEquals("binary open", events.get(0));
+        assertEquals("binary message", events.get(1));
+    }
+
+    @Test
+    public void aTextCommandSplitAfterItsFirstByteIsWhole() throws Exception {
+        send("g".getBytes("US-ASCII"));
+        Thread.sleep(100);
+        send("et a\r\n".getBytes("US-ASCII"));
+
+        assertEquals("END", reader().readLine());
+        assertEquals("text open", events.get(0));
+    }
+
+    @Test
+    public void aBinaryRequestSplitAfterItsFirstByteIsWhole() throws Exception {
+        send(new byte[]{BINARY_NOOP[0]});
+        Thread.sleep(100);
+        byte[] rest = new byte[BINARY_NOOP.length - 1];
+        System.arraycopy(BINARY_NOOP, 1, rest, 0, rest.length);
+        send(rest);
+
+        assertNoOpResponse();
+        assertEquals("binary open", events.get(0));
+    }
+
+    @Test
+    public void everyConnectionSeesItsOpenOnce() throws IOException {
+        send("get a\r\n".getBytes("US-ASCII"));
+        assertEquals("END", reader().readLine());
+
+        Socket binary = new Socket("127.0.0.1", port);
+        try {
+            binary.getOutputStream().write(BINARY_NOOP);
+            new DataInputStream(binary.getInputStream()).readFully(new byte[24]);
+        } finally {
+            binary.close();
+        }
+
+        int textOpens = 0;
+        int binaryOpens = 0;
+        for (String event : events) {
+            if (event.equals("text open")) textOpens++;
+            if (event.equals("binary open")) binaryOpens++;
+        }
+        assertEquals(1, textOpens);
+        assertEquals(1, binaryOpens);
+    }
+
+    private void assertNoOpResponse() throws IOException {
+        byte[] response = new byte[24];
+        new DataInputStream(socket.getInputStream()).readFully(response);
+        assertEquals(0x81, response[0] & 0xFF);
+        assertEquals(0x0a, response[1]);
+        // the opaque comes back as it was sent
+        assertEquals(0x2a, response[15]);
+    }
+
+    private void send(byte[] bytes) throws IOException {
+        OutputStream out = socket.getOutputStream();
+        out.write(bytes);
+        out.flush();
+    }
+
+    private BufferedReader reader() throws IOException {
+        return new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+    }
+
+    /**
+     * @return pipelines of the given factory with a handler in front that records the events reaching it
+     */
+    private ChannelPipelineFactory recording(final String protocol, final ChannelPipelineFactory factory) {
+        return new ChannelPipelineFactory() {
+            public ChannelPipeline getPipeline() throws Exception {
+                ChannelPipeline pipeline = factory.getPipeline();
+                pipeline.addFirst("recorder", new SimpleChannelUpstreamHandler() {
+                    @Override
+                    public void channelOpen(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+                        events.add(protocol + " open");
+                        super.channelOpen(ctx, e);
+                    }
+
+                    @Override
+                    public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+                        events.add(protocol + " message");
+                        super.messageReceived(ctx, e);
+                    }
+                });
+                return pipeline;
+            }
+        };
+    }
+
+    private static int freePort() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+
+}
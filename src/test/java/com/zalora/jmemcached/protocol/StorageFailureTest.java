@@ -0,0 +1,122 @@
+package com.zalora.jmemcached.protocol;
+
+import com.zalora.jmemcached.CacheImpl;
+import com.zalora.jmemcached.LocalCacheElement;
+import com.zalora.jmemcached.MemCacheDaemon;
+import com.zalora.jmemcached.StorageException;
+import com.zalora.jmemcached.storage.MapStorage;
+import org.jboss.netty.util.CharsetUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * A storage that fails to serve a key, over both protocols: the command gets a server error and the connection
+ * carries on.
+ */
+public class StorageFailureTest {
+
+    private int port;
+    private MemCacheDaemon<LocalCacheElement> daemon;
+
+    @Before
+    public void start() throws IOException {
+        port = freePort();
+        daemon = new MemCacheDaemon<LocalCacheElement>(new CacheImpl(new MapStorage() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public LocalCacheElement get(Object key) {
+                if (key.equals("broken")) throw new StorageException("backend down");
+                return super.get(key);
+            }
+        }));
+        daemon.setAddr(new InetSocketAddress("127.0.0.1", port));
+        daemon.setAutoDetect(true);
+        daemon.start();
+    }
+
+    @After
+    public void stop() {
+        daemon.stop();
+    }
+
+    @Test
+    public void theTextProtocolAnswersWithServerError() throws IOException {
+        Socket socket = new Socket("127.0.0.1", port);
+        try {
+            socket.getOutputStream().write("get broken\r\nget fine\r\n".getBytes(CharsetUtil.US_ASCII));
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), CharsetUtil.US_ASCII));
+            assertEquals("SERVER_ERROR backend down", in.readLine());
+            assertEquals("END", in.readLine());
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void theBinaryProtocolAnswersWithInternalError() throws IOException {
+        Socket socket = new Socket("127.0.0.1", port);
+        try {
+            socket.getOutputStream().write(request(0x00, "broken", 1));
+            socket.getOutputStream().write(request(0x0a, "", 2));
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+
+            ByteBuffer error = response(in);
+            assertEquals(0x84, error.getShort(6));
+            byte[] message = new byte[error.getInt(8)];
+            System.arraycopy(error.array(), 24, message, 0, message.length);
+            assertEquals("backend down", new String(message, CharsetUtil.UTF_8));
+
+            ByteBuffer noop = response(in);
+            assertEquals(0, noop.getShort(6));
+            assertEquals(2, noop.getInt(12));
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * @return the whole response, header and body
+     */
+    private static ByteBuffer response(DataInputStream in) throws IOException {
+        byte[] header = new byte[24];
+        in.readFully(header);
+        int bodyLength = ByteBuffer.wrap(header).getInt(8);
+        byte[] response = new byte[24 + bodyLength];
+        System.arraycopy(header, 0, response, 0, 24);
+        in.readFully(response, 24, bodyLength);
+        assertEquals(0x81, response[0] & 0xFF);
+        return ByteBuffer.wrap(response);
+    }
+
+    private static byte[] request(int opcode, String key, int opaque) {
+        byte[] keyBytes = key.getBytes(CharsetUtil.US_ASCII);
+        ByteBuffer request = ByteBuffer.allocate(24 + keyBytes.length);
+        request.put((byte) 0x80).put((byte) opcode).putShort((short) keyBytes.length).put((byte) 0)
+                .put((byte) 0).putShort((short) 0).putInt(keyBytes.length)
+                .putInt(opaque).putLong(0).put(keyBytes);
+        return request.array();
+    }
+
+    private static int freePort() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+
+}
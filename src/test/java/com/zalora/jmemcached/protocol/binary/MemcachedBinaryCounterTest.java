@@ -0,0 +1,164 @@
+package com.zalora.jmemcached.protocol.binary;
+
+import com.zalora.jmemcached.CacheImpl;
+import com.zalora.jmemcached.LocalCacheElement;
+import com.zalora.jmemcached.MemCacheDaemon;
+import com.zalora.jmemcached.storage.MapStorage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Binary increment and decrement against a daemon on loopback: 64 bit deltas, and the initial value and expiry
+ * that create a missing counter.
+ */
+public class MemcachedBinaryCounterTest {
+
+    private static final int INCREMENT = 0x05;
+    private static final int DECREMENT = 0x06;
+    private static final int SET = 0x01;
+
+    private static final int OK = 0x00;
+    private static final int KEY_NOT_FOUND = 0x01;
+
+    private CacheImpl cache;
+    private MemCacheDaemon<LocalCacheElement> daemon;
+    private Socket socket;
+    private OutputStream out;
+    private DataInputStream in;
+
+    @Before
+    public void start() throws IOException {
+        int port = freePort();
+        cache = new CacheImpl(new MapStorage());
+        daemon = new MemCacheDaemon<LocalCacheElement>(cache);
+        daemon.setBinary(true);
+        daemon.setAddr(new InetSocketAddress("127.0.0.1", port));
+        daemon.start();
+
+        socket = new Socket("127.0.0.1", port);
+        out = socket.getOutputStream();
+        in = new DataInputStream(socket.getInputStream());
+    }
+
+    @After
+    public void stop() throws IOException {
+        socket.close();
+        daemon.stop();
+    }
+
+    @Test
+    public void missingCounterIsCreatedFromTheInitialValue() throws IOException {
+        assertEquals(Long.valueOf(100), counter(INCREMENT, "hits", 5, 100, 0));
+        assertEquals(Long.valueOf(105), counter(INCREMENT, "hits", 5, 100, 0));
+        assertEquals(Long.valueOf(103), counter(DECREMENT, "hits", 2, 100, 0));
+        assertEquals("103", value("hits"));
+    }
+
+    @Test
+    public void allOnesExpiryLeavesAMissingCounterMissing() throws IOException {
+        assertNull(counter(INCREMENT, "hits", 5, 100, 0xFFFFFFFF));
+        assertNull(cache.get("hits")[0]);
+    }
+
+    @Test
+    public void createdCounterTakesTheExpiry() throws IOException {
+        counter(INCREMENT, "hits", 1, 7, 60);
+        long remaining = cache.get("hits")[0].getRemainingTtl();
+        assertTrue("remaining ttl " + remaining, remaining > 50 && remaining <= 60);
+    }
+
+    @Test
+    public void deltasAreNotTruncatedTo32Bits() throws IOException {
+        set("big", "1");
+        assertEquals(Long.valueOf(1L + (1L << 40)), counter(INCREMENT, "big", 1L << 40, 0, 0));
+        assertEquals(Long.valueOf(1), counter(DECREMENT, "big", 1L << 40, 0, 0));
+    }
+
+    @Test
+    public void countersAreUnsigned64Bits() throws IOException {
+        set("wrap", "18446744073709551614");
+        assertEquals(Long.valueOf(-1), counter(INCREMENT, "wrap", 1, 0, 0));
+        assertEquals("18446744073709551615", value("wrap"));
+
+        // increments wrap around, decrements stop at zero
+        assertEquals(Long.valueOf(1), counter(INCREMENT, "wrap", 2, 0, 0));
+        assertEquals(Long.valueOf(0), counter(DECREMENT, "wrap", 5, 0, 0));
+        assertEquals(Long.valueOf(0), counter(DECREMENT, "wrap", -1L, 0, 0));
+    }
+
+    @Test
+    public void decrementsOfHalfTheRangeOrMoreAreNotCut() throws IOException {
+        set("max", "18446744073709551615");
+        assertEquals(Long.valueOf(0), counter(DECREMENT, "max", -1L, 0, 0));
+
+        set("max", "18446744073709551615");
+        assertEquals(Long.valueOf(Long.MAX_VALUE), counter(DECREMENT, "max", Long.MIN_VALUE, 0, 0));
+        assertEquals("9223372036854775807", value("max"));
+    }
+
+    private Long counter(int opcode, String key, long delta, long initial, int expiry) throws IOException {
+        ByteBuffer extras = ByteBuffer.allocate(20).putLong(delta).putLong(initial).putInt(expiry);
+        ByteBuffer body = request(opcode, key, extras.array(), new byte[0]);
+        if (body == null) return null;
+        return body.getLong();
+    }
+
+    private void set(String key, String value) throws IOException {
+        ByteBuffer extras = ByteBuffer.allocate(8).putInt(0).putInt(0);
+        request(SET, key, extras.array(), value.getBytes("US-ASCII"));
+    }
+
+    private String value(String key) {
+        LocalCacheElement element = cache.get(key)[0];
+        return element.getData().toString(0, element.getData().readableBytes(), Charset.forName("US-ASCII"));
+    }
+
+    /**
+     * @return the body of the response, or null if the key was not found
+     */
+    private ByteBuffer request(int opcode, String key, byte[] extras, byte[] value) throws IOException {
+        byte[] keyBytes = key.getBytes("US-ASCII");
+        ByteBuffer request = ByteBuffer.allocate(24 + extras.length + keyBytes.length + value.length);
+        request.put((byte) 0x80).put((byte) opcode).putShort((short) keyBytes.length).put((byte) extras.length)
+                .put((byte) 0).putShort((short) 0).putInt(extras.length + keyBytes.length + value.length)
+                .putInt(0).putLong(0).put(extras).put(keyBytes).put(value);
+        out.write(request.array());
+        out.flush();
+
+        byte[] header = new byte[24];
+        in.readFully(header);
+        ByteBuffer response = ByteBuffer.wrap(header);
+        assertEquals(0x81, response.get(0) & 0xFF);
+        int status = response.getShort(6);
+        byte[] body = new byte[response.getInt(8)];
+        in.readFully(body);
+
+        if (status == KEY_NOT_FOUND) return null;
+        assertEquals(OK, status);
+        return ByteBuffer.wrap(body);
+    }
+
+    private static int freePort() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+
+}
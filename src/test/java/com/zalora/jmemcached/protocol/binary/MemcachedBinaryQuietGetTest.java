@@ -0,0 +1,198 @@
+package com.zalora.jmemcached.protocol.binary;
+
+import com.zalora.jmemcached.CacheImpl;
+import com.zalora.jmemcached.LocalCacheElement;
+import com.zalora.jmemcached.MemCacheDaemon;
+import com.zalora.jmemcached.storage.MapStorage;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.util.CharsetUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Pipelines of binary quiet gets against a daemon on loopback: what comes back, in which order and on which
+ * connection.
+ */
+public class MemcachedBinaryQuietGetTest {
+
+    private static final int GET = 0x00;
+    private static final int GETQ = 0x09;
+    private static final int NOOP = 0x0a;
+    private static final int GETKQ = 0x0d;
+
+    // the key lists of every positional getMulti, in the order they were made
+    private final List<List<String>> lookups = new ArrayList<List<String>>();
+    private CacheImpl cache;
+    private MemCacheDaemon<LocalCacheElement> daemon;
+    private int port;
+
+    @Before
+    public void start() throws IOException {
+        port = freePort();
+        cache = new CacheImpl(new MapStorage() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public void getMulti(String[] keys, LocalCacheElement[] results) {
+                synchronized (lookups) {
+                    lookups.add(Arrays.asList(keys));
+                }
+                super.getMulti(keys, results);
+            }
+        });
+        daemon = new MemCacheDaemon<LocalCacheElement>(cache);
+        daemon.setBinary(true);
+        daemon.setAddr(new InetSocketAddress("127.0.0.1", port));
+        daemon.start();
+
+        for (int i = 0; i < 10; i++) {
+            cache.set(element("a" + i, "first" + i));
+            cache.set(element("b" + i, "second" + i));
+        }
+    }
+
+    @After
+    public void stop() {
+        daemon.stop();
+    }
+
+    @Test
+    public void connectionsUsingTheSameOpaquesOnlySeeTheirOwnResponses() throws IOException {
+        Socket first = new Socket("127.0.0.1", port);
+        Socket second = new Socket("127.0.0.1", port);
+        try {
+            // both ask with opaques 0..19, every other key missing, and their writes interleave
+            for (int half = 0; half < 2; half++) {
+                first.getOutputStream().write(quietGets("a", half * 10, 10));
+                second.getOutputStream().write(quietGets("b", half * 10, 10));
+            }
+            first.getOutputStream().write(request(NOOP, "", 100));
+            second.getOutputStream().write(request(NOOP, "", 100));
+
+            assertHitsThenNoOp(new DataInputStream(first.getInputStream()), "a", "first");
+            assertHitsThenNoOp(new DataInputStream(second.getInputStream()), "b", "second");
+        } finally {
+            first.close();
+            second.close();
+        }
+    }
+
+    @Test
+    public void aNonQuietCommandAnswersAfterTheQuietGetsBeforeIt() throws IOException {
+        Socket socket = new Socket("127.0.0.1", port);
+        try {
+            ByteArrayOutputStream pipeline = new ByteArrayOutputStream();
+            pipeline.write(request(GETQ, "a1", 1));
+            pipeline.write(request(GETQ, "missing", 2));
+            pipeline.write(request(GETKQ, "a2", 3));
+            pipeline.write(request(GET, "a3", 4));
+            socket.getOutputStream().write(pipeline.toByteArray());
+
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            assertResponse(in, GETQ, 1, "", "first1");
+            assertResponse(in, GETKQ, 3, "a2", "first2");
+            assertResponse(in, GET, 4, "", "first3");
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void aRunOfQuietGetsIsOneMultiGet() throws IOException {
+        Socket socket = new Socket("127.0.0.1", port);
+        try {
+            ByteArrayOutputStream pipeline = new ByteArrayOutputStream();
+            pipeline.write(quietGets("a", 0, 20));
+            pipeline.write(request(NOOP, "", 100));
+            socket.getOutputStream().write(pipeline.toByteArray());
+
+            assertHitsThenNoOp(new DataInputStream(socket.getInputStream()), "a", "first");
+        } finally {
+            socket.close();
+        }
+
+        List<String> keys = new ArrayList<String>();
+        for (int opaque = 0; opaque < 20; opaque++) {
+            keys.add(opaque % 2 == 0 ? "a" + opaque / 2 : "missing" + opaque);
+        }
+        synchronized (lookups) {
+            assertEquals(Collections.singletonList(keys), lookups);
+        }
+    }
+
+    /**
+     * @return GetKQs for the keys prefix + i / 2 with opaque i; odd opaques ask for a key that is not there
+     */
+    private static byte[] quietGets(String prefix, int from, int count) throws IOException {
+        ByteArrayOutputStream requests = new ByteArrayOutputStream();
+        for (int opaque = from; opaque < from + count; opaque++) {
+            String key = opaque % 2 == 0 ? prefix + opaque / 2 : "missing" + opaque;
+            requests.write(request(GETKQ, key, opaque));
+        }
+        return requests.toByteArray();
+    }
+
+    private static void assertHitsThenNoOp(DataInputStream in, String prefix, String value) throws IOException {
+        for (int opaque = 0; opaque < 20; opaque += 2) {
+            assertResponse(in, GETKQ, opaque, prefix + opaque / 2, value + opaque / 2);
+        }
+        assertResponse(in, NOOP, 100, "", "");
+    }
+
+    private static void assertResponse(DataInputStream in, int opcode, int opaque, String key, String value) throws IOException {
+        byte[] header = new byte[24];
+        in.readFully(header);
+        ByteBuffer response = ByteBuffer.wrap(header);
+        assertEquals(0x81, response.get(0) & 0xFF);
+        assertEquals(opcode, response.get(1));
+        assertEquals(0, response.getShort(6));
+        assertEquals(opaque, response.getInt(12));
+
+        int keyLength = response.getShort(2);
+        int extrasLength = response.get(4);
+        byte[] body = new byte[response.getInt(8)];
+        in.readFully(body);
+        assertEquals(key, new String(body, extrasLength, keyLength, CharsetUtil.US_ASCII));
+        assertEquals(value, new String(body, extrasLength + keyLength, body.length - extrasLength - keyLength, CharsetUtil.US_ASCII));
+    }
+
+    private static byte[] request(int opcode, String key, int opaque) {
+        byte[] keyBytes = key.getBytes(CharsetUtil.US_ASCII);
+        ByteBuffer request = ByteBuffer.allocate(24 + keyBytes.length);
+        request.put((byte) 0x80).put((byte) opcode).putShort((short) keyBytes.length).put((byte) 0)
+                .put((byte) 0).putShort((short) 0).putInt(keyBytes.length)
+                .putInt(opaque).putLong(0).put(keyBytes);
+        return request.array();
+    }
+
+    private static LocalCacheElement element(String key, String value) {
+        LocalCacheElement element = new LocalCacheElement(key, 0, 0, 0L);
+        element.setData(ChannelBuffers.wrappedBuffer(value.getBytes(CharsetUtil.US_ASCII)));
+        return element;
+    }
+
+    private static int freePort() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+
+}
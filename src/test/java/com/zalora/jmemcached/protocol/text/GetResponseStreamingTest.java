@@ -0,0 +1,215 @@
+package com.zalora.jmemcached.protocol.text;
+
+import com.zalora.jmemcached.CacheImpl;
+import com.zalora.jmemcached.LocalCacheElement;
+import com.zalora.jmemcached.MemCacheDaemon;
+import com.zalora.jmemcached.storage.AsyncCacheStorage;
+import com.zalora.jmemcached.storage.MapStorage;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Function;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Large text multi-gets against a daemon on loopback: the keys are looked up in one go, so the cache sees one get of
+ * all of them, and only the encoding of the response is streamed.
+ */
+public class GetResponseStreamingTest {
+
+    private CacheImpl cache;
+    private MemCacheDaemon<LocalCacheElement> daemon;
+    private Socket socket;
+    private DataInputStream in;
+
+    private void start(MapStorage storage, int keys, int valueSize) throws IOException {
+        int port = freePort();
+        for (int i = 0; i < keys; i++) {
+            LocalCacheElement element = new LocalCacheElement("k" + i, 0, 0, 0L);
+            element.setData(ChannelBuffers.wrappedBuffer(value(i, valueSize).getBytes("US-ASCII")));
+            storage.put(element.getKey(), element);
+        }
+
+        cache = new CacheImpl(storage);
+        daemon = new MemCacheDaemon<LocalCacheElement>(cache);
+        daemon.setAddr(new InetSocketAddress("127.0.0.1", port));
+        daemon.start();
+
+        socket = new Socket("127.0.0.1", port);
+        socket.setSoTimeout(5000);
+        in = new DataInputStream(socket.getInputStream());
+    }
+
+    @After
+    public void stop() throws IOException {
+        if (socket != null) socket.close();
+        if (daemon != null) daemon.stop();
+    }
+
+    @Test
+    public void aLargeGetIsOneParallelLookup() throws IOException {
+        final List<String> lookupThreads = new CopyOnWriteArrayList<String>();
+        start(new MapStorage() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public void getMulti(String[] keys, LocalCacheElement[] results) {
+                lookupThreads.add(Thread.currentThread().getName());
+                super.getMulti(keys, results);
+            }
+        }, 500, 1024);
+        cache.setParallelGets(500, 4);
+
+        // well over the streaming chunk size, so the response goes out in chunks
+        StringBuilder get = new StringBuilder("get");
+        for (int i = 0; i < 500; i++) {
+            get.append(" k").append(i);
+        }
+        send(get.append("\r\n").toString());
+        for (int i = 0; i < 500; i++) {
+            assertEquals("k" + i, readValue(1024));
+        }
+        assertEquals("END", readLine());
+
+        assertEquals(Collections.singleton("1"), cache.stat(null).get("cmd_get"));
+        assertEquals(Collections.singleton("500"), cache.stat(null).get("get_hits"));
+        assertFalse(lookupThreads.isEmpty());
+        for (String thread : lookupThreads) {
+            assertTrue(thread, thread.startsWith("ForkJoinPool"));
+        }
+    }
+
+    @Test
+    public void laterCommandsWaitForTheWholeResponse() throws IOException {
+        SlowKeyStorage storage = new SlowKeyStorage();
+        start(storage, 20, 2);
+        StringBuilder get = new StringBuilder("get slow");
+        for (int i = 0; i < 20; i++) {
+            get.append(" k").append(i);
+        }
+        send(get.append("\r\nversion\r\n").toString());
+        storage.release();
+
+        for (int i = 0; i < 20; i++) {
+            assertEquals("k" + i, readValue(2));
+        }
+        assertEquals("END", readLine());
+        assertEquals("VERSION", readLine().split(" ")[0]);
+    }
+
+    private void send(String command) throws IOException {
+        OutputStream out = socket.getOutputStream();
+        out.write(command.getBytes("US-ASCII"));
+        out.flush();
+    }
+
+    /**
+     * @return the key of the next VALUE block, after checking its data
+     */
+    private String readValue(int valueSize) throws IOException {
+        String[] header = readLine().split(" ");
+        assertEquals("VALUE", header[0]);
+        byte[] data = new byte[Integer.parseInt(header[3])];
+        in.readFully(data);
+        assertEquals(value(Integer.parseInt(header[1].substring(1)), valueSize), new String(data, "US-ASCII"));
+        assertEquals("", readLine());
+        return header[1];
+    }
+
+    private String readLine() throws IOException {
+        StringBuilder line = new StringBuilder();
+        for (byte b = in.readByte(); b != '\r'; b = in.readByte()) {
+            line.append((char) b);
+        }
+        assertEquals('\n', in.readByte());
+        return line.toString();
+    }
+
+    /**
+     * @return the value of key i, padded to the given size
+     */
+    private static String value(int i, int valueSize) {
+        StringBuilder value = new StringBuilder("v").append(i);
+        while (value.length() < valueSize) {
+            value.append('.');
+        }
+        return value.toString();
+    }
+
+    private static int freePort() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * Answers every lookup at once, except multi-gets of the key "slow", which wait until released.
+     */
+    static final class SlowKeyStorage extends MapStorage implements AsyncCacheStorage<String, LocalCacheElement> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final CompletableFuture<Void> released = new CompletableFuture<Void>();
+
+        void release() {
+            released.complete(null);
+        }
+
+        public CompletionStage<LocalCacheElement> getAsync(String key) {
+            return CompletableFuture.completedFuture(get(key));
+        }
+
+        public CompletionStage<LocalCacheElement[]> getMultiAsync(final String[] keys, final LocalCacheElement[] results) {
+            if (!Arrays.asList(keys).contains("slow")) {
+                getMulti(keys, results);
+                return CompletableFuture.completedFuture(results);
+            }
+            return released.thenApply(new Function<Void, LocalCacheElement[]>() {
+                public LocalCacheElement[] apply(Void released) {
+                    getMulti(keys, results);
+                    return results;
+                }
+            });
+        }
+
+        public CompletionStage<LocalCacheElement> putAsync(String key, LocalCacheElement value) {
+            return CompletableFuture.completedFuture(put(key, value));
+        }
+
+        public CompletionStage<LocalCacheElement> putIfAbsentAsync(String key, LocalCacheElement value) {
+            return CompletableFuture.completedFuture(putIfAbsent(key, value));
+        }
+
+        public CompletionStage<LocalCacheElement> replaceAsync(String key, LocalCacheElement value) {
+            return CompletableFuture.completedFuture(replace(key, value));
+        }
+
+        public CompletionStage<Boolean> replaceAsync(String key, LocalCacheElement oldValue, LocalCacheElement newValue) {
+            return CompletableFuture.completedFuture(replace(key, oldValue, newValue));
+        }
+
+        public CompletionStage<LocalCacheElement> removeAsync(String key) {
+            return CompletableFuture.completedFuture(remove(key));
+        }
+    }
+
+}
@@ -0,0 +1,125 @@
+package com.zalora.jmemcached.protocol.text;
+
+import com.zalora.jmemcached.protocol.CommandMessage;
+import com.zalora.jmemcached.protocol.Op;
+import com.zalora.jmemcached.protocol.SessionStatus;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.embedder.DecoderEmbedder;
+import org.jboss.netty.util.CharsetUtil;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Feeds commands to the decoder cut into reads at every possible place, so that delimiters land at the end of one
+ * read, the start of the next and everywhere in between.
+ */
+public class MemcachedCommandDecoderTest {
+
+    @Test
+    public void decodesGetSplitAtEveryByte() {
+        byte[] line = "get a bb ccc dddd eeeee ffffff ggggggg hhhhhhhh\r\n".getBytes();
+        List<String> keys = Arrays.asList("a", "bb", "ccc", "dddd", "eeeee", "ffffff", "ggggggg", "hhhhhhhh");
+
+        for (int split = 1; split < line.length; split++) {
+            List<CommandMessage> commands = decode(false, line, split);
+            assertEquals("split at " + split, 1, commands.size());
+            assertEquals(Op.GET, commands.get(0).op);
+            assertEquals("split at " + split, keys, commands.get(0).keys);
+        }
+    }
+
+    @Test
+    public void decodesGetSplitAtEveryByteFromDirectBuffers() {
+        byte[] line = "gets key1 key2 key3\r\n".getBytes();
+
+        for (int split = 1; split < line.length; split++) {
+            List<CommandMessage> commands = decode(true, line, split);
+            assertEquals("split at " + split, 1, commands.size());
+            assertEquals(Arrays.asList("key1", "key2", "key3"), commands.get(0).keys);
+        }
+    }
+
+    @Test
+    public void decodesGetFedOneByteAtATime() {
+        byte[] line = "get key1 key2\r\nget key3\r\n".getBytes();
+        DecoderEmbedder<CommandMessage> embedder = newEmbedder();
+        for (byte b : line) {
+            embedder.offer(ChannelBuffers.wrappedBuffer(new byte[]{b}));
+        }
+        embedder.finish();
+
+        assertEquals(Arrays.asList("key1", "key2"), embedder.poll().keys);
+        assertEquals(Arrays.asList("key3"), embedder.poll().keys);
+        assertNull(embedder.poll());
+    }
+
+    @Test
+    public void decodesSetSplitAtEveryByte() {
+        byte[] command = "set key 5 0 11\r\nhello world\r\nget key\r\n".getBytes();
+
+        for (int split = 1; split < command.length; split++) {
+            List<CommandMessage> commands = decode(false, command, split);
+            assertEquals("split at " + split, 2, commands.size());
+
+            CommandMessage set = commands.get(0);
+            assertEquals(Op.SET, set.op);
+            assertEquals("key", set.element.getKey());
+            assertEquals(5L, set.element.getFlags());
+            ChannelBuffer data = set.element.getData();
+            assertEquals("hello world", data.toString(CharsetUtil.US_ASCII));
+
+            assertEquals(Op.GET, commands.get(1).op);
+            assertEquals(Arrays.asList("key"), commands.get(1).keys);
+        }
+    }
+
+    @Test
+    public void largeValuesReadIntoDirectMemoryAreCachedOnTheHeap() {
+        byte[] value = new byte[128 * 1024];
+        Arrays.fill(value, (byte) 'v');
+        byte[] header = ("set big 0 0 " + value.length + "\r\n").getBytes();
+        byte[] command = new byte[header.length + value.length + 2];
+        System.arraycopy(header, 0, command, 0, header.length);
+        System.arraycopy(value, 0, command, header.length, value.length);
+        command[command.length - 2] = '\r';
+        command[command.length - 1] = '\n';
+
+        List<CommandMessage> commands = decode(true, command, header.length + 1000);
+        ChannelBuffer data = commands.get(0).element.getData();
+        assertFalse(data.isDirect());
+        assertEquals(ChannelBuffers.wrappedBuffer(value), data);
+    }
+
+    private static DecoderEmbedder<CommandMessage> newEmbedder() {
+        return new DecoderEmbedder<CommandMessage>(new MemcachedCommandDecoder(new SessionStatus()));
+    }
+
+    private static List<CommandMessage> decode(boolean direct, byte[] bytes, int split) {
+        DecoderEmbedder<CommandMessage> embedder = newEmbedder();
+        embedder.offer(buffer(direct, Arrays.copyOfRange(bytes, 0, split)));
+        embedder.offer(buffer(direct, Arrays.copyOfRange(bytes, split, bytes.length)));
+        embedder.finish();
+
+        List<CommandMessage> commands = new ArrayList<CommandMessage>();
+        for (CommandMessage command = embedder.poll(); command != null; command = embedder.poll()) {
+            commands.add(command);
+        }
+        return commands;
+    }
+
+    private static ChannelBuffer buffer(boolean direct, byte[] bytes) {
+        if (!direct) return ChannelBuffers.wrappedBuffer(bytes);
+        ChannelBuffer buffer = ChannelBuffers.directBuffer(bytes.length);
+        buffer.writeBytes(bytes);
+        return buffer;
+    }
+
+}
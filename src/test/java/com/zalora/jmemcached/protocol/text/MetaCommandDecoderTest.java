@@ -0,0 +1,140 @@
+package com.zalora.jmemcached.protocol.text;
+
+import com.zalora.jmemcached.protocol.CommandMessage;
+import com.zalora.jmemcached.protocol.Op;
+import com.zalora.jmemcached.protocol.SessionStatus;
+import com.zalora.jmemcached.protocol.exceptions.MalformedCommandException;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.embedder.CodecEmbedderException;
+import org.jboss.netty.handler.codec.embedder.DecoderEmbedder;
+import org.jboss.netty.util.CharsetUtil;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * The meta commands as the decoder hands them on: their keys, flags and the elements built from them, and the
+ * lines it refuses.
+ */
+public class MetaCommandDecoderTest {
+
+    @Test
+    public void decodesMetaGet() {
+        CommandMessage mg = decode("mg key v k c f s t h l T30 R5 N10 Oabc q\r\n");
+
+        assertEquals(Op.MG, mg.op);
+        assertEquals(Arrays.asList("key"), mg.keys);
+        assertTrue(mg.noreply);
+        assertEquals("abc", mg.meta.token('O'));
+        assertEquals(30, mg.meta.longToken('T', 0));
+        assertEquals(5, mg.meta.longToken('R', 0));
+        assertEquals(10, mg.meta.longToken('N', 0));
+        assertEquals("vkcfsthlTRNOq", new String(mg.meta.order()));
+    }
+
+    @Test
+    public void decodesMetaSetWithItsValue() {
+        CommandMessage ms = decode("ms key 5 F7 T60 C12 MA c\r\nhello\r\n");
+
+        assertEquals(Op.MS, ms.op);
+        assertFalse(ms.noreply);
+        assertEquals("key", ms.element.getKey());
+        assertEquals(7L, ms.element.getFlags());
+        assertEquals(60000L, ms.element.getExpire());
+        assertEquals(12L, ms.cas_key);
+        assertEquals("A", ms.meta.token('M'));
+        assertEquals("hello", ms.element.getData().toString(CharsetUtil.US_ASCII));
+    }
+
+    @Test
+    public void decodesMetaDelete() {
+        CommandMessage md = decode("md key I T30 q\r\n");
+
+        assertEquals(Op.MD, md.op);
+        assertTrue(md.noreply);
+        assertTrue(md.meta.has('I'));
+        assertEquals(30, md.meta.longToken('T', 0));
+    }
+
+    @Test
+    public void decodesMetaArithmetic() {
+        CommandMessage incr = decode("ma key\r\n");
+        assertEquals(Op.MA, incr.op);
+        assertEquals(1L, incr.incrAmount);
+        assertFalse(incr.decrement);
+        assertNull(incr.element);
+
+        CommandMessage decr = decode("ma key MD D18446744073709551615 N60 J42 v\r\n");
+        assertTrue(decr.decrement);
+        assertEquals(-1L, decr.incrAmount);
+        assertEquals("key", decr.element.getKey());
+        assertEquals(60000L, decr.element.getExpire());
+        assertEquals("42", decr.element.getData().toString(CharsetUtil.US_ASCII));
+
+        assertTrue(decode("ma key M-\r\n").decrement);
+        assertFalse(decode("ma key M+\r\n").decrement);
+    }
+
+    @Test
+    public void decodesMetaNoOpAndDebug() {
+        assertEquals(Op.MN, decode("mn\r\n").op);
+
+        CommandMessage me = decode("me key\r\n");
+        assertEquals(Op.ME, me.op);
+        assertEquals(Arrays.asList("key"), me.keys);
+    }
+
+    @Test
+    public void decodesBase64Keys() {
+        CommandMessage mg = decode("mg a2V5IHdpdGggc3BhY2Vz b v\r\n");
+
+        assertEquals(Arrays.asList("key with spaces"), mg.keys);
+        assertTrue(mg.meta.has('b'));
+
+        CommandMessage ms = decode("ms a2V5IHdpdGggc3BhY2Vz 1 b\r\nx\r\n");
+        assertEquals("key with spaces", ms.element.getKey());
+    }
+
+    @Test
+    public void refusesMalformedMetaCommands() {
+        refuses("mg\r\n");
+        refuses("mg key Tabc\r\n");
+        refuses("mg key v v\r\n");
+        refuses("mg key 1\r\n");
+        refuses("mg key O012345678901234567890123456789012\r\n");
+        refuses("mg !!!! b\r\n");
+        refuses("ms key\r\n");
+        refuses("ms key 1 MX\r\n");
+        refuses("ma key MX\r\n");
+        refuses("ma key D-1\r\n");
+    }
+
+    private static void refuses(String line) {
+        try {
+            decode(line);
+            fail("accepted " + line.trim());
+        } catch (CodecEmbedderException expected) {
+            assertTrue(line.trim() + ": " + expected.getCause(), expected.getCause() instanceof MalformedCommandException);
+        }
+    }
+
+    private static DecoderEmbedder<CommandMessage> newEmbedder() {
+        return new DecoderEmbedder<CommandMessage>(new MemcachedCommandDecoder(new SessionStatus()));
+    }
+
+    private static CommandMessage decode(String command) {
+        DecoderEmbedder<CommandMessage> embedder = newEmbedder();
+        embedder.offer(ChannelBuffers.copiedBuffer(command, CharsetUtil.US_ASCII));
+        embedder.finish();
+        CommandMessage decoded = embedder.poll();
+        assertNull(embedder.poll());
+        return decoded;
+    }
+
+}
@@ -0,0 +1,260 @@
+package com.zalora.jmemcached.protocol.text;
+
+import com.zalora.jmemcached.CacheImpl;
+import com.zalora.jmemcached.LocalCacheElement;
+import com.zalora.jmemcached.MemCacheDaemon;
+import com.zalora.jmemcached.storage.MapStorage;
+import org.jboss.netty.util.CharsetUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The meta commands against a daemon on loopback: each command with its flags, what quiet mode leaves out, and the
+ * replies to lines the decoder refuses.
+ */
+public class MetaCommandsTest {
+
+    private CacheImpl cache;
+    private MemCacheDaemon<LocalCacheElement> daemon;
+    private Socket socket;
+    private OutputStream out;
+    private BufferedReader in;
+
+    @Before
+    public void start() throws IOException {
+        int port = freePort();
+        cache = new CacheImpl(new MapStorage());
+        daemon = new MemCacheDaemon<LocalCacheElement>(cache);
+        daemon.setAddr(new InetSocketAddress("127.0.0.1", port));
+        daemon.start();
+
+        socket = new Socket("127.0.0.1", port);
+        out = socket.getOutputStream();
+        in = new BufferedReader(new InputStreamReader(socket.getInputStream(), CharsetUtil.UTF_8));
+    }
+
+    @After
+    public void stop() throws IOException {
+        socket.close();
+        daemon.stop();
+    }
+
+    @Test
+    public void metaGetReturnsTheFlagsAskedFor() throws IOException {
+        assertEquals("HD", send("ms key 5 F7 T100\r\nhello\r\n"));
+        long cas = cache.get("key")[0].getCasUnique();
+
+        assertEquals("EN", send("mg missing v\r\n"));
+        assertEquals("HD", send("mg key\r\n"));
+        assertEquals("VA 5 f7 s5 c" + cas + " kkey Oabc", send("mg key v f s c k Oabc\r\n"));
+        assertEquals("hello", in.readLine());
+
+        String ttl = send("mg key t\r\n");
+        assertTrue(ttl, ttl.equals("HD t100") || ttl.equals("HD t99"));
+
+        // touching sets a new ttl; the key has been read before by now
+        assertEquals("HD t-1 h1", send("mg key T0 t h\r\n"));
+    }
+
+    @Test
+    public void metaSetModes() throws IOException {
+        assertEquals("NS", send("ms key 1 MR\r\nx\r\n"));
+        assertEquals("HD", send("ms key 1 ME\r\nx\r\n"));
+        assertEquals("NS", send("ms key 1 ME\r\ny\r\n"));
+        assertEquals("HD", send("ms key 1 MA\r\nz\r\n"));
+        assertEquals("HD", send("ms key 1 MP\r\nw\r\n"));
+        assertEquals("VA 3", send("mg key v\r\n"));
+        assertEquals("wxz", in.readLine());
+
+        long cas = cache.get("key")[0].getCasUnique();
+        assertEquals("EX", send("ms key 1 C" + (cas + 100) + "\r\na\r\n"));
+        String stored = send("ms key 1 C" + cas + " c\r\nb\r\n");
+        assertEquals("HD c" + cache.get("key")[0].getCasUnique(), stored);
+    }
+
+    @Test
+    public void metaDelete() throws IOException {
+        send("ms key 1\r\nx\r\n");
+
+        assertEquals("HD", send("md key\r\n"));
+        assertEquals("NF", send("md key\r\n"));
+        assertEquals("EN", send("mg key\r\n"));
+    }
+
+    @Test
+    public void metaArithmetic() throws IOException {
+        assertEquals("NF", send("ma counter\r\n"));
+        assertEquals("VA 2", send("ma counter N0 J10 v\r\n"));
+        assertEquals("10", in.readLine());
+        assertEquals("HD", send("ma counter D5\r\n"));
+        assertEquals("VA 2", send("ma counter MD D3 v\r\n"));
+        assertEquals("12", in.readLine());
+        assertEquals("VA 1", send("ma counter M- D18446744073709551615 v\r\n"));
+        assertEquals("0", in.readLine());
+    }
+
+    @Test
+    public void metaDebugDescribesTheItemWithoutReadingIt() throws IOException {
+        assertEquals("EN", send("me key\r\n"));
+
+        send("ms key 5 T100\r\nhello\r\n");
+        long cas = cache.get("key")[0].getCasUnique();
+        String unread = "ME key exp=(100|99) la=-1 cas=" + cas + " fetch=no size=5";
+        assertMatches(unread, send("me key\r\n"));
+        assertMatches(unread, send("me key\r\n"));
+
+        send("mg key\r\n");
+        assertMatches("ME key exp=(100|99) la=[01] cas=" + cas + " fetch=yes size=5", send("me key\r\n"));
+    }
+
+    @Test
+    public void exactlyOneClientGetsTheLeaseOfAStaleItem() throws Exception {
+        send("ms key 1\r\nx\r\n");
+        assertEquals("HD", send("md key I\r\n"));
+
+        final int clients = 16;
+        final CountDownLatch ready = new CountDownLatch(clients);
+        final CountDownLatch go = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(clients);
+        try {
+            List<Future<String>> replies = new ArrayList<Future<String>>();
+            for (int i = 0; i < clients; i++) {
+                replies.add(executor.submit(new Callable<String>() {
+                    public String call() throws Exception {
+                        Socket client = new Socket("127.0.0.1", socket.getPort());
+                        try {
+                            BufferedReader reader = new BufferedReader(new InputStreamReader(client.getInputStream(), CharsetUtil.UTF_8));
+                            ready.countDown();
+                            go.await();
+                            client.getOutputStream().write("mg key v\r\n".getBytes(CharsetUtil.US_ASCII));
+                            String status = reader.readLine();
+                            assertEquals("x", reader.readLine());
+                            return status;
+                        } finally {
+                            client.close();
+                        }
+                    }
+                }));
+            }
+            assertTrue(ready.await(10, TimeUnit.SECONDS));
+            go.countDown();
+
+            int won = 0;
+            for (Future<String> reply : replies) {
+                String status = reply.get(10, TimeUnit.SECONDS);
+                if (status.equals("VA 1 W X")) won++;
+                else assertEquals("VA 1 X Z", status);
+            }
+            assertEquals(1, won);
+        } finally {
+            executor.shutdown();
+        }
+
+        // the winner recaches the item, which ends the lease
+        assertEquals("HD", send("ms key 1\r\ny\r\n"));
+        assertEquals("VA 1", send("mg key v\r\n"));
+    }
+
+    @Test
+    public void quietModeOnlyReportsTheUnexpected() throws IOException {
+        send("ms hit 1\r\nx\r\n");
+
+        // a quiet miss, store, delete and increment say nothing; a quiet hit and the failures still answer
+        out.write(("mg miss v q\r\n"
+                + "mg hit v q Oa\r\n"
+                + "ms key 1 q\r\ny\r\n"
+                + "ms key 1 ME q Ob\r\nz\r\n"
+                + "md key q\r\n"
+                + "md key q Oc\r\n"
+                + "ma counter N0 J1 q\r\n"
+                + "mn\r\n").getBytes(CharsetUtil.US_ASCII));
+        out.flush();
+
+        assertEquals("VA 1 Oa", in.readLine());
+        assertEquals("x", in.readLine());
+        assertEquals("NS Ob", in.readLine());
+        assertEquals("NF Oc", in.readLine());
+        assertEquals("MN", in.readLine());
+
+        assertEquals("1", cache.get("counter")[0].getData().toString(CharsetUtil.US_ASCII));
+    }
+
+    @Test
+    public void metaNoOpComesBackAfterEverythingBeforeIt() throws IOException {
+        StringBuilder pipelined = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            pipelined.append("ms key").append(i).append(" 1 q\r\nx\r\n");
+        }
+        pipelined.append("mn\r\n");
+        out.write(pipelined.toString().getBytes(CharsetUtil.US_ASCII));
+        out.flush();
+
+        assertEquals("MN", in.readLine());
+        for (int i = 0; i < 100; i++) {
+            assertEquals("key" + i, cache.get("key" + i)[0].getKey());
+        }
+    }
+
+    @Test
+    public void base64KeysAreDecodedAndReturnedEncoded() throws IOException {
+        assertEquals("HD", send("ms a2V5IHdpdGggc3BhY2Vz 1 b\r\nx\r\n"));
+        assertEquals("x", cache.get("key with spaces")[0].getData().toString(CharsetUtil.US_ASCII));
+
+        // return flags come back in the order they were asked for
+        assertEquals("VA 1 b ka2V5IHdpdGggc3BhY2Vz", send("mg a2V5IHdpdGggc3BhY2Vz b v k\r\n"));
+        assertEquals("x", in.readLine());
+    }
+
+    @Test
+    public void refusedLinesGetClientErrorAndTheConnectionCarriesOn() throws IOException {
+        assertEquals("CLIENT_ERROR", send("mg key Tabc\r\n"));
+        assertEquals("CLIENT_ERROR", send("mg key v v\r\n"));
+        assertEquals("CLIENT_ERROR", send("mg !!!! b\r\n"));
+        assertEquals("CLIENT_ERROR", send("ms key 1 MX\r\n"));
+        assertEquals("CLIENT_ERROR", send("ma key MX\r\n"));
+        assertEquals("MN", send("mn\r\n"));
+    }
+
+    private static void assertMatches(String pattern, String line) {
+        assertTrue(line, line.matches(pattern));
+    }
+
+    /**
+     * @return the first line of the response
+     */
+    private String send(String command) throws IOException {
+        out.write(command.getBytes(CharsetUtil.US_ASCII));
+        out.flush();
+        return in.readLine();
+    }
+
+    private static int freePort() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+
+}
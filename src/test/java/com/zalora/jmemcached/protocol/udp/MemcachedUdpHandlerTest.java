@@ -0,0 +1,214 @@
+package com.zalora.jmemcached.protocol.udp;
+
+import com.zalora.jmemcached.CacheImpl;
+import com.zalora.jmemcached.LocalCacheElement;
+import com.zalora.jmemcached.MemCacheDaemon;
+import com.zalora.jmemcached.storage.MapStorage;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.util.CharsetUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Gets over UDP against a daemon on loopback, read back datagram by datagram with their frame headers.
+ */
+public class MemcachedUdpHandlerTest {
+
+    private CacheImpl cache;
+    private MemCacheDaemon<LocalCacheElement> daemon;
+    private InetSocketAddress udpAddr;
+    private DatagramSocket socket;
+
+    @Before
+    public void start() throws IOException {
+        cache = new CacheImpl(new MapStorage());
+        daemon = new MemCacheDaemon<LocalCacheElement>(cache);
+        daemon.setAddr(new InetSocketAddress("127.0.0.1", freePort()));
+        udpAddr = new InetSocketAddress("127.0.0.1", freeUdpPort());
+        daemon.setUdpAddr(udpAddr);
+        daemon.start();
+
+        socket = new DatagramSocket();
+        socket.setSoTimeout(5000);
+    }
+
+    @After
+    public void stop() {
+        socket.close();
+        daemon.stop();
+    }
+
+    @Test
+    public void aSmallResponseIsOneDatagram() throws IOException {
+        cache.set(element("a", "x"));
+
+        request(0x1234, 0, 1, "get a b\r\n");
+        Datagram response = receive();
+        assertEquals(0x1234, response.requestId);
+        assertEquals(0, response.sequence);
+        assertEquals(1, response.total);
+        assertEquals(0, response.reserved);
+        assertEquals("VALUE a 0 1\r\nx\r\nEND\r\n", response.payload);
+
+        assertEquals("1", cache.stat(null).get("udp_get_hits").iterator().next());
+        assertEquals("1", cache.stat(null).get("udp_get_misses").iterator().next());
+    }
+
+    @Test
+    public void getsCarriesTheCasUnique() throws IOException {
+        cache.set(element("a", "x"));
+        long cas = cache.get("a")[0].getCasUnique();
+
+        request(7, 0, 1, "gets a\r\n");
+        assertEquals("VALUE a 0 1 " + cas + "\r\nx\r\nEND\r\n", receive().payload);
+    }
+
+    @Test
+    public void aLargeResponseIsSplitIntoNumberedDatagrams() throws IOException {
+        char[] value = new char[5000];
+        for (int i = 0; i < value.length; i++) {
+            value[i] = (char) ('a' + i % 26);
+        }
+        cache.set(element("big", new String(value)));
+        String expected = "VALUE big 0 5000\r\n" + new String(value) + "\r\nEND\r\n";
+        int payloadSize = MemcachedUdpHandler.MAX_DATAGRAM_SIZE - MemcachedUdpHandler.HEADER_LENGTH;
+        int total = (expected.length() + payloadSize - 1) / payloadSize;
+
+        request(0xFFFF, 0, 1, "get big\r\n");
+        String[] parts = new String[total];
+        for (int i = 0; i < total; i++) {
+            Datagram response = receive();
+            assertTrue("datagram of " + response.size + " bytes", response.size <= MemcachedUdpHandler.MAX_DATAGRAM_SIZE);
+            assertEquals(0xFFFF, response.requestId);
+            assertEquals(total, response.total);
+            assertNull("sequence " + response.sequence + " twice", parts[response.sequence]);
+            parts[response.sequence] = response.payload;
+        }
+
+        StringBuilder reassembled = new StringBuilder();
+        for (String part : parts) {
+            assertNotNull(part);
+            reassembled.append(part);
+        }
+        assertEquals(expected, reassembled.toString());
+        for (int i = 0; i < total - 1; i++) {
+            assertEquals(payloadSize, parts[i].length());
+        }
+    }
+
+    @Test
+    public void eachResponseCarriesTheIdOfItsRequest() throws IOException {
+        cache.set(element("a", "x"));
+
+        request(1, 0, 1, "get a\r\n");
+        request(2, 0, 1, "get b\r\n");
+        Datagram first = receive();
+        Datagram second = receive();
+
+        // datagrams may overtake each other, so match them up by id
+        Datagram forA = first.requestId == 1 ? first : second;
+        Datagram forB = first.requestId == 1 ? second : first;
+        assertEquals(1, forA.requestId);
+        assertEquals("VALUE a 0 1\r\nx\r\nEND\r\n", forA.payload);
+        assertEquals(2, forB.requestId);
+        assertEquals("END\r\n", forB.payload);
+    }
+
+    @Test
+    public void anythingButGetIsAnError() throws IOException {
+        request(3, 0, 1, "set a 0 0 1\r\nx\r\n");
+        Datagram response = receive();
+        assertEquals(3, response.requestId);
+        assertEquals("ERROR\r\n", response.payload);
+
+        request(4, 0, 1, "stats\r\n");
+        assertEquals("ERROR\r\n", receive().payload);
+
+        request(5, 0, 1, "get\r\n");
+        assertEquals("ERROR\r\n", receive().payload);
+        assertNull(cache.get("a")[0]);
+        assertEquals("3", cache.stat(null).get("udp_malformed_requests").iterator().next());
+    }
+
+    @Test
+    public void requestsOfSeveralDatagramsAreRefused() throws IOException {
+        request(6, 0, 2, "get a\r\n");
+        assertEquals("SERVER_ERROR multi-packet request not supported\r\n", receive().payload);
+    }
+
+    private void request(int requestId, int sequence, int total, String command) throws IOException {
+        byte[] line = command.getBytes(CharsetUtil.US_ASCII);
+        ByteBuffer datagram = ByteBuffer.allocate(MemcachedUdpHandler.HEADER_LENGTH + line.length);
+        datagram.putShort((short) requestId).putShort((short) sequence).putShort((short) total).putShort((short) 0).put(line);
+        socket.send(new DatagramPacket(datagram.array(), datagram.capacity(), udpAddr));
+    }
+
+    private Datagram receive() throws IOException {
+        byte[] buffer = new byte[65536];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        socket.receive(packet);
+        return new Datagram(Arrays.copyOf(buffer, packet.getLength()));
+    }
+
+    private static LocalCacheElement element(String key, String value) {
+        LocalCacheElement element = new LocalCacheElement(key, 0, 0, 0L);
+        element.setData(ChannelBuffers.wrappedBuffer(value.getBytes(CharsetUtil.US_ASCII)));
+        return element;
+    }
+
+    private static int freePort() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+
+    private static int freeUdpPort() throws IOException {
+        DatagramSocket socket = new DatagramSocket(0);
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * A response datagram taken apart.
+     */
+    private static final class Datagram {
+
+        final int size;
+        final int requestId;
+        final int sequence;
+        final int total;
+        final int reserved;
+        final String payload;
+
+        Datagram(byte[] bytes) {
+            ByteBuffer in = ByteBuffer.wrap(bytes);
+            size = bytes.length;
+            requestId = in.getShort() & 0xFFFF;
+            sequence = in.getShort() & 0xFFFF;
+            total = in.getShort() & 0xFFFF;
+            reserved = in.getShort() & 0xFFFF;
+            payload = new String(bytes, MemcachedUdpHandler.HEADER_LENGTH, bytes.length - MemcachedUdpHandler.HEADER_LENGTH, CharsetUtil.US_ASCII);
+        }
+    }
+
+}
@@ -0,0 +1,124 @@
+package com.zalora.jmemcached.replication;
+
+import com.zalora.jmemcached.CacheImpl;
+import com.zalora.jmemcached.LocalCacheElement;
+import com.zalora.jmemcached.storage.MapStorage;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.util.CharsetUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A daemon warming up from a donor over loopback: which keys it gets, and how often the donor goes over its keys.
+ */
+public class PeerWarmupTest {
+
+    private static final int KEYS = 1000;
+    private static final int SHARDS = 4;
+
+    private final AtomicInteger keyScans = new AtomicInteger();
+    private InetSocketAddress addr;
+    private WarmupDonor donor;
+    private CacheImpl receiver;
+
+    @Before
+    public void start() throws IOException {
+        addr = new InetSocketAddress("127.0.0.1", freePort());
+        MapStorage storage = new MapStorage() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public KeySetView<String, LocalCacheElement> keySet() {
+                keyScans.incrementAndGet();
+                return super.keySet();
+            }
+        };
+        for (int i = 0; i < KEYS; i++) {
+            LocalCacheElement element = new LocalCacheElement("key" + i, 0, 0, 0L);
+            element.setData(ChannelBuffers.wrappedBuffer(("value" + i).getBytes(CharsetUtil.US_ASCII)));
+            // the higher the number, the more recently the key was read; key0 never was
+            element.markAccessed(i);
+            storage.put(element.getKey(), element);
+        }
+
+        donor = new WarmupDonor(storage, addr);
+        donor.setBytesPerSecond(0);
+        // small chunks, so every shard takes several
+        donor.setChunkBytes(1024);
+        donor.start();
+        receiver = new CacheImpl(new MapStorage());
+    }
+
+    @After
+    public void stop() throws IOException {
+        donor.stop();
+        receiver.close();
+    }
+
+    @Test
+    public void theHottestFractionOfEveryShardArrives() throws Exception {
+        assertTrue(warmUp(0.25));
+
+        // per shard, the last quarter by access time, rounded up
+        Set<String> expected = new HashSet<String>();
+        for (int shard = 0; shard < SHARDS; shard++) {
+            List<String> keys = new ArrayList<String>();
+            for (int i = 0; i < KEYS; i++) {
+                if (ReplicationFrames.shard("key" + i, SHARDS) == shard) keys.add("key" + i);
+            }
+            int wanted = (int) Math.ceil(keys.size() * 0.25);
+            expected.addAll(keys.subList(keys.size() - wanted, keys.size()));
+        }
+
+        Set<String> received = new HashSet<String>();
+        for (int i = 0; i < KEYS; i++) {
+            LocalCacheElement element = receiver.get("key" + i)[0];
+            if (element == null) continue;
+            assertEquals("value" + i, element.getData().toString(CharsetUtil.US_ASCII));
+            received.add(element.getKey());
+        }
+        assertEquals(expected, received);
+    }
+
+    @Test
+    public void theDonorGoesOverItsKeysOncePerWarmup() throws Exception {
+        assertTrue(warmUp(1.0));
+        assertEquals(1, keyScans.get());
+        assertEquals(String.valueOf(KEYS), donor.getStats().get("warmup_keys_sent"));
+
+        // every shard has been claimed, so the next warm-up sees the keys as they are by then
+        assertTrue(warmUp(1.0));
+        assertEquals(2, keyScans.get());
+    }
+
+    private boolean warmUp(double fraction) throws InterruptedException {
+        PeerWarmup warmup = new PeerWarmup(receiver, addr);
+        warmup.setShards(SHARDS);
+        warmup.setFraction(fraction);
+        warmup.setTimeoutMillis(10000);
+        return warmup.run();
+    }
+
+    private static int freePort() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+
+}
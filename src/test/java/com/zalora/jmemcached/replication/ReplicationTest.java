@@ -0,0 +1,295 @@
+package com.zalora.jmemcached.replication;
+
+import com.zalora.jmemcached.CacheImpl;
+import com.zalora.jmemcached.LocalCacheElement;
+import com.zalora.jmemcached.storage.MapStorage;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.util.CharsetUtil;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A primary and a replica replicating over loopback, the replica catching up after losing the primary for a while.
+ */
+public class ReplicationTest {
+
+    private final InetSocketAddress addr;
+
+    private CacheImpl primaryCache;
+    private ReplicationPrimary primary;
+    private CacheImpl replicaCache;
+    private ReplicationReplica replica;
+
+    public ReplicationTest() throws IOException {
+        addr = new InetSocketAddress("127.0.0.1", freePort());
+    }
+
+    @After
+    public void stop() throws IOException {
+        if (replica != null) replica.stop();
+        if (primary != null) primary.stop();
+        if (replicaCache != null) replicaCache.close();
+        if (primaryCache != null) primaryCache.close();
+    }
+
+    @Test
+    public void aNewReplicaGetsASnapshotAndThenTheStream() throws Exception {
+        start(ReplicationPrimary.DEFAULT_BACKLOG_BYTES);
+        primaryCache.set(element("before", "1"));
+        startReplica();
+        awaitValue("before", "1");
+
+        primaryCache.set(element("after", "2"));
+        primaryCache.delete("before", 0);
+        awaitValue("after", "2");
+        awaitValue("before", null);
+
+        assertEquals("1", replicaStat("replication_full_syncs"));
+        assertEquals("0", replicaStat("replication_partial_syncs"));
+    }
+
+    @Test
+    public void aReconnectingReplicaCarriesOnFromTheBacklog() throws Exception {
+        start(ReplicationPrimary.DEFAULT_BACKLOG_BYTES);
+        primaryCache.set(element("a", "1"));
+        primaryCache.set(element("b", "1"));
+        startReplica();
+        awaitValue("b", "1");
+
+        // the primary goes away and comes back with its backlog; the replica reconnects on its own
+        primary.stop();
+        awaitReplicaStat("replication_connected", "0");
+        primaryCache.set(element("a", "2"));
+        primaryCache.delete("b", 0);
+        primaryCache.set(element("c", "3"));
+        primary.start();
+
+        awaitValue("c", "3");
+        assertEquals("2", value(replicaCache.get("a")[0]));
+        assertNull(replicaCache.get("b")[0]);
+
+        assertEquals("1", replicaStat("replication_full_syncs"));
+        assertEquals("1", replicaStat("replication_partial_syncs"));
+        assertEquals("1", primary.getStats().get("replication_partial_syncs"));
+        awaitReplicaStat("replication_applied_seq", String.valueOf(primary.getHeadSeq()));
+    }
+
+    @Test
+    public void aReplicaThatFellOutOfTheBacklogGetsANewSnapshot() throws Exception {
+        start(4096);
+        primaryCache.set(element("kept", "1"));
+        primaryCache.set(element("deleted", "1"));
+        startReplica();
+        awaitValue("deleted", "1");
+
+        replica.stop();
+        primaryCache.delete("deleted", 0);
+        // far more than the backlog holds, so where the replica left off is gone
+        for (int i = 0; i < 200; i++) {
+            primaryCache.set(element("key" + i, "value" + i + "-0123456789012345678901234567890123456789"));
+        }
+        replica.start();
+
+        awaitValue("key199", "value199-0123456789012345678901234567890123456789");
+        awaitReplicaStat("replication_synced", "1");
+        for (int i = 0; i < 200; i++) {
+            assertEquals("value" + i + "-0123456789012345678901234567890123456789", value(replicaCache.get("key" + i)[0]));
+        }
+        assertEquals("1", value(replicaCache.get("kept")[0]));
+        // the snapshot starts over from an empty cache, so a delete that was dropped from the backlog still lands
+        assertNull(replicaCache.get("deleted")[0]);
+
+        assertEquals("2", replicaStat("replication_full_syncs"));
+        assertEquals("0", replicaStat("replication_partial_syncs"));
+    }
+
+    @Test
+    public void aSnapshotCutShortIsStartedOver() throws Exception {
+        start(ReplicationPrimary.DEFAULT_BACKLOG_BYTES);
+        // far more than the socket buffers hold, so the end of the snapshot is still on the primary when it goes
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < 1024; i++) {
+            value.append('x');
+        }
+        for (int i = 0; i < 2000; i++) {
+            primaryCache.set(element("key" + i, value.toString()));
+        }
+
+        final CountDownLatch halfway = new CountDownLatch(1);
+        final CountDownLatch primaryGone = new CountDownLatch(1);
+        replicaCache = new CacheImpl(new MapStorage() {
+            private static final long serialVersionUID = 1L;
+
+            private int puts;
+
+            @Override
+            public LocalCacheElement put(String key, LocalCacheElement element) {
+                if (++puts == 100) {
+                    // hold the replica here until the primary has dropped the connection
+                    halfway.countDown();
+                    try {
+                        primaryGone.await(10, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return super.put(key, element);
+            }
+        });
+        replica = new ReplicationReplica(replicaCache, addr);
+        replica.start();
+
+        assertTrue(halfway.await(10, TimeUnit.SECONDS));
+        primary.stop();
+        primaryGone.countDown();
+        awaitReplicaStat("replication_connected", "0");
+        assertEquals("0", replicaStat("replication_synced"));
+        primary.start();
+
+        awaitReplicaStat("replication_synced", "1");
+        for (int i = 0; i < 2000; i++) {
+            assertEquals(value.toString(), value(replicaCache.get("key" + i)[0]));
+        }
+        assertEquals("2", replicaStat("replication_full_syncs"));
+        assertEquals("0", replicaStat("replication_partial_syncs"));
+    }
+
+    @Test
+    public void aWriterReportingLateDoesNotLeaveTheReplicaBehind() throws Exception {
+        final CountDownLatch firstStored = new CountDownLatch(1);
+        final CountDownLatch secondReported = new CountDownLatch(1);
+        start(ReplicationPrimary.DEFAULT_BACKLOG_BYTES, new MapStorage() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public LocalCacheElement put(String key, LocalCacheElement element) {
+                LocalCacheElement previous = super.put(key, element);
+                if (value(element).equals("first")) {
+                    // hold the first writer between its write and its report until the second has done both
+                    firstStored.countDown();
+                    try {
+                        secondReported.await(10, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return previous;
+            }
+        });
+        startReplica();
+        // past the snapshot, which would read the key from the storage and hide the order of the log
+        awaitReplicaStat("replication_synced", "1");
+
+        Thread first = new Thread(new Runnable() {
+            public void run() {
+                primaryCache.set(element("key", "first"));
+            }
+        });
+        first.start();
+        assertTrue(firstStored.await(10, TimeUnit.SECONDS));
+        primaryCache.set(element("key", "second"));
+        secondReported.countDown();
+        first.join();
+
+        // records are applied in order, so once the marker is in everything before it is
+        primaryCache.set(element("marker", "1"));
+        awaitValue("marker", "1");
+        assertEquals("second", value(replicaCache.get("key")[0]));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void aPrimaryNeedsAStorageThatOwnsItsKeys() {
+        new ReplicationPrimary(new SharedStorage(), addr);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void aWarmupDonorNeedsAStorageThatOwnsItsKeys() {
+        new WarmupDonor(new SharedStorage(), addr);
+    }
+
+    private void start(long backlogBytes) {
+        start(backlogBytes, new MapStorage());
+    }
+
+    private void start(long backlogBytes, MapStorage storage) {
+        primaryCache = new CacheImpl(storage);
+        primary = new ReplicationPrimary(storage, addr, backlogBytes, ReplicationPrimary.DEFAULT_BATCH_BYTES);
+        primary.start();
+        primaryCache.setReplication(primary);
+    }
+
+    private void startReplica() {
+        replicaCache = new CacheImpl(new MapStorage());
+        replica = new ReplicationReplica(replicaCache, addr);
+        replica.start();
+    }
+
+    private void awaitValue(String key, String value) throws InterruptedException {
+        for (int i = 0; i < 1000 && !equal(value, value(replicaCache.get(key)[0])); i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(value, value(replicaCache.get(key)[0]));
+    }
+
+    private void awaitReplicaStat(String name, String value) throws InterruptedException {
+        for (int i = 0; i < 1000 && !value.equals(replicaStat(name)); i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(value, replicaStat(name));
+    }
+
+    private String replicaStat(String name) {
+        Map<String, Set<String>> stats = replicaCache.stat(null);
+        Set<String> values = stats.get(name);
+        return values == null || values.isEmpty() ? null : values.iterator().next();
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private static LocalCacheElement element(String key, String value) {
+        LocalCacheElement element = new LocalCacheElement(key, 0, 0, 0L);
+        element.setData(ChannelBuffers.wrappedBuffer(value.getBytes(CharsetUtil.US_ASCII)));
+        return element;
+    }
+
+    private static String value(LocalCacheElement element) {
+        return element == null ? null : element.getData().toString(CharsetUtil.US_ASCII);
+    }
+
+    private static int freePort() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * A storage others write to as well, so its key set is not the whole story.
+     */
+    static final class SharedStorage extends MapStorage {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public boolean ownsKeys() {
+            return false;
+        }
+    }
+
+}
@@ -0,0 +1,203 @@
+package com.zalora.jmemcached.snapshot;
+
+import com.zalora.jmemcached.CacheImpl;
+import com.zalora.jmemcached.LocalCacheElement;
+import com.zalora.jmemcached.storage.MapStorage;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.util.CharsetUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Dumps a cache and loads it into another, whole and with shards that were damaged or mixed up on disk in between.
+ */
+public class SnapshotTest {
+
+    private static final int KEYS = 1000;
+    private static final int SHARDS = 4;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private File base;
+    private MapStorage storage;
+    private CacheImpl restored;
+
+    @Before
+    public void fill() {
+        base = new File(folder.getRoot(), "snapshot");
+        storage = new MapStorage();
+        for (int i = 0; i < KEYS; i++) {
+            // every other key expires in 100 seconds, the rest never do
+            storage.put("key" + i, element("key" + i, i % 2 == 0 ? 100000 : 0, "value" + i));
+        }
+        restored = new CacheImpl(new MapStorage());
+    }
+
+    @After
+    public void close() throws IOException {
+        restored.close();
+    }
+
+    @Test
+    public void aSnapshotLoadsWithTheRestOfItsTtls() throws Exception {
+        assertEquals(KEYS, dump());
+
+        assertTrue(new SnapshotLoader(restored, base).load());
+        for (int i = 0; i < KEYS; i++) {
+            LocalCacheElement element = restored.get("key" + i)[0];
+            assertEquals("value" + i, element.getData().toString(CharsetUtil.US_ASCII));
+            if (i % 2 == 0) {
+                assertTrue("ttl " + element.getRemainingTtl(), element.getRemainingTtl() > 90 && element.getRemainingTtl() <= 100);
+            } else {
+                assertEquals(-1, element.getRemainingTtl());
+            }
+        }
+        assertStat("snapshot_loaded_keys", KEYS);
+        assertStat("snapshot_load_failed_shards", 0);
+    }
+
+    @Test
+    public void elementsThatExpireOnDiskAreDropped() throws Exception {
+        storage.put("short", element("short", 1500, "x"));
+        assertEquals(KEYS + 1, dump());
+        Thread.sleep(1500);
+
+        assertTrue(new SnapshotLoader(restored, base).load());
+        assertNull(restored.get("short")[0]);
+        assertStat("snapshot_loaded_keys", KEYS);
+        assertStat("snapshot_load_expired", 1);
+    }
+
+    @Test
+    public void keysStoredBeforeTheLoadAreKept() throws Exception {
+        dump();
+        restored.set(element("key1", 0, "newer"));
+
+        assertTrue(new SnapshotLoader(restored, base).load());
+        assertEquals("newer", restored.get("key1")[0].getData().toString(CharsetUtil.US_ASCII));
+        assertStat("snapshot_load_existing", 1);
+    }
+
+    @Test
+    public void aCorruptChunkStopsOnlyItsShard() throws Exception {
+        dump();
+        // a byte in the middle of the first chunk of shard 0
+        flipByte(SnapshotFormat.shardFile(base, 0), SnapshotFormat.HEADER_BYTES + SnapshotFormat.CHUNK_HEADER_BYTES + 100);
+
+        assertFalse(new SnapshotLoader(restored, base).load());
+        assertOnlyShardMissing(0);
+        assertStat("snapshot_load_failed_shards", 1);
+    }
+
+    @Test
+    public void aShardCutShortKeepsWhatItHad() throws Exception {
+        dump();
+        // without the trailer nothing says the shard is complete
+        File shard = SnapshotFormat.shardFile(base, 1);
+        RandomAccessFile file = new RandomAccessFile(shard, "rw");
+        try {
+            file.setLength(file.length() - 12);
+        } finally {
+            file.close();
+        }
+
+        assertFalse(new SnapshotLoader(restored, base).load());
+        for (int i = 0; i < KEYS; i++) {
+            assertEquals("value" + i, restored.get("key" + i)[0].getData().toString(CharsetUtil.US_ASCII));
+        }
+        assertStat("snapshot_load_failed_shards", 1);
+    }
+
+    @Test
+    public void aShardOfAnotherSnapshotIsNotLoaded() throws Exception {
+        dump();
+        File older = folder.newFile();
+        Files.copy(SnapshotFormat.shardFile(base, 2).toPath(), older.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        // snapshots are told apart by the time they were started at
+        Thread.sleep(10);
+        dump();
+        Files.copy(older.toPath(), SnapshotFormat.shardFile(base, 2).toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        assertFalse(new SnapshotLoader(restored, base).load());
+        assertOnlyShardMissing(2);
+    }
+
+    @Test
+    public void aShardInTheWrongPlaceIsNotLoaded() throws Exception {
+        dump();
+        Files.copy(SnapshotFormat.shardFile(base, 0).toPath(), SnapshotFormat.shardFile(base, 3).toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        assertFalse(new SnapshotLoader(restored, base).load());
+        assertOnlyShardMissing(3);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void aSnapshotNeedsAStorageThatOwnsItsKeys() {
+        new SnapshotWriter(new MapStorage() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public boolean ownsKeys() {
+                return false;
+            }
+        }, base);
+    }
+
+    private long dump() throws Exception {
+        SnapshotWriter writer = new SnapshotWriter(storage, base);
+        writer.setShards(SHARDS);
+        // small chunks, so every shard has several
+        writer.setChunkBytes(1024);
+        return writer.dump().get(10, TimeUnit.SECONDS);
+    }
+
+    private void assertOnlyShardMissing(int shard) {
+        for (int i = 0; i < KEYS; i++) {
+            String key = "key" + i;
+            LocalCacheElement element = restored.get(key)[0];
+            if ((key.hashCode() & Integer.MAX_VALUE) % SHARDS == shard) assertNull(key, element);
+            else assertEquals("value" + i, element.getData().toString(CharsetUtil.US_ASCII));
+        }
+    }
+
+    private void assertStat(String name, long value) {
+        assertEquals(Collections.singleton(String.valueOf(value)), restored.stat(null).get(name));
+    }
+
+    private static void flipByte(File file, long position) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(position);
+            int b = raf.read();
+            raf.seek(position);
+            raf.write(b ^ 0xFF);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static LocalCacheElement element(String key, long expire, String value) {
+        LocalCacheElement element = new LocalCacheElement(key, 0, expire, 0L);
+        element.setData(ChannelBuffers.wrappedBuffer(value.getBytes(CharsetUtil.US_ASCII)));
+        return element;
+    }
+
+}
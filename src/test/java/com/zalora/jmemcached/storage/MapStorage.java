@@ -0,0 +1,46 @@
+package com.zalora.jmemcached.storage;
+
+import com.zalora.jmemcached.LocalCacheElement;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Unbounded storage on a plain map, for tests that need a cache but do not care how it is stored.
+ */
+public class MapStorage extends ConcurrentHashMap<String, LocalCacheElement> implements CacheStorage<String, LocalCacheElement> {
+
+    private static final long serialVersionUID = 1L;
+
+    public long getMemoryCapacity() {
+        return Long.MAX_VALUE;
+    }
+
+    public long getMemoryUsed() {
+        long used = 0;
+        for (LocalCacheElement element : values()) {
+            used += element.size();
+        }
+        return used;
+    }
+
+    public int capacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    public void close() {
+    }
+
+    public Collection<LocalCacheElement> getMulti(Set<String> keys) {
+        List<LocalCacheElement> found = new ArrayList<LocalCacheElement>();
+        for (String key : keys) {
+            LocalCacheElement element = get(key);
+            if (element != null) found.add(element);
+        }
+        return found;
+    }
+
+}
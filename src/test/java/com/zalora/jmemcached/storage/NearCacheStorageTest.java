@@ -0,0 +1,181 @@
+package com.zalora.jmemcached.storage;
+
+import com.zalora.jmemcached.LocalCacheElement;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.util.CharsetUtil;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * A near cache in front of an in-memory remote that counts the lookups reaching it and can be changed behind the
+ * near cache's back, as other clients of a shared remote would.
+ */
+public class NearCacheStorageTest {
+
+    private RemoteStorage remote;
+    private NearCacheStorage<String, LocalCacheElement> near;
+
+    @Before
+    public void create() {
+        remote = new RemoteStorage();
+        near = new NearCacheStorage<String, LocalCacheElement>(remote, 1000, 60000);
+    }
+
+    @Test
+    public void repeatedGetsAreServedLocally() {
+        remote.put("a", element("a", "1"));
+
+        assertEquals("1", value(near.get("a")));
+        assertEquals("1", value(near.get("a")));
+        assertEquals(1, remote.lookups.size());
+        assertEquals("1", near.getStats().get("near_cache_hits"));
+    }
+
+    @Test
+    public void changesBehindItsBackAreSeenOnceInvalidated() {
+        remote.put("a", element("a", "1"));
+        near.get("a");
+
+        remote.put("a", element("a", "2"));
+        assertEquals("1", value(near.get("a")));
+
+        near.invalidate("a");
+        assertEquals("2", value(near.get("a")));
+        assertEquals("1", near.getStats().get("near_cache_invalidations"));
+    }
+
+    @Test
+    public void invalidateAllDropsEveryLocalCopy() {
+        remote.put("a", element("a", "1"));
+        remote.put("b", element("b", "1"));
+        near.get("a");
+        near.get("b");
+
+        remote.remove("a");
+        remote.put("b", element("b", "2"));
+        near.invalidateAll();
+
+        assertNull(near.get("a"));
+        assertEquals("2", value(near.get("b")));
+        assertEquals("0", near.getStats().get("near_cache_hits"));
+    }
+
+    @Test
+    public void writesDropTheLocalCopy() {
+        near.put("a", element("a", "1"));
+        near.get("a");
+
+        near.put("a", element("a", "2"));
+        assertEquals("2", value(near.get("a")));
+
+        near.remove("a");
+        assertNull(near.get("a"));
+    }
+
+    @Test
+    public void copiesExpireAfterTheTtl() throws InterruptedException {
+        near = new NearCacheStorage<String, LocalCacheElement>(remote, 1000, 50);
+        remote.put("a", element("a", "1"));
+        near.get("a");
+
+        Thread.sleep(100);
+        remote.put("a", element("a", "2"));
+        assertEquals("2", value(near.get("a")));
+        assertEquals("1", near.getStats().get("near_cache_expirations"));
+    }
+
+    @Test
+    public void multiGetsOnlyFetchWhatIsNotHeldLocally() {
+        remote.put("a", element("a", "1"));
+        remote.put("b", element("b", "2"));
+        near.get("a");
+        remote.lookups.clear();
+
+        String[] keys = {"a", "b", "c"};
+        LocalCacheElement[] results = new LocalCacheElement[keys.length];
+        near.getMulti(keys, results);
+
+        assertEquals("1", value(results[0]));
+        assertEquals("2", value(results[1]));
+        assertNull(results[2]);
+        assertEquals(2, remote.lookups.size());
+    }
+
+    @Test
+    public void aReadOverlappingAWriteIsNotKept() throws Exception {
+        remote.put("a", element("a", "1"));
+        remote.hold = new CountDownLatch(1);
+
+        ExecutorService reader = Executors.newSingleThreadExecutor();
+        try {
+            Future<LocalCacheElement> read = reader.submit(new Callable<LocalCacheElement>() {
+                public LocalCacheElement call() {
+                    return near.get("a");
+                }
+            });
+            remote.reading.await(10, TimeUnit.SECONDS);
+
+            // the write lands while the read of the old value is still on its way back
+            near.put("a", element("a", "2"));
+            remote.hold.countDown();
+            assertEquals("1", value(read.get(10, TimeUnit.SECONDS)));
+        } finally {
+            reader.shutdown();
+        }
+
+        assertEquals("2", value(near.get("a")));
+    }
+
+    private static LocalCacheElement element(String key, String value) {
+        LocalCacheElement element = new LocalCacheElement(key, 0, 0, 0L);
+        element.setData(ChannelBuffers.wrappedBuffer(value.getBytes()));
+        return element;
+    }
+
+    private static String value(LocalCacheElement element) {
+        return element == null ? null : element.getData().toString(CharsetUtil.US_ASCII);
+    }
+
+    /**
+     * Records the keys looked up, and can hold lookups until released.
+     */
+    static final class RemoteStorage extends MapStorage {
+
+        private static final long serialVersionUID = 1L;
+
+        final List<String> lookups = new ArrayList<String>();
+        final CountDownLatch reading = new CountDownLatch(1);
+        volatile CountDownLatch hold;
+
+        @Override
+        public LocalCacheElement get(Object key) {
+            synchronized (lookups) {
+                lookups.add((String) key);
+            }
+            LocalCacheElement element = super.get(key);
+            if (hold != null) {
+                reading.countDown();
+                try {
+                    hold.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                hold = null;
+            }
+            return element;
+        }
+    }
+
+}
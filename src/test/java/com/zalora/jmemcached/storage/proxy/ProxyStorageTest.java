@@ -0,0 +1,225 @@
+package com.zalora.jmemcached.storage.proxy;
+
+import com.zalora.jmemcached.CacheImpl;
+import com.zalora.jmemcached.LocalCacheElement;
+import com.zalora.jmemcached.MemCacheDaemon;
+import com.zalora.jmemcached.storage.MapStorage;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.util.CharsetUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A proxy over three daemons on loopback, each with its own map storage so where every key landed can be checked.
+ */
+public class ProxyStorageTest {
+
+    private static final int SERVERS = 3;
+    private static final int KEYS = 300;
+
+    private final int[] ports = new int[SERVERS];
+    private final MapStorage[] storages = new MapStorage[SERVERS];
+    private final List<MemCacheDaemon<LocalCacheElement>> daemons = new ArrayList<MemCacheDaemon<LocalCacheElement>>();
+    private ProxyStorage proxy;
+
+    @Before
+    public void start() throws IOException {
+        List<String> servers = new ArrayList<String>();
+        for (int i = 0; i < SERVERS; i++) {
+            ports[i] = freePort();
+            storages[i] = new MapStorage();
+            daemons.add(startDaemon(i));
+            servers.add("127.0.0.1:" + ports[i]);
+        }
+
+        proxy = new ProxyStorage(servers);
+        proxy.setTimeoutMillis(500);
+        proxy.setFailureLimit(2);
+    }
+
+    @After
+    public void stop() {
+        proxy.close();
+        for (MemCacheDaemon<LocalCacheElement> daemon : daemons) {
+            if (daemon.isRunning()) daemon.stop();
+        }
+    }
+
+    @Test
+    public void keysLandOnTheServerTheRingNames() {
+        for (int i = 0; i < KEYS; i++) {
+            proxy.put("key" + i, element("key" + i, "value" + i));
+        }
+
+        KetamaRing ring = ring(0, 1, 2);
+        for (int i = 0; i < KEYS; i++) {
+            int owner = server(ring.locate("key" + i));
+            for (int s = 0; s < SERVERS; s++) {
+                assertEquals("key" + i + " on server " + s, s == owner, storages[s].containsKey("key" + i));
+            }
+            assertEquals("value" + i, value(proxy.get("key" + i)));
+        }
+        for (MapStorage storage : storages) {
+            assertFalse(storage.isEmpty());
+        }
+    }
+
+    @Test
+    public void multiGetsAreSplitByServer() {
+        String[] keys = new String[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = "key" + i;
+            if (i % 3 != 0) proxy.put(keys[i], element(keys[i], "value" + i));
+        }
+
+        LocalCacheElement[] results = new LocalCacheElement[KEYS];
+        proxy.getMulti(keys, results);
+        for (int i = 0; i < KEYS; i++) {
+            if (i % 3 == 0) assertNull(results[i]);
+            else assertEquals("value" + i, value(results[i]));
+        }
+    }
+
+    @Test
+    public void aFailingServerIsEjectedAndOnlyItsKeysMove() {
+        for (int i = 0; i < KEYS; i++) {
+            proxy.put("key" + i, element("key" + i, "value" + i));
+        }
+        KetamaRing before = ring(0, 1, 2);
+        KetamaRing after = ring(0, 2);
+
+        daemons.get(1).stop();
+        awaitEjection(1, before);
+        assertEquals("1", proxy.getStats().get("proxy_upstream_127.0.0.1:" + ports[1] + "_ejected"));
+        assertEquals("2", proxy.getStats().get("proxy_upstreams_live"));
+
+        for (int i = 0; i < KEYS; i++) {
+            String key = "key" + i;
+            int owner = server(before.locate(key));
+            if (owner == 1) {
+                // the keys of the ejected server go to the one after it on the ring, where they are misses
+                assertNull(proxy.get(key));
+                proxy.put(key, element(key, "moved" + i));
+                assertTrue(storages[server(after.locate(key))].containsKey(key));
+                assertEquals("moved" + i, value(proxy.get(key)));
+            } else {
+                assertEquals(owner, server(after.locate(key)));
+                assertEquals("value" + i, value(proxy.get(key)));
+            }
+        }
+    }
+
+    @Test
+    public void multiGetsServeTheHealthyServersWhileOneFails() {
+        String[] keys = new String[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = "key" + i;
+            proxy.put(keys[i], element(keys[i], "value" + i));
+        }
+        KetamaRing ring = ring(0, 1, 2);
+
+        daemons.get(2).stop();
+        LocalCacheElement[] results = new LocalCacheElement[KEYS];
+        proxy.getMulti(keys, results);
+        for (int i = 0; i < KEYS; i++) {
+            if (server(ring.locate(keys[i])) == 2) assertNull(results[i]);
+            else assertEquals("value" + i, value(results[i]));
+        }
+    }
+
+    @Test
+    public void anEjectedServerIsRetriedAfterTheTimeout() throws Exception {
+        proxy.setRetryTimeoutMillis(200);
+        KetamaRing ring = ring(0, 1, 2);
+        String key = keyOn(ring, 0);
+        proxy.put(key, element(key, "before"));
+
+        daemons.get(0).stop();
+        awaitEjection(0, ring);
+
+        // the server comes back with what it had, and gets its keys back once the retry timeout has passed
+        daemons.set(0, startDaemon(0));
+        Thread.sleep(300);
+        assertEquals("before", value(proxy.get(key)));
+        assertEquals("0", proxy.getStats().get("proxy_upstream_127.0.0.1:" + ports[0] + "_ejected"));
+    }
+
+    /**
+     * Send requests for a key of the stopped server until the proxy has ejected it.
+     */
+    private void awaitEjection(int server, KetamaRing ring) {
+        String key = keyOn(ring, server);
+        String ejected = "proxy_upstream_127.0.0.1:" + ports[server] + "_ejected";
+        for (int i = 0; i < 10 && !"1".equals(proxy.getStats().get(ejected)); i++) {
+            try {
+                proxy.get(key);
+            } catch (UpstreamException expected) {
+                // counted against the server
+            }
+        }
+        assertEquals("1", proxy.getStats().get(ejected));
+    }
+
+    private MemCacheDaemon<LocalCacheElement> startDaemon(int server) {
+        MemCacheDaemon<LocalCacheElement> daemon = new MemCacheDaemon<LocalCacheElement>(new CacheImpl(storages[server]));
+        daemon.setAddr(new InetSocketAddress("127.0.0.1", ports[server]));
+        daemon.start();
+        return daemon;
+    }
+
+    /**
+     * @return a ring over the given servers, laid out as the proxy lays out its own
+     */
+    private KetamaRing ring(int... servers) {
+        List<Upstream> upstreams = new ArrayList<Upstream>();
+        for (int server : servers) {
+            upstreams.add(new Upstream(proxy, "127.0.0.1", ports[server], 1));
+        }
+        return new KetamaRing(upstreams);
+    }
+
+    private int server(Upstream upstream) {
+        for (int i = 0; i < SERVERS; i++) {
+            if (upstream.name.equals("127.0.0.1:" + ports[i])) return i;
+        }
+        throw new AssertionError("no server " + upstream.name);
+    }
+
+    private String keyOn(KetamaRing ring, int server) {
+        for (int i = 0; ; i++) {
+            if (server(ring.locate("key" + i)) == server) return "key" + i;
+        }
+    }
+
+    private static LocalCacheElement element(String key, String value) {
+        LocalCacheElement element = new LocalCacheElement(key, 0, 0, 0L);
+        element.setData(ChannelBuffers.wrappedBuffer(value.getBytes(CharsetUtil.US_ASCII)));
+        return element;
+    }
+
+    private static String value(LocalCacheElement element) {
+        return element == null ? null : element.getData().toString(CharsetUtil.US_ASCII);
+    }
+
+    private static int freePort() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+
+}
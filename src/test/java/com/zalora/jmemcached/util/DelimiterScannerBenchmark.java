@@ -0,0 +1,86 @@
+package com.zalora.jmemcached.util;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+/**
+ * Times tokenizing multi-get lines with the scanner against the byte loop it replaced, on heap and direct buffers.
+ * Not run by the build; run it by hand after a change to the scanner, on the JVM it will be deployed on:
+ * <pre>
+ * mvn test-compile
+ * java -cp target/classes:target/test-classes:$(mvn -q dependency:build-classpath -Dmdep.outputFile=/dev/stdout) \
+ *     com.zalora.jmemcached.util.DelimiterScannerBenchmark
+ * </pre>
+ * On an x86 Xeon with Java 8, a line of 500 keys of 22 bytes took the scanner about 0.65 of the loop's time on heap
+ * buffers and 0.5 on direct ones. With 6 byte keys nearly every word holds a delimiter, and the scanner only breaks
+ * even on heap buffers.
+ */
+public final class DelimiterScannerBenchmark {
+
+    private static final int ROUNDS = 10;
+    private static final int ITERATIONS = 20000;
+
+    public static void main(String[] args) {
+        run("500 keys of 22 bytes", line(500, "product:detail:", 1000000));
+        run("500 keys of 6 bytes", line(500, "k", 10000));
+    }
+
+    private static byte[] line(int keys, String prefix, int first) {
+        StringBuilder line = new StringBuilder("get");
+        for (int i = 0; i < keys; i++) {
+            line.append(' ').append(prefix).append(first + i);
+        }
+        return line.append("\r\n").toString().getBytes();
+    }
+
+    private static void run(String name, byte[] line) {
+        ChannelBuffer heap = ChannelBuffers.wrappedBuffer(line);
+        ChannelBuffer direct = ChannelBuffers.directBuffer(line.length);
+        direct.writeBytes(line);
+
+        DelimiterScanner scanner = new DelimiterScanner();
+        long sink = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) sink += byteLoop(heap);
+            long heapLoop = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) sink += scan(scanner, heap);
+            long heapScan = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) sink += byteLoop(direct);
+            long directLoop = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) sink += scan(scanner, direct);
+            long directScan = System.nanoTime() - start;
+
+            // the early rounds only warm up the JIT
+            if (round >= ROUNDS / 2) {
+                System.out.printf("%s: heap loop %d us, scanner %d us (%.2f); direct loop %d us, scanner %d us (%.2f)%n",
+                        name, heapLoop / 1000, heapScan / 1000, (double) heapScan / heapLoop,
+                        directLoop / 1000, directScan / 1000, (double) directScan / directLoop);
+            }
+        }
+        if (sink == 42) System.out.println();
+    }
+
+    private static int byteLoop(ChannelBuffer buffer) {
+        int delimiters = 0;
+        for (int i = buffer.readerIndex(); i < buffer.writerIndex(); i++) {
+            byte b = buffer.getByte(i);
+            if (b == ' ' || b == '\r' || b == '\n') delimiters++;
+        }
+        return delimiters;
+    }
+
+    private static int scan(DelimiterScanner scanner, ChannelBuffer buffer) {
+        int delimiters = 0;
+        scanner.reset(buffer, buffer.readerIndex(), buffer.writerIndex());
+        while (scanner.next() != -1) delimiters++;
+        return delimiters;
+    }
+
+}
@@ -0,0 +1,202 @@
+package com.zalora.jmemcached.util;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the scanner against a plain byte loop over every kind of buffer the decoder can be handed.
+ */
+public class DelimiterScannerTest {
+
+    private static final byte[] DELIMITERS = {' ', '\r', '\n'};
+
+    // bytes that differ from a delimiter in a single bit, or by the sign bit, which a borrow-prone test would match
+    private static final byte[] LOOKALIKES = {'!', 0x1F, 0x0B, 0x0C, 0x09, 0x0E, (byte) 0xA0, (byte) 0x8A, (byte) 0x8D, 0, (byte) 0xFF, 'a'};
+
+    private interface BufferKind {
+        ChannelBuffer wrap(byte[] bytes);
+    }
+
+    private static final BufferKind[] KINDS = {
+            // heap
+            new BufferKind() {
+                public ChannelBuffer wrap(byte[] bytes) {
+                    return ChannelBuffers.wrappedBuffer(bytes);
+                }
+            },
+            // heap, starting inside its array
+            new BufferKind() {
+                public ChannelBuffer wrap(byte[] bytes) {
+                    byte[] padded = new byte[bytes.length + 11];
+                    Arrays.fill(padded, (byte) ' ');
+                    System.arraycopy(bytes, 0, padded, 5, bytes.length);
+                    return ChannelBuffers.wrappedBuffer(padded, 5, bytes.length);
+                }
+            },
+            // slice of a heap buffer
+            new BufferKind() {
+                public ChannelBuffer wrap(byte[] bytes) {
+                    ChannelBuffer whole = ChannelBuffers.buffer(bytes.length + 6);
+                    whole.writeBytes(new byte[]{'\n', '\n', '\n'});
+                    whole.writeBytes(bytes);
+                    whole.writeBytes(new byte[]{'\r', '\r', '\r'});
+                    return whole.slice(3, bytes.length);
+                }
+            },
+            // direct
+            new BufferKind() {
+                public ChannelBuffer wrap(byte[] bytes) {
+                    ChannelBuffer direct = ChannelBuffers.directBuffer(Math.max(1, bytes.length));
+                    direct.writeBytes(bytes);
+                    return direct;
+                }
+            },
+            // slice of a direct buffer
+            new BufferKind() {
+                public ChannelBuffer wrap(byte[] bytes) {
+                    ChannelBuffer direct = ChannelBuffers.directBuffer(bytes.length + 4);
+                    direct.writeBytes(new byte[]{' ', ' '});
+                    direct.writeBytes(bytes);
+                    direct.writeBytes(new byte[]{' ', ' '});
+                    return direct.slice(2, bytes.length);
+                }
+            },
+            // composite of two heap buffers, split in the middle
+            new BufferKind() {
+                public ChannelBuffer wrap(byte[] bytes) {
+                    int half = bytes.length / 2;
+                    return ChannelBuffers.wrappedBuffer(
+                            ChannelBuffers.wrappedBuffer(Arrays.copyOfRange(bytes, 0, half)),
+                            ChannelBuffers.wrappedBuffer(Arrays.copyOfRange(bytes, half, bytes.length)));
+                }
+            },
+            // dynamic, as a decoder's cumulation
+            new BufferKind() {
+                public ChannelBuffer wrap(byte[] bytes) {
+                    ChannelBuffer dynamic = ChannelBuffers.dynamicBuffer(4);
+                    dynamic.writeBytes(bytes);
+                    return dynamic;
+                }
+            },
+    };
+
+    @Test
+    public void findsEachDelimiterAtEveryOffsetOfAWord() {
+        for (byte delimiter : DELIMITERS) {
+            for (int length = 1; length <= 40; length++) {
+                for (int at = 0; at < length; at++) {
+                    byte[] bytes = new byte[length];
+                    Arrays.fill(bytes, (byte) 'k');
+                    bytes[at] = delimiter;
+                    checkAllKinds(bytes);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void doesNotMatchLookalikeBytes() {
+        for (byte lookalike : LOOKALIKES) {
+            for (int length = 1; length <= 24; length++) {
+                byte[] bytes = new byte[length];
+                Arrays.fill(bytes, lookalike);
+                checkAllKinds(bytes);
+
+                // and a delimiter after a run of them, at each offset
+                for (int at = 0; at < length; at++) {
+                    byte[] withDelimiter = bytes.clone();
+                    withDelimiter[at] = DELIMITERS[at % DELIMITERS.length];
+                    checkAllKinds(withDelimiter);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void handsOutSeveralDelimitersOfOneWord() {
+        checkAllKinds("a b\r\nc d e f g h i".getBytes());
+        checkAllKinds("        ".getBytes());
+        checkAllKinds("\r\n\r\n\r\n\r\n\r\n\r\n\r\n\r\n".getBytes());
+        checkAllKinds("get k1 k2 k3 k4 k5 k6 k7 k8 k9 k10 k11 k12\r\n".getBytes());
+    }
+
+    @Test
+    public void matchesByteLoopOnRandomInput() {
+        Random random = new Random(42);
+        byte[] alphabet = {' ', '\r', '\n', 'a', 'b', (byte) 0xA0, (byte) 0x8D, 0x0B, '!'};
+        for (int round = 0; round < 2000; round++) {
+            byte[] bytes = new byte[random.nextInt(100)];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = random.nextInt(4) == 0 ? alphabet[random.nextInt(alphabet.length)] : (byte) random.nextInt(256);
+            }
+            checkAllKinds(bytes);
+        }
+    }
+
+    @Test
+    public void scansOnlyTheGivenRange() {
+        byte[] bytes = "0123 5678 abcdefgh ijklm\r\n".getBytes();
+        for (BufferKind kind : KINDS) {
+            ChannelBuffer buffer = kind.wrap(bytes);
+            for (int from = 0; from <= bytes.length; from++) {
+                for (int to = from; to <= bytes.length; to++) {
+                    assertEquals(expected(bytes, from, to), scanned(buffer, from, to));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void indexOfReturnsTheFirstDelimiter() {
+        ChannelBuffer buffer = ChannelBuffers.wrappedBuffer("abcdefghijkl mnop\r\n".getBytes());
+        assertEquals(12, DelimiterScanner.indexOf(buffer, 0, buffer.writerIndex()));
+        assertEquals(17, DelimiterScanner.indexOf(buffer, 13, buffer.writerIndex()));
+        assertEquals(-1, DelimiterScanner.indexOf(buffer, 0, 12));
+    }
+
+    @Test
+    public void canBeReusedAcrossBuffers() {
+        DelimiterScanner scanner = new DelimiterScanner();
+        ChannelBuffer first = ChannelBuffers.wrappedBuffer("aaaa bbbb cccc".getBytes());
+        assertEquals(4, scanner.reset(first, 0, first.writerIndex()).next());
+
+        // the pending matches of the first buffer must not leak into the second
+        ChannelBuffer second = ChannelBuffers.wrappedBuffer("zzzzzzzzzzzz\n".getBytes());
+        assertEquals(12, scanner.reset(second, 0, second.writerIndex()).next());
+        assertEquals(-1, scanner.next());
+    }
+
+    private static void checkAllKinds(byte[] bytes) {
+        List<Integer> expected = expected(bytes, 0, bytes.length);
+        for (int k = 0; k < KINDS.length; k++) {
+            ChannelBuffer buffer = KINDS[k].wrap(bytes);
+            assertEquals("buffer kind " + k + " on " + Arrays.toString(bytes), expected, scanned(buffer, 0, bytes.length));
+        }
+    }
+
+    private static List<Integer> expected(byte[] bytes, int from, int to) {
+        List<Integer> indices = new ArrayList<Integer>();
+        for (int i = from; i < to; i++) {
+            if (bytes[i] == ' ' || bytes[i] == '\r' || bytes[i] == '\n') indices.add(i);
+        }
+        return indices;
+    }
+
+    private static List<Integer> scanned(ChannelBuffer buffer, int from, int to) {
+        List<Integer> indices = new ArrayList<Integer>();
+        DelimiterScanner scanner = new DelimiterScanner().reset(buffer, from, to);
+        for (int i = scanner.next(); i != -1; i = scanner.next()) {
+            indices.add(i);
+        }
+        return indices;
+    }
+
+}